@@ -0,0 +1,23 @@
+@echo off
+
+rem Fast-start launcher for the deprecation CLI, takes the same arguments as utility.DeprecationUtility.
+rem Build the jar and the class data sharing archive first with: mvn -P fast-start package
+
+set BASE_DIR=%~dp0
+set CLI_JAR=%BASE_DIR%target\deprecation-utility-cli.jar
+set CDS_ARCHIVE=%BASE_DIR%target\cds\deprecation-utility.jsa
+
+if not exist "%CLI_JAR%" (
+    echo CLI jar not found: %CLI_JAR%
+    echo    Please run 'mvn -P fast-start package' first
+    exit /b 1
+)
+
+set FAST_OPTS=-XX:TieredStopAtLevel=1 -XX:+UseSerialGC
+if exist "%CDS_ARCHIVE%" set FAST_OPTS=-XX:SharedArchiveFile="%CDS_ARCHIVE%" -Xshare:auto %FAST_OPTS%
+
+rem With DEPRECATION_DAEMON_PORT set, commands run in the warm JVM of a running web server
+set MAIN_CLASS=utility.DeprecationUtility
+if defined DEPRECATION_DAEMON_PORT set MAIN_CLASS=utility.DeprecationClient
+
+java %FAST_OPTS% %JAVA_OPTS% -cp "%CLI_JAR%" %MAIN_CLASS% %*
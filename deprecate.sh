@@ -0,0 +1,28 @@
+#!/bin/bash
+
+# Fast-start launcher for the deprecation CLI, takes the same arguments as utility.DeprecationUtility.
+# Build the jar and the class data sharing archive first with: mvn -P fast-start package
+
+BASE_DIR="$(cd "$(dirname "$0")" && pwd)"
+CLI_JAR="$BASE_DIR/target/deprecation-utility-cli.jar"
+CDS_ARCHIVE="$BASE_DIR/target/cds/deprecation-utility.jsa"
+
+if [ ! -f "$CLI_JAR" ]; then
+    echo "CLI jar not found: $CLI_JAR"
+    echo "   Please run 'mvn -P fast-start package' first"
+    exit 1
+fi
+
+# Short runs are dominated by start-up: share the archived classes and stop at the C1 compiler
+JAVA_OPTS="-XX:TieredStopAtLevel=1 -XX:+UseSerialGC $JAVA_OPTS"
+if [ -f "$CDS_ARCHIVE" ]; then
+    JAVA_OPTS="-XX:SharedArchiveFile=$CDS_ARCHIVE -Xshare:auto $JAVA_OPTS"
+fi
+
+# With DEPRECATION_DAEMON_PORT set, commands run in the warm JVM of a running web server
+MAIN_CLASS=utility.DeprecationUtility
+if [ -n "$DEPRECATION_DAEMON_PORT" ]; then
+    MAIN_CLASS=utility.DeprecationClient
+fi
+
+exec java $JAVA_OPTS -cp "$CLI_JAR" $MAIN_CLASS "$@"
@@ -0,0 +1,402 @@
+package utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Deprecation run over an uploaded zip or jar of sources, entirely in memory. The same run serves as
+ * a dry run over the sources of a {@link SourceProvider}, such as a git revision: see
+ * {@link #read(SourceProvider)}.
+ *
+ * The archive is read once with a <code>ZipInputStream</code>. Only the bytes of its <code>.java</code>
+ * entries are kept, each next to its identifier filter, and files are parsed only when the filter says
+ * they may contain a method being deprecated. Edits are applied to the kept bytes, and the answer is
+ * a zip written straight to the response: a <code>deprecation-result.json</code> entry followed by the
+ * modified files, under their original names. Nothing touches the disk, so there is no journal and
+ * nothing to undo; the client keeps its original archive.
+ *
+ * Memory is capped twice. An archive may hold at most <code>maxArchiveBytes</code> of sources, and
+ * every buffered byte is also reserved from the {@link MemoryGovernor} shared by all runs of the JVM;
+ * a run that cannot get its share within a few seconds fails with {@link LimitException} instead of
+ * growing the heap. Both are returned by {@link #close}.
+ */
+public class ArchiveDeprecation implements AutoCloseable {
+
+    public static final long DEFAULT_MAX_ARCHIVE_BYTES = 64L << 20;
+    static final String RESULT_ENTRY = "deprecation-result.json";
+
+    private static final long BUDGET_WAIT_SECONDS = 5;
+    private static final int MAX_ENTRIES = 200_000;
+
+    private final long maxArchiveBytes;
+    private final List<Source> sources = new ArrayList<>();
+    private final SymbolTable symbols = new SymbolTable();
+    private InsertionEngine insertionEngine = InsertionEngine.defaultEngine();
+    private String origin = "Archive";
+    private final MemoryGovernor governor = MemoryGovernor.shared();
+    private long bufferedBytes;
+    private long reservedBytes;
+
+    public ArchiveDeprecation(long maxArchiveBytes) {
+        this.maxArchiveBytes = maxArchiveBytes;
+    }
+
+    /**
+     * Thrown when an archive is larger than allowed, or when the shared budget stays exhausted
+     */
+    public static class LimitException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final boolean busy;
+
+        LimitException(String message, boolean busy) {
+            super(message);
+            this.busy = busy;
+        }
+
+        /**
+         * Whether the archive would fit once other runs finish, as opposed to being too large
+         */
+        public boolean isBusy() {
+            return busy;
+        }
+    }
+
+    /**
+     * One source of the archive: its entry name, current bytes and, once needed, its parsed declarations
+     */
+    private final class Source {
+        final String name;
+        final String contentId;
+        private final SourceProvider provider;
+        byte[] bytes;
+        long[] identifiers;
+        SourceIndex.FileEntry entry;
+        boolean modified;
+
+        Source(String name, byte[] bytes) {
+            this.name = name;
+            this.contentId = null;
+            this.provider = null;
+            this.bytes = bytes;
+            this.identifiers = IdentifierFilter.build(bytes);
+        }
+
+        /**
+         * A source of a provider, kept in memory only once a name being deprecated may occur in it. With
+         * a content id its identifier filter and declarations come from the parse cache.
+         */
+        Source(SourceProvider provider, String name) throws IOException {
+            this.name = name;
+            this.contentId = provider.contentId(name);
+            this.provider = provider;
+            this.identifiers = ParseCache.shared().get("identifiers", contentId,
+                    () -> IdentifierFilter.build(provider.read(name)), ids -> ids.length * 8L);
+        }
+
+        byte[] bytes() throws IOException {
+            if (bytes == null) {
+                byte[] read = provider.read(name);
+                reserve(read.length);
+                bytes = read;
+            }
+            return bytes;
+        }
+
+        SourceIndex.FileEntry entry() throws IOException {
+            if (entry == null) {
+                if (contentId != null && !modified) {
+                    entry = ParseCache.shared().get("declarations", contentId,
+                            () -> SourceIndex.parse(content(), new SymbolTable(), bytes.length, 0, 0, identifiers),
+                            SourceIndex.FileEntry::weight).withSymbols(symbols);
+                } else {
+                    entry = SourceIndex.parse(content(), symbols, bytes().length, 0, 0, identifiers);
+                }
+            }
+            return entry;
+        }
+
+        String content() throws IOException {
+            return new String(bytes(), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Apply insertions planned against the current content; the new bytes are charged to the budget
+         */
+        void apply(String content, List<DeprecationJournal.Insertion> insertions) throws IOException {
+            insertions.sort(Comparator.comparingInt(insertion -> insertion.offset));
+            StringBuilder edited = new StringBuilder(content.length() + insertions.size() * 64);
+            int position = 0;
+            for (DeprecationJournal.Insertion insertion : insertions) {
+                edited.append(content, position, insertion.offset).append(insertion.text);
+                position = insertion.offset;
+            }
+            edited.append(content, position, content.length());
+            byte[] updated = edited.toString().getBytes(StandardCharsets.UTF_8);
+            reserve(updated.length - bytes.length);
+            bytes = updated;
+            identifiers = IdentifierFilter.build(bytes);
+            entry = null;
+            modified = true;
+        }
+    }
+
+    /**
+     * Choose the markers by name, as for {@link DeprecationUtility#setMarkers(String, String, String, String, String)}
+     */
+    public void setMarkers(String markers, String since, String replacement, String team, String markerTemplate) {
+        this.insertionEngine = DeprecationUtility.markerEngine(insertionEngine, markers, since, replacement, team, markerTemplate);
+    }
+
+    /**
+     * Read the sources of an archive. Entries that are not Java sources, or that sit in build output
+     * directories, are skipped without being buffered.
+     */
+    public void read(InputStream archive) throws IOException {
+        ZipInputStream zip = new ZipInputStream(archive, StandardCharsets.UTF_8);
+        byte[] chunk = new byte[16384];
+        int entries = 0;
+        for (ZipEntry zipEntry = zip.getNextEntry(); zipEntry != null; zipEntry = zip.getNextEntry()) {
+            if (++entries > MAX_ENTRIES) {
+                throw new LimitException("Archive has more than " + MAX_ENTRIES + " entries", false);
+            }
+            if (zipEntry.isDirectory() || !isSource(zipEntry.getName())) {
+                continue;
+            }
+            // the buffer is charged as it grows; the declared size is only a hint for its first capacity
+            long declared = zipEntry.getSize();
+            int capacity = declared > 0 ? (int) Math.min(declared, maxArchiveBytes + 1) : 8192;
+            reserve(capacity);
+            byte[] buffer = new byte[capacity];
+            int length = 0;
+            for (int n = zip.read(chunk); n > 0; n = zip.read(chunk)) {
+                if (length + n > buffer.length) {
+                    int grown = (int) Math.min(Math.max(length + n, buffer.length * 2L), maxArchiveBytes + 1);
+                    reserve(grown - buffer.length);
+                    buffer = Arrays.copyOf(buffer, grown);
+                }
+                System.arraycopy(chunk, 0, buffer, length, n);
+                length += n;
+            }
+            byte[] bytes = length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+            reserve(bytes.length - buffer.length);
+            sources.add(new Source(zipEntry.getName(), bytes));
+        }
+        // the central directory is left unread by the entry stream; a connection must not be closed on it
+        while (archive.read(chunk) >= 0) {
+            continue;
+        }
+    }
+
+    /**
+     * Take the sources of a provider instead of an archive, for a dry run: the answer tells what a run
+     * would change, and {@link #writeTo} gives the changed files, while the provider is never written.
+     * A source is read when its identifier filter is built, unless the parse cache has it, and then only
+     * kept once a method being deprecated may occur in it.
+     */
+    public void read(SourceProvider provider) throws IOException {
+        List<String> paths = provider.sources();
+        if (paths.size() > MAX_ENTRIES) {
+            throw new LimitException(provider.describe() + " has more than " + MAX_ENTRIES + " sources", false);
+        }
+        origin = "Dry run of " + provider.describe();
+        for (String path : paths) {
+            sources.add(new Source(provider, path));
+        }
+    }
+
+    /**
+     * Whether an entry is a Java source outside of build output directories
+     */
+    static boolean isSource(String entryName) {
+        String path = "/" + entryName.replace('\\', '/');
+        return path.endsWith(".java") && !path.contains("/target/") && !path.contains("/build/");
+    }
+
+    /**
+     * Charge bytes to this archive and to the memory governor, or give them back when negative
+     */
+    private void reserve(long bytes) throws LimitException {
+        bufferedBytes += bytes;
+        if (bytes > 0 && bufferedBytes > maxArchiveBytes) {
+            throw new LimitException("Archive holds more than " + maxArchiveBytes + " bytes of sources", false);
+        }
+        long missing = bufferedBytes - reservedBytes;
+        if (missing > 0) {
+            boolean acquired;
+            try {
+                acquired = governor.acquire(missing, TimeUnit.SECONDS.toMillis(BUDGET_WAIT_SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+            if (!acquired) {
+                throw new LimitException("Too many runs in progress, retry later", true);
+            }
+            reservedBytes += missing;
+        } else if (missing < 0) {
+            governor.release(-missing);
+            reservedBytes += missing;
+        }
+    }
+
+    /**
+     * Deprecate a method and the methods it calls, then the classes left with only deprecated methods,
+     * as {@link DeprecationUtility#deprecateMethodWithResult} does on a project. Without a method name only
+     * the class pass runs, over every source.
+     */
+    public WebServer.DeprecationResult deprecateWithResult(String methodName, String methodSignature) throws IOException {
+        StringBuilder details = new StringBuilder();
+        boolean methodRun = methodName != null && !methodName.trim().isEmpty();
+        if (methodRun) {
+            details.append("Starting deprecation process for method: ").append(methodName).append("\n");
+        }
+        if (methodSignature != null && !methodSignature.trim().isEmpty()) {
+            details.append("Method signature: ").append(methodSignature).append("\n");
+        }
+        details.append(origin).append(": ").append(sources.size()).append(" source file(s)\n\n");
+
+        Set<Source> updated = new LinkedHashSet<>();
+        int methodsDeprecated = 0;
+        if (methodRun) {
+            Set<String> calledMethods = new TreeSet<>();
+            for (Source source : sources) {
+                if (IdentifierFilter.mayContain(source.identifiers, methodName)) {
+                    methodsDeprecated += deprecateMethodsIn(source, methodName, methodSignature, calledMethods, details, updated);
+                }
+            }
+            for (String calledMethod : calledMethods) {
+                for (Source source : sources) {
+                    if (IdentifierFilter.mayContain(source.identifiers, calledMethod)) {
+                        markAll(source, source.entry().methodsNamed(calledMethod), updated);
+                    }
+                }
+            }
+        }
+        details.append("\n");
+
+        details.append("Checking for classes that can be deprecated...\n");
+        int classesDeprecated = 0;
+        // every source, as a class without methods is deprecated by every run
+        for (Source source : sources) {
+            List<SourceIndex.Declaration> classes = new ArrayList<>();
+            SourceIndex.FileEntry entry = source.entry();
+            for (SourceIndex.Declaration classDeclaration : entry.classes()) {
+                if (DeprecationUtility.shouldDeprecateClass(insertionEngine, entry, classDeclaration)) {
+                    classes.add(classDeclaration);
+                    details.append("Deprecating class: ").append(classDeclaration.name).append(" (only contains deprecated methods)\n");
+                }
+            }
+            if (markAll(source, classes, updated) > 0) {
+                classesDeprecated += classes.size();
+                details.append("Updated class: ").append(source.name).append("\n");
+            }
+        }
+
+        details.append("\nDeprecation process completed successfully!\n");
+        details.append("Total files updated: ").append(updated.size()).append("\n");
+        details.append("Total methods deprecated: ").append(methodsDeprecated).append("\n");
+        details.append("Total classes deprecated: ").append(classesDeprecated).append("\n");
+        return new WebServer.DeprecationResult(true, updated.size(), methodsDeprecated, classesDeprecated, details.toString(), null);
+    }
+
+    private int deprecateMethodsIn(Source source, String methodName, String methodSignature, Set<String> calledMethods,
+                                   StringBuilder details, Set<Source> updated) throws IOException {
+        List<SourceIndex.Declaration> unmarked = new ArrayList<>();
+        List<SourceIndex.Declaration> declarations = source.entry().methodsNamed(methodName);
+        for (SourceIndex.Declaration declaration : declarations) {
+            if (!insertionEngine.isMarked(declaration)) {
+                unmarked.add(declaration);
+            }
+        }
+        if (unmarked.isEmpty()) {
+            if (!declarations.isEmpty()) {
+                details.append("Already deprecated: ").append(declarations.size()).append(" occurrence(s) in: ").append(source.name).append("\n");
+            }
+            return 0;
+        }
+        List<SourceIndex.Declaration> methods = DeprecationUtility.findMethodDeclarations(
+                source.content().split("\n"), unmarked, methodSignature);
+        if (methods.isEmpty()) {
+            return 0;
+        }
+        details.append("Found ").append(methods.size()).append(" occurrence(s) in: ").append(source.name).append("\n");
+        for (SourceIndex.Declaration method : methods) {
+            for (String calledMethod : method.callees()) {
+                if (!calledMethod.equals(methodName) && !DeprecationUtility.isGetterOrSetter(calledMethod)) {
+                    calledMethods.add(calledMethod);
+                }
+            }
+        }
+        markAll(source, methods, updated);
+        details.append("Updated: ").append(source.name).append("\n");
+        return methods.size();
+    }
+
+    /**
+     * Mark the declarations of a source that do not carry the markers yet; returns how many were marked
+     */
+    private int markAll(Source source, List<SourceIndex.Declaration> declarations, Set<Source> updated) throws IOException {
+        List<DeprecationJournal.Insertion> insertions = new ArrayList<>();
+        String content = null;
+        int[] lineOffsets = null;
+        int marked = 0;
+        for (SourceIndex.Declaration declaration : declarations) {
+            if (insertionEngine.isMarked(declaration)) {
+                continue;
+            }
+            if (content == null) {
+                content = source.content();
+                lineOffsets = InsertionEngine.lineOffsets(content);
+            }
+            insertionEngine.plan(content, lineOffsets, declaration.line, declaration.name, insertions);
+            marked++;
+        }
+        if (marked == 0) {
+            return 0;
+        }
+        source.apply(content, insertions);
+        updated.add(source);
+        return marked;
+    }
+
+    /**
+     * Write the answer: the result, then every modified source
+     */
+    public void writeTo(OutputStream out, WebServer.DeprecationResult result) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+        zip.putNextEntry(new ZipEntry(RESULT_ENTRY));
+        zip.write(result.toJson().getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+        for (Source source : sources) {
+            if (source.modified) {
+                zip.putNextEntry(new ZipEntry(source.name));
+                zip.write(source.bytes);
+                zip.closeEntry();
+            }
+        }
+        zip.finish();
+        zip.flush();
+    }
+
+    public int getSourceCount() {
+        return sources.size();
+    }
+
+    /**
+     * Drop the sources and give their bytes back to the shared budget
+     */
+    @Override
+    public void close() {
+        sources.clear();
+        governor.release(reservedBytes);
+        reservedBytes = 0;
+        bufferedBytes = 0;
+    }
+}
@@ -0,0 +1,236 @@
+package utility;
+
+import java.util.Arrays;
+
+/**
+ * Project-wide declarations and call edges in primitive arrays.
+ *
+ * Declarations are numbered densely; their file, name (a {@link SymbolTable} id), line and flags are
+ * parallel int arrays. The calls made from the body of each method are stored in compressed sparse
+ * row form: the callee names of declaration <code>d</code> are
+ * <code>calleeIds[calleeStart[d] .. calleeStart[d + 1])</code>. A second CSR table maps every name to
+ * the declarations carrying it, which resolves a call edge to its targets without any per-edge object.
+ * Files are added one after the other, so the declarations of a file form a contiguous range.
+ */
+public class CallGraph {
+
+    static final int DEPRECATED = 1;
+    static final int CLASS = 2;
+
+    private final SymbolTable symbols;
+    private final String[] files;
+    private final long[] fileVersions;
+    private final int[] fileStart;
+    private final int declarationCount;
+    private final int[] declarationFile;
+    private final int[] declarationName;
+    private final int[] declarationLine;
+    private final int[] declarationFlags;
+    private final int[] calleeStart;
+    private final int[] calleeIds;
+    private final int[] byNameStart;
+    private final int[] byName;
+
+    private CallGraph(Builder builder) {
+        this.symbols = builder.symbols;
+        this.files = Arrays.copyOf(builder.files, builder.fileCount);
+        this.fileVersions = Arrays.copyOf(builder.fileVersions, builder.fileCount);
+        this.declarationCount = builder.declarationCount;
+        this.declarationFile = Arrays.copyOf(builder.declarationFile, declarationCount);
+        this.declarationName = Arrays.copyOf(builder.declarationName, declarationCount);
+        this.declarationLine = Arrays.copyOf(builder.declarationLine, declarationCount);
+        this.declarationFlags = Arrays.copyOf(builder.declarationFlags, declarationCount);
+        this.calleeStart = Arrays.copyOf(builder.calleeStart, declarationCount + 1);
+        this.calleeIds = Arrays.copyOf(builder.calleeIds, builder.calleeStart[declarationCount]);
+
+        this.fileStart = new int[files.length + 1];
+        for (int d = 0; d < declarationCount; d++) {
+            fileStart[declarationFile[d] + 1]++;
+        }
+        for (int f = 0; f < files.length; f++) {
+            fileStart[f + 1] += fileStart[f];
+        }
+
+        // counting sort of the declarations by name
+        this.byNameStart = new int[symbols.size() + 1];
+        for (int d = 0; d < declarationCount; d++) {
+            byNameStart[declarationName[d] + 1]++;
+        }
+        for (int s = 0; s < symbols.size(); s++) {
+            byNameStart[s + 1] += byNameStart[s];
+        }
+        this.byName = new int[declarationCount];
+        int[] next = Arrays.copyOf(byNameStart, symbols.size());
+        for (int d = 0; d < declarationCount; d++) {
+            byName[next[declarationName[d]]++] = d;
+        }
+    }
+
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    public int getDeclarationCount() {
+        return declarationCount;
+    }
+
+    public int getEdgeCount() {
+        return calleeIds.length;
+    }
+
+    public String file(int declaration) {
+        return files[declarationFile[declaration]];
+    }
+
+    public int fileId(int declaration) {
+        return declarationFile[declaration];
+    }
+
+    public int getFileCount() {
+        return files.length;
+    }
+
+    public String fileName(int fileId) {
+        return files[fileId];
+    }
+
+    /**
+     * Content hash the file was added with, 0 when none was given
+     */
+    public long fileVersion(int fileId) {
+        return fileVersions[fileId];
+    }
+
+    /**
+     * First declaration of a file; its declarations end where those of the next file start
+     */
+    public int firstDeclaration(int fileId) {
+        return fileStart[fileId];
+    }
+
+    public String name(int declaration) {
+        return symbols.name(declarationName[declaration]);
+    }
+
+    public int nameId(int declaration) {
+        return declarationName[declaration];
+    }
+
+    public int line(int declaration) {
+        return declarationLine[declaration];
+    }
+
+    public boolean isDeprecated(int declaration) {
+        return (declarationFlags[declaration] & DEPRECATED) != 0;
+    }
+
+    public boolean isClass(int declaration) {
+        return (declarationFlags[declaration] & CLASS) != 0;
+    }
+
+    /**
+     * Number of distinct names called from a method
+     */
+    public int calleeCount(int declaration) {
+        return calleeStart[declaration + 1] - calleeStart[declaration];
+    }
+
+    /**
+     * Name id of the i-th distinct name called from a method
+     */
+    public int callee(int declaration, int i) {
+        return calleeIds[calleeStart[declaration] + i];
+    }
+
+    /**
+     * Number of declarations carrying a name id
+     */
+    public int declarationCountOf(int nameId) {
+        return nameId < 0 || nameId >= symbols.size() ? 0 : byNameStart[nameId + 1] - byNameStart[nameId];
+    }
+
+    /**
+     * The i-th declaration carrying a name id
+     */
+    public int declarationOf(int nameId, int i) {
+        return byName[byNameStart[nameId] + i];
+    }
+
+    /**
+     * Ids of the files that declare a method or class with the given name, in ascending order
+     */
+    public int[] filesDeclaring(String name) {
+        int nameId = symbols.find(name);
+        int count = declarationCountOf(nameId);
+        int[] result = new int[count];
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            int file = declarationFile[declarationOf(nameId, i)];
+            if (distinct == 0 || result[distinct - 1] != file) {
+                result[distinct++] = file;
+            }
+        }
+        return Arrays.copyOf(result, distinct);
+    }
+
+    /**
+     * Collects declarations file by file. Callee arrays are copied, the builder grows geometrically.
+     */
+    public static class Builder {
+        private final SymbolTable symbols;
+        private String[] files = new String[64];
+        private long[] fileVersions = new long[64];
+        private int fileCount;
+        private int declarationCount;
+        private int[] declarationFile = new int[256];
+        private int[] declarationName = new int[256];
+        private int[] declarationLine = new int[256];
+        private int[] declarationFlags = new int[256];
+        private int[] calleeStart = new int[257];
+        private int[] calleeIds = new int[1024];
+
+        public Builder(SymbolTable symbols) {
+            this.symbols = symbols;
+        }
+
+        public int addFile(String file) {
+            return addFile(file, 0);
+        }
+
+        public int addFile(String file, long version) {
+            if (fileCount == files.length) {
+                files = Arrays.copyOf(files, fileCount * 2);
+                fileVersions = Arrays.copyOf(fileVersions, fileCount * 2);
+            }
+            files[fileCount] = file;
+            fileVersions[fileCount] = version;
+            return fileCount++;
+        }
+
+        public void addDeclaration(int file, int nameId, int line, int flags, int[] callees, int from, int count) {
+            if (declarationCount == declarationFile.length) {
+                int capacity = declarationCount * 2;
+                declarationFile = Arrays.copyOf(declarationFile, capacity);
+                declarationName = Arrays.copyOf(declarationName, capacity);
+                declarationLine = Arrays.copyOf(declarationLine, capacity);
+                declarationFlags = Arrays.copyOf(declarationFlags, capacity);
+                calleeStart = Arrays.copyOf(calleeStart, capacity + 1);
+            }
+            int edges = calleeStart[declarationCount];
+            if (edges + count > calleeIds.length) {
+                calleeIds = Arrays.copyOf(calleeIds, Math.max(calleeIds.length * 2, edges + count));
+            }
+            System.arraycopy(callees, from, calleeIds, edges, count);
+
+            declarationFile[declarationCount] = file;
+            declarationName[declarationCount] = nameId;
+            declarationLine[declarationCount] = line;
+            declarationFlags[declarationCount] = flags;
+            calleeStart[++declarationCount] = edges + count;
+        }
+
+        public CallGraph build() {
+            return new CallGraph(this);
+        }
+    }
+}
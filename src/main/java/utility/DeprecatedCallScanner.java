@@ -0,0 +1,346 @@
+package utility;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * CI gate that reports calls to methods deprecated by this utility.
+ *
+ * The set of deprecated declarations (methods carrying the utility's marker comment) is taken from
+ * the {@link SourceIndex} shared with the deprecation runs, so only files whose size or modification
+ * time changed are read again. Call sites are then checked only on the lines added relative to a git
+ * base ref, so calls that were there before do not fail the build, or in the whole of the files of an
+ * explicit list.
+ */
+public class DeprecatedCallScanner {
+
+    private static final long MARKER_HASH = SourceIndex.lineHash(DeprecationUtility.DEPRECATION_COMMENT.trim());
+    private static final Pattern HUNK_HEADER = Pattern.compile("^@@ -\\d+(?:,\\d+)? \\+(\\d+)(?:,(\\d+))? @@");
+
+    private final Path projectRoot;
+    private final SourceIndex index;
+    private int filesIndexed;
+    private int filesReparsed;
+
+    public DeprecatedCallScanner(Path projectRoot) {
+        this.projectRoot = projectRoot.toAbsolutePath().normalize();
+        this.index = SourceIndex.shared(this.projectRoot);
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.in, System.out, System.err));
+    }
+
+    static int run(String[] args, InputStream in, PrintStream out, PrintStream err) {
+        if (args.length < 1) {
+            out.println("Usage: java utility.DeprecatedCallScanner <project_path> (--base <git_ref> | --files <list_file|->) [--format json|text]");
+            return 2;
+        }
+
+        try {
+            Map<String, String> options = DeprecationAnalyzer.parseOptions(args, 1);
+            DeprecatedCallScanner scanner = new DeprecatedCallScanner(Paths.get(args[0]));
+
+            ScanResult result;
+            if (options.containsKey("files")) {
+                result = scanner.scan(scanner.readFileList(options.get("files"), in));
+            } else if (options.containsKey("base")) {
+                result = scanner.scan(scanner.addedLinesSince(options.get("base")));
+            } else {
+                throw new IllegalArgumentException("Either --base or --files is required");
+            }
+
+            out.println("text".equalsIgnoreCase(options.get("format")) ? result.toText() : result.toJson());
+            return result.violations.isEmpty() ? 0 : 1;
+        } catch (Exception e) {
+            err.println("Error during scan: " + e.getMessage());
+            e.printStackTrace(err);
+            return 2;
+        }
+    }
+
+    /**
+     * Files changed in the working tree relative to a base ref, each with the numbers of the lines it added
+     * (from 1). Names are read NUL separated, since git quotes names with other than ASCII characters in
+     * its line output; renames are followed, so a moved file only counts the lines changed on the way.
+     */
+    public Map<Path, BitSet> addedLinesSince(String baseRef) throws IOException {
+        String[] fields = git("diff", "-z", "--name-status", "-M", "--relative", "--diff-filter=ACMR", baseRef, "--")
+                .split("\0");
+        Map<Path, BitSet> files = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < fields.length; ) {
+            String status = fields[i++];
+            String oldName = status.startsWith("R") || status.startsWith("C") ? fields[i++] : null;
+            String name = fields[i++];
+            Path file = projectRoot.resolve(name);
+            if (!DeprecationUtility.isProjectSource(file)) {
+                continue;
+            }
+            List<String> command = new ArrayList<>(Arrays.asList("diff", "-U0", "-M", "--relative", baseRef, "--"));
+            if (oldName != null && status.startsWith("R")) {
+                command.add(oldName);
+            }
+            command.add(name);
+            files.put(file, addedLines(git(command.toArray(new String[0]))));
+        }
+        return files;
+    }
+
+    /**
+     * Numbers of the lines added by a diff without context, from its hunk headers
+     */
+    static BitSet addedLines(String diff) {
+        BitSet added = new BitSet();
+        for (String line : diff.split("\n")) {
+            Matcher hunk = HUNK_HEADER.matcher(line);
+            if (hunk.find()) {
+                int first = Integer.parseInt(hunk.group(1));
+                int count = hunk.group(2) == null ? 1 : Integer.parseInt(hunk.group(2));
+                added.set(first, first + count);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Output of a git command in the project root; paths on the command line are taken literally
+     */
+    private String git(String... args) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList("git", "--literal-pathspecs", "-C", projectRoot.toString()));
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output;
+        try (InputStream out = process.getInputStream()) {
+            output = new String(out.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("git " + args[0] + " failed: " + output);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for git", e);
+        }
+        return output;
+    }
+
+    /**
+     * Read a list of changed files, one per line, relative to the project root or absolute. "-" reads the
+     * given standard input.
+     */
+    public List<Path> readFileList(String listFile, InputStream in) throws IOException {
+        List<String> names;
+        if ("-".equals(listFile)) {
+            names = new ArrayList<>();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                names.add(line);
+            }
+        } else {
+            names = Files.readAllLines(Paths.get(listFile), StandardCharsets.UTF_8);
+        }
+
+        List<Path> files = new ArrayList<>();
+        for (String name : names) {
+            if (name.trim().isEmpty()) {
+                continue;
+            }
+            Path file = projectRoot.resolve(name.trim()).normalize();
+            if (DeprecationUtility.isProjectSource(file) && Files.isRegularFile(file)) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Check the whole of the given files for calls to deprecated methods
+     */
+    public ScanResult scan(List<Path> changedFiles) throws IOException {
+        Map<Path, BitSet> files = new LinkedHashMap<>();
+        for (Path file : changedFiles) {
+            files.put(file, null);
+        }
+        return scan(files);
+    }
+
+    /**
+     * Check the given lines of files for calls to deprecated methods; a file without lines is checked whole
+     */
+    public ScanResult scan(Map<Path, BitSet> changedLines) throws IOException {
+        Map<String, Set<String>> deprecatedByMethod = loadDeprecatedDeclarations();
+
+        List<Violation> violations = new ArrayList<>();
+        for (Map.Entry<Path, BitSet> changed : changedLines.entrySet()) {
+            Path file = changed.getKey();
+            BitSet added = changed.getValue();
+            if (added != null && added.isEmpty()) {
+                continue;
+            }
+            String[] lines = Files.readString(file).split("\n");
+            String relativePath = projectRoot.relativize(file).toString();
+            boolean[] insideDeprecated = markDeprecatedBodies(lines, index.refresh(file));
+
+            for (int i = 0; i < lines.length; i++) {
+                String trimmed = lines[i].trim();
+                if ((added != null && !added.get(i + 1)) || insideDeprecated[i] || isComment(trimmed)
+                        || DeprecationUtility.isMethodDeclaration(lines[i])) {
+                    continue;
+                }
+                Matcher matcher = DeprecationUtility.METHOD_CALL_PATTERN.matcher(lines[i]);
+                while (matcher.find()) {
+                    Set<String> declaredIn = deprecatedByMethod.get(matcher.group(1));
+                    if (declaredIn != null) {
+                        violations.add(new Violation(relativePath, i + 1, matcher.start(1) + 1, matcher.group(1), declaredIn));
+                    }
+                }
+            }
+        }
+
+        return new ScanResult(changedLines.size(), filesIndexed, filesReparsed, deprecatedByMethod.size(), violations);
+    }
+
+    private static boolean isComment(String trimmed) {
+        return trimmed.startsWith("//") || trimmed.startsWith("/*") || trimmed.startsWith("*");
+    }
+
+    /**
+     * Flag the lines that belong to methods which are themselves deprecated, calls from there are allowed
+     */
+    private static boolean[] markDeprecatedBodies(String[] lines, SourceIndex.FileEntry entry) {
+        boolean[] inside = new boolean[lines.length];
+        for (SourceIndex.Declaration declaration : entry.declarations()) {
+            if (declaration.kind == SourceIndex.METHOD && isMarkedByUtility(declaration) && declaration.line < lines.length) {
+                int end = DeprecationUtility.findMethodEnd(lines, declaration.line);
+                Arrays.fill(inside, declaration.line, end + 1, true);
+            }
+        }
+        return inside;
+    }
+
+    private static boolean isMarkedByUtility(SourceIndex.Declaration declaration) {
+        return declaration.hasBlockLine(MARKER_HASH);
+    }
+
+    /**
+     * Deprecated method names mapped to the files declaring them, refreshed from the source index
+     */
+    Map<String, Set<String>> loadDeprecatedDeclarations() throws IOException {
+        List<Path> files = DeprecationUtility.findJavaFiles(projectRoot);
+        index.retain(files);
+        int parsedBefore = index.getFilesParsed();
+
+        Map<String, Set<String>> deprecated = new HashMap<>();
+        for (Path file : files) {
+            String relativePath = projectRoot.relativize(file).toString();
+            // only files that contain every word of the marker comment can hold a marked declaration
+            if (!index.probe(file).mayContainAll(DeprecationUtility.DEPRECATION_COMMENT)) {
+                continue;
+            }
+            for (SourceIndex.Declaration declaration : index.refresh(file).declarations()) {
+                if (declaration.kind == SourceIndex.METHOD && isMarkedByUtility(declaration)
+                        && !DeprecationUtility.isExcludedMethod(declaration.name)) {
+                    deprecated.computeIfAbsent(declaration.name, k -> new TreeSet<>()).add(relativePath);
+                }
+            }
+            filesIndexed++;
+        }
+        filesReparsed = index.getFilesParsed() - parsedBefore;
+        index.save();
+        return deprecated;
+    }
+
+    /**
+     * A call to a deprecated method
+     */
+    public static class Violation {
+        final String file;
+        final int line;
+        final int column;
+        final String methodName;
+        final Set<String> declaredIn;
+
+        Violation(String file, int line, int column, String methodName, Set<String> declaredIn) {
+            this.file = file;
+            this.line = line;
+            this.column = column;
+            this.methodName = methodName;
+            this.declaredIn = declaredIn;
+        }
+    }
+
+    public static class ScanResult {
+        private final int filesChecked;
+        private final int filesIndexed;
+        private final int filesReparsed;
+        private final int deprecatedMethods;
+        private final List<Violation> violations;
+
+        ScanResult(int filesChecked, int filesIndexed, int filesReparsed, int deprecatedMethods, List<Violation> violations) {
+            this.filesChecked = filesChecked;
+            this.filesIndexed = filesIndexed;
+            this.filesReparsed = filesReparsed;
+            this.deprecatedMethods = deprecatedMethods;
+            this.violations = violations;
+        }
+
+        public String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{");
+            json.append("\"success\":").append(violations.isEmpty()).append(",");
+            json.append("\"filesChecked\":").append(filesChecked).append(",");
+            json.append("\"filesIndexed\":").append(filesIndexed).append(",");
+            json.append("\"filesReparsed\":").append(filesReparsed).append(",");
+            json.append("\"deprecatedMethods\":").append(deprecatedMethods).append(",");
+            json.append("\"violations\":[");
+            for (int i = 0; i < violations.size(); i++) {
+                Violation v = violations.get(i);
+                if (i > 0) {
+                    json.append(",");
+                }
+                json.append("{\"file\":\"").append(WebServer.jsonEscape(v.file)).append("\",");
+                json.append("\"line\":").append(v.line).append(",");
+                json.append("\"column\":").append(v.column).append(",");
+                json.append("\"methodName\":\"").append(v.methodName).append("\",");
+                json.append("\"declaredIn\":[");
+                int j = 0;
+                for (String declaration : v.declaredIn) {
+                    if (j++ > 0) {
+                        json.append(",");
+                    }
+                    json.append("\"").append(WebServer.jsonEscape(declaration)).append("\"");
+                }
+                json.append("]}");
+            }
+            json.append("]}");
+            return json.toString();
+        }
+
+        /**
+         * One compiler-style line per violation
+         */
+        public String toText() {
+            StringBuilder text = new StringBuilder();
+            for (Violation v : violations) {
+                text.append(v.file).append(":").append(v.line).append(":").append(v.column)
+                    .append(": call to deprecated method ").append(v.methodName).append("() declared in ")
+                    .append(String.join(", ", v.declaredIn)).append("\n");
+            }
+            text.append(violations.size()).append(" violation(s) in ").append(filesChecked).append(" changed file(s)");
+            return text.toString();
+        }
+
+        public boolean isSuccess() { return violations.isEmpty(); }
+        public int getFilesChecked() { return filesChecked; }
+        public int getViolationCount() { return violations.size(); }
+    }
+}
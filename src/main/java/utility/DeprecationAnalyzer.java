@@ -0,0 +1,536 @@
+package utility;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Report-only analysis of a project: call sites per method, spread over files and modules,
+ * deprecation ratio per class and the classes that would become empty if the candidate
+ * methods were deprecated. Nothing is written to the project.
+ *
+ * The names of the sources are listed first; the files are then handed to a fixed pool with a bounded
+ * number in flight, so memory holds the names and the aggregated counters, never the sources of the project.
+ * Each file reserves its memory from the {@link MemoryGovernor}, and fewer files are analyzed at a
+ * time while it is under pressure.
+ * The sources may also come from a git revision ({@link SourceProvider}); what is taken from a
+ * source with a content id is then cached by that id, and a later analysis of another revision only
+ * parses the files that changed in between.
+ */
+public class DeprecationAnalyzer {
+
+    private final SourceProvider sources;
+    private final Set<String> candidates;
+    private final int topN;
+    private final double threshold;
+    private final int threads;
+
+    private final ConcurrentHashMap<String, MethodStats> methodStats = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<ClassStats> reportedClasses = new ConcurrentLinkedQueue<>();
+    private final LongAdder filesScanned = new LongAdder();
+    private final LongAdder bytesScanned = new LongAdder();
+    private final LongAdder classesScanned = new LongAdder();
+    private final LongAdder methodsDeclared = new LongAdder();
+    private final LongAdder methodsDeprecated = new LongAdder();
+    private final LongAdder callSites = new LongAdder();
+
+    public DeprecationAnalyzer(Path projectRoot, Set<String> candidates, int topN, double threshold) {
+        this(projectRoot, candidates, topN, threshold, Runtime.getRuntime().availableProcessors());
+    }
+
+    public DeprecationAnalyzer(Path projectRoot, Set<String> candidates, int topN, double threshold, int threads) {
+        this(new SourceProvider.Directory(projectRoot), candidates, topN, threshold, threads);
+    }
+
+    public DeprecationAnalyzer(SourceProvider sources, Set<String> candidates, int topN, double threshold, int threads) {
+        this.sources = sources;
+        this.candidates = candidates != null ? candidates : Collections.emptySet();
+        this.topN = topN;
+        this.threshold = threshold;
+        this.threads = Math.max(1, threads);
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    static int run(String[] args, PrintStream out, PrintStream err) {
+        if (args.length < 1) {
+            out.println("Usage: java utility.DeprecationAnalyzer <project_path> [--methods m1,m2] [--top N] [--threshold 0.8] [--format json|csv] [--output file] [--revision <git_ref>]");
+            return 1;
+        }
+
+        try {
+            Map<String, String> options = parseOptions(args, 1);
+            AnalysisReport report;
+            try (SourceProvider sources = SourceProvider.of(Paths.get(args[0]), options.get("revision"))) {
+                report = new DeprecationAnalyzer(sources, parseMethodList(options.get("methods")),
+                        Integer.parseInt(options.getOrDefault("top", "20")),
+                        Double.parseDouble(options.getOrDefault("threshold", "0.8")),
+                        Runtime.getRuntime().availableProcessors()).analyze();
+            }
+
+            String output = "csv".equalsIgnoreCase(options.get("format")) ? report.toCsv() : report.toJson();
+            if (options.containsKey("output")) {
+                Files.writeString(Paths.get(options.get("output")), output);
+                out.println("Analysis report written to: " + options.get("output"));
+            } else {
+                out.println(output);
+            }
+            return 0;
+        } catch (Exception e) {
+            err.println("Error during analysis: " + e.getMessage());
+            e.printStackTrace(err);
+            return 1;
+        }
+    }
+
+    static Map<String, String> parseOptions(String[] args, int start) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = start; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String key = args[i].substring(2);
+            String value = i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : "true";
+            options.put(key, value);
+        }
+        return options;
+    }
+
+    static Set<String> parseMethodList(String methods) {
+        Set<String> names = new LinkedHashSet<>();
+        if (methods != null) {
+            for (String name : methods.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    names.add(name.trim());
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Scan the whole project once and build the report
+     */
+    public AnalysisReport analyze() throws IOException {
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Semaphore inFlight = new Semaphore(threads * 4);
+        MemoryGovernor.Gate gate = MemoryGovernor.shared().gate(threads);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+
+        try {
+            Iterator<String> iterator = sources.sources().iterator();
+            while (iterator.hasNext() && failure.get() == null) {
+                String javaFile = iterator.next();
+                inFlight.acquireUninterruptibly();
+                pool.execute(() -> {
+                    try {
+                        gate.enter();
+                        try {
+                            analyzeFile(javaFile);
+                        } finally {
+                            gate.exit();
+                        }
+                    } catch (InterruptedException e) {
+                        failure.compareAndSet(null, new IOException("Analysis interrupted", e));
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, new IOException("Failed to analyze " + javaFile, e));
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            pool.shutdown();
+        }
+
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Analysis interrupted", e);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+
+        return buildReport((System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void analyzeFile(String javaFile) throws IOException {
+        FileFacts facts = ParseCache.shared().get("analysis", sources.contentId(javaFile),
+                () -> parse(sources.read(javaFile)), FileFacts::weight);
+        String module = moduleOf(Paths.get(javaFile));
+
+        Set<String> declaredInFile = new HashSet<>();
+        for (int c = 0; c < facts.classNames.size(); c++) {
+            List<DeprecationUtility.ClassMethod> methods = facts.classMethods.get(c);
+            classesScanned.increment();
+
+            int deprecated = 0;
+            boolean wouldBecomeEmpty = !candidates.isEmpty();
+            // the verdict of the class deprecation pass once the candidates are deprecated; a class without
+            // methods is left out, as that pass deprecates it whatever the candidates
+            for (DeprecationUtility.ClassMethod method : methods) {
+                if (method.deprecated) {
+                    deprecated++;
+                } else if (!candidates.contains(method.methodName)) {
+                    wouldBecomeEmpty = false;
+                }
+                if (!DeprecationUtility.isExcludedMethod(method.methodName)
+                        && declaredInFile.add(method.methodName + ":" + method.lineNumber)) {
+                    stats(method.methodName).recordDeclaration(method.deprecated);
+                    methodsDeclared.increment();
+                    if (method.deprecated) {
+                        methodsDeprecated.increment();
+                    }
+                }
+            }
+
+            double ratio = methods.isEmpty() ? 0 : (double) deprecated / methods.size();
+            if ((!methods.isEmpty() && ratio > threshold) || (wouldBecomeEmpty && !methods.isEmpty())) {
+                reportedClasses.add(new ClassStats(javaFile, facts.classNames.get(c), methods.size(), deprecated, wouldBecomeEmpty));
+            }
+        }
+
+        for (Map.Entry<String, Integer> call : facts.calls.entrySet()) {
+            stats(call.getKey()).recordCalls(call.getValue(), module);
+            callSites.add(call.getValue());
+        }
+
+        bytesScanned.add(facts.length);
+        filesScanned.increment();
+    }
+
+    /**
+     * What the analysis takes from one source, whatever the candidates and threshold: the calls per
+     * method name and the methods of each class
+     */
+    static class FileFacts {
+        final int length;
+        final Map<String, Integer> calls = new HashMap<>();
+        final List<String> classNames = new ArrayList<>();
+        final List<List<DeprecationUtility.ClassMethod>> classMethods = new ArrayList<>();
+
+        private FileFacts(int length) {
+            this.length = length;
+        }
+
+        static FileFacts of(String content) {
+            String[] lines = content.split("\n");
+            FileFacts facts = new FileFacts(content.length());
+            for (String line : lines) {
+                if (!DeprecationUtility.isMethodDeclaration(line)) {
+                    DeprecationUtility.countMethodCalls(line, facts.calls);
+                }
+            }
+            for (DeprecationUtility.ClassInfo classInfo : DeprecationUtility.findClassDeclarations(lines)) {
+                facts.classNames.add(classInfo.className);
+                facts.classMethods.add(DeprecationUtility.findClassMethods(lines, classInfo));
+            }
+            return facts;
+        }
+
+        /**
+         * Estimated size in bytes, for the parse cache
+         */
+        long weight() {
+            long weight = 128;
+            for (String name : calls.keySet()) {
+                weight += 64 + name.length() * 2L;
+            }
+            for (List<DeprecationUtility.ClassMethod> methods : classMethods) {
+                weight += 64 + methods.size() * 40L;
+            }
+            return weight;
+        }
+    }
+
+    /**
+     * The bytes of a source are loaded by then; what is reserved is the text and lines made from them
+     */
+    private static FileFacts parse(byte[] bytes) throws IOException {
+        MemoryGovernor.Reservation reservation = MemoryGovernor.shared().reserve((long) bytes.length * MemoryGovernor.SOURCE_FACTOR);
+        try {
+            return FileFacts.of(new String(bytes, StandardCharsets.UTF_8));
+        } finally {
+            reservation.close();
+        }
+    }
+
+    private MethodStats stats(String methodName) {
+        return methodStats.computeIfAbsent(methodName, MethodStats::new);
+    }
+
+    /**
+     * Module of a source file: the directory in front of its <code>src</code> folder, or its top-level directory
+     */
+    static String moduleOf(Path relativePath) {
+        for (int i = 0; i < relativePath.getNameCount() - 1; i++) {
+            if ("src".equals(relativePath.getName(i).toString())) {
+                return i == 0 ? "." : relativePath.subpath(0, i).toString();
+            }
+        }
+        return relativePath.getNameCount() > 1 ? relativePath.getName(0).toString() : ".";
+    }
+
+    private AnalysisReport buildReport(long elapsedMillis) {
+        Comparator<MethodStats> byCalls = Comparator.comparingLong((MethodStats m) -> m.callSites.sum()).reversed()
+                                                    .thenComparing(m -> m.methodName);
+
+        List<MethodStats> topCalled = topN(methodStats.values().stream().filter(m -> m.declarations.sum() > 0), byCalls);
+        List<MethodStats> topDeprecated = topN(methodStats.values().stream().filter(m -> m.deprecatedDeclarations.sum() > 0), byCalls);
+
+        List<MethodStats> candidateStats = new ArrayList<>();
+        for (String candidate : candidates) {
+            candidateStats.add(methodStats.getOrDefault(candidate, new MethodStats(candidate)));
+        }
+
+        List<ClassStats> overThreshold = new ArrayList<>();
+        List<ClassStats> wouldBecomeEmpty = new ArrayList<>();
+        for (ClassStats classStats : reportedClasses) {
+            if (classStats.ratio() > threshold) {
+                overThreshold.add(classStats);
+            }
+            if (classStats.wouldBecomeEmpty) {
+                wouldBecomeEmpty.add(classStats);
+            }
+        }
+        Comparator<ClassStats> byRatio = Comparator.comparingDouble(ClassStats::ratio).reversed()
+                                                   .thenComparing(c -> c.file).thenComparing(c -> c.className);
+        overThreshold.sort(byRatio);
+        wouldBecomeEmpty.sort(byRatio);
+
+        return new AnalysisReport(sources.describe(), filesScanned.sum(), bytesScanned.sum(), classesScanned.sum(),
+                methodsDeclared.sum(), methodsDeprecated.sum(), callSites.sum(), elapsedMillis, threshold,
+                candidateStats, topCalled, topDeprecated, overThreshold, wouldBecomeEmpty);
+    }
+
+    private List<MethodStats> topN(Stream<MethodStats> stats, Comparator<MethodStats> order) {
+        PriorityQueue<MethodStats> top = new PriorityQueue<>(order.reversed());
+        stats.forEach(m -> {
+            top.add(m);
+            if (top.size() > topN) {
+                top.poll();
+            }
+        });
+        List<MethodStats> sorted = new ArrayList<>(top);
+        sorted.sort(order);
+        return sorted;
+    }
+
+    /**
+     * Aggregated counters for one method name
+     */
+    static class MethodStats {
+        final String methodName;
+        final LongAdder declarations = new LongAdder();
+        final LongAdder deprecatedDeclarations = new LongAdder();
+        final LongAdder callSites = new LongAdder();
+        final LongAdder files = new LongAdder();
+        final Set<String> modules = ConcurrentHashMap.newKeySet();
+
+        MethodStats(String methodName) {
+            this.methodName = methodName;
+        }
+
+        void recordDeclaration(boolean deprecated) {
+            declarations.increment();
+            if (deprecated) {
+                deprecatedDeclarations.increment();
+            }
+        }
+
+        void recordCalls(int count, String module) {
+            callSites.add(count);
+            files.increment();
+            modules.add(module);
+        }
+    }
+
+    /**
+     * Deprecation state of one class
+     */
+    static class ClassStats {
+        final String file;
+        final String className;
+        final int methods;
+        final int deprecatedMethods;
+        final boolean wouldBecomeEmpty;
+
+        ClassStats(String file, String className, int methods, int deprecatedMethods, boolean wouldBecomeEmpty) {
+            this.file = file;
+            this.className = className;
+            this.methods = methods;
+            this.deprecatedMethods = deprecatedMethods;
+            this.wouldBecomeEmpty = wouldBecomeEmpty;
+        }
+
+        double ratio() {
+            return methods == 0 ? 0 : (double) deprecatedMethods / methods;
+        }
+    }
+
+    public static class AnalysisReport {
+        private final String projectPath;
+        private final long filesScanned;
+        private final long bytesScanned;
+        private final long classesScanned;
+        private final long methodsDeclared;
+        private final long methodsDeprecated;
+        private final long callSites;
+        private final long elapsedMillis;
+        private final double threshold;
+        private final List<MethodStats> candidates;
+        private final List<MethodStats> topCalledMethods;
+        private final List<MethodStats> topCalledDeprecatedMethods;
+        private final List<ClassStats> classesOverThreshold;
+        private final List<ClassStats> classesThatWouldBecomeEmpty;
+
+        AnalysisReport(String projectPath, long filesScanned, long bytesScanned, long classesScanned,
+                       long methodsDeclared, long methodsDeprecated, long callSites, long elapsedMillis, double threshold,
+                       List<MethodStats> candidates, List<MethodStats> topCalledMethods,
+                       List<MethodStats> topCalledDeprecatedMethods, List<ClassStats> classesOverThreshold,
+                       List<ClassStats> classesThatWouldBecomeEmpty) {
+            this.projectPath = projectPath;
+            this.filesScanned = filesScanned;
+            this.bytesScanned = bytesScanned;
+            this.classesScanned = classesScanned;
+            this.methodsDeclared = methodsDeclared;
+            this.methodsDeprecated = methodsDeprecated;
+            this.callSites = callSites;
+            this.elapsedMillis = elapsedMillis;
+            this.threshold = threshold;
+            this.candidates = candidates;
+            this.topCalledMethods = topCalledMethods;
+            this.topCalledDeprecatedMethods = topCalledDeprecatedMethods;
+            this.classesOverThreshold = classesOverThreshold;
+            this.classesThatWouldBecomeEmpty = classesThatWouldBecomeEmpty;
+        }
+
+        public String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{");
+            json.append("\"projectPath\":\"").append(WebServer.jsonEscape(projectPath)).append("\",");
+            json.append("\"filesScanned\":").append(filesScanned).append(",");
+            json.append("\"bytesScanned\":").append(bytesScanned).append(",");
+            json.append("\"classesScanned\":").append(classesScanned).append(",");
+            json.append("\"methodsDeclared\":").append(methodsDeclared).append(",");
+            json.append("\"methodsDeprecated\":").append(methodsDeprecated).append(",");
+            json.append("\"callSites\":").append(callSites).append(",");
+            json.append("\"elapsedMillis\":").append(elapsedMillis).append(",");
+            json.append("\"threshold\":").append(threshold).append(",");
+            appendMethods(json, "candidates", candidates);
+            json.append(",");
+            appendMethods(json, "topCalledMethods", topCalledMethods);
+            json.append(",");
+            appendMethods(json, "topCalledDeprecatedMethods", topCalledDeprecatedMethods);
+            json.append(",");
+            appendClasses(json, "classesOverThreshold", classesOverThreshold);
+            json.append(",");
+            appendClasses(json, "classesThatWouldBecomeEmpty", classesThatWouldBecomeEmpty);
+            json.append("}");
+            return json.toString();
+        }
+
+        private static void appendMethods(StringBuilder json, String key, List<MethodStats> methods) {
+            json.append("\"").append(key).append("\":[");
+            for (int i = 0; i < methods.size(); i++) {
+                MethodStats m = methods.get(i);
+                if (i > 0) {
+                    json.append(",");
+                }
+                json.append("{\"methodName\":\"").append(WebServer.jsonEscape(m.methodName)).append("\",");
+                json.append("\"declarations\":").append(m.declarations.sum()).append(",");
+                json.append("\"deprecatedDeclarations\":").append(m.deprecatedDeclarations.sum()).append(",");
+                json.append("\"callSites\":").append(m.callSites.sum()).append(",");
+                json.append("\"files\":").append(m.files.sum()).append(",");
+                json.append("\"modules\":[");
+                List<String> modules = new ArrayList<>(m.modules);
+                Collections.sort(modules);
+                for (int j = 0; j < modules.size(); j++) {
+                    if (j > 0) {
+                        json.append(",");
+                    }
+                    json.append("\"").append(WebServer.jsonEscape(modules.get(j))).append("\"");
+                }
+                json.append("]}");
+            }
+            json.append("]");
+        }
+
+        private static void appendClasses(StringBuilder json, String key, List<ClassStats> classes) {
+            json.append("\"").append(key).append("\":[");
+            for (int i = 0; i < classes.size(); i++) {
+                ClassStats c = classes.get(i);
+                if (i > 0) {
+                    json.append(",");
+                }
+                json.append("{\"file\":\"").append(WebServer.jsonEscape(c.file)).append("\",");
+                json.append("\"className\":\"").append(WebServer.jsonEscape(c.className)).append("\",");
+                json.append("\"methods\":").append(c.methods).append(",");
+                json.append("\"deprecatedMethods\":").append(c.deprecatedMethods).append(",");
+                json.append("\"deprecatedRatio\":").append(String.format(Locale.ROOT, "%.3f", c.ratio())).append(",");
+                json.append("\"wouldBecomeEmpty\":").append(c.wouldBecomeEmpty).append("}");
+            }
+            json.append("]");
+        }
+
+        /**
+         * CSV with one row per reported method or class, the first column tells which list the row belongs to
+         */
+        public String toCsv() {
+            StringBuilder csv = new StringBuilder();
+            csv.append("section,name,file,declarations,deprecatedDeclarations,callSites,files,modules,methods,deprecatedMethods,deprecatedRatio,wouldBecomeEmpty\n");
+            appendMethodRows(csv, "candidate", candidates);
+            appendMethodRows(csv, "topCalled", topCalledMethods);
+            appendMethodRows(csv, "topCalledDeprecated", topCalledDeprecatedMethods);
+            appendClassRows(csv, "classOverThreshold", classesOverThreshold);
+            appendClassRows(csv, "classWouldBecomeEmpty", classesThatWouldBecomeEmpty);
+            return csv.toString();
+        }
+
+        private static void appendMethodRows(StringBuilder csv, String section, List<MethodStats> methods) {
+            for (MethodStats m : methods) {
+                List<String> modules = new ArrayList<>(m.modules);
+                Collections.sort(modules);
+                csv.append(section).append(",").append(escapeCsv(m.methodName)).append(",,")
+                   .append(m.declarations.sum()).append(",").append(m.deprecatedDeclarations.sum()).append(",")
+                   .append(m.callSites.sum()).append(",").append(m.files.sum()).append(",")
+                   .append(escapeCsv(String.join(";", modules))).append(",,,,\n");
+            }
+        }
+
+        private static void appendClassRows(StringBuilder csv, String section, List<ClassStats> classes) {
+            for (ClassStats c : classes) {
+                csv.append(section).append(",").append(escapeCsv(c.className)).append(",").append(escapeCsv(c.file))
+                   .append(",,,,,,").append(c.methods).append(",").append(c.deprecatedMethods).append(",")
+                   .append(String.format(Locale.ROOT, "%.3f", c.ratio())).append(",").append(c.wouldBecomeEmpty).append("\n");
+            }
+        }
+
+        private static String escapeCsv(String value) {
+            return value.contains(",") || value.contains("\"") ? "\"" + value.replace("\"", "\"\"") + "\"" : value;
+        }
+
+        public long getFilesScanned() { return filesScanned; }
+        public long getBytesScanned() { return bytesScanned; }
+        public long getClassesScanned() { return classesScanned; }
+        public long getMethodsDeclared() { return methodsDeclared; }
+        public long getMethodsDeprecated() { return methodsDeprecated; }
+        public long getCallSites() { return callSites; }
+        public long getElapsedMillis() { return elapsedMillis; }
+    }
+}
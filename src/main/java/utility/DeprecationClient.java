@@ -0,0 +1,179 @@
+package utility;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thin command line client that forwards a command to a running {@link WebServer}.
+ *
+ * Takes the same arguments as {@link DeprecationUtility}. The command runs in the server JVM, which
+ * keeps its compiled code and the index of every project it has seen, so scripts that call the tool
+ * many times in a row only pay for a small client start. Output is streamed back as it is produced
+ * and the exit code is that of the command. The request carries the token the server wrote to
+ * <code>~/.deprecation/daemon-PORT.token</code> on start, so only the user who started it can run
+ * commands through it. When no server is listening the command runs in this JVM instead, and while
+ * the server's queue is full the request is retried.
+ *
+ * Usage: java utility.DeprecationClient [--daemon-port N] &lt;DeprecationUtility arguments&gt;
+ * The port defaults to DEPRECATION_DAEMON_PORT, or 8080.
+ */
+public class DeprecationClient {
+    private static final int MAX_ATTEMPTS = 20;
+
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        String configuredPort = System.getenv("DEPRECATION_DAEMON_PORT");
+        if (configuredPort != null && !configuredPort.isEmpty()) {
+            port = Integer.parseInt(configuredPort);
+        }
+        if (args.length >= 2 && "--daemon-port".equals(args[0])) {
+            port = Integer.parseInt(args[1]);
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+
+        String[] command = absolutePaths(args);
+        String stdin = null;
+        if (readsStdin(command)) {
+            stdin = new String(System.in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        int exitCode;
+        try {
+            exitCode = forward(port, command, stdin);
+        } catch (ConnectException | NoSuchFileException e) {
+            System.err.println("No deprecation server on port " + port + ", running in process");
+            exitCode = DeprecationUtility.run(command,
+                    stdin != null ? new ByteArrayInputStream(stdin.getBytes(StandardCharsets.UTF_8)) : System.in,
+                    System.out, System.err);
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * Send a command to the server and copy its output to this process. Returns the exit code.
+     */
+    static int forward(int port, String[] command, String stdin) throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (String arg : command) {
+            body.append("arg\t").append(DeprecationJournal.escape(arg)).append('\n');
+        }
+        if (stdin != null) {
+            body.append("stdin\t").append(DeprecationJournal.escape(stdin)).append('\n');
+        }
+
+        String token = new String(Files.readAllBytes(WebServer.cliTokenFile(port)), StandardCharsets.UTF_8).trim();
+        HttpURLConnection connection;
+        for (int attempt = 1; ; attempt++) {
+            connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/api/cli").openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+            connection.setRequestProperty(WebServer.TOKEN_HEADER, token);
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            int status = connection.getResponseCode();
+            if (status == 200) {
+                break;
+            }
+            if (status == 403) {
+                throw new IOException("Deprecation server refused the command, its token is not the one in "
+                        + WebServer.cliTokenFile(port));
+            }
+            if (status != 429 || attempt >= MAX_ATTEMPTS) {
+                throw new IOException("Deprecation server answered " + status);
+            }
+            // the queue of this client is full: wait for the running jobs
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(retryAfter(connection.getHeaderField("Retry-After"))));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the deprecation server");
+            }
+        }
+
+        PrintStream out = new PrintStream(System.out, true, "UTF-8");
+        PrintStream err = new PrintStream(System.err, true, "UTF-8");
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) {
+                    continue;
+                }
+                String tag = line.substring(0, tab);
+                String value = line.substring(tab + 1);
+                if ("out".equals(tag)) {
+                    out.println(DeprecationJournal.unescape(value));
+                } else if ("err".equals(tag)) {
+                    err.println(DeprecationJournal.unescape(value));
+                } else if ("exit".equals(tag)) {
+                    return Integer.parseInt(value);
+                }
+            }
+        }
+        throw new IOException("Deprecation server closed the connection before the command finished");
+    }
+
+    private static long retryAfter(String header) {
+        try {
+            return header != null ? Math.max(1, Long.parseLong(header.trim())) : 1;
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * The server has its own working directory, so project and file arguments are made absolute here.
+     * Other option values, such as the git ref of <code>--revision</code>, are sent as given.
+     */
+    static String[] absolutePaths(String[] args) {
+        List<String> command = new ArrayList<>(Arrays.asList(args));
+        if (command.isEmpty()) {
+            return args;
+        }
+        boolean subcommand = "--undo".equals(command.get(0)) || "--analyze".equals(command.get(0)) || "--scan".equals(command.get(0))
+                || "--select".equals(command.get(0)) || "--sharded".equals(command.get(0)) || "--dry-run".equals(command.get(0));
+        int projectArg = subcommand ? 1 : 0;
+        if (projectArg < command.size()) {
+            command.set(projectArg, absolute(command.get(projectArg)));
+        }
+        for (int i = projectArg + 1; i + 1 < command.size(); i++) {
+            String option = command.get(i);
+            if (("--output".equals(option) || "--files".equals(option)) && !"-".equals(command.get(i + 1))) {
+                command.set(i + 1, absolute(command.get(i + 1)));
+            }
+        }
+        return command.toArray(new String[0]);
+    }
+
+    private static boolean readsStdin(String[] command) {
+        for (int i = 0; i + 1 < command.length; i++) {
+            if ("--files".equals(command[i]) && "-".equals(command[i + 1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String absolute(String path) {
+        return Paths.get(path).toAbsolutePath().normalize().toString();
+    }
+}
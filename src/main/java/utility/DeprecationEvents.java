@@ -0,0 +1,296 @@
+package utility;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Flight Recorder events of a deprecation run, one type per phase.
+ *
+ * The events are disabled by default; the settings file <code>deprecation.jfc</code> at the top of the
+ * project enables them. Java 11 takes a single settings file per recording, and its <code>jfr</code>
+ * tool cannot filter by category, so {@link #main} prints the events of this utility from a recording:
+ * <pre>
+ * java -XX:StartFlightRecording=settings=deprecation.jfc,filename=run.jfr ...
+ * java -cp target/classes utility.DeprecationEvents run.jfr
+ * </pre>
+ * Loading the first event class sets up Flight Recorder, which takes a quarter of a second, so the
+ * phases only create events once Flight Recorder is running, be it from the command line or from a
+ * later <code>jcmd &lt;pid&gt; JFR.start</code>. Until then every <code>begin</code> method returns
+ * null and every <code>commit</code> ignores it. Paths and other fields that cost something to fill are
+ * only filled once {@link Event#shouldCommit()} said the event is recorded.
+ */
+final class DeprecationEvents {
+
+    private static final String CATEGORY = "Deprecation Utility";
+
+    private DeprecationEvents() {
+    }
+
+    /**
+     * Print the events of this utility in the recordings named on the command line
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: java utility.DeprecationEvents <recording.jfr>...");
+            System.exit(1);
+        }
+        for (String recording : args) {
+            for (RecordedEvent event : RecordingFile.readAllEvents(Paths.get(recording))) {
+                if (event.getEventType().getCategoryNames().contains(CATEGORY)) {
+                    System.out.print(event);
+                }
+            }
+        }
+    }
+
+    @Name("utility.Run")
+    @Label("Deprecation Run")
+    @Description("One deprecation run over a project, from taking the project lock to saving the index")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static class Run extends Event {
+        @Label("Project")
+        String project;
+
+        @Label("Request")
+        String request;
+
+        @Label("Files")
+        int files;
+
+        @Label("Files Updated")
+        int filesUpdated;
+
+        @Label("Methods Deprecated")
+        int methodsDeprecated;
+
+        @Label("Classes Deprecated")
+        int classesDeprecated;
+    }
+
+    @Name("utility.FileRead")
+    @Label("Source Read")
+    @Description("A source file read to filter, parse, search or edit it")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static class FileRead extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Purpose")
+        String purpose;
+    }
+
+    @Name("utility.MatchScan")
+    @Label("Match Scan")
+    @Description("The declarations of a file checked against the requested method or rules")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static class MatchScan extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Declarations")
+        int declarations;
+
+        @Label("Matches")
+        int matches;
+    }
+
+    @Name("utility.CascadeResolution")
+    @Label("Cascade Resolution")
+    @Description("A method called by a deprecated method, deprecated wherever it is declared")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static class CascadeResolution extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Candidate Files")
+        @Description("Files whose identifier filter may contain the method")
+        int candidateFiles;
+
+        @Label("Methods Deprecated")
+        int methodsDeprecated;
+
+        @Label("Files Updated")
+        int filesUpdated;
+    }
+
+    @Name("utility.ClassCheck")
+    @Label("Class Check")
+    @Description("The classes of a file checked for methods that are not deprecated")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static class ClassCheck extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Classes")
+        int classes;
+
+        @Label("Classes Deprecated")
+        int classesDeprecated;
+    }
+
+    @Name("utility.FileWrite")
+    @Label("Source Write")
+    @Description("A source file rewritten with the markers planned for it")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static class FileWrite extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Bytes")
+        @Description("Size of the file after the rewrite")
+        @DataAmount
+        long bytes;
+
+        @Label("Insertions")
+        int insertions;
+    }
+
+    static Run beginRun() {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        Run event = new Run();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Commit a run; the request is the kind of run followed by what it was asked for, if anything
+     */
+    static void commit(Run event, Path projectRoot, String kind, Object subject, int files,
+                       int filesUpdated, int methodsDeprecated, int classesDeprecated) {
+        if (event != null && event.shouldCommit()) {
+            event.project = projectRoot.toString();
+            event.request = subject == null ? kind : kind + " " + subject;
+            event.files = files;
+            event.filesUpdated = filesUpdated;
+            event.methodsDeprecated = methodsDeprecated;
+            event.classesDeprecated = classesDeprecated;
+            event.commit();
+        }
+    }
+
+    static FileRead beginFileRead() {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        FileRead event = new FileRead();
+        event.begin();
+        return event;
+    }
+
+    static void commit(FileRead event, Path file, long bytes, String purpose) {
+        if (event != null && event.shouldCommit()) {
+            event.path = file.toString();
+            event.bytes = bytes;
+            event.purpose = purpose;
+            event.commit();
+        }
+    }
+
+    static MatchScan beginMatchScan() {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        MatchScan event = new MatchScan();
+        event.begin();
+        return event;
+    }
+
+    static void commit(MatchScan event, Path file, int declarations, int matches) {
+        if (event != null && event.shouldCommit()) {
+            event.path = file.toString();
+            event.declarations = declarations;
+            event.matches = matches;
+            event.commit();
+        }
+    }
+
+    static CascadeResolution beginCascadeResolution() {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        CascadeResolution event = new CascadeResolution();
+        event.begin();
+        return event;
+    }
+
+    static void commit(CascadeResolution event, String method, int candidateFiles, int methodsDeprecated, int filesUpdated) {
+        if (event != null && event.shouldCommit()) {
+            event.method = method;
+            event.candidateFiles = candidateFiles;
+            event.methodsDeprecated = methodsDeprecated;
+            event.filesUpdated = filesUpdated;
+            event.commit();
+        }
+    }
+
+    static ClassCheck beginClassCheck() {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        ClassCheck event = new ClassCheck();
+        event.begin();
+        return event;
+    }
+
+    static void commit(ClassCheck event, Path file, int classes, int classesDeprecated) {
+        if (event != null && event.shouldCommit()) {
+            event.path = file.toString();
+            event.classes = classes;
+            event.classesDeprecated = classesDeprecated;
+            event.commit();
+        }
+    }
+
+    static FileWrite beginFileWrite() {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        FileWrite event = new FileWrite();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Commit a write; the size of the file is only looked up when the event is recorded
+     */
+    static void commit(FileWrite event, Path file, int insertions) throws IOException {
+        if (event != null && event.shouldCommit()) {
+            event.path = file.toString();
+            event.bytes = Files.size(file);
+            event.insertions = insertions;
+            event.commit();
+        }
+    }
+}
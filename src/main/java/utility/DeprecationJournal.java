@@ -0,0 +1,368 @@
+package utility;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Append-only journal of the insertions made by one deprecation run.
+ *
+ * Each entry is one line: <code>offset TAB relative-path TAB escaped-text</code>, where the offset
+ * is the character position in the file content at the moment of the insertion. Entries are appended
+ * only after the file has been written, so the journal never describes edits that did not land.
+ * Undoing a run removes the inserted text again in reverse order, touching only the journaled files.
+ * Files that could not be restored keep their entries, so the undo can be retried once they are fixed.
+ */
+public class DeprecationJournal {
+
+    static final String JOURNAL_DIR = ".deprecation/runs";
+    static final String JOURNAL_SUFFIX = ".journal";
+    static final String UNDONE_SUFFIX = ".undone";
+    private static final String HEADER = "# deprecation-journal v1";
+    private static final Pattern RUN_ID = Pattern.compile("\\d{8}-\\d{6}-\\d{3}(-\\d+)?");
+
+    private final Path projectRoot;
+    private final Path journalDir;
+    private String runId;
+    private Path journalFile;
+    private int entries;
+
+    public DeprecationJournal(Path projectRoot) {
+        this.projectRoot = projectRoot.toAbsolutePath().normalize();
+        this.journalDir = this.projectRoot.resolve(JOURNAL_DIR);
+    }
+
+    /**
+     * Run id of this journal, or null when the run did not write anything
+     */
+    public synchronized String getRunId() {
+        return runId;
+    }
+
+    /**
+     * Append the insertions that were just written to the given file, in the order they were applied
+     */
+    public synchronized void recordWrite(Path file, List<Insertion> insertions) throws IOException {
+        if (insertions.isEmpty()) {
+            return;
+        }
+        if (journalFile == null) {
+            createJournalFile();
+        }
+
+        String relativePath = projectRoot.relativize(file.toAbsolutePath().normalize()).toString();
+        StringBuilder lines = new StringBuilder();
+        for (Insertion insertion : insertions) {
+            lines.append(insertion.offset).append('\t')
+                 .append(escape(relativePath)).append('\t')
+                 .append(escape(insertion.text)).append('\n');
+        }
+        Files.writeString(journalFile, lines, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        entries += insertions.size();
+    }
+
+    private void createJournalFile() throws IOException {
+        Files.createDirectories(journalDir);
+        String baseId = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        for (int attempt = 0; ; attempt++) {
+            String candidate = attempt == 0 ? baseId : baseId + "-" + attempt;
+            Path candidateFile = journalDir.resolve(candidate + JOURNAL_SUFFIX);
+            try {
+                Files.writeString(candidateFile, HEADER + " run=" + candidate + "\n",
+                        StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                runId = candidate;
+                journalFile = candidateFile;
+                return;
+            } catch (FileAlreadyExistsException e) {
+                // another run started in the same millisecond, try the next suffix
+            }
+        }
+    }
+
+    /**
+     * Combine the journals of several runs into the journal of one new run, which replaces them. The
+     * shards of a sharded run each journal their own files, and the run is undone as a whole. Returns
+     * the id of the new run, or null when none of the runs wrote anything.
+     */
+    static String merge(Path projectRoot, List<String> runIds) throws IOException {
+        DeprecationJournal merged = new DeprecationJournal(projectRoot);
+        for (String runId : runIds) {
+            if (runId == null) {
+                continue;
+            }
+            if (!isRunId(runId)) {
+                throw new IOException("Invalid run id: " + runId);
+            }
+            Path file = merged.journalDir.resolve(runId + JOURNAL_SUFFIX);
+            StringBuilder lines = new StringBuilder();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    lines.append(line).append('\n');
+                    merged.entries++;
+                }
+            }
+            if (merged.journalFile == null) {
+                merged.createJournalFile();
+            }
+            Files.writeString(merged.journalFile, lines, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+            Files.delete(file);
+        }
+        return merged.runId;
+    }
+
+    /**
+     * Revert a run by removing every journaled insertion. When runId is null the latest run that
+     * has not been undone yet is used. Files changed since the run are left untouched and reported,
+     * and their entries stay in the journal. Runs on the same project wait until the undo has finished.
+     */
+    public static UndoResult undo(Path projectRoot, String runId) throws IOException {
+        Lock projectLock = ProjectLockManager.getInstance().projectWriteLock(projectRoot);
+        projectLock.lock();
+        try {
+            return undoRun(projectRoot, runId);
+        } finally {
+            projectLock.unlock();
+        }
+    }
+
+    private static UndoResult undoRun(Path projectRoot, String runId) throws IOException {
+        Path root = projectRoot.toAbsolutePath().normalize();
+        Path dir = root.resolve(JOURNAL_DIR);
+
+        if (runId == null || runId.trim().isEmpty()) {
+            runId = findLatestRunId(dir);
+            if (runId == null) {
+                return UndoResult.failure(null, "No deprecation run to undo in " + root);
+            }
+        } else if (!isRunId(runId)) {
+            return UndoResult.failure(null, "Invalid run id: " + runId);
+        }
+
+        Path journalFile = dir.resolve(runId + JOURNAL_SUFFIX);
+        if (!Files.isRegularFile(journalFile)) {
+            if (Files.isRegularFile(dir.resolve(runId + JOURNAL_SUFFIX + UNDONE_SUFFIX))) {
+                return UndoResult.failure(runId, "Run " + runId + " has already been undone");
+            }
+            return UndoResult.failure(runId, "No journal found for run " + runId);
+        }
+
+        Map<String, List<Insertion>> editsByFile = new LinkedHashMap<>();
+        Map<String, StringBuilder> linesByFile = new HashMap<>();
+        for (String line : Files.readAllLines(journalFile, StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\t", 3);
+            if (parts.length != 3) {
+                return UndoResult.failure(runId, "Corrupt journal entry: " + line);
+            }
+            editsByFile.computeIfAbsent(unescape(parts[1]), k -> new ArrayList<>())
+                       .add(new Insertion(Integer.parseInt(parts[0]), unescape(parts[2])));
+            linesByFile.computeIfAbsent(unescape(parts[1]), k -> new StringBuilder()).append(line).append('\n');
+        }
+
+        StringBuilder details = new StringBuilder();
+        details.append("Undoing run: ").append(runId).append("\n");
+        details.append("Project path: ").append(root).append("\n\n");
+
+        int filesRestored = 0;
+        int editsReverted = 0;
+        List<String> conflicts = new ArrayList<>();
+
+        for (Map.Entry<String, List<Insertion>> entry : editsByFile.entrySet()) {
+            Path file = root.resolve(entry.getKey());
+            List<Insertion> insertions = entry.getValue();
+
+            if (!Files.isRegularFile(file)) {
+                conflicts.add(entry.getKey());
+                details.append("Skipped (file no longer exists): ").append(file).append("\n");
+                continue;
+            }
+
+            StringBuilder content = new StringBuilder(Files.readString(file));
+            boolean matches = true;
+            for (int i = insertions.size() - 1; i >= 0; i--) {
+                Insertion insertion = insertions.get(i);
+                int end = insertion.offset + insertion.text.length();
+                if (end > content.length() || !content.substring(insertion.offset, end).equals(insertion.text)) {
+                    matches = false;
+                    break;
+                }
+                content.delete(insertion.offset, end);
+            }
+
+            if (!matches) {
+                conflicts.add(entry.getKey());
+                details.append("Skipped (modified since the run): ").append(file).append("\n");
+                continue;
+            }
+
+            StreamingRewriter.replace(file, content);
+            filesRestored++;
+            editsReverted += insertions.size();
+            details.append("Restored: ").append(file).append("\n");
+        }
+
+        if (conflicts.isEmpty()) {
+            Files.move(journalFile, dir.resolve(runId + JOURNAL_SUFFIX + UNDONE_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+        } else if (filesRestored > 0) {
+            // keep only the entries of the skipped files, so a retry does not touch the restored ones
+            StringBuilder remaining = new StringBuilder(HEADER).append(" run=").append(runId).append("\n");
+            for (String path : conflicts) {
+                remaining.append(linesByFile.get(path));
+            }
+            Path temp = dir.resolve(runId + JOURNAL_SUFFIX + ".tmp");
+            Files.writeString(temp, remaining, StandardCharsets.UTF_8);
+            Files.move(temp, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        details.append("\nUndo completed").append(conflicts.isEmpty() ? " successfully!" : " with conflicts.").append("\n");
+        details.append("Total files restored: ").append(filesRestored).append("\n");
+        details.append("Total edits reverted: ").append(editsReverted).append("\n");
+        if (!conflicts.isEmpty()) {
+            details.append("The skipped files stay in the journal; undo run ").append(runId).append(" again to retry them.\n");
+        }
+
+        return new UndoResult(conflicts.isEmpty(), runId, filesRestored, editsReverted, conflicts, details.toString(), null);
+    }
+
+    /**
+     * Whether the id has the format of the generated run ids, so it names a file of the journal directory
+     */
+    static boolean isRunId(String runId) {
+        return runId != null && RUN_ID.matcher(runId).matches();
+    }
+
+    static String findLatestRunId(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return null;
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(path -> path.getFileName().toString())
+                        .filter(name -> name.endsWith(JOURNAL_SUFFIX))
+                        .map(name -> name.substring(0, name.length() - JOURNAL_SUFFIX.length()))
+                        .filter(DeprecationJournal::isRunId)
+                        .max(DeprecationJournal::compareRunIds)
+                        .orElse(null);
+        }
+    }
+
+    private static int compareRunIds(String a, String b) {
+        String[] partsA = a.split("-");
+        String[] partsB = b.split("-");
+        for (int i = 0; i < Math.max(partsA.length, partsB.length); i++) {
+            long valueA = i < partsA.length ? Long.parseLong(partsA[i]) : -1;
+            long valueB = i < partsB.length ? Long.parseLong(partsB[i]) : -1;
+            if (valueA != valueB) {
+                return Long.compare(valueA, valueB);
+            }
+        }
+        return 0;
+    }
+
+    static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\': escaped.append("\\\\"); break;
+                case '\n': escaped.append("\\n"); break;
+                case '\r': escaped.append("\\r"); break;
+                case '\t': escaped.append("\\t"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    static String unescape(String text) {
+        StringBuilder unescaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                switch (next) {
+                    case 'n': unescaped.append('\n'); break;
+                    case 'r': unescaped.append('\r'); break;
+                    case 't': unescaped.append('\t'); break;
+                    default: unescaped.append(next);
+                }
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    /**
+     * A single text insertion at a character offset
+     */
+    public static class Insertion {
+        final int offset;
+        final String text;
+
+        public Insertion(int offset, String text) {
+            this.offset = offset;
+            this.text = text;
+        }
+    }
+
+    public static class UndoResult {
+        private final boolean success;
+        private final String runId;
+        private final int filesRestored;
+        private final int editsReverted;
+        private final List<String> conflicts;
+        private final String details;
+        private final String error;
+
+        public UndoResult(boolean success, String runId, int filesRestored, int editsReverted,
+                          List<String> conflicts, String details, String error) {
+            this.success = success;
+            this.runId = runId;
+            this.filesRestored = filesRestored;
+            this.editsReverted = editsReverted;
+            this.conflicts = conflicts;
+            this.details = details;
+            this.error = error;
+        }
+
+        static UndoResult failure(String runId, String error) {
+            return new UndoResult(false, runId, 0, 0, Collections.emptyList(), null, error);
+        }
+
+        public String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{");
+            json.append("\"success\":").append(success).append(",");
+            json.append("\"runId\":\"").append(runId != null ? runId : "").append("\",");
+            json.append("\"filesRestored\":").append(filesRestored).append(",");
+            json.append("\"editsReverted\":").append(editsReverted).append(",");
+            json.append("\"conflicts\":[");
+            for (int i = 0; i < conflicts.size(); i++) {
+                if (i > 0) {
+                    json.append(",");
+                }
+                json.append("\"").append(WebServer.jsonEscape(conflicts.get(i))).append("\"");
+            }
+            json.append("],");
+            json.append("\"details\":\"").append(WebServer.jsonEscape(details)).append("\",");
+            json.append("\"error\":\"").append(WebServer.jsonEscape(error)).append("\"");
+            json.append("}");
+            return json.toString();
+        }
+
+        public boolean isSuccess() { return success; }
+        public String getRunId() { return runId; }
+        public int getFilesRestored() { return filesRestored; }
+        public int getEditsReverted() { return editsReverted; }
+        public List<String> getConflicts() { return conflicts; }
+        public String getDetails() { return details; }
+        public String getError() { return error; }
+    }
+}
@@ -0,0 +1,226 @@
+package utility;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Selector for rule-based bulk deprecation.
+ *
+ * A rule is a space separated list of <code>key=value</code> terms, all of which must hold for a
+ * method to be selected:
+ * <ul>
+ *   <li><code>package=com.foo.legacy.*</code> glob on the package of the file, <code>com.foo.*</code>
+ *       also matches <code>com.foo</code> itself</li>
+ *   <li><code>class=*Legacy*</code> glob on the simple name of the enclosing class</li>
+ *   <li><code>method=old*</code> glob on the method name</li>
+ *   <li><code>modifiers=public,static</code> modifiers the declaration must carry</li>
+ *   <li><code>annotation=Beta</code> annotation the declaration must carry, by simple name</li>
+ * </ul>
+ * In globs <code>*</code> matches any run of characters, dots included, and <code>?</code> a single
+ * character. Several rules are separated by <code>;</code> or line breaks.
+ */
+public class DeprecationRule {
+
+    private static final List<String> KEYS = Arrays.asList("package", "class", "method", "modifiers", "annotation");
+    private static final Pattern IDENTIFIER = Pattern.compile("[\\w$]+");
+
+    private final String text;
+    private final Pattern packagePattern;
+    private final Pattern classPattern;
+    private final Pattern methodPattern;
+    private final Set<String> modifiers;
+    private final String annotation;
+    private final List<String> requiredIdentifiers;
+    private final List<byte[]> requiredFragments;
+
+    private DeprecationRule(String text, Map<String, String> terms) {
+        this.text = text;
+        this.packagePattern = terms.containsKey("package") ? packageGlob(terms.get("package")) : null;
+        this.classPattern = terms.containsKey("class") ? glob(terms.get("class")) : null;
+        this.methodPattern = terms.containsKey("method") ? glob(terms.get("method")) : null;
+        this.modifiers = new LinkedHashSet<>();
+        if (terms.containsKey("modifiers")) {
+            for (String modifier : terms.get("modifiers").split(",")) {
+                if (!modifier.trim().isEmpty()) {
+                    modifiers.add(modifier.trim());
+                }
+            }
+        }
+        String annotationTerm = terms.get("annotation");
+        this.annotation = annotationTerm == null ? null : simpleName(annotationTerm.startsWith("@") ? annotationTerm.substring(1) : annotationTerm);
+
+        // identifiers every selected file must contain, for the identifier filter of the source index
+        this.requiredIdentifiers = new ArrayList<>(modifiers);
+        if (annotation != null) {
+            requiredIdentifiers.add(annotation);
+        }
+        for (String key : Arrays.asList("package", "class", "method")) {
+            if (terms.containsKey(key)) {
+                requiredIdentifiers.addAll(Arrays.asList(terms.get(key).split("\\.")));
+            }
+        }
+        // only whole identifiers can be looked up, parts with wildcards or other characters are left out
+        requiredIdentifiers.removeIf(identifier -> !IDENTIFIER.matcher(identifier).matches());
+
+        // literal parts of the globs, for a byte search of files that have not been parsed yet; the
+        // trailing ".*" of a package glob is optional, so its dot is not required
+        this.requiredFragments = new ArrayList<>();
+        for (String key : Arrays.asList("package", "class", "method")) {
+            if (terms.containsKey(key)) {
+                String glob = terms.get(key);
+                if (key.equals("package") && glob.endsWith(".*")) {
+                    glob = glob.substring(0, glob.length() - 2);
+                }
+                for (String fragment : glob.split("[*?]+")) {
+                    if (fragment.length() > 1) {
+                        requiredFragments.add(fragment.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse one rule
+     */
+    public static DeprecationRule parse(String rule) {
+        String text = rule.trim();
+        Map<String, String> terms = new LinkedHashMap<>();
+        for (String term : text.split("\\s+")) {
+            int equals = term.indexOf('=');
+            if (equals <= 0 || equals == term.length() - 1) {
+                throw new IllegalArgumentException("Expected key=value in rule '" + text + "': " + term);
+            }
+            String key = term.substring(0, equals);
+            if (!KEYS.contains(key)) {
+                throw new IllegalArgumentException("Unknown selector '" + key + "' in rule '" + text + "', expected one of " + KEYS);
+            }
+            if (terms.put(key, term.substring(equals + 1)) != null) {
+                throw new IllegalArgumentException("Selector '" + key + "' given twice in rule '" + text + "'");
+            }
+        }
+        return new DeprecationRule(text, terms);
+    }
+
+    /**
+     * Parse rules separated by <code>;</code> or line breaks
+     */
+    public static List<DeprecationRule> parseAll(String rules) {
+        List<DeprecationRule> parsed = new ArrayList<>();
+        if (rules != null) {
+            for (String rule : rules.split("[;\\r\\n]+")) {
+                if (!rule.trim().isEmpty() && parsed.stream().noneMatch(r -> r.text.equals(rule.trim()))) {
+                    parsed.add(parse(rule));
+                }
+            }
+        }
+        if (parsed.isEmpty()) {
+            throw new IllegalArgumentException("No deprecation rule given");
+        }
+        return parsed;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Whether a file with the given identifier filter may hold a method selected by this rule
+     */
+    boolean mayMatch(SourceIndex.FileEntry entry) {
+        for (String identifier : requiredIdentifiers) {
+            if (!entry.mayContain(identifier)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the bytes of a file contain every literal part of the globs of this rule
+     */
+    boolean mayMatch(byte[] content) {
+        for (byte[] fragment : requiredFragments) {
+            if (!contains(content, fragment)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(byte[] content, byte[] fragment) {
+        byte first = fragment[0];
+        for (int i = 0; i <= content.length - fragment.length; i++) {
+            if (content[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < fragment.length && content[i + j] == fragment[j]) {
+                j++;
+            }
+            if (j == fragment.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the method glob of this rule accepts a name, the cheap first check of {@link #matches}
+     */
+    boolean matchesName(String methodName) {
+        return methodPattern == null || methodPattern.matcher(methodName).matches();
+    }
+
+    /**
+     * Whether a method declaration is selected by this rule
+     */
+    boolean matches(String packageName, String className, String methodName, Set<String> declaredModifiers, Set<String> annotations) {
+        return (packagePattern == null || packagePattern.matcher(packageName).matches())
+                && (classPattern == null || (className != null && classPattern.matcher(className).matches()))
+                && (methodPattern == null || methodPattern.matcher(methodName).matches())
+                && declaredModifiers.containsAll(modifiers)
+                && (annotation == null || annotations.contains(annotation));
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    static String simpleName(String name) {
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    static Pattern packageGlob(String glob) {
+        if (glob.endsWith(".*")) {
+            return Pattern.compile(globRegex(glob.substring(0, glob.length() - 2)) + "(?:\\..*)?");
+        }
+        return glob(glob);
+    }
+
+    private static Pattern glob(String glob) {
+        return Pattern.compile(globRegex(glob));
+    }
+
+    private static String globRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return regex.toString();
+    }
+}
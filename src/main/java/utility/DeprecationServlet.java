@@ -1,5 +1,8 @@
 package utility;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 
 import javax.servlet.http.HttpServlet;
@@ -7,24 +10,104 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
 
 
+/**
+ * Servlet for the deprecation API.
+ *
+ * Requests are processed asynchronously: the container thread only reads the request body and hands
+ * the job to a {@link JobScheduler}, so long runs do not hold the connector pool. Jobs are ordered by
+ * their estimated cost, fairly between clients (the <code>X-Client-Id</code> header, or else the remote
+ * address, weighted by <code>clientWeights</code>). Large jobs run on at most <code>workerThreads</code>
+ * workers within a budget of <code>costBudgetMegabytes</code> of source, jobs up to
+ * <code>smallJobKilobytes</code> also on <code>smallJobWorkers</code> workers of their own. Of each
+ * kind <code>queueCapacity</code> jobs may wait; further requests are answered with 429 and a
+ * Retry-After header. A job that has not finished after <code>jobTimeoutSeconds</code> is answered with
+ * 503. All of these are init parameters in web.xml, as is <code>maxArchiveMegabytes</code>, the largest
+ * amount of sources accepted in an uploaded archive. <code>GET /api/scheduler</code> reports the queue.
+ */
 public class DeprecationServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
+    private static final int SC_TOO_MANY_REQUESTS = 429;
     private final ObjectMapper objectMapper = new ObjectMapper();
-    
+
+    private transient JobScheduler scheduler;
+    private long jobTimeoutMillis;
+    private long maxArchiveBytes;
+
+    @Override
+    public void init() throws ServletException {
+        int workerThreads = intParameter("workerThreads", Runtime.getRuntime().availableProcessors());
+        int smallJobWorkers = intParameter("smallJobWorkers", JobScheduler.DEFAULT_SMALL_JOB_WORKERS);
+        int queueCapacity = intParameter("queueCapacity", 16);
+        long costBudget = intParameter("costBudgetMegabytes", (int) (JobScheduler.DEFAULT_COST_BUDGET >> 20)) * (1L << 20);
+        long smallJobCost = intParameter("smallJobKilobytes", (int) (JobScheduler.DEFAULT_SMALL_JOB_COST >> 10)) * (1L << 10);
+        jobTimeoutMillis = TimeUnit.SECONDS.toMillis(intParameter("jobTimeoutSeconds", 300));
+        maxArchiveBytes = intParameter("maxArchiveMegabytes",
+                (int) (ArchiveDeprecation.DEFAULT_MAX_ARCHIVE_BYTES >> 20)) * (1L << 20);
+
+        scheduler = new JobScheduler("deprecation", workerThreads, smallJobWorkers, queueCapacity, costBudget, smallJobCost);
+        try {
+            scheduler.setWeights(getInitParameter("clientWeights"));
+        } catch (IllegalArgumentException e) {
+            scheduler.shutdownNow();
+            throw new ServletException("Init parameter clientWeights: " + e.getMessage());
+        }
+    }
+
     @Override
-    protected void doPost(HttpServletRequest request, HttpServletResponse response) 
+    public void destroy() {
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(30, TimeUnit.SECONDS)) {
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            scheduler.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        // the shared state is static: the watch service threads of the trackers would outlive the webapp
+        ProjectVersion.closeAll();
+        ReachabilityAnalyzer.releaseAll();
+        SourceIndex.releaseAll();
+    }
+
+    private int intParameter(String name, int defaultValue) throws ServletException {
+        String value = getInitParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed < 1) {
+                throw new ServletException("Init parameter " + name + " must be positive: " + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new ServletException("Init parameter " + name + " is not a number: " + value);
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        
-        response.setContentType("application/json");
+
         response.setCharacterEncoding("UTF-8");
-        
-        try {
-            StringBuilder requestBody = new StringBuilder();
+
+        String servletPath = request.getServletPath();
+        // an archive is read by the job itself, as a stream; any other body is read here
+        boolean archive = WebServer.ARCHIVE_PATH.equals(servletPath);
+        StringBuilder requestBody = new StringBuilder();
+        if (!archive) {
             try (BufferedReader reader = request.getReader()) {
                 String line;
 
@@ -32,51 +115,205 @@ public class DeprecationServlet extends HttpServlet {
                     requestBody.append(line);
                 }
             }
-            
-            JsonNode jsonNode = objectMapper.readTree(requestBody.toString());
+        }
+
+        AsyncContext async = request.startAsync();
+        async.setTimeout(jobTimeoutMillis);
+        // whichever of the job and the timeout finishes first answers the request
+        AtomicBoolean answered = new AtomicBoolean();
+
+        long cost = archive ? JobScheduler.estimateArchive(request.getHeader("Content-Length"), maxArchiveBytes)
+                : WebServer.estimateCost(servletPath, requestBody.toString());
+        String client = WebServer.clientOf(request.getHeader(WebServer.CLIENT_HEADER), request.getRemoteAddr());
+        JobScheduler.Job job;
+        try {
+            job = scheduler.submit(client, cost, () -> {
+                if (archive) {
+                    processArchive(async, answered);
+                    return;
+                }
+                Reply reply = process(servletPath, requestBody.toString());
+                if (answered.compareAndSet(false, true)) {
+                    send(async, reply);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            answered.set(true);
+            Reply reply;
+            if (scheduler.isShutdown()) {
+                reply = errorReply(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server is shutting down");
+            } else {
+                reply = errorReply(SC_TOO_MANY_REQUESTS, "Too many deprecation jobs in progress, retry later");
+                reply.retryAfterSeconds = 5;
+            }
+            send(async, reply);
+            return;
+        }
+
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                if (answered.compareAndSet(false, true)) {
+                    // a job still waiting is dropped; a running one finishes so its journal stays complete
+                    job.cancel();
+                    Reply reply = errorReply(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                            "Deprecation job did not finish within " + TimeUnit.MILLISECONDS.toSeconds(jobTimeoutMillis) + " seconds");
+                    reply.retryAfterSeconds = 30;
+                    send(async, reply);
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
 
-            String methodName = jsonNode.has("methodName") ? jsonNode.get("methodName").asText() : null;
+            @Override
+            public void onError(AsyncEvent event) {
+                answered.set(true);
+                job.cancel();
+            }
 
-            String methodSignature = jsonNode.has("methodSignature") ? jsonNode.get("methodSignature").asText() : null;
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+    }
 
-            String projectPath = jsonNode.has("projectPath") ? jsonNode.get("projectPath").asText() : null;
+    /**
+     * Run an archive request on a worker thread, see {@link ArchiveDeprecation}. The options are query
+     * parameters, the body is the archive, and the answer is streamed as a zip once the run is done.
+     */
+    private void processArchive(AsyncContext async, AtomicBoolean answered) {
+        HttpServletRequest request = (HttpServletRequest) async.getRequest();
+        Map<String, String> parameters = WebServer.queryParameters(request.getQueryString());
+        try (ArchiveDeprecation archive = new ArchiveDeprecation(maxArchiveBytes)) {
+            WebServer.DeprecationResult result;
+            try (InputStream in = request.getInputStream()) {
+                archive.setMarkers(parameters.get("markers"), parameters.get("since"), parameters.get("replacement"),
+                        parameters.get("team"), parameters.get("markerTemplate"));
+                archive.read(in);
+                result = archive.deprecateWithResult(parameters.get("methodName"), parameters.get("methodSignature"));
+            } catch (ArchiveDeprecation.LimitException e) {
+                Reply reply = errorReply(e.isBusy() ? HttpServletResponse.SC_SERVICE_UNAVAILABLE
+                        : HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+                reply.retryAfterSeconds = e.isBusy() ? 5 : 0;
+                if (answered.compareAndSet(false, true)) {
+                    send(async, reply);
+                }
+                return;
+            } catch (Exception e) {
+                if (answered.compareAndSet(false, true)) {
+                    send(async, errorReply(HttpServletResponse.SC_BAD_REQUEST, "Error during deprecation: " + e.getMessage()));
+                }
+                return;
+            }
 
-            if (methodName == null || projectPath == null) {
-                sendErrorResponse(response, "Missing required parameters: methodName and projectPath");
+            if (!answered.compareAndSet(false, true)) {
                 return;
             }
-            DeprecationUtility utility = new DeprecationUtility(projectPath);
-            WebServer.DeprecationResult result = utility.deprecateMethodWithResult(methodName, methodSignature);
-            
-            String jsonResponse = objectMapper.writeValueAsString(result);
-            response.setStatus(HttpServletResponse.SC_OK);
-            
-            try (PrintWriter out = response.getWriter()) {
-                out.print(jsonResponse);
+            try {
+                HttpServletResponse response = (HttpServletResponse) async.getResponse();
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setContentType("application/zip");
+                for (Map.Entry<String, String> header : WebServer.archiveHeaders(result).entrySet()) {
+                    response.setHeader(header.getKey(), header.getValue());
+                }
+                try (OutputStream out = response.getOutputStream()) {
+                    archive.writeTo(out, result);
+                }
+            } catch (IOException | IllegalStateException e) {
+                // the client is gone
+            } finally {
+                try {
+                    async.complete();
+                } catch (IllegalStateException e) {
+                    // already completed by the container after an error
+                }
             }
-            
-        } catch (Exception e) {
-            sendErrorResponse(response, "Error during deprecation: " + e.getMessage());
         }
     }
-    
+
+    /**
+     * Run one request on a worker thread. The body is parsed with Jackson and the route is the one
+     * {@link WebServer} serves, so both front ends answer the same way.
+     */
+    private Reply process(String servletPath, String requestBody) {
+        JsonNode jsonNode;
+        try {
+            jsonNode = objectMapper.readTree(requestBody);
+        } catch (IOException e) {
+            return errorReply(HttpServletResponse.SC_BAD_REQUEST, "Error during deprecation: " + e.getMessage());
+        }
+        WebServer.ApiResponse response = WebServer.handleApi(servletPath, field -> textOrNull(jsonNode, field));
+        return new Reply(response.status, response.contentType, response.body);
+    }
+
+    private static String textOrNull(JsonNode jsonNode, String field) {
+        return jsonNode != null && jsonNode.hasNonNull(field) ? jsonNode.get(field).asText() : null;
+    }
+
     @Override
-    protected void doGet(HttpServletRequest request, HttpServletResponse response) 
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
+        if (WebServer.SCHEDULER_PATH.equals(request.getServletPath())) {
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            try (PrintWriter out = response.getWriter()) {
+                out.print(scheduler.metricsJson());
+            }
+            return;
+        }
         response.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
         response.setContentType("application/json");
-        
+
         try (PrintWriter out = response.getWriter()) {
             out.print("{\"error\":\"GET method not allowed. Use POST.\"}");
         }
     }
-    
-    private void sendErrorResponse(HttpServletResponse response, String error) throws IOException {
-        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-        response.setContentType("application/json");
-        
-        try (PrintWriter out = response.getWriter()) {
-            out.print("{\"error\":\"" + error + "\"}");
+
+    private static Reply errorReply(int status, String error) {
+        return new Reply(status, "application/json", "{\"error\":\"" + WebServer.jsonEscape(error) + "\"}");
+    }
+
+    /**
+     * Write a reply and complete the request; the client may already be gone
+     */
+    private static void send(AsyncContext async, Reply reply) {
+        try {
+            HttpServletResponse response = (HttpServletResponse) async.getResponse();
+            response.setStatus(reply.status);
+            response.setContentType(reply.contentType);
+            response.setCharacterEncoding("UTF-8");
+            if (reply.retryAfterSeconds > 0) {
+                response.setHeader("Retry-After", String.valueOf(reply.retryAfterSeconds));
+            }
+            try (PrintWriter out = response.getWriter()) {
+                out.print(reply.body);
+            }
+        } catch (IOException | IllegalStateException e) {
+            // nothing left to answer
+        } finally {
+            try {
+                async.complete();
+            } catch (IllegalStateException e) {
+                // already completed by the container after an error
+            }
+        }
+    }
+
+    /**
+     * Status, content type and body of a response, built on the worker thread
+     */
+    private static class Reply {
+        final int status;
+        final String contentType;
+        final String body;
+        int retryAfterSeconds;
+
+        Reply(int status, String contentType, String body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,105 @@
+package utility;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A marker that is inserted above every deprecated declaration.
+ *
+ * The template is one or more lines and may refer to run variables such as <code>${since}</code>,
+ * <code>${replacement}</code> or <code>${team}</code>, and to <code>${name}</code>, the name of the
+ * declaration being deprecated. Templates are compiled once per run by the {@link InsertionEngine}.
+ */
+public interface DeprecationStrategy {
+
+    String getName();
+
+    String getTemplate();
+
+    /**
+     * The marker this utility has always used: the team comment followed by <code>@Deprecated</code>
+     */
+    static DeprecationStrategy defaultStrategy() {
+        return new TemplateStrategy("comment",
+                DeprecationUtility.DEPRECATION_COMMENT + "\n" + DeprecationUtility.DEPRECATION_ANNOTATION);
+    }
+
+    /**
+     * Parse a comma separated list of strategy names: comment, annotation, since, javadoc and custom.
+     * The custom strategy takes its template from the <code>markerTemplate</code> argument. Markers
+     * that would each add <code>@Deprecated</code> are merged: since replaces the plain annotation, and
+     * comment then only adds the team comment. A marker listed twice is rejected.
+     */
+    static List<DeprecationStrategy> parse(String names, String replacement, String markerTemplate) {
+        List<DeprecationStrategy> strategies = new ArrayList<>();
+        if (names == null || names.trim().isEmpty()) {
+            strategies.add(defaultStrategy());
+            return strategies;
+        }
+
+        Set<String> requested = new HashSet<>();
+        for (String name : names.split(",")) {
+            if (!requested.add(name.trim())) {
+                throw new IllegalArgumentException("Deprecation marker listed twice: " + name.trim());
+            }
+        }
+        boolean since = requested.contains("since");
+
+        for (String name : names.split(",")) {
+            switch (name.trim()) {
+                case "comment":
+                    strategies.add(since || requested.contains("annotation")
+                            ? new TemplateStrategy("comment", DeprecationUtility.DEPRECATION_COMMENT)
+                            : defaultStrategy());
+                    break;
+                case "annotation":
+                    if (!since) {
+                        strategies.add(new TemplateStrategy("annotation", DeprecationUtility.DEPRECATION_ANNOTATION));
+                    }
+                    break;
+                case "since":
+                    strategies.add(new TemplateStrategy("since", "@Deprecated(since = \"${since}\", forRemoval = true)"));
+                    break;
+                case "javadoc":
+                    strategies.add(new TemplateStrategy("javadoc", replacement != null && !replacement.isEmpty()
+                            ? "/**\n * @deprecated Use {@link ${replacement}} instead.\n */"
+                            : "/**\n * @deprecated ${name} is scheduled for removal.\n */"));
+                    break;
+                case "custom":
+                    if (markerTemplate == null || markerTemplate.isEmpty()) {
+                        throw new IllegalArgumentException("The custom marker needs a marker template");
+                    }
+                    strategies.add(new TemplateStrategy("custom", markerTemplate));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown deprecation marker: " + name.trim());
+            }
+        }
+        return strategies;
+    }
+
+    /**
+     * Strategy defined by a fixed template
+     */
+    class TemplateStrategy implements DeprecationStrategy {
+        private final String name;
+        private final String template;
+
+        public TemplateStrategy(String name, String template) {
+            this.name = name;
+            this.template = template;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getTemplate() {
+            return template;
+        }
+    }
+}
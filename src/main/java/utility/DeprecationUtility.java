@@ -1,184 +1,684 @@
 package utility;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
 import java.util.regex.*;
 
 public class DeprecationUtility {
 
-    private static final String DEPRECATION_COMMENT = "/** Do not change without asking Sahdev Team*/";
-    private static final String DEPRECATION_ANNOTATION = "@Deprecated";
+    static final String DEPRECATION_COMMENT = "/** Do not change without asking Sahdev Team*/";
+    static final String DEPRECATION_ANNOTATION = "@Deprecated";
+    static final String STATE_DIR = ".deprecation";
+
+    static final Pattern CLASS_PATTERN = Pattern.compile("\\s*(public\\s+)?(abstract\\s+)?(final\\s+)?class\\s+(\\w+)");
+    static final Pattern METHOD_CALL_PATTERN = Pattern.compile("\\b(\\w+)\\s*\\(");
+    private static final Pattern DECLARATION_PATTERN = Pattern.compile(
+            "(?:@[\\w.]+(?:\\([^)]*\\))?\\s+)*"
+            + "((?:(?:public|protected|private|static|final|abstract|synchronized|native|default|strictfp)\\s+)*)"
+            + "(?:<[^()]*?>\\s*)?"
+            + "([\\w.$]+(?:<[^()]*>)?(?:\\s*\\[\\s*\\])*\\s+)?"
+            + "(\\w+)\\s*\\(");
+    private static final Pattern LEADING_ANNOTATION_PATTERN = Pattern.compile("\\G@([\\w.]+)(?:\\([^)]*\\))?\\s*");
+    private static final Set<String> NON_DECLARATION_KEYWORDS = new HashSet<>(Arrays.asList(
+            "if", "for", "while", "switch", "catch", "synchronized", "return", "new", "throw", "else", "case",
+            "try", "do", "assert", "yield", "super", "this", "instanceof"));
 
     private final Path projectRoot;
     private final List<Path> javaFiles;
-    private final Map<String, List<MethodInfo>> methodOccurrences;
+    private final DeprecationJournal journal;
+    private final SourceIndex sourceIndex;
+    private final ProjectLockManager locks = ProjectLockManager.getInstance();
+    private final Map<Path, List<DeprecationJournal.Insertion>> pendingInsertions;
+    private final Map<Path, MemoryGovernor.Reservation> heldSources = new ConcurrentHashMap<>();
+    private InsertionEngine insertionEngine;
+    private PrintStream out = System.out;
+    private Set<Path> touchedFiles;
 
     public DeprecationUtility(String projectPath) throws IOException {
-        this.projectRoot = Paths.get(projectPath);
-        this.javaFiles = findJavaFiles(projectRoot);
-        this.methodOccurrences = new HashMap<>();
+        this(Paths.get(projectPath), SourceIndex.shared(Paths.get(projectPath)));
+    }
+
+    private DeprecationUtility(Path projectRoot, SourceIndex sourceIndex) throws IOException {
+        this(projectRoot, sourceIndex, projectFiles(projectRoot, sourceIndex));
+    }
+
+    /**
+     * Utility for one shard of a sharded run: only the given sources, with an index of their own
+     */
+    DeprecationUtility(Path projectRoot, SourceIndex sourceIndex, List<Path> javaFiles) {
+        this.projectRoot = projectRoot;
+        this.sourceIndex = sourceIndex;
+        this.javaFiles = javaFiles;
+        this.journal = new DeprecationJournal(projectRoot);
+        this.sourceIndex.retain(javaFiles);
+        this.pendingInsertions = new ConcurrentHashMap<>();
+        this.insertionEngine = InsertionEngine.defaultEngine();
+    }
+
+    /**
+     * Choose the markers inserted by this run. Templates are compiled once, here.
+     */
+    public void setMarkers(List<DeprecationStrategy> strategies, Map<String, String> variables) {
+        this.insertionEngine = new InsertionEngine(strategies, variables);
+    }
+
+    /**
+     * Choose the markers by name, see {@link DeprecationStrategy#parse}. Null arguments keep the defaults.
+     */
+    public void setMarkers(String markers, String since, String replacement, String team, String markerTemplate) {
+        this.insertionEngine = markerEngine(insertionEngine, markers, since, replacement, team, markerTemplate);
+    }
+
+    /**
+     * Engine for markers chosen by name, or the current engine when neither markers nor a template are given
+     */
+    static InsertionEngine markerEngine(InsertionEngine current, String markers, String since, String replacement,
+                                        String team, String markerTemplate) {
+        if (markers == null && markerTemplate == null) {
+            return current;
+        }
+        Map<String, String> variables = new HashMap<>();
+        variables.put("since", since);
+        variables.put("replacement", replacement);
+        variables.put("team", team);
+        return new InsertionEngine(DeprecationStrategy.parse(markers != null ? markers : "custom", replacement, markerTemplate), variables);
     }
 
     public static void main(String[] args) {
+        System.exit(run(args, System.in, System.out, System.err));
+    }
+
+    /**
+     * Run a command line with the given streams and return its exit code. Used by {@link #main} and by
+     * the daemon, which serves many command lines from one warm JVM.
+     */
+    static int run(String[] args, InputStream in, PrintStream out, PrintStream err) {
+        if (args.length >= 2 && "--undo".equals(args[0])) {
+            return undoRun(args[1], args.length > 2 ? args[2] : null, out, err);
+        }
+
+        if (args.length >= 2 && "--analyze".equals(args[0])) {
+            return DeprecationAnalyzer.run(Arrays.copyOfRange(args, 1, args.length), out, err);
+        }
+
+        if (args.length >= 2 && "--scan".equals(args[0])) {
+            return DeprecatedCallScanner.run(Arrays.copyOfRange(args, 1, args.length), in, out, err);
+        }
+
+        if (args.length >= 2 && "--select".equals(args[0])) {
+            return selectRun(args, out, err);
+        }
+
+        if (args.length >= 3 && "--sharded".equals(args[0])) {
+            return ShardedDeprecation.run(Arrays.copyOfRange(args, 1, args.length), out, err);
+        }
+
+        if (args.length >= 3 && "--dry-run".equals(args[0])) {
+            return dryRun(args, out, err);
+        }
+
         if (args.length < 2) {
-            System.out.println("Usage: java utility.DeprecationUtility <project_path> <method_name> [method_signature]");
-            System.out.println("Example: java utility.DeprecationUtility /path/to/project methodName");
-            System.out.println("Example: java utility.DeprecationUtility /path/to/project methodName \"returnType methodName(int a, int b)\"");
-            System.exit(1);
+            out.println("Usage: java utility.DeprecationUtility <project_path> <method_name> [method_signature] [marker options]");
+            out.println("       java utility.DeprecationUtility --undo <project_path> [run_id]");
+            out.println("       java utility.DeprecationUtility --analyze <project_path> [--methods m1,m2] [--top N] [--threshold 0.8] [--format json|csv] [--output file] [--revision <git_ref>]");
+            out.println("       java utility.DeprecationUtility --scan <project_path> (--base <git_ref> | --files <list_file|->) [--format json|text]");
+            out.println("       java utility.DeprecationUtility --select <project_path> --rules \"<rule>[; <rule>...]\" [marker options]");
+            out.println("       java utility.DeprecationUtility --sharded <project_path> <method_name> [method_signature] [--shards N] [--worker-heap 512m] [marker options]");
+            out.println("       java utility.DeprecationUtility --dry-run <project_path> <method_name> [method_signature] [--revision <git_ref>] [--output changes.zip] [marker options]");
+            out.println("Example: java utility.DeprecationUtility /path/to/project methodName");
+            out.println("Example: java utility.DeprecationUtility /path/to/project methodName \"returnType methodName(int a, int b)\"");
+            out.println("Example: java utility.DeprecationUtility --undo /path/to/project");
+            out.println("Example: java utility.DeprecationUtility --select /path/to/project --rules \"package=com.foo.legacy.* modifiers=public; method=old*\"");
+            out.println("Marker options: --markers comment,annotation,since,javadoc,custom --since <version> --replacement <link> --team <name> --marker-template <template>");
+            return 1;
         }
 
         String projectPath = args[0];
         String methodName = args[1];
 
-        String methodSignature = args.length > 2 ? args[2] : null;
+        int optionsStart = 2;
+        while (optionsStart < args.length && !args[optionsStart].startsWith("--")) {
+            optionsStart++;
+        }
+        String methodSignature = optionsStart > 2 ? args[2] : null;
 
         try {
+            Map<String, String> options = DeprecationAnalyzer.parseOptions(args, optionsStart);
             DeprecationUtility utility = new DeprecationUtility(projectPath);
+            utility.setOutput(out);
+            utility.setMarkers(options.get("markers"), options.get("since"), options.get("replacement"),
+                    options.get("team"), options.get("marker-template"));
             utility.deprecateMethod(methodName, methodSignature);
             utility.deprecateEmptyClasses();
-            System.out.println("Deprecation process completed successfully!");
+            out.println("Deprecation process completed successfully!");
+            if (utility.getRunId() != null) {
+                out.println("Run id: " + utility.getRunId() + " (revert with --undo " + projectPath + " " + utility.getRunId() + ")");
+            }
+            return 0;
         } catch (Exception e) {
-            System.err.println("Error during deprecation: " + e.getMessage());
-            e.printStackTrace();
-            System.exit(1);
+            err.println("Error during deprecation: " + e.getMessage());
+            e.printStackTrace(err);
+            return 1;
         }
     }
 
-    private List<Path> findJavaFiles(Path root) throws IOException {
-        List<Path> files = new ArrayList<>();
-        Files.walk(root)
-            .filter(path -> path.toString().endsWith(".java"))
-            .filter(path -> !path.toString().contains("/target/") && !path.toString().contains("/build/"))
-            .forEach(files::add);
-        return files;
+    private static int selectRun(String[] args, PrintStream out, PrintStream err) {
+        try {
+            Map<String, String> options = DeprecationAnalyzer.parseOptions(args, 2);
+            List<DeprecationRule> rules = DeprecationRule.parseAll(options.get("rules"));
+            DeprecationUtility utility = new DeprecationUtility(args[1]);
+            utility.setMarkers(options.get("markers"), options.get("since"), options.get("replacement"),
+                    options.get("team"), options.get("marker-template"));
+            out.print(utility.deprecateMatchingWithResult(rules).getDetails());
+            return 0;
+        } catch (Exception e) {
+            err.println("Error during deprecation: " + e.getMessage());
+            e.printStackTrace(err);
+            return 1;
+        }
     }
 
-    public void deprecateMethod(String methodName, String methodSignature) throws IOException {
-        System.out.println("Searching for method: " + methodName);
+    /**
+     * Report what a deprecation would change, in the working tree or at a git revision, without writing;
+     * the changed files can be saved to a zip
+     */
+    private static int dryRun(String[] args, PrintStream out, PrintStream err) {
+        int optionsStart = 3;
+        while (optionsStart < args.length && !args[optionsStart].startsWith("--")) {
+            optionsStart++;
+        }
+        String methodSignature = optionsStart > 3 ? args[3] : null;
 
-        for (Path javaFile : javaFiles) {
-            String content = Files.readString(javaFile);
-            String originalContent = content;
+        try {
+            Map<String, String> options = DeprecationAnalyzer.parseOptions(args, optionsStart);
+            try (SourceProvider sources = SourceProvider.of(Paths.get(args[1]), options.get("revision"));
+                 ArchiveDeprecation run = new ArchiveDeprecation(MemoryGovernor.shared().getBudgetBytes())) {
+                run.setMarkers(options.get("markers"), options.get("since"), options.get("replacement"),
+                        options.get("team"), options.get("marker-template"));
+                run.read(sources);
+                WebServer.DeprecationResult result = run.deprecateWithResult(args[2], methodSignature);
+                out.print(result.getDetails());
+                if (options.containsKey("output")) {
+                    try (OutputStream zip = Files.newOutputStream(Paths.get(options.get("output")))) {
+                        run.writeTo(zip, result);
+                    }
+                    out.println("Changed files written to: " + options.get("output"));
+                }
+            }
+            return 0;
+        } catch (Exception e) {
+            err.println("Error during dry run: " + e.getMessage());
+            e.printStackTrace(err);
+            return 1;
+        }
+    }
 
-            List<MethodInfo> methods = findMethodDeclarations(content, methodName, methodSignature);
+    private static int undoRun(String projectPath, String runId, PrintStream out, PrintStream err) {
+        try {
+            DeprecationJournal.UndoResult result = DeprecationJournal.undo(Paths.get(projectPath), runId);
+            if (result.getError() != null && !result.getError().isEmpty()) {
+                err.println("Error during undo: " + result.getError());
+                return 1;
+            }
+            out.print(result.getDetails());
+            return result.isSuccess() ? 0 : 1;
+        } catch (Exception e) {
+            err.println("Error during undo: " + e.getMessage());
+            e.printStackTrace(err);
+            return 1;
+        }
+    }
 
-            if (!methods.isEmpty()) {
-                System.out.println("Found " + methods.size() + " occurrence(s) in: " + javaFile);
+    /**
+     * Stream that receives the progress messages of {@link #deprecateMethod} and {@link #deprecateEmptyClasses}
+     */
+    public void setOutput(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Id of the journal recorded for this run, or null when nothing was written
+     */
+    public String getRunId() {
+        return journal.getRunId();
+    }
+
+    /**
+     * The Java sources of a project, from the snapshot in its index while the tree is unchanged,
+     * otherwise from a walk that is recorded in the index
+     */
+    static List<Path> projectFiles(Path projectRoot, SourceIndex sourceIndex) throws IOException {
+        List<Path> snapshot = sourceIndex.snapshotFiles();
+        if (snapshot != null) {
+            return snapshot;
+        }
+        // created up front, so that saving the index later does not change the recorded root directory
+        Files.createDirectories(projectRoot.resolve(STATE_DIR));
+        Map<Path, Long> directoryTimes = new HashMap<>();
+        List<Path> files = findJavaFiles(projectRoot, directoryTimes);
+        sourceIndex.recordTree(files, directoryTimes);
+        return files;
+    }
 
-                methods.sort((a, b) -> Integer.compare(b.lineNumber, a.lineNumber));
+    /**
+     * Find the Java sources of a project. The state directory of this utility is skipped, its temporary
+     * files come and go while other runs on the same project are saving.
+     */
+    static List<Path> findJavaFiles(Path root) throws IOException {
+        return findJavaFiles(root, null);
+    }
 
-                for (MethodInfo method : methods) {
-                    content = deprecateMethodInContent(content, method);
-                    
-                    content = deprecateCalledMethods(content, method);
+    /**
+     * Find the Java sources of a project and record the modification time of every directory walked
+     */
+    static List<Path> findJavaFiles(Path root, Map<Path, Long> directoryTimes) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                String name = dir.equals(root) ? "" : dir.getFileName().toString();
+                if (name.equals(STATE_DIR) || name.equals("target") || name.equals("build")) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (directoryTimes != null) {
+                    directoryTimes.put(dir, attrs.lastModifiedTime().toMillis());
                 }
+                return FileVisitResult.CONTINUE;
+            }
 
-                if (!content.equals(originalContent)) {
-                    Files.writeString(javaFile, content);
-                    System.out.println("Updated: " + javaFile);
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (isProjectSource(file)) {
+                    files.add(file);
                 }
+                return FileVisitResult.CONTINUE;
             }
+        });
+        return files;
+    }
+
+    /**
+     * Check if a path is a Java source of the project (build output directories are skipped)
+     */
+    static boolean isProjectSource(Path path) {
+        return path.toString().endsWith(".java") &&
+               !path.toString().contains("/target/") && !path.toString().contains("/build/");
+    }
+
+    public void deprecateMethod(String methodName, String methodSignature) throws IOException {
+        out.println("Searching for method: " + methodName);
+
+        StringBuilder details = new StringBuilder();
+        DeprecationEvents.Run run = DeprecationEvents.beginRun();
+        int methodsDeprecated;
+        Lock projectLock = locks.projectReadLock(projectRoot);
+        projectLock.lock();
+        try {
+            touchedFiles = new HashSet<>();
+            methodsDeprecated = deprecateMethods(methodName, methodSignature, details, touchedFiles);
+            sourceIndex.save();
+        } finally {
+            projectLock.unlock();
         }
+        DeprecationEvents.commit(run, projectRoot, "method", methodName, javaFiles.size(), touchedFiles.size(), methodsDeprecated, 0);
+        out.print(details);
     }
 
-    private List<MethodInfo> findMethodDeclarations(String content, String methodName, String methodSignature) {
-        List<MethodInfo> methods = new ArrayList<>();
-        String[] lines = content.split("\n");
+    /**
+     * The method pass. Every file is probed first and only files whose identifier filter may contain
+     * the method are parsed. Declarations are taken from the source index, so files in which every
+     * declaration of the method already carries the markers of this run are neither read nor written.
+     * Each file is edited under its own lock; the methods they call are deprecated afterwards, one file
+     * at a time.
+     */
+    private int deprecateMethods(String methodName, String methodSignature, StringBuilder details, Set<Path> updatedFiles) throws IOException {
+        Set<String> calledMethods = new TreeSet<>();
+        List<SourceIndex.FileEntry> probed = new ArrayList<>(javaFiles.size());
+        int methodsDeprecated = markMethods(methodName, methodSignature, calledMethods, probed, details, updatedFiles);
+
+        for (String calledMethod : calledMethods) {
+            deprecateCalledMethod(probed, calledMethod, updatedFiles);
+        }
+        return methodsDeprecated;
+    }
 
-        for (int i = 0; i < lines.length; i++) {
-            String line = lines[i];
-            
-            if (methodSignature != null) {
-                String normalizedLine = line.trim().replaceAll("\\s+", " ");
-                String normalizedSignature = methodSignature.trim().replaceAll("\\s+", " ");
-                
-                if (normalizedLine.contains(normalizedSignature) || 
-                    normalizedLine.contains("public " + normalizedSignature) ||
-                    normalizedLine.contains("private " + normalizedSignature) ||
-                    normalizedLine.contains("protected " + normalizedSignature)) {
-                    methods.add(new MethodInfo(i, line, methodName));
-                }
-            } else {
-                if (line.trim().contains(methodName + "(") && 
-                    !line.trim().contains("System.out.println") && !line.trim().contains("System.err.println")) {
-                    methods.add(new MethodInfo(i, line, methodName));
+    /**
+     * Mark the method in every file, collecting the names called by the marked declarations and the
+     * probed entry of every file
+     */
+    private int markMethods(String methodName, String methodSignature, Set<String> calledMethods, List<SourceIndex.FileEntry> probed,
+                            StringBuilder details, Set<Path> updatedFiles) throws IOException {
+        int methodsDeprecated = 0;
+        for (Path javaFile : javaFiles) {
+            // probed under the file lock as well, a scan must not see a file another run is rewriting
+            Lock fileLock = locks.fileLock(projectRoot, javaFile);
+            fileLock.lock();
+            try {
+                SourceIndex.FileEntry entry = sourceIndex.probe(javaFile);
+                probed.add(entry);
+                if (entry.mayContain(methodName)) {
+                    methodsDeprecated += deprecateMethodsInFile(javaFile, methodName, methodSignature, calledMethods, details, updatedFiles);
                 }
+            } finally {
+                releaseSource(javaFile);
+                fileLock.unlock();
             }
         }
-        return methods;
+        return methodsDeprecated;
     }
 
-    private boolean isMethodDeprecated(String content, int lineNumber) {
-        String[] lines = content.split("\n");
+    /**
+     * First pass of one shard of a sharded run: the method pass over the files of this utility. The
+     * called methods are only collected, the coordinator gathers them from all shards, since a method
+     * marked in one shard may call methods declared in another.
+     */
+    int deprecateMethodsInShard(String methodName, String methodSignature, Set<String> calledMethods,
+                                List<SourceIndex.FileEntry> probed, StringBuilder details, Set<Path> updatedFiles) throws IOException {
+        Lock projectLock = locks.projectReadLock(projectRoot);
+        projectLock.lock();
+        try {
+            return markMethods(methodName, methodSignature, calledMethods, probed, details, updatedFiles);
+        } finally {
+            projectLock.unlock();
+        }
+    }
 
-        for (int i = Math.max(0, lineNumber - 3); i < lineNumber; i++) {
-            if (i < lines.length && lines[i].trim().contains("@Deprecated")) {
-                return true;
+    /**
+     * Second pass of one shard: the methods called in any shard are deprecated in the files of this
+     * utility, then the class pass runs over the files updated by both passes, or over every file when
+     * there was no method pass. Returns the number of classes deprecated.
+     */
+    int completeShard(boolean methodRun, Collection<String> calledMethods, List<SourceIndex.FileEntry> probed,
+                      StringBuilder details, Set<Path> updatedFiles) throws IOException {
+        Lock projectLock = locks.projectReadLock(projectRoot);
+        projectLock.lock();
+        try {
+            for (String calledMethod : calledMethods) {
+                deprecateCalledMethod(probed, calledMethod, updatedFiles);
             }
+            int classesDeprecated = deprecateClasses(classCandidates(methodRun ? new HashSet<>(updatedFiles) : null), details, updatedFiles);
+            sourceIndex.save();
+            return classesDeprecated;
+        } finally {
+            projectLock.unlock();
         }
-        return false;
     }
 
-    private String deprecateMethodInContent(String content, MethodInfo method) {
-        String[] lines = content.split("\n");
+    private int deprecateMethodsInFile(Path javaFile, String methodName, String methodSignature, Set<String> calledMethods,
+                                       StringBuilder details, Set<Path> updatedFiles) throws IOException {
+        DeprecationEvents.MatchScan scan = DeprecationEvents.beginMatchScan();
+        int scanned = 0;
+        int matched = 0;
+        try {
+            SourceIndex.FileEntry entry = sourceIndex.refresh(javaFile);
+            scanned = entry.declarations().size();
+            List<SourceIndex.Declaration> declarations = entry.methodsNamed(methodName);
+            if (declarations.isEmpty()) {
+                return 0;
+            }
+            List<SourceIndex.Declaration> unmarked = unmarkedMethodsNamed(entry, methodName);
+            if (unmarked.isEmpty()) {
+                details.append("Already deprecated: ").append(declarations.size()).append(" occurrence(s) in: ").append(javaFile).append("\n");
+                return 0;
+            }
 
-        int methodLine = method.lineNumber;
-        int insertLine = methodLine;
+            IndexedSource source = readIndexedSource(javaFile);
+            if (source.entry != entry) {
+                unmarked = unmarkedMethodsNamed(source.entry, methodName);
+            }
+            String content = source.content;
+            List<SourceIndex.Declaration> methods = findMethodDeclarations(content.split("\n"), unmarked, methodSignature);
+            if (methods.isEmpty()) {
+                return 0;
+            }
+            matched = methods.size();
+            details.append("Found ").append(methods.size()).append(" occurrence(s) in: ").append(javaFile).append("\n");
 
-        while (insertLine > 0 && (lines[insertLine - 1].trim().startsWith("@") ||
-                                 lines[insertLine - 1].trim().startsWith("/**") ||
-                                 lines[insertLine - 1].trim().startsWith("*") ||
-                                 lines[insertLine - 1].trim().isEmpty())) {
-            insertLine--;
-        }
+            for (SourceIndex.Declaration method : methods) {
+                for (String calledMethod : method.callees()) {
+                    if (!calledMethod.equals(methodName) && !isGetterOrSetter(calledMethod)) {
+                        calledMethods.add(calledMethod);
+                    }
+                }
+            }
 
-        StringBuilder newContent = new StringBuilder();
+            // bottom-up, so that every journaled offset is also valid once the insertions below it are in place
+            int[] lineOffsets = InsertionEngine.lineOffsets(content);
+            for (int i = methods.size() - 1; i >= 0; i--) {
+                markDeclaration(javaFile, content, lineOffsets, methods.get(i).line, methodName);
+            }
 
-        for (int i = 0; i < lines.length; i++) {
-            if (i == insertLine) {
-                newContent.append("\n").append(DEPRECATION_COMMENT).append("\n");
-                newContent.append(DEPRECATION_ANNOTATION).append("\n");
+            writeSource(javaFile, content);
+            details.append("Updated: ").append(javaFile).append("\n");
+            updatedFiles.add(javaFile);
+            return methods.size();
+        } finally {
+            DeprecationEvents.commit(scan, javaFile, scanned, matched);
+        }
+    }
+
+    /**
+     * Select the indexed declarations that match the method signature, if one is given
+     */
+    static List<SourceIndex.Declaration> findMethodDeclarations(String[] lines, List<SourceIndex.Declaration> declarations, String methodSignature) {
+        List<SourceIndex.Declaration> methods = new ArrayList<>();
+        String normalizedSignature = methodSignature != null ? methodSignature.trim().replaceAll("\\s+", " ") : null;
+
+        for (SourceIndex.Declaration declaration : declarations) {
+            String line = lines[declaration.line];
+            if (normalizedSignature == null || normalizedSignature.isEmpty()
+                    || line.trim().replaceAll("\\s+", " ").contains(normalizedSignature)) {
+                methods.add(declaration);
             }
-            newContent.append(lines[i]);
-            if (i < lines.length - 1) {
-                newContent.append("\n");
+        }
+        return methods;
+    }
+
+    /**
+     * Plan the insertion of the markers of this run above a declaration. Insertions are planned against
+     * the content as read and applied together by {@link #writeSource}.
+     */
+    private void markDeclaration(Path javaFile, String content, int[] lineOffsets, int declarationLine, String declaredName) {
+        insertionEngine.plan(content, lineOffsets, declarationLine, declaredName,
+                pendingInsertions.computeIfAbsent(javaFile, k -> new ArrayList<>()));
+    }
+
+    /**
+     * Apply the insertions planned for a file in one streaming rewrite, journal them and refresh its
+     * index entry. The content is the one the insertions were planned against.
+     */
+    private void writeSource(Path javaFile, String content) throws IOException {
+        List<DeprecationJournal.Insertion> insertions = pendingInsertions.remove(javaFile);
+        if (insertions == null) {
+            return;
+        }
+        DeprecationEvents.FileWrite write = DeprecationEvents.beginFileWrite();
+        Path directory = javaFile.toAbsolutePath().getParent();
+        long directoryTime = Files.getLastModifiedTime(directory).toMillis();
+        StreamingRewriter.rewrite(javaFile, content, insertions);
+        DeprecationEvents.commit(write, javaFile, insertions.size());
+        journal.recordWrite(javaFile, insertions);
+        sourceIndex.recordRewrite(directory, directoryTime);
+        sourceIndex.refresh(javaFile);
+    }
+
+    /**
+     * Content of a file read for editing, with the index entry parsed from exactly that content
+     */
+    private static final class IndexedSource {
+        final String content;
+        final SourceIndex.FileEntry entry;
+
+        IndexedSource(String content, SourceIndex.FileEntry entry) {
+            this.content = content;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Read a file whose declarations are about to be marked. The memory for its content and edits is
+     * reserved first and held until {@link #releaseSource}, when the lock of the file is released.
+     *
+     * The index only compares size and modification time, which an edit can leave as they were, so the
+     * entry is checked against the hash of the bytes read and parsed again when they differ. A caller
+     * that planned its edits on another entry than the one returned plans them again.
+     */
+    private IndexedSource readIndexedSource(Path javaFile) throws IOException {
+        MemoryGovernor.Reservation reservation = MemoryGovernor.shared().reserve(Files.size(javaFile) * MemoryGovernor.SOURCE_FACTOR);
+        MemoryGovernor.Reservation previous = heldSources.put(javaFile, reservation);
+        if (previous != null) {
+            previous.close();
+        }
+        DeprecationEvents.FileRead read = DeprecationEvents.beginFileRead();
+        byte[] bytes = Files.readAllBytes(javaFile);
+        DeprecationEvents.commit(read, javaFile, bytes.length, "edit");
+        return new IndexedSource(new String(bytes, StandardCharsets.UTF_8), sourceIndex.refresh(javaFile, bytes));
+    }
+
+    /**
+     * The declarations of a method that do not carry the markers yet
+     */
+    private List<SourceIndex.Declaration> unmarkedMethodsNamed(SourceIndex.FileEntry entry, String methodName) {
+        List<SourceIndex.Declaration> unmarked = new ArrayList<>();
+        for (SourceIndex.Declaration declaration : entry.methodsNamed(methodName)) {
+            if (!insertionEngine.isMarked(declaration)) {
+                unmarked.add(declaration);
             }
         }
-        return newContent.toString();
+        return unmarked;
+    }
+
+    private void releaseSource(Path javaFile) {
+        MemoryGovernor.Reservation reservation = heldSources.remove(javaFile);
+        if (reservation != null) {
+            reservation.close();
+        }
     }
 
     public void deprecateEmptyClasses() throws IOException {
-        System.out.println("\nChecking for classes to deprecate...");
+        out.println("\nChecking for classes to deprecate...");
+
+        StringBuilder details = new StringBuilder();
+        DeprecationEvents.Run run = DeprecationEvents.beginRun();
+        Set<Path> updatedFiles = new HashSet<>();
+        int classesDeprecated;
+        Lock projectLock = locks.projectReadLock(projectRoot);
+        projectLock.lock();
+        try {
+            classesDeprecated = deprecateClasses(classCandidates(touchedFiles), details, updatedFiles);
+            sourceIndex.save();
+        } finally {
+            projectLock.unlock();
+        }
+        DeprecationEvents.commit(run, projectRoot, "classes", null, javaFiles.size(), updatedFiles.size(), 0, classesDeprecated);
+        out.print(details);
+    }
+
+    /**
+     * Files the class pass has to check: after a method run the files it wrote, since a class can only
+     * have become fully deprecated where a method was marked, and the files with a class that has no
+     * methods at all, which every run deprecates. Otherwise every file. The latter are told by the flag
+     * of the index entry, so files the method run only probed are not parsed for it.
+     */
+    private List<Path> classCandidates(Set<Path> touched) throws IOException {
+        if (touched == null) {
+            return javaFiles;
+        }
+        List<Path> candidates = new ArrayList<>();
         for (Path javaFile : javaFiles) {
-            String content = Files.readString(javaFile);
-            String originalContent = content;
+            if (touched.contains(javaFile) || hasUnmarkedClassWithoutMethods(sourceIndex.probe(javaFile))) {
+                candidates.add(javaFile);
+            }
+        }
+        return candidates;
+    }
 
-            List<ClassInfo> classes = findClassDeclarations(content);
+    /**
+     * Whether the entry has a class without methods that the markers of this run are not on yet; for an
+     * entry that was not parsed, whether it has one without <code>@Deprecated</code>
+     */
+    private boolean hasUnmarkedClassWithoutMethods(SourceIndex.FileEntry entry) {
+        if (!entry.classWithoutMethods || !entry.parsed) {
+            return entry.classWithoutMethods;
+        }
+        for (SourceIndex.Declaration classDeclaration : entry.classes()) {
+            if (entry.methodsOf(classDeclaration).isEmpty() && shouldDeprecateClass(insertionEngine, entry, classDeclaration)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            for (ClassInfo classInfo : classes) {
-                if (shouldDeprecateClass(content, classInfo)) {
-                    System.out.println("Deprecating class: " + classInfo.className + " in " + javaFile);
-                    content = deprecateClassInContent(content, classInfo);
-                }
+    /**
+     * The class pass. Only files with a class whose methods are all deprecated are read.
+     */
+    private int deprecateClasses(List<Path> candidates, StringBuilder details, Set<Path> updatedFiles) throws IOException {
+        int classesDeprecated = 0;
+
+        for (Path javaFile : candidates) {
+            Lock fileLock = locks.fileLock(projectRoot, javaFile);
+            fileLock.lock();
+            try {
+                classesDeprecated += deprecateClassesInFile(javaFile, details, updatedFiles);
+            } finally {
+                releaseSource(javaFile);
+                fileLock.unlock();
             }
+        }
+        return classesDeprecated;
+    }
+
+    private int deprecateClassesInFile(Path javaFile, StringBuilder details, Set<Path> updatedFiles) throws IOException {
+        DeprecationEvents.ClassCheck check = DeprecationEvents.beginClassCheck();
+        SourceIndex.FileEntry entry = sourceIndex.refresh(javaFile);
+        List<SourceIndex.Declaration> classes = classesToDeprecate(entry);
+        DeprecationEvents.commit(check, javaFile, entry.classes().size(), classes.size());
+        if (classes.isEmpty()) {
+            return 0;
+        }
+
+        IndexedSource source = readIndexedSource(javaFile);
+        if (source.entry != entry) {
+            classes = classesToDeprecate(source.entry);
+            if (classes.isEmpty()) {
+                return 0;
+            }
+        }
+        String content = source.content;
+        int[] lineOffsets = InsertionEngine.lineOffsets(content);
+        for (int i = classes.size() - 1; i >= 0; i--) {
+            SourceIndex.Declaration classDeclaration = classes.get(i);
+            details.append("Deprecating class: ").append(classDeclaration.name).append(" (only contains deprecated methods)\n");
+            deprecateClassInContent(javaFile, content, lineOffsets, new ClassInfo(classDeclaration.line, classDeclaration.name));
+        }
+
+        writeSource(javaFile, content);
+        details.append("Updated class: ").append(javaFile).append("\n");
+        updatedFiles.add(javaFile);
+        return classes.size();
+    }
 
-            if (!content.equals(originalContent)) {
-                Files.writeString(javaFile, content);
-                System.out.println("Updated class deprecation in: " + javaFile);
+    private List<SourceIndex.Declaration> classesToDeprecate(SourceIndex.FileEntry entry) {
+        List<SourceIndex.Declaration> classes = new ArrayList<>();
+        for (SourceIndex.Declaration classDeclaration : entry.classes()) {
+            if (shouldDeprecateClass(insertionEngine, entry, classDeclaration)) {
+                classes.add(classDeclaration);
             }
         }
+        return classes;
     }
 
-    private List<ClassInfo> findClassDeclarations(String content) {
+    static List<ClassInfo> findClassDeclarations(String[] lines) {
         List<ClassInfo> classes = new ArrayList<>();
-        String[] lines = content.split("\n");
-
-        Pattern classPattern = Pattern.compile("\\s*(public\\s+)?(abstract\\s+)?(final\\s+)?class\\s+(\\w+)");
 
         for (int i = 0; i < lines.length; i++) {
             String line = lines[i];
-            Matcher matcher = classPattern.matcher(line);
+            Matcher matcher = CLASS_PATTERN.matcher(line);
             if (matcher.find()) {
                 String className = matcher.group(4);
                 classes.add(new ClassInfo(i, className));
@@ -187,43 +687,42 @@ public class DeprecationUtility {
         return classes;
     }
 
-    private boolean shouldDeprecateClass(String content, ClassInfo classInfo) {
-        if (isClassDeprecated(content, classInfo.lineNumber)) {
+    /**
+     * A class is deprecated once none of its methods is left undeprecated, which includes a class
+     * without methods
+     */
+    static boolean shouldDeprecateClass(InsertionEngine insertionEngine, SourceIndex.FileEntry entry,
+                                        SourceIndex.Declaration classDeclaration) {
+        if (classDeclaration.deprecated || insertionEngine.isMarked(classDeclaration)) {
             return false;
         }
 
-        int nonDeprecatedMethods = countNonDeprecatedMethods(content, classInfo);
-        return nonDeprecatedMethods == 0;
-    }
-
-    private boolean isClassDeprecated(String content, int lineNumber) {
-        String[] lines = content.split("\n");
-
-        for (int i = Math.max(0, lineNumber - 3); i < lineNumber; i++) {
-            if (i < lines.length && lines[i].trim().contains("@Deprecated")) {
-                return true;
+        for (SourceIndex.Declaration method : entry.methodsOf(classDeclaration)) {
+            if (!method.deprecated && !insertionEngine.isMarked(method)) {
+                return false;
             }
         }
-        return false;
+        return true;
     }
 
-    private int countNonDeprecatedMethods(String content, ClassInfo classInfo) {
-        String[] lines = content.split("\n");
-        int count = 0;
+    /**
+     * Find the method declarations inside a class body together with their deprecation state
+     */
+    static List<ClassMethod> findClassMethods(String[] lines, ClassInfo classInfo) {
+        List<ClassMethod> methods = new ArrayList<>();
 
         int classEnd = findClassEnd(lines, classInfo.lineNumber);
 
-        for (int i = classInfo.lineNumber; i < classEnd; i++) {
-            if (i < lines.length && isMethodDeclaration(lines[i])) {
-                if (!isMethodDeprecatedInRange(content, i, classEnd)) {
-                    count++;
-                }
+        for (int i = classInfo.lineNumber + 1; i < classEnd && i < lines.length; i++) {
+            String name = declaredMethodName(lines[i]);
+            if (name != null) {
+                methods.add(new ClassMethod(i, name, isDeclarationDeprecated(lines, i)));
             }
         }
-        return count;
+        return methods;
     }
 
-    private int findClassEnd(String[] lines, int startLine) {
+    static int findClassEnd(String[] lines, int startLine) {
         int braceCount = 0;
         boolean inClass = false;
 
@@ -248,99 +747,51 @@ public class DeprecationUtility {
         return lines.length;
     }
 
-    /**
-     * Find classes that should be deprecated (only contain deprecated methods)
-     */
-    private List<ClassInfo> findClassesToDeprecate() throws IOException {
-        List<ClassInfo> classesToDeprecate = new ArrayList<>();
-
-        for (Path javaFile : javaFiles) {
-            String content = Files.readString(javaFile);
-            List<ClassInfo> classes = findClassDeclarations(content);
-
-            for (ClassInfo classInfo : classes) {
-                if (shouldDeprecateClass(content, classInfo)) {
-                    classesToDeprecate.add(classInfo);
-                }
-            }
-        }
-        return classesToDeprecate;
-    }
-
     /**
      * Check if a line contains a method declaration
      */
-    private boolean isMethodDeclaration(String line) {
-        String trimmed = line.trim();
-        return trimmed.matches(".*\\w+\\s+\\w+\\s*\\(.*\\)\\s*\\{?\\s*$") ||
-               trimmed.matches(".*\\w+\\s*\\(.*\\)\\s*\\{?\\s*$");
+    static boolean isMethodDeclaration(String line) {
+        return declaredMethodName(line) != null;
     }
 
     /**
-     * Check if method is deprecated within a range
+     * Check if the annotation block above a declaration contains <code>@Deprecated</code>
      */
-    private boolean isMethodDeprecatedInRange(String content, int methodLine, int endLine) {
-        String[] lines = content.split("\n");
-
-        for (int i = Math.max(0, methodLine - 3); i < methodLine && i < endLine; i++) {
-            if (i < lines.length && lines[i].trim().contains("@Deprecated")) {
+    static boolean isDeclarationDeprecated(String[] lines, int declarationLine) {
+        for (int i = findMethodStart(lines, declarationLine); i < declarationLine; i++) {
+            if (lines[i].trim().startsWith(DEPRECATION_ANNOTATION)) {
                 return true;
             }
         }
-
         return false;
     }
 
     /**
      * Add deprecation annotation to a class
      */
-    private String deprecateClassInContent(String content, ClassInfo classInfo) {
-        String[] lines = content.split("\n");
-
-        int insertLine = classInfo.lineNumber;
-
-        while (insertLine > 0 && (lines[insertLine - 1].trim().startsWith("@") ||
-                                 lines[insertLine - 1].trim().startsWith("/**") ||
-                                 lines[insertLine - 1].trim().startsWith("*") ||
-                                 lines[insertLine - 1].trim().isEmpty())) {
-            insertLine--;
-        }
-
-        StringBuilder newContent = new StringBuilder();
-
-        for (int i = 0; i < lines.length; i++) {
-            if (i == insertLine) {
-                newContent.append("\n").append(DEPRECATION_COMMENT).append("\n");
-                newContent.append(DEPRECATION_ANNOTATION).append("\n");
-            }
-            newContent.append(lines[i]);
-            if (i < lines.length - 1) {
-                newContent.append("\n");
-            }
-        }
-
-        return newContent.toString();
+    private void deprecateClassInContent(Path javaFile, String content, int[] lineOffsets, ClassInfo classInfo) {
+        markDeclaration(javaFile, content, lineOffsets, classInfo.lineNumber, classInfo.className);
     }
 
     /**
-     * Inner class to store method information
+     * Inner class to store a method declared in a class body
      */
-    private static class MethodInfo {
+    static class ClassMethod {
         final int lineNumber;
-        final String lineContent;
         final String methodName;
+        final boolean deprecated;
 
-        MethodInfo(int lineNumber, String lineContent, String methodName) {
+        ClassMethod(int lineNumber, String methodName, boolean deprecated) {
             this.lineNumber = lineNumber;
-            this.lineContent = lineContent;
             this.methodName = methodName;
+            this.deprecated = deprecated;
         }
     }
 
     /**
      * Inner class to store class information
      */
-    private static class ClassInfo {
+    static class ClassInfo {
         final int lineNumber;
         final String className;
 
@@ -353,9 +804,9 @@ public class DeprecationUtility {
 
     public WebServer.DeprecationResult deprecateMethodWithResult(String methodName, String methodSignature) throws IOException {
         StringBuilder details = new StringBuilder();
-        int filesUpdated = 0;
+        Set<Path> updatedFiles = new HashSet<>();
         int methodsDeprecated = 0;
-        int classesDeprecated = 0;
+        int classesDeprecated;
 
         if(methodName !=null && !methodName.trim().isEmpty()) {
             details.append("Starting deprecation process for method: ").append(methodName).append("\n");
@@ -366,128 +817,398 @@ public class DeprecationUtility {
         }
         details.append("Project path: ").append(projectRoot).append("\n\n");
 
-        for (Path javaFile : javaFiles) {
-            String content = Files.readString(javaFile);
-            String originalContent = content;
+        DeprecationEvents.Run run = DeprecationEvents.beginRun();
+        Lock projectLock = locks.projectReadLock(projectRoot);
+        projectLock.lock();
+        try {
+            Set<Path> touched = null;
+            if (methodName != null && !methodName.trim().isEmpty()) {
+                methodsDeprecated = deprecateMethods(methodName, methodSignature, details, updatedFiles);
+                touched = new HashSet<>(updatedFiles);
+            }
+            details.append("\n");
 
-            List<MethodInfo> methods = findMethodDeclarations(content, methodName, methodSignature);
+            details.append("Checking for classes that can be deprecated...\n");
+            classesDeprecated = deprecateClasses(classCandidates(touched), details, updatedFiles);
+            sourceIndex.save();
+        } finally {
+            projectLock.unlock();
+        }
+        boolean methodRun = methodName != null && !methodName.trim().isEmpty();
+        DeprecationEvents.commit(run, projectRoot, methodRun ? "method" : "classes", methodRun ? methodName : null,
+                javaFiles.size(), updatedFiles.size(), methodsDeprecated, classesDeprecated);
 
-            if (!methods.isEmpty()) {
-                details.append("Found ").append(methods.size()).append(" occurrence(s) in: ").append(javaFile).append("\n");
+        details.append("\nDeprecation process completed successfully!\n");
+        details.append("Total files updated: ").append(updatedFiles.size()).append("\n");
+        details.append("Total methods deprecated: ").append(methodsDeprecated).append("\n");
+        details.append("Total classes deprecated: ").append(classesDeprecated).append("\n");
+        if (getRunId() != null) {
+            details.append("Run id: ").append(getRunId()).append("\n");
+        }
 
-                methods.sort((a, b) -> Integer.compare(b.lineNumber, a.lineNumber));
+        return new WebServer.DeprecationResult(true, updatedFiles.size(), methodsDeprecated, classesDeprecated, details.toString(), null, getRunId());
+    }
 
-                for (MethodInfo method : methods) {
-                    content = deprecateMethodInContent(content, method);
-                    methodsDeprecated++;
-                    
-                    content = deprecateCalledMethods(content, method);
-                }
+    /**
+     * Rule-based bulk deprecation: every method selected by one of the rules is marked, in a single
+     * pass over the project. Files are evaluated in parallel, each under its own lock and with all its
+     * edits applied in one write; files whose identifier filter rules out every rule are not parsed.
+     * A method selected by several rules counts for the first of them. Called methods are not followed,
+     * the rules are the whole selection.
+     */
+    public WebServer.DeprecationResult deprecateMatchingWithResult(List<DeprecationRule> rules) throws IOException {
+        StringBuilder details = new StringBuilder();
+        details.append("Starting rule-based deprecation with ").append(rules.size()).append(" rule(s)\n");
+        for (int r = 0; r < rules.size(); r++) {
+            details.append("Rule ").append(r + 1).append(": ").append(rules.get(r)).append("\n");
+        }
+        details.append("Project path: ").append(projectRoot).append("\n\n");
 
-                if (!content.equals(originalContent)) {
-                    Files.writeString(javaFile, content);
-                    details.append("Updated: ").append(javaFile).append("\n");
-                    filesUpdated++;
+        int[] ruleCounts = new int[rules.size()];
+        Set<Path> updatedFiles = new HashSet<>();
+        int methodsDeprecated = 0;
+        int classesDeprecated;
+
+        DeprecationEvents.Run run = DeprecationEvents.beginRun();
+        Lock projectLock = locks.projectReadLock(projectRoot);
+        projectLock.lock();
+        try {
+            int threads = Runtime.getRuntime().availableProcessors();
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            // fewer files at a time while memory is short
+            MemoryGovernor.Gate gate = MemoryGovernor.shared().gate(threads);
+            try {
+                List<Future<int[]>> selections = new ArrayList<>(javaFiles.size());
+                for (Path javaFile : javaFiles) {
+                    selections.add(pool.submit(() -> {
+                        gate.enter();
+                        try {
+                            return selectInFile(javaFile, rules);
+                        } finally {
+                            gate.exit();
+                        }
+                    }));
+                }
+                for (int f = 0; f < javaFiles.size(); f++) {
+                    int[] counts = selections.get(f).get();
+                    if (counts == null) {
+                        continue;
+                    }
+                    int found = 0;
+                    for (int r = 0; r < counts.length; r++) {
+                        ruleCounts[r] += counts[r];
+                        found += counts[r];
+                    }
+                    methodsDeprecated += found;
+                    updatedFiles.add(javaFiles.get(f));
+                    details.append("Found ").append(found).append(" occurrence(s) in: ").append(javaFiles.get(f)).append("\n");
+                    details.append("Updated: ").append(javaFiles.get(f)).append("\n");
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Rule-based deprecation interrupted", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } finally {
+                pool.shutdownNow();
             }
+            details.append("\n");
+
+            details.append("Checking for classes that can be deprecated...\n");
+            classesDeprecated = deprecateClasses(classCandidates(new HashSet<>(updatedFiles)), details, updatedFiles);
+            sourceIndex.save();
+        } finally {
+            projectLock.unlock();
         }
+        DeprecationEvents.commit(run, projectRoot, "rules", rules, javaFiles.size(), updatedFiles.size(),
+                methodsDeprecated, classesDeprecated);
 
-        details.append("\n");
+        Map<String, Integer> countsByRule = new LinkedHashMap<>();
+        details.append("\nDeprecation process completed successfully!\n");
+        for (int r = 0; r < rules.size(); r++) {
+            countsByRule.put(rules.get(r).getText(), ruleCounts[r]);
+            details.append("Rule ").append(r + 1).append(" deprecated ").append(ruleCounts[r]).append(" method(s)\n");
+        }
+        details.append("Total files updated: ").append(updatedFiles.size()).append("\n");
+        details.append("Total methods deprecated: ").append(methodsDeprecated).append("\n");
+        details.append("Total classes deprecated: ").append(classesDeprecated).append("\n");
+        if (getRunId() != null) {
+            details.append("Run id: ").append(getRunId()).append("\n");
+        }
 
-        details.append("Checking for classes that can be deprecated...\n");
-        List<ClassInfo> classesToDeprecate = findClassesToDeprecate();
+        return new WebServer.DeprecationResult(true, updatedFiles.size(), methodsDeprecated, classesDeprecated,
+                details.toString(), null, getRunId(), countsByRule);
+    }
 
-        for (ClassInfo classInfo : classesToDeprecate) {
-            details.append("Deprecating class: ").append(classInfo.className).append(" (only contains deprecated methods)\n");
-            classesDeprecated++;
-        }
+    /**
+     * Mark the methods of one file selected by the rules. Returns the number marked per rule, or null
+     * when the file was left alone.
+     */
+    private int[] selectInFile(Path javaFile, List<DeprecationRule> rules) throws IOException {
+        Lock fileLock = locks.fileLock(projectRoot, javaFile);
+        fileLock.lock();
+        try {
+            SourceIndex.FileEntry entry = sourceIndex.probe(javaFile);
+            List<DeprecationRule> candidates = new ArrayList<>();
+            for (DeprecationRule rule : rules) {
+                if (rule.mayMatch(entry)) {
+                    candidates.add(rule);
+                }
+            }
+            byte[] bytes = null;
+            if (!entry.parsed && !candidates.isEmpty()) {
+                // searching the bytes for the literal parts of the globs is cheaper than parsing
+                DeprecationEvents.FileRead read = DeprecationEvents.beginFileRead();
+                byte[] searched = Files.readAllBytes(javaFile);
+                DeprecationEvents.commit(read, javaFile, searched.length, "search");
+                candidates.removeIf(rule -> !rule.mayMatch(searched));
+                bytes = searched;
+            }
+            if (candidates.isEmpty()) {
+                return null;
+            }
 
-        for (Path javaFile : javaFiles) {
-            String content = Files.readString(javaFile);
-            String originalContent = content;
-
-            for (ClassInfo classInfo : classesToDeprecate) {
-                if (javaFile.toString().contains(classInfo.className + ".java")) {
-                    content = deprecateClassInContent(content, classInfo);
-                    details.append("Updated class: ").append(javaFile).append("\n");
-                    if (content.equals(originalContent)) {
-                        filesUpdated++;
+            DeprecationEvents.MatchScan scan = DeprecationEvents.beginMatchScan();
+            // the searched bytes are parsed as they are, rather than read a second time
+            entry = bytes == null ? sourceIndex.refresh(javaFile) : sourceIndex.refresh(javaFile, bytes);
+            int scanned = entry.declarations().size();
+            List<SourceIndex.Declaration> named = methodsMatchingByName(entry, rules);
+            List<SourceIndex.Declaration> selected = new ArrayList<>();
+            int[] counts = new int[rules.size()];
+            if (named.isEmpty()) {
+                DeprecationEvents.commit(scan, javaFile, scanned, 0);
+                return null;
+            }
+            IndexedSource source = readIndexedSource(javaFile);
+            if (source.entry != entry) {
+                entry = source.entry;
+                named = methodsMatchingByName(entry, rules);
+            }
+            String content = source.content;
+            String[] lines = content.split("\n");
+            String packageName = packageOf(lines);
+            List<SourceIndex.Declaration> classes = entry.classes();
+
+            for (SourceIndex.Declaration declaration : named) {
+                String className = enclosingClass(classes, declaration);
+                Set<String> modifiers = declaredModifiers(lines[declaration.line]);
+                Set<String> annotations = declaredAnnotations(lines, declaration.line);
+                for (int r = 0; r < rules.size(); r++) {
+                    if (rules.get(r).matches(packageName, className, declaration.name, modifiers, annotations)) {
+                        counts[r]++;
+                        selected.add(declaration);
+                        break;
                     }
                 }
             }
+            DeprecationEvents.commit(scan, javaFile, scanned, selected.size());
+            if (selected.isEmpty()) {
+                return null;
+            }
 
-            if (!content.equals(originalContent)) {
-                Files.writeString(javaFile, content);
+            int[] lineOffsets = InsertionEngine.lineOffsets(content);
+            for (int i = selected.size() - 1; i >= 0; i--) {
+                markDeclaration(javaFile, content, lineOffsets, selected.get(i).line, selected.get(i).name);
             }
+            writeSource(javaFile, content);
+            return counts;
+        } finally {
+            releaseSource(javaFile);
+            fileLock.unlock();
         }
+    }
+
+    /**
+     * Deprecate a list of method declarations, by file, each given by its zero-based line and name, such
+     * as the unreachable methods found by {@link ReachabilityAnalyzer}. A declaration that is no longer on
+     * its line because the file changed since the list was made is skipped. Called methods are not followed.
+     */
+    public WebServer.DeprecationResult deprecateDeclarationsWithResult(Map<Path, Map<Integer, String>> declarations,
+                                                                        String description) throws IOException {
+        StringBuilder details = new StringBuilder();
+        details.append("Starting deprecation of ").append(description).append(" in ")
+               .append(declarations.size()).append(" file(s)\n");
+        details.append("Project path: ").append(projectRoot).append("\n\n");
+
+        Set<Path> updatedFiles = new HashSet<>();
+        int methodsDeprecated = 0;
+        int classesDeprecated;
+
+        DeprecationEvents.Run run = DeprecationEvents.beginRun();
+        Lock projectLock = locks.projectReadLock(projectRoot);
+        projectLock.lock();
+        try {
+            for (Map.Entry<Path, Map<Integer, String>> file : declarations.entrySet()) {
+                int found = deprecateDeclarationsInFile(file.getKey(), file.getValue());
+                if (found > 0) {
+                    methodsDeprecated += found;
+                    updatedFiles.add(file.getKey());
+                    details.append("Found ").append(found).append(" occurrence(s) in: ").append(file.getKey()).append("\n");
+                    details.append("Updated: ").append(file.getKey()).append("\n");
+                }
+            }
+            details.append("\n");
+
+            details.append("Checking for classes that can be deprecated...\n");
+            classesDeprecated = deprecateClasses(classCandidates(new HashSet<>(updatedFiles)), details, updatedFiles);
+            sourceIndex.save();
+        } finally {
+            projectLock.unlock();
+        }
+        DeprecationEvents.commit(run, projectRoot, "declarations", description, javaFiles.size(), updatedFiles.size(),
+                methodsDeprecated, classesDeprecated);
 
         details.append("\nDeprecation process completed successfully!\n");
-        details.append("Total files updated: ").append(filesUpdated).append("\n");
+        details.append("Total files updated: ").append(updatedFiles.size()).append("\n");
         details.append("Total methods deprecated: ").append(methodsDeprecated).append("\n");
         details.append("Total classes deprecated: ").append(classesDeprecated).append("\n");
+        if (getRunId() != null) {
+            details.append("Run id: ").append(getRunId()).append("\n");
+        }
 
-        return new WebServer.DeprecationResult(true, filesUpdated, methodsDeprecated, classesDeprecated, details.toString(), null);
+        return new WebServer.DeprecationResult(true, updatedFiles.size(), methodsDeprecated, classesDeprecated,
+                details.toString(), null, getRunId());
+    }
+
+    private int deprecateDeclarationsInFile(Path javaFile, Map<Integer, String> namesByLine) throws IOException {
+        Lock fileLock = locks.fileLock(projectRoot, javaFile);
+        fileLock.lock();
+        try {
+            if (!Files.isRegularFile(javaFile)) {
+                return 0;
+            }
+            SourceIndex.FileEntry entry = sourceIndex.refresh(javaFile);
+            List<SourceIndex.Declaration> selected = declarationsOnTheirLines(entry, namesByLine);
+            if (selected.isEmpty()) {
+                return 0;
+            }
+
+            IndexedSource source = readIndexedSource(javaFile);
+            if (source.entry != entry) {
+                selected = declarationsOnTheirLines(source.entry, namesByLine);
+            }
+            String content = source.content;
+            int[] lineOffsets = InsertionEngine.lineOffsets(content);
+            for (int i = selected.size() - 1; i >= 0; i--) {
+                markDeclaration(javaFile, content, lineOffsets, selected.get(i).line, selected.get(i).name);
+            }
+            writeSource(javaFile, content);
+            return selected.size();
+        } finally {
+            releaseSource(javaFile);
+            fileLock.unlock();
+        }
     }
 
     /**
-     * Find and deprecate methods that are called from the deprecated method
+     * The unmarked methods of a file that are declared on the given lines under the given names
      */
-    private String deprecateCalledMethods(String content, MethodInfo deprecatedMethod) throws IOException {
-        String[] lines = content.split("\n");
-        int methodStart = findMethodStart(lines, deprecatedMethod.lineNumber);
-        int methodEnd = findMethodEnd(lines, deprecatedMethod.lineNumber);
-        
-        StringBuilder methodBody = new StringBuilder();
-        for (int i = methodStart; i <= methodEnd; i++) {
-            methodBody.append(lines[i]).append("\n");
+    private List<SourceIndex.Declaration> declarationsOnTheirLines(SourceIndex.FileEntry entry, Map<Integer, String> namesByLine) {
+        List<SourceIndex.Declaration> selected = new ArrayList<>();
+        for (SourceIndex.Declaration declaration : entry.declarations()) {
+            if (declaration.kind == SourceIndex.METHOD && declaration.name.equals(namesByLine.get(declaration.line))
+                    && !insertionEngine.isMarked(declaration)) {
+                selected.add(declaration);
+            }
         }
-        
-        Set<String> calledMethods = findMethodCalls(methodBody.toString());
-        
-        for (String calledMethod : calledMethods) {
-            if (!isGetterOrSetter(calledMethod)) {
-                content = deprecateCalledMethodInContent(content, calledMethod);
+        return selected;
+    }
+
+    /**
+     * The unmarked methods of a file, constructors left out, whose name some rule selects
+     */
+    private List<SourceIndex.Declaration> methodsMatchingByName(SourceIndex.FileEntry entry, List<DeprecationRule> rules) {
+        List<SourceIndex.Declaration> classes = entry.classes();
+        List<SourceIndex.Declaration> named = new ArrayList<>();
+        for (SourceIndex.Declaration declaration : entry.declarations()) {
+            if (declaration.kind == SourceIndex.METHOD && !insertionEngine.isMarked(declaration)
+                    && !declaration.name.equals(enclosingClass(classes, declaration)) && anyMatchesName(rules, declaration.name)) {
+                named.add(declaration);
             }
         }
-        
-        return content;
+        return named;
+    }
+
+    private static boolean anyMatchesName(List<DeprecationRule> rules, String methodName) {
+        for (DeprecationRule rule : rules) {
+            if (rule.matchesName(methodName)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Find method calls in a given text
+     * Name of the innermost class whose body contains a declaration, or null
      */
-    private Set<String> findMethodCalls(String text) {
-        Set<String> methodCalls = new HashSet<>();
-        
-        Pattern pattern = Pattern.compile("\\b(\\w+)\\s*\\(");
-        Matcher matcher = pattern.matcher(text);
-        
-        while (matcher.find()) {
-            String methodName = matcher.group(1);
-            
-            if (!isExcludedMethod(methodName)) {
-                methodCalls.add(methodName);
+    private static String enclosingClass(List<SourceIndex.Declaration> classes, SourceIndex.Declaration declaration) {
+        String name = null;
+        for (SourceIndex.Declaration classDeclaration : classes) {
+            if (classDeclaration.line < declaration.line && declaration.line < classDeclaration.end) {
+                name = classDeclaration.name;
             }
         }
-        
-        Pattern objectMethodPattern = Pattern.compile("\\b\\w+\\.(\\w+)\\s*\\(");
-        Matcher objectMethodMatcher = objectMethodPattern.matcher(text);
-        
-        while (objectMethodMatcher.find()) {
-            String methodName = objectMethodMatcher.group(1);
-            
+        return name;
+    }
+
+    /**
+     * Package declared by a source file, or the empty string for the default package
+     */
+    static String packageOf(String[] lines) {
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith("package ") && trimmed.indexOf(';') > 0) {
+                return trimmed.substring("package ".length(), trimmed.indexOf(';')).trim();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Modifiers of the declaration on a line
+     */
+    static Set<String> declaredModifiers(String line) {
+        Set<String> modifiers = new HashSet<>();
+        Matcher matcher = DECLARATION_PATTERN.matcher(line.trim());
+        if (matcher.lookingAt() && !matcher.group(1).isEmpty()) {
+            modifiers.addAll(Arrays.asList(matcher.group(1).trim().split("\\s+")));
+        }
+        return modifiers;
+    }
+
+    /**
+     * Simple names of the annotations in the block above a declaration and in front of it on its line
+     */
+    static Set<String> declaredAnnotations(String[] lines, int declarationLine) {
+        Set<String> annotations = new HashSet<>();
+        for (int i = findMethodStart(lines, declarationLine); i <= declarationLine; i++) {
+            Matcher matcher = LEADING_ANNOTATION_PATTERN.matcher(lines[i].trim());
+            while (matcher.find()) {
+                annotations.add(DeprecationRule.simpleName(matcher.group(1)));
+            }
+        }
+        return annotations;
+    }
+
+    /**
+     * Count every method call in a given text, one per call site
+     */
+    static void countMethodCalls(String text, Map<String, Integer> counts) {
+        Matcher matcher = METHOD_CALL_PATTERN.matcher(text);
+
+        while (matcher.find()) {
+            String methodName = matcher.group(1);
+
             if (!isExcludedMethod(methodName)) {
-                methodCalls.add(methodName);
+                counts.merge(methodName, 1, Integer::sum);
             }
         }
-        
-        return methodCalls;
     }
 
     /**
      * Check if a method name should be excluded from deprecation
      */
-    private boolean isExcludedMethod(String methodName) {
+    static boolean isExcludedMethod(String methodName) {
         String[] excludedKeywords = {
             "if", "for", "while", "switch", "catch", "try", "new", "return", "throw",
             "System", "Math", "String", "Integer", "Double", "Boolean", "List", "Map",
@@ -506,7 +1227,7 @@ public class DeprecationUtility {
     /**
      * Check if a method is a getter or setter
      */
-    private boolean isGetterOrSetter(String methodName) {
+    static boolean isGetterOrSetter(String methodName) {
         if (methodName.startsWith("get") && methodName.length() > 3) {
             return true;
         }
@@ -521,61 +1242,86 @@ public class DeprecationUtility {
     }
 
     /**
-     * Deprecate a called method in the content
+     * Deprecate a called method wherever it is declared. Only files whose identifier filter may contain
+     * the name are parsed, and of those only the ones with an unmarked declaration are read.
      */
-    private String deprecateCalledMethodInContent(String content, String methodName) throws IOException {
-        for (Path javaFile : javaFiles) {
-            String fileContent = Files.readString(javaFile);
-            String[] lines = fileContent.split("\n");
-            
-            for (int i = 0; i < lines.length; i++) {
-                if (isMethodDeclaration(lines[i], methodName) && !isMethodDeprecated(fileContent, i)) {
-                    int insertLine = i;
-                    while (insertLine > 0 && (lines[insertLine - 1].trim().startsWith("@") ||
-                                             lines[insertLine - 1].trim().startsWith("/**") ||
-                                             lines[insertLine - 1].trim().startsWith("*") ||
-                                             lines[insertLine - 1].trim().isEmpty())) {
-                        insertLine--;
-                    }
-                    
-                    StringBuilder newContent = new StringBuilder();
-                    for (int j = 0; j < lines.length; j++) {
-                        if (j == insertLine) {
-                            newContent.append(DEPRECATION_COMMENT).append("\n");
-                            newContent.append(DEPRECATION_ANNOTATION).append("\n");
-                        }
-                        newContent.append(lines[j]);
-                        if (j < lines.length - 1) {
-                            newContent.append("\n");
-                        }
-                    }
-                    
-                    Files.writeString(javaFile, newContent.toString());
+    private void deprecateCalledMethod(List<SourceIndex.FileEntry> probed, String methodName, Set<Path> updatedFiles) throws IOException {
+        DeprecationEvents.CascadeResolution cascade = DeprecationEvents.beginCascadeResolution();
+        int candidateFiles = 0;
+        int methodsDeprecated = 0;
+        int filesUpdated = 0;
+        for (int f = 0; f < javaFiles.size(); f++) {
+            if (!probed.get(f).mayContain(methodName)) {
+                continue;
+            }
+            candidateFiles++;
+            Path javaFile = javaFiles.get(f);
+            Lock fileLock = locks.fileLock(projectRoot, javaFile);
+            fileLock.lock();
+            try {
+                SourceIndex.FileEntry entry = sourceIndex.refresh(javaFile);
+                List<SourceIndex.Declaration> unmarked = unmarkedMethodsNamed(entry, methodName);
+                if (unmarked.isEmpty()) {
+                    continue;
                 }
+                IndexedSource source = readIndexedSource(javaFile);
+                if (source.entry != entry) {
+                    unmarked = unmarkedMethodsNamed(source.entry, methodName);
+                }
+                String content = source.content;
+                int[] lineOffsets = InsertionEngine.lineOffsets(content);
+                for (int i = unmarked.size() - 1; i >= 0; i--) {
+                    markDeclaration(javaFile, content, lineOffsets, unmarked.get(i).line, methodName);
+                    methodsDeprecated++;
+                }
+
+                if (!unmarked.isEmpty()) {
+                    writeSource(javaFile, content);
+                    updatedFiles.add(javaFile);
+                    filesUpdated++;
+                }
+            } finally {
+                releaseSource(javaFile);
+                fileLock.unlock();
             }
         }
-        
-        return content;
+        DeprecationEvents.commit(cascade, methodName, candidateFiles, methodsDeprecated, filesUpdated);
     }
 
     /**
-     * Check if a line is a method declaration for the given method name
+     * Name of the method or constructor declared on a line, or null when the line is not a declaration.
+     * Statements that merely call a method (<code>return add(a, b);</code>, <code>foo(x);</code>) have
+     * neither modifiers nor a return type and are rejected.
      */
-    private boolean isMethodDeclaration(String line, String methodName) {
-        String trimmed = line.trim();
-        Pattern pattern = Pattern.compile("\\s*(\\w+\\s+)*" + Pattern.quote(methodName) + "\\s*\\(");
-        return pattern.matcher(trimmed).find();
+    static String declaredMethodName(String line) {
+        Matcher matcher = DECLARATION_PATTERN.matcher(line.trim());
+        if (!matcher.lookingAt()) {
+            return null;
+        }
+        String modifiers = matcher.group(1);
+        String type = matcher.group(2);
+        String name = matcher.group(3);
+
+        if (NON_DECLARATION_KEYWORDS.contains(name) || (type != null && NON_DECLARATION_KEYWORDS.contains(type.trim()))) {
+            return null;
+        }
+        if (modifiers.isEmpty() && type == null
+                && !(Character.isUpperCase(name.charAt(0)) && line.trim().endsWith("{"))) {
+            return null;
+        }
+        return name;
     }
 
     /**
-     * Find the start of a method (including annotations)
+     * Find the start of a method (including annotations and comments)
      */
-    private int findMethodStart(String[] lines, int methodLine) {
+    static int findMethodStart(String[] lines, int methodLine) {
         int start = methodLine;
         
         while (start > 0 && (lines[start - 1].trim().startsWith("@") ||
-                             lines[start - 1].trim().startsWith("/**") ||
+                             lines[start - 1].trim().startsWith("/*") ||
                              lines[start - 1].trim().startsWith("*") ||
+                             lines[start - 1].trim().startsWith("//") ||
                              lines[start - 1].trim().isEmpty())) {
             start--;
         }
@@ -586,7 +1332,7 @@ public class DeprecationUtility {
     /**
      * Find the end of a method
      */
-    private int findMethodEnd(String[] lines, int methodLine) {
+    static int findMethodEnd(String[] lines, int methodLine) {
         int braceCount = 0;
         boolean inMethod = false;
         
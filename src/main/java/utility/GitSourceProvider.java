@@ -0,0 +1,706 @@
+package utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The Java sources of a project as they are at a git revision, read straight from the object store
+ * of the local repository: no checkout, no scratch directory and no git process.
+ *
+ * The revision is resolved as git does for its common forms: a full or abbreviated object id, HEAD,
+ * or a branch, tag or remote ref, through loose refs and <code>packed-refs</code>, following symbolic
+ * refs and peeling annotated tags. The trees of the commit are walked down to the project directory,
+ * which may be below the top of the work tree, and from there every <code>.java</code> blob is listed,
+ * skipping the directories {@link DeprecationUtility#findJavaFiles} skips. Objects are read from loose
+ * files or from pack files (version 2 indexes), deltas included, and from the alternates of the
+ * repository; a blob is only inflated when it is read. Worktrees and bare repositories are found too.
+ *
+ * The content id of a source is its blob id, so {@link ParseCache} parses a file once for all the
+ * revisions in which it is unchanged.
+ */
+public class GitSourceProvider implements SourceProvider {
+
+    static final int OBJ_COMMIT = 1;
+    static final int OBJ_TREE = 2;
+    static final int OBJ_BLOB = 3;
+    static final int OBJ_TAG = 4;
+    static final int OBJ_OFS_DELTA = 6;
+    static final int OBJ_REF_DELTA = 7;
+    private static final int ID_LENGTH = 20;
+    private static final Pattern FULL_ID = Pattern.compile("[0-9a-f]{40}");
+    private static final Pattern ABBREVIATED_ID = Pattern.compile("[0-9a-f]{4,39}");
+    private static final Pattern REF_NAME = Pattern.compile("[A-Za-z0-9_./@+-]+");
+    private static final Set<String> SKIPPED_DIRECTORIES = new HashSet<>(Arrays.asList(DeprecationUtility.STATE_DIR, "target", "build"));
+
+    private final Path projectRoot;
+    private final String revision;
+    private final Path gitDir;
+    private final Path commonDir;
+    private final ObjectStore store;
+    private final String commitId;
+    private final Map<String, String> blobs = new LinkedHashMap<>();
+
+    /**
+     * Resolve the revision in the repository that contains the project and list its sources there
+     */
+    public GitSourceProvider(Path projectRoot, String revision) throws IOException {
+        this.projectRoot = projectRoot.toAbsolutePath().normalize();
+        this.revision = revision;
+
+        Path workTree = null;
+        Path found = null;
+        for (Path dir = this.projectRoot; dir != null && found == null; dir = dir.getParent()) {
+            Path dotGit = dir.resolve(".git");
+            if (Files.isDirectory(dotGit)) {
+                found = dotGit;
+                workTree = dir;
+            } else if (Files.isRegularFile(dotGit)) {
+                // a worktree or submodule: the file points at the real git directory
+                String pointer = Files.readString(dotGit, StandardCharsets.UTF_8).trim();
+                if (!pointer.startsWith("gitdir:")) {
+                    throw new IOException("Not a git directory pointer: " + dotGit);
+                }
+                found = dir.resolve(pointer.substring("gitdir:".length()).trim()).normalize();
+                workTree = dir;
+            } else if (Files.isRegularFile(dir.resolve("HEAD")) && Files.isDirectory(dir.resolve("objects"))) {
+                found = dir;
+                workTree = dir;
+            }
+        }
+        if (found == null) {
+            throw new IOException("No git repository contains " + this.projectRoot);
+        }
+        this.gitDir = found;
+        Path common = gitDir.resolve("commondir");
+        this.commonDir = Files.isRegularFile(common)
+                ? gitDir.resolve(Files.readString(common, StandardCharsets.UTF_8).trim()).normalize() : gitDir;
+        this.store = new ObjectStore(commonDir.resolve("objects"));
+
+        try {
+            byte[] commit = peelToCommit(resolve(revision));
+            this.commitId = hex(commit);
+            byte[] tree = treeOf(commit);
+            for (Path name : workTree.relativize(this.projectRoot)) {
+                if (name.toString().isEmpty()) {
+                    continue;
+                }
+                tree = findTree(tree, name.toString());
+                if (tree == null) {
+                    throw new NoSuchFileException(this.projectRoot.toString(), null, "Project directory does not exist at " + revision);
+                }
+            }
+            collect(tree, "");
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public List<String> sources() {
+        return new ArrayList<>(blobs.keySet());
+    }
+
+    @Override
+    public byte[] read(String path) throws IOException {
+        String blob = blobs.get(path);
+        if (blob == null) {
+            throw new NoSuchFileException(path, null, "Not a source at " + revision);
+        }
+        GitObject object = store.read(id(blob));
+        if (object.type != OBJ_BLOB) {
+            throw new IOException("Object " + blob + " of " + path + " is not a blob");
+        }
+        return object.data;
+    }
+
+    /**
+     * The blob id of a source
+     */
+    @Override
+    public String contentId(String path) {
+        return blobs.get(path);
+    }
+
+    @Override
+    public String describe() {
+        return projectRoot + "@" + revision + " (" + commitId + ")";
+    }
+
+    /**
+     * Id of the commit the revision resolved to
+     */
+    public String getCommitId() {
+        return commitId;
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+
+    private byte[] resolve(String name) throws IOException {
+        if (FULL_ID.matcher(name).matches()) {
+            return id(name);
+        }
+        if (!REF_NAME.matcher(name).matches() || name.contains("..") || name.startsWith("/") || name.endsWith(".lock")) {
+            throw new IOException("Not a valid revision: " + name);
+        }
+        String[] candidates = {name, "refs/" + name, "refs/tags/" + name, "refs/heads/" + name,
+                               "refs/remotes/" + name, "refs/remotes/" + name + "/HEAD"};
+        for (String candidate : candidates) {
+            String id = readRef(candidate, 0);
+            if (id != null) {
+                return id(id);
+            }
+        }
+        if (ABBREVIATED_ID.matcher(name).matches()) {
+            byte[] id = store.resolvePrefix(name);
+            if (id != null) {
+                return id;
+            }
+        }
+        throw new IOException("Unknown revision: " + name);
+    }
+
+    /**
+     * Object id a ref points to, following symbolic refs, or null when there is no such ref
+     */
+    private String readRef(String name, int depth) throws IOException {
+        if (depth > 8) {
+            throw new IOException("Symbolic ref loop at " + name);
+        }
+        for (Path dir : new LinkedHashSet<>(Arrays.asList(gitDir, commonDir))) {
+            Path file = dir.resolve(name);
+            if (Files.isRegularFile(file)) {
+                String content = Files.readString(file, StandardCharsets.UTF_8).trim();
+                if (content.startsWith("ref:")) {
+                    return readRef(content.substring("ref:".length()).trim(), depth + 1);
+                }
+                if (FULL_ID.matcher(content).matches()) {
+                    return content;
+                }
+            }
+        }
+        Path packedRefs = commonDir.resolve("packed-refs");
+        if (Files.isRegularFile(packedRefs)) {
+            for (String line : Files.readAllLines(packedRefs, StandardCharsets.UTF_8)) {
+                if (line.length() > 41 && line.charAt(40) == ' ' && line.substring(41).equals(name)) {
+                    return line.substring(0, 40);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The commit an object id names, through annotated tags
+     */
+    private byte[] peelToCommit(byte[] id) throws IOException {
+        for (int depth = 0; depth < 8; depth++) {
+            GitObject object = store.read(id);
+            if (object.type == OBJ_COMMIT) {
+                return id;
+            }
+            if (object.type != OBJ_TAG) {
+                throw new IOException("Revision " + revision + " does not name a commit");
+            }
+            id = id(header(object, "object"));
+        }
+        throw new IOException("Tag chain too long at " + revision);
+    }
+
+    private byte[] treeOf(byte[] commit) throws IOException {
+        return id(header(store.read(commit), "tree"));
+    }
+
+    /**
+     * Value of a header line of a commit or tag, the part of the object in front of the first empty line
+     */
+    private static String header(GitObject object, String key) throws IOException {
+        String text = new String(object.data, StandardCharsets.UTF_8);
+        for (String line : text.split("\n")) {
+            if (line.isEmpty()) {
+                break;
+            }
+            if (line.startsWith(key + " ")) {
+                return line.substring(key.length() + 1).trim();
+            }
+        }
+        throw new IOException("Object has no " + key + " header");
+    }
+
+    private byte[] findTree(byte[] tree, String name) throws IOException {
+        byte[][] found = new byte[1][];
+        forEachEntry(tree, (mode, entryName, id) -> {
+            if (mode.equals("40000") && entryName.equals(name)) {
+                found[0] = id;
+            }
+        });
+        return found[0];
+    }
+
+    private void collect(byte[] tree, String prefix) throws IOException {
+        List<Object[]> subtrees = new ArrayList<>();
+        forEachEntry(tree, (mode, name, id) -> {
+            if (mode.equals("40000")) {
+                if (!SKIPPED_DIRECTORIES.contains(name)) {
+                    subtrees.add(new Object[] {prefix + name + "/", id});
+                }
+            } else if (mode.startsWith("100") && name.endsWith(".java")) {
+                blobs.put(prefix + name, hex(id));
+            }
+            // symbolic links (120000) and submodules (160000) have no sources in this repository
+        });
+        for (Object[] subtree : subtrees) {
+            collect((byte[]) subtree[1], (String) subtree[0]);
+        }
+    }
+
+    private interface TreeEntryVisitor {
+        void visit(String mode, String name, byte[] id);
+    }
+
+    /**
+     * Visit the entries of a tree object: <code>mode SP name NUL id</code>, one after the other
+     */
+    private void forEachEntry(byte[] tree, TreeEntryVisitor visitor) throws IOException {
+        GitObject object = store.read(tree);
+        if (object.type != OBJ_TREE) {
+            throw new IOException("Object " + hex(tree) + " is not a tree");
+        }
+        byte[] data = object.data;
+        int position = 0;
+        while (position < data.length) {
+            int space = indexOf(data, (byte) ' ', position);
+            int nul = indexOf(data, (byte) 0, space + 1);
+            if (space < 0 || nul < 0 || nul + 1 + ID_LENGTH > data.length) {
+                throw new IOException("Corrupt tree " + hex(tree));
+            }
+            String mode = new String(data, position, space - position, StandardCharsets.US_ASCII);
+            String name = new String(data, space + 1, nul - space - 1, StandardCharsets.UTF_8);
+            visitor.visit(mode, name, Arrays.copyOfRange(data, nul + 1, nul + 1 + ID_LENGTH));
+            position = nul + 1 + ID_LENGTH;
+        }
+    }
+
+    private static int indexOf(byte[] data, byte value, int from) {
+        for (int i = Math.max(0, from); i < data.length; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static String hex(byte[] id) {
+        StringBuilder hex = new StringBuilder(id.length * 2);
+        for (byte b : id) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    static byte[] id(String hex) throws IOException {
+        if (!FULL_ID.matcher(hex).matches()) {
+            throw new IOException("Not an object id: " + hex);
+        }
+        byte[] id = new byte[ID_LENGTH];
+        for (int i = 0; i < ID_LENGTH; i++) {
+            id[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return id;
+    }
+
+    /**
+     * An object of the store: its type and its inflated, undeltified content
+     */
+    static class GitObject {
+        final int type;
+        final byte[] data;
+
+        GitObject(int type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The objects directory of a repository with its packs, and those of its alternates
+     */
+    static class ObjectStore {
+        private final List<Path> objectDirs = new ArrayList<>();
+        private final List<Pack> packs = new ArrayList<>();
+
+        ObjectStore(Path objectsDir) throws IOException {
+            addObjectDir(objectsDir, 0);
+        }
+
+        private void addObjectDir(Path dir, int depth) throws IOException {
+            if (!Files.isDirectory(dir) || objectDirs.contains(dir) || depth > 5) {
+                return;
+            }
+            objectDirs.add(dir);
+            Path packDir = dir.resolve("pack");
+            if (Files.isDirectory(packDir)) {
+                try (Stream<Path> files = Files.list(packDir)) {
+                    for (Path index : (Iterable<Path>) files.filter(path -> path.toString().endsWith(".idx")).sorted()::iterator) {
+                        Path pack = packDir.resolve(index.getFileName().toString().replaceAll("\\.idx$", ".pack"));
+                        if (Files.isRegularFile(pack)) {
+                            packs.add(new Pack(index, pack, this));
+                        }
+                    }
+                }
+            }
+            Path alternates = dir.resolve("info").resolve("alternates");
+            if (Files.isRegularFile(alternates)) {
+                for (String line : Files.readAllLines(alternates, StandardCharsets.UTF_8)) {
+                    if (!line.trim().isEmpty() && !line.startsWith("#")) {
+                        addObjectDir(dir.resolve(line.trim()).normalize(), depth + 1);
+                    }
+                }
+            }
+        }
+
+        GitObject read(byte[] id) throws IOException {
+            for (Pack pack : packs) {
+                long offset = pack.find(id);
+                if (offset >= 0) {
+                    return pack.read(offset);
+                }
+            }
+            String hex = hex(id);
+            for (Path dir : objectDirs) {
+                Path loose = dir.resolve(hex.substring(0, 2)).resolve(hex.substring(2));
+                if (Files.isRegularFile(loose)) {
+                    return readLoose(loose);
+                }
+            }
+            throw new IOException("Missing git object " + hex);
+        }
+
+        /**
+         * Loose object: zlib stream of <code>type SP size NUL content</code>
+         */
+        private static GitObject readLoose(Path file) throws IOException {
+            byte[] raw;
+            try (InputStream in = new InflaterInputStream(Files.newInputStream(file))) {
+                raw = in.readAllBytes();
+            }
+            int space = indexOf(raw, (byte) ' ', 0);
+            int nul = indexOf(raw, (byte) 0, space + 1);
+            if (space < 0 || nul < 0) {
+                throw new IOException("Corrupt loose object " + file);
+            }
+            String typeName = new String(raw, 0, space, StandardCharsets.US_ASCII);
+            int size = Integer.parseInt(new String(raw, space + 1, nul - space - 1, StandardCharsets.US_ASCII));
+            if (nul + 1 + size != raw.length) {
+                throw new IOException("Corrupt loose object " + file);
+            }
+            int type;
+            switch (typeName) {
+                case "commit": type = OBJ_COMMIT; break;
+                case "tree": type = OBJ_TREE; break;
+                case "blob": type = OBJ_BLOB; break;
+                case "tag": type = OBJ_TAG; break;
+                default: throw new IOException("Unknown object type " + typeName + " in " + file);
+            }
+            return new GitObject(type, Arrays.copyOfRange(raw, nul + 1, raw.length));
+        }
+
+        /**
+         * The one object whose id starts with an abbreviation, or null when there is none
+         */
+        byte[] resolvePrefix(String prefix) throws IOException {
+            Set<String> matches = new TreeSet<>();
+            for (Pack pack : packs) {
+                pack.collectPrefix(prefix, matches);
+            }
+            for (Path dir : objectDirs) {
+                Path fanout = dir.resolve(prefix.substring(0, 2));
+                if (Files.isDirectory(fanout)) {
+                    try (Stream<Path> files = Files.list(fanout)) {
+                        files.map(path -> prefix.substring(0, 2) + path.getFileName())
+                             .filter(name -> name.startsWith(prefix) && FULL_ID.matcher(name).matches())
+                             .forEach(matches::add);
+                    }
+                }
+            }
+            if (matches.size() > 1) {
+                throw new IOException("Ambiguous abbreviated object id: " + prefix);
+            }
+            return matches.isEmpty() ? null : id(matches.iterator().next());
+        }
+
+        void close() {
+            for (Pack pack : packs) {
+                pack.close();
+            }
+        }
+    }
+
+    /**
+     * A pack file with its version 2 index. The index is mapped; the pack is read with positional reads,
+     * so any number of threads read at once. Delta bases are kept in a small cache, as chains of deltas
+     * mostly share their bases.
+     */
+    static class Pack {
+        private static final int INDEX_MAGIC = 0xff744f63;
+        private static final long BASE_CACHE_BYTES = 16L << 20;
+
+        private final Path packFile;
+        private final ObjectStore store;
+        private final ByteBuffer index;
+        private final int count;
+        private final int namesStart;
+        private final int offsetsStart;
+        private final int largeOffsetsStart;
+        private final FileChannel channel;
+        private final LinkedHashMap<Long, GitObject> bases = new LinkedHashMap<>(64, 0.75f, true);
+        private long baseBytes;
+
+        Pack(Path indexFile, Path packFile, ObjectStore store) throws IOException {
+            this.packFile = packFile;
+            this.store = store;
+            try (FileChannel indexChannel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+                this.index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+            }
+            if (index.capacity() < 8 + 256 * 4 || index.getInt(0) != INDEX_MAGIC || index.getInt(4) != 2) {
+                throw new IOException("Unsupported pack index (only version 2 is read): " + indexFile);
+            }
+            this.count = index.getInt(8 + 255 * 4);
+            this.namesStart = 8 + 256 * 4;
+            this.offsetsStart = namesStart + count * (ID_LENGTH + 4);
+            this.largeOffsetsStart = offsetsStart + count * 4;
+            this.channel = FileChannel.open(packFile, StandardOpenOption.READ);
+        }
+
+        /**
+         * Offset of an object in the pack, or -1 when the pack does not have it
+         */
+        long find(byte[] id) {
+            int first = id[0] & 0xff;
+            int low = first == 0 ? 0 : index.getInt(8 + (first - 1) * 4);
+            int high = index.getInt(8 + first * 4) - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int order = compareName(middle, id);
+                if (order < 0) {
+                    low = middle + 1;
+                } else if (order > 0) {
+                    high = middle - 1;
+                } else {
+                    return offset(middle);
+                }
+            }
+            return -1;
+        }
+
+        private int compareName(int position, byte[] id) {
+            int start = namesStart + position * ID_LENGTH;
+            for (int i = 0; i < ID_LENGTH; i++) {
+                int order = Integer.compare(index.get(start + i) & 0xff, id[i] & 0xff);
+                if (order != 0) {
+                    return order;
+                }
+            }
+            return 0;
+        }
+
+        private long offset(int position) {
+            int offset = index.getInt(offsetsStart + position * 4);
+            if (offset >= 0) {
+                return offset;
+            }
+            return index.getLong(largeOffsetsStart + (offset & 0x7fffffff) * 8);
+        }
+
+        void collectPrefix(String prefix, Set<String> matches) {
+            int first = Integer.parseInt(prefix.substring(0, 2), 16);
+            int low = first == 0 ? 0 : index.getInt(8 + (first - 1) * 4);
+            int high = index.getInt(8 + first * 4);
+            byte[] id = new byte[ID_LENGTH];
+            for (int position = low; position < high; position++) {
+                for (int i = 0; i < ID_LENGTH; i++) {
+                    id[i] = index.get(namesStart + position * ID_LENGTH + i);
+                }
+                String name = hex(id);
+                if (name.startsWith(prefix)) {
+                    matches.add(name);
+                }
+            }
+        }
+
+        /**
+         * Object at an offset: a header with type and size, the base of a delta, then the zlib stream
+         */
+        GitObject read(long offset) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(32);
+            channel.read(header, offset);
+            byte[] bytes = header.array();
+            int position = 0;
+            int c = bytes[position++] & 0xff;
+            int type = (c >> 4) & 7;
+            long size = c & 0x0f;
+            for (int shift = 4; (c & 0x80) != 0; shift += 7) {
+                c = bytes[position++] & 0xff;
+                size |= (long) (c & 0x7f) << shift;
+            }
+
+            GitObject base = null;
+            if (type == OBJ_OFS_DELTA) {
+                c = bytes[position++] & 0xff;
+                long distance = c & 0x7f;
+                while ((c & 0x80) != 0) {
+                    c = bytes[position++] & 0xff;
+                    distance = ((distance + 1) << 7) | (c & 0x7f);
+                }
+                base = base(offset - distance);
+            } else if (type == OBJ_REF_DELTA) {
+                base = store.read(Arrays.copyOfRange(bytes, position, position + ID_LENGTH));
+                position += ID_LENGTH;
+            } else if (type < OBJ_COMMIT || type > OBJ_TAG) {
+                throw new IOException("Unknown object type " + type + " at " + offset + " in " + packFile);
+            }
+
+            byte[] data = inflate(offset + position, size);
+            return base == null ? new GitObject(type, data) : new GitObject(base.type, applyDelta(base.data, data));
+        }
+
+        private GitObject base(long offset) throws IOException {
+            synchronized (bases) {
+                GitObject cached = bases.get(offset);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            GitObject base = read(offset);
+            if (base.data.length <= BASE_CACHE_BYTES / 4) {
+                synchronized (bases) {
+                    if (bases.put(offset, base) == null) {
+                        baseBytes += base.data.length;
+                    }
+                    for (Iterator<GitObject> eldest = bases.values().iterator(); baseBytes > BASE_CACHE_BYTES && eldest.hasNext(); ) {
+                        baseBytes -= eldest.next().data.length;
+                        eldest.remove();
+                    }
+                }
+            }
+            return base;
+        }
+
+        private byte[] inflate(long position, long size) throws IOException {
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IOException("Object at " + position + " in " + packFile + " is too large");
+            }
+            byte[] out = new byte[(int) size];
+            ByteBuffer input = ByteBuffer.allocate(8192);
+            Inflater inflater = new Inflater();
+            try {
+                int length = 0;
+                while (length < out.length) {
+                    if (inflater.needsInput()) {
+                        input.clear();
+                        int read = channel.read(input, position);
+                        if (read <= 0) {
+                            throw new IOException("Truncated pack " + packFile);
+                        }
+                        position += read;
+                        inflater.setInput(input.array(), 0, read);
+                    }
+                    int inflated = inflater.inflate(out, length, out.length - length);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                        throw new IOException("Corrupt object data in " + packFile);
+                    }
+                    length += inflated;
+                }
+                return out;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt object data in " + packFile, e);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        /**
+         * Rebuild an object from its base and a delta: the two sizes, then copy and insert instructions
+         */
+        static byte[] applyDelta(byte[] base, byte[] delta) throws IOException {
+            int[] position = {0};
+            long baseSize = deltaSize(delta, position);
+            long resultSize = deltaSize(delta, position);
+            if (baseSize != base.length || resultSize > Integer.MAX_VALUE - 8) {
+                throw new IOException("Delta does not fit its base");
+            }
+            byte[] result = new byte[(int) resultSize];
+            int length = 0;
+            int i = position[0];
+            try {
+                while (i < delta.length) {
+                    int command = delta[i++] & 0xff;
+                    if ((command & 0x80) != 0) {
+                        long offset = 0;
+                        int size = 0;
+                        for (int bit = 0; bit < 4; bit++) {
+                            if ((command & (1 << bit)) != 0) {
+                                offset |= (long) (delta[i++] & 0xff) << (8 * bit);
+                            }
+                        }
+                        for (int bit = 0; bit < 3; bit++) {
+                            if ((command & (0x10 << bit)) != 0) {
+                                size |= (delta[i++] & 0xff) << (8 * bit);
+                            }
+                        }
+                        if (size == 0) {
+                            size = 0x10000;
+                        }
+                        System.arraycopy(base, (int) offset, result, length, size);
+                        length += size;
+                    } else if (command != 0) {
+                        System.arraycopy(delta, i, result, length, command);
+                        i += command;
+                        length += command;
+                    } else {
+                        throw new IOException("Corrupt delta instruction");
+                    }
+                }
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Corrupt delta", e);
+            }
+            if (length != result.length) {
+                throw new IOException("Delta result has " + length + " bytes instead of " + result.length);
+            }
+            return result;
+        }
+
+        private static long deltaSize(byte[] delta, int[] position) {
+            long size = 0;
+            int shift = 0;
+            int c;
+            do {
+                c = delta[position[0]++] & 0xff;
+                size |= (long) (c & 0x7f) << shift;
+                shift += 7;
+            } while ((c & 0x80) != 0);
+            return size;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // read-only channel, nothing to lose
+            }
+        }
+    }
+}
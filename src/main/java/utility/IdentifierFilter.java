@@ -0,0 +1,129 @@
+package utility;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Bloom filter of the identifiers of a source file.
+ *
+ * The filter is built by a byte-level scan of the raw file: every run of identifier bytes (ASCII
+ * letters, digits, <code>_</code>, <code>$</code> and the bytes of non-ASCII characters) is hashed
+ * without decoding the file or allocating a string. With ten bits per distinct identifier and four
+ * probes, a name that does not occur in the file passes the filter about once in a hundred files,
+ * while a name that does occur always passes. An empty filter stands for a file that was never
+ * scanned and lets every name through.
+ */
+final class IdentifierFilter {
+
+    private static final int BITS_PER_IDENTIFIER = 10;
+    private static final int PROBES = 4;
+
+    private IdentifierFilter() {
+    }
+
+    /**
+     * Filter of the identifiers occurring in the bytes of a source file
+     */
+    static long[] build(byte[] content) {
+        long[] hashes = new long[64];
+        int count = 0;
+        int i = 0;
+        while (i < content.length) {
+            if (!isIdentifierByte(content[i])) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < content.length && isIdentifierByte(content[i])) {
+                i++;
+            }
+            if (count == hashes.length) {
+                hashes = Arrays.copyOf(hashes, count * 2);
+            }
+            hashes[count++] = hash(content, start, i);
+        }
+
+        Arrays.sort(hashes, 0, count);
+        int distinct = 0;
+        for (int j = 0; j < count; j++) {
+            if (j == 0 || hashes[j] != hashes[distinct - 1]) {
+                hashes[distinct++] = hashes[j];
+            }
+        }
+
+        int bits = Integer.highestOneBit(Math.max(64, distinct * BITS_PER_IDENTIFIER) - 1) << 1;
+        long[] filter = new long[bits / Long.SIZE];
+        for (int j = 0; j < distinct; j++) {
+            int h1 = (int) hashes[j];
+            int h2 = (int) (hashes[j] >>> 32) | 1;
+            for (int probe = 0; probe < PROBES; probe++) {
+                int bit = (h1 + probe * h2) & (bits - 1);
+                filter[bit >>> 6] |= 1L << bit;
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Whether an identifier may occur in the file of a filter. False answers are always right.
+     */
+    static boolean mayContain(long[] filter, String identifier) {
+        byte[] bytes = identifier.getBytes(StandardCharsets.UTF_8);
+        return mayContain(filter, hash(bytes, 0, bytes.length));
+    }
+
+    /**
+     * Whether every identifier of a piece of text, such as a marker comment, may occur in the file of a filter
+     */
+    static boolean mayContainAll(long[] filter, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int i = 0;
+        while (i < bytes.length) {
+            if (!isIdentifierByte(bytes[i])) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < bytes.length && isIdentifierByte(bytes[i])) {
+                i++;
+            }
+            if (!mayContain(filter, hash(bytes, start, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean mayContain(long[] filter, long hash) {
+        if (filter.length == 0) {
+            return true;
+        }
+        int bits = filter.length * Long.SIZE;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int probe = 0; probe < PROBES; probe++) {
+            int bit = (h1 + probe * h2) & (bits - 1);
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isIdentifierByte(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                || b == '_' || b == '$' || b < 0;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a byte range
+     */
+    static long hash(byte[] bytes, int from, int to) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = from; i < to; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
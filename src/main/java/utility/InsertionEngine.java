@@ -0,0 +1,257 @@
+package utility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the edit that marks a declaration as deprecated.
+ *
+ * The templates of all strategies of a run are compiled once into a list of line segments, with the
+ * run variables already substituted. Marking a declaration is then a single offset insert at the top
+ * of its annotation and doc comment block, rendered with the indentation of the declaration line,
+ * no matter how many markers are applied. The exception is a doc comment marker such as the javadoc
+ * one when the declaration already has a doc comment: javadoc only reads the comment next to the
+ * declaration, so the tag lines of the marker are merged into the existing comment instead.
+ */
+public class InsertionEngine {
+
+    private static final String NAME_VARIABLE = "name";
+
+    private final List<List<Object>> compiledLines = new ArrayList<>();
+    /** Lines of the markers that are not doc comments, inserted above a declaration that has a doc comment */
+    private final List<List<Object>> otherLines = new ArrayList<>();
+    /** Tag lines of the doc comment markers, without the comment delimiters */
+    private final List<List<Object>> docTagLines = new ArrayList<>();
+    private final boolean otherDocComment;
+    private final boolean addsAnnotation;
+
+    public InsertionEngine(List<DeprecationStrategy> strategies, Map<String, String> variables) {
+        int annotations = 0;
+        boolean otherComment = false;
+        for (DeprecationStrategy strategy : strategies) {
+            String[] lines = strategy.getTemplate().split("\n");
+            boolean docComment = lines.length > 2 && lines[0].trim().equals("/**") && lines[lines.length - 1].trim().equals("*/");
+            for (int i = 0; i < lines.length; i++) {
+                List<Object> compiled = compileLine(lines[i], variables);
+                compiledLines.add(compiled);
+                if (!docComment) {
+                    otherLines.add(compiled);
+                    otherComment |= lines[i].trim().startsWith("/**");
+                } else if (i > 0 && i < lines.length - 1) {
+                    docTagLines.add(compiled);
+                }
+                if (lines[i].trim().startsWith(DeprecationUtility.DEPRECATION_ANNOTATION)) {
+                    annotations++;
+                }
+            }
+        }
+        if (annotations > 1) {
+            throw new IllegalArgumentException("The markers would add @Deprecated more than once");
+        }
+        this.otherDocComment = otherComment;
+        this.addsAnnotation = annotations > 0;
+    }
+
+    /**
+     * Engine for the default marker of this utility
+     */
+    public static InsertionEngine defaultEngine() {
+        return new InsertionEngine(List.of(DeprecationStrategy.defaultStrategy()), Map.of());
+    }
+
+    /**
+     * Split a template line into literal text and the per-declaration <code>${name}</code> placeholder,
+     * merging substituted run variables into the surrounding literals
+     */
+    private static List<Object> compileLine(String line, Map<String, String> variables) {
+        List<Object> segments = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int position = 0;
+
+        while (position < line.length()) {
+            int start = line.indexOf("${", position);
+            if (start < 0) {
+                literal.append(line, position, line.length());
+                break;
+            }
+            int end = line.indexOf('}', start);
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated placeholder in marker template: " + line);
+            }
+            literal.append(line, position, start);
+
+            String variable = line.substring(start + 2, end);
+            if (NAME_VARIABLE.equals(variable)) {
+                segments.add(literal.toString());
+                segments.add(NameSegment.INSTANCE);
+                literal.setLength(0);
+            } else if (variables.get(variable) != null) {
+                literal.append(variables.get(variable));
+            } else {
+                throw new IllegalArgumentException("No value for ${" + variable + "} in marker template: " + line);
+            }
+            position = end + 1;
+        }
+        segments.add(literal.toString());
+        return segments;
+    }
+
+    /**
+     * Add the insertions that mark the declaration on the given line, the last one in the file first. The
+     * offsets are those of {@link #lineOffsets} for the same content, so planning costs the same for
+     * every line of a file.
+     */
+    public void plan(String content, int[] lineOffsets, int declarationLine, String declaredName, List<DeprecationJournal.Insertion> insertions) {
+        int declarationOffset = declarationLine < lineOffsets.length ? lineOffsets[declarationLine] : content.length();
+        int insertOffset = blockStartOffset(content, declarationOffset);
+        String indentation = indentationAt(content, declarationOffset);
+
+        int docEnd = docTagLines.isEmpty() ? -1 : docCommentEnd(content, insertOffset, declarationOffset);
+        if (docEnd < 0) {
+            insertions.add(new DeprecationJournal.Insertion(insertOffset, render(compiledLines, indentation, declaredName)));
+            return;
+        }
+
+        // other markers go below the doc comment, unless they are a comment javadoc would take instead
+        int nextLine = content.indexOf('\n', docEnd) + 1;
+        boolean below = !otherDocComment && nextLine > 0 && content.substring(docEnd + 2, nextLine).trim().isEmpty();
+        if (!otherLines.isEmpty() && below) {
+            insertions.add(new DeprecationJournal.Insertion(nextLine, render(otherLines, indentation, declaredName)));
+        }
+
+        // merge the tags into the existing doc comment, before the line that closes it
+        int closeLine = content.lastIndexOf('\n', docEnd) + 1;
+        String tags = render(docTagLines, indentation, declaredName);
+        if (content.substring(closeLine, docEnd).trim().isEmpty()) {
+            insertions.add(new DeprecationJournal.Insertion(closeLine, tags));
+        } else {
+            int spaces = docEnd;
+            while (content.charAt(spaces - 1) == ' ' || content.charAt(spaces - 1) == '\t') {
+                spaces--;
+            }
+            insertions.add(new DeprecationJournal.Insertion(spaces, "\n" + tags + indentation + (spaces < docEnd ? "" : " ")));
+        }
+        if (!otherLines.isEmpty() && !below) {
+            insertions.add(new DeprecationJournal.Insertion(insertOffset, render(otherLines, indentation, declaredName)));
+        }
+    }
+
+    /**
+     * Offset of the <code>*&#47;</code> closing the last doc comment of the block between the two offsets,
+     * or -1 when the block has none. The team comment of this utility is a marker, not documentation.
+     */
+    private static int docCommentEnd(String content, int blockStart, int declarationOffset) {
+        for (int docStart = content.lastIndexOf("/**", declarationOffset); docStart >= blockStart;
+             docStart = docStart > 0 ? content.lastIndexOf("/**", docStart - 1) : -1) {
+            if (!content.startsWith(DeprecationUtility.DEPRECATION_COMMENT, docStart)) {
+                int end = content.indexOf("*/", docStart + 3);
+                return end >= 0 && end < declarationOffset ? end : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Check if a declaration already carries every marker of this run. A declaration that is already
+     * <code>@Deprecated</code> counts as marked when the run would add the annotation a second time.
+     */
+    public boolean isMarked(SourceIndex.Declaration declaration) {
+        if (declaration.deprecated && addsAnnotation) {
+            return true;
+        }
+        for (List<Object> segments : compiledLines) {
+            if (isDocDelimiter(segments)) {
+                // a merged doc comment marker has no delimiters of its own
+                continue;
+            }
+            StringBuilder line = new StringBuilder();
+            for (Object segment : segments) {
+                line.append(segment == NameSegment.INSTANCE ? declaration.name : (String) segment);
+            }
+            String trimmed = line.toString().trim();
+            if (!trimmed.isEmpty() && !declaration.hasBlockLine(SourceIndex.lineHash(trimmed))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isDocDelimiter(List<Object> segments) {
+        if (docTagLines.isEmpty() || segments.size() != 1) {
+            return false;
+        }
+        String line = ((String) segments.get(0)).trim();
+        return line.equals("/**") || line.equals("*/");
+    }
+
+    private static String render(List<List<Object>> lines, String indentation, String declaredName) {
+        StringBuilder text = new StringBuilder(lines.size() * (indentation.length() + 48));
+        for (List<Object> segments : lines) {
+            text.append(indentation);
+            for (Object segment : segments) {
+                text.append(segment == NameSegment.INSTANCE ? declaredName : (String) segment);
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Character offset of the first character of every line of the content
+     */
+    static int[] lineOffsets(String content) {
+        int lines = 1;
+        for (int i = content.indexOf('\n'); i >= 0; i = content.indexOf('\n', i + 1)) {
+            lines++;
+        }
+        int[] offsets = new int[lines];
+        int line = 1;
+        for (int i = content.indexOf('\n'); i >= 0; i = content.indexOf('\n', i + 1)) {
+            offsets[line++] = i + 1;
+        }
+        return offsets;
+    }
+
+    /**
+     * Walk up from a declaration over its annotation and comment lines and return the offset of the
+     * first of them. Blank lines end the block, so the marker stays next to the declaration it belongs to.
+     */
+    static int blockStartOffset(String content, int declarationOffset) {
+        int start = declarationOffset;
+        while (start > 0) {
+            int previousStart = content.lastIndexOf('\n', start - 2) + 1;
+            if (!isDeclarationPrefix(content, previousStart, start - 1)) {
+                break;
+            }
+            start = previousStart;
+        }
+        return start;
+    }
+
+    private static boolean isDeclarationPrefix(String content, int from, int to) {
+        while (from < to && Character.isWhitespace(content.charAt(from))) {
+            from++;
+        }
+        if (from >= to) {
+            return false;
+        }
+        char first = content.charAt(from);
+        return first == '@' || first == '*' || content.startsWith("/*", from) || content.startsWith("//", from);
+    }
+
+    private static String indentationAt(String content, int lineOffset) {
+        int end = lineOffset;
+        while (end < content.length() && (content.charAt(end) == ' ' || content.charAt(end) == '\t')) {
+            end++;
+        }
+        return content.substring(lineOffset, end);
+    }
+
+    /**
+     * Placeholder for the declared name inside a compiled template line
+     */
+    private static final class NameSegment {
+        static final NameSegment INSTANCE = new NameSegment();
+    }
+}
@@ -0,0 +1,450 @@
+package utility;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cost-based scheduler for deprecation jobs, used by the HTTP front ends in place of a FIFO pool.
+ *
+ * Every job comes with the client that sent it and an estimate of its cost in bytes of source to go
+ * through, taken from the index of the project, see {@link #estimate}. Waiting jobs are ordered by
+ * weighted fair queuing: the tag of a job is the tag of its client's previous job, or the virtual
+ * time when that is later, plus its cost divided by the weight of the client, and the job with the
+ * lowest tag runs next. The virtual time is the tag of the job started last. A client sending many
+ * large jobs thereby only delays its own, and a small job gets ahead of the large ones of others.
+ *
+ * Jobs costing at most <code>smallJobCost</code> are small and run on any free worker. Large jobs run
+ * on at most <code>sharedWorkers</code> workers, and only while the estimated cost of the large jobs
+ * running stays within <code>costBudget</code>; one large job always runs, however large. The
+ * <code>smallJobWorkers</code> extra workers are never taken by a large job, so an interactive request
+ * does not wait behind batch runs. Small and large jobs each wait in a queue of at most
+ * <code>queueCapacity</code>; further jobs are rejected.
+ *
+ * While the {@link MemoryGovernor} is under pressure no large job starts next to a running one; the
+ * workers look again every {@value #MEMORY_RECHECK_MILLIS} ms, so admission resumes by itself.
+ *
+ * Queue depth, the jobs run, rejected and cancelled, the wait times of small and large jobs and the
+ * memory in use are reported by {@link #metricsJson}.
+ */
+public class JobScheduler {
+    /** Cost of a file of the project on top of its bytes: the stat and filter check of a probe */
+    static final long FILE_COST = 256;
+    /** Cost of a job on a project whose index is neither loaded nor on disk, and too large to scan */
+    static final long UNKNOWN_COST = 64L << 20;
+    /** Entries of an unindexed project looked at before its cost counts as unknown */
+    static final int SCAN_LIMIT = 1024;
+    static final long JOURNAL_FACTOR = 16;
+    static final long DEFAULT_SMALL_JOB_COST = 4L << 20;
+    static final long DEFAULT_COST_BUDGET = 256L << 20;
+    static final int DEFAULT_SMALL_JOB_WORKERS = 2;
+    static final int DEFAULT_QUEUE_CAPACITY = 64;
+    static final long MEMORY_RECHECK_MILLIS = 100;
+    private static final String DEFAULT_CLIENT = "anonymous";
+
+    private final String name;
+    private final int sharedWorkers;
+    private final int smallJobWorkers;
+    private final int queueCapacity;
+    private final long costBudget;
+    private final long smallJobCost;
+    private final MemoryGovernor governor = MemoryGovernor.shared();
+    private final List<Thread> workers = new ArrayList<>();
+    private final TreeSet<Job> queue = new TreeSet<>((a, b) -> a.tag != b.tag ? Double.compare(a.tag, b.tag) : Long.compare(a.sequence, b.sequence));
+    private final Map<String, Double> weights = new HashMap<>();
+    private final Map<String, Double> lastTags = new HashMap<>();
+    private final WaitTimes smallWaits = new WaitTimes();
+    private final WaitTimes largeWaits = new WaitTimes();
+    private double virtualTime;
+    private long sequence;
+    private int queuedSmall;
+    private int running;
+    private int runningLarge;
+    private long largeCostRunning;
+    private long submitted;
+    private long completed;
+    private long rejected;
+    private long cancelled;
+    private boolean shutdown;
+
+    public JobScheduler(String name, int sharedWorkers, int smallJobWorkers, int queueCapacity, long costBudget, long smallJobCost) {
+        this.name = name;
+        this.sharedWorkers = sharedWorkers;
+        this.smallJobWorkers = smallJobWorkers;
+        this.queueCapacity = queueCapacity;
+        this.costBudget = costBudget;
+        this.smallJobCost = smallJobCost;
+        for (int i = 0; i < sharedWorkers + smallJobWorkers; i++) {
+            Thread worker = new Thread(this::work, name + "-worker-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Scheduler configured by system properties: <code>deprecation.scheduler.workers</code> (one per
+     * processor by default), <code>.smallJobWorkers</code>, <code>.queueCapacity</code>,
+     * <code>.costBudgetMegabytes</code>, <code>.smallJobKilobytes</code> and <code>.clientWeights</code>
+     */
+    static JobScheduler fromSystemProperties(String name) {
+        JobScheduler scheduler = new JobScheduler(name,
+                Integer.getInteger("deprecation.scheduler.workers", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("deprecation.scheduler.smallJobWorkers", DEFAULT_SMALL_JOB_WORKERS),
+                Integer.getInteger("deprecation.scheduler.queueCapacity", DEFAULT_QUEUE_CAPACITY),
+                Long.getLong("deprecation.scheduler.costBudgetMegabytes", DEFAULT_COST_BUDGET >> 20) << 20,
+                Long.getLong("deprecation.scheduler.smallJobKilobytes", DEFAULT_SMALL_JOB_COST >> 10) << 10);
+        scheduler.setWeights(System.getProperty("deprecation.scheduler.clientWeights"));
+        return scheduler;
+    }
+
+    /**
+     * Estimated cost of a job on a project: the bytes of the indexed files that may contain the name, or
+     * of all of them when the name is null, plus {@value #FILE_COST} per file. Looks only at the index in
+     * memory, or else at the size of the index file, so it is cheap enough for an event loop.
+     */
+    static long estimate(String projectPath, String name) {
+        if (projectPath == null) {
+            return 0;
+        }
+        try {
+            Path projectRoot = Paths.get(projectPath);
+            SourceIndex index = SourceIndex.loaded(projectRoot);
+            if (index != null) {
+                SourceIndex.Footprint footprint = index.footprint(name);
+                if (footprint.files > 0) {
+                    return footprint.files * FILE_COST + footprint.candidateBytes;
+                }
+            }
+            // not loaded in this JVM yet: the index on disk is about as large as the sources it describes
+            Path indexFile = projectRoot.resolve(SourceIndex.INDEX_FILE);
+            return Files.isRegularFile(indexFile) ? Files.size(indexFile) : scan(projectRoot);
+        } catch (IOException | RuntimeException e) {
+            return UNKNOWN_COST;
+        }
+    }
+
+    /**
+     * Cost of a project never indexed, from the sizes of its sources, when it has at most
+     * {@value #SCAN_LIMIT} entries; {@link #UNKNOWN_COST} for larger ones
+     */
+    private static long scan(Path projectRoot) throws IOException {
+        long cost = 0;
+        int seen = 0;
+        try (Stream<Path> entries = Files.walk(projectRoot)) {
+            for (Iterator<Path> it = entries.iterator(); it.hasNext(); ) {
+                if (++seen > SCAN_LIMIT) {
+                    return UNKNOWN_COST;
+                }
+                Path path = it.next();
+                if (path.toString().endsWith(".java") && Files.isRegularFile(path)) {
+                    cost += FILE_COST + Files.size(path);
+                }
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Estimated cost of undoing a run, or the latest one when runId is null: a journal line stands for
+     * about {@value #JOURNAL_FACTOR} times its length in rewritten source
+     */
+    static long estimateUndo(String projectPath, String runId) {
+        if (projectPath == null) {
+            return 0;
+        }
+        try {
+            Path journalDir = Paths.get(projectPath).resolve(DeprecationJournal.JOURNAL_DIR);
+            String id = runId != null && !runId.trim().isEmpty() ? runId : DeprecationJournal.findLatestRunId(journalDir);
+            return !DeprecationJournal.isRunId(id) ? 0 : Files.size(journalDir.resolve(id + DeprecationJournal.JOURNAL_SUFFIX)) * JOURNAL_FACTOR;
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Estimated cost of an uploaded archive: its length, or the largest archive accepted when the
+     * length is not announced
+     */
+    static long estimateArchive(String contentLength, long maxArchiveBytes) {
+        try {
+            return contentLength != null ? Math.min(Long.parseLong(contentLength.trim()), maxArchiveBytes) : maxArchiveBytes;
+        } catch (NumberFormatException e) {
+            return maxArchiveBytes;
+        }
+    }
+
+    /**
+     * Set client weights from a list such as <code>ci=1,ui=4</code>; a client with twice the weight gets
+     * twice the share. Clients not listed weigh 1.
+     */
+    public synchronized void setWeights(String weightList) {
+        if (weightList == null || weightList.trim().isEmpty()) {
+            return;
+        }
+        for (String entry : weightList.split(",")) {
+            String[] parts = entry.split("=", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Client weight is not client=weight: " + entry);
+            }
+            double weight = Double.parseDouble(parts[1].trim());
+            if (!(weight > 0)) {
+                throw new IllegalArgumentException("Client weight must be positive: " + entry);
+            }
+            weights.put(parts[0].trim(), weight);
+        }
+    }
+
+    /**
+     * Queue a job. Throws RejectedExecutionException when its queue is full or the scheduler is shut down.
+     */
+    public synchronized Job submit(String client, long cost, Runnable task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Scheduler " + name + " is shut down");
+        }
+        String key = client != null && !client.isEmpty() ? client : DEFAULT_CLIENT;
+        boolean small = cost <= smallJobCost;
+        int queued = small ? queuedSmall : queue.size() - queuedSmall;
+        if (queued >= queueCapacity) {
+            rejected++;
+            throw new RejectedExecutionException("Too many " + (small ? "small" : "large") + " jobs waiting");
+        }
+
+        double start = Math.max(virtualTime, lastTags.getOrDefault(key, 0.0));
+        double tag = start + cost / weights.getOrDefault(key, 1.0);
+        lastTags.put(key, tag);
+        Job job = new Job(task, key, cost, small, tag, sequence++);
+        queue.add(job);
+        if (small) {
+            queuedSmall++;
+        }
+        submitted++;
+        notifyAll();
+        return job;
+    }
+
+    private void work() {
+        while (true) {
+            Job job;
+            synchronized (this) {
+                while ((job = next()) == null) {
+                    if (shutdown && queue.isEmpty()) {
+                        return;
+                    }
+                    try {
+                        // queued jobs may be held back by the memory pressure, which is not signalled
+                        wait(queue.isEmpty() ? 0 : MEMORY_RECHECK_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            try {
+                job.task.run();
+            } catch (RuntimeException e) {
+                // jobs answer their own errors; one that did not must not take the worker down
+                e.printStackTrace();
+            } finally {
+                synchronized (this) {
+                    running--;
+                    if (!job.small) {
+                        runningLarge--;
+                        largeCostRunning -= job.cost;
+                    }
+                    completed++;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Take the waiting job with the lowest tag that may start now, or null
+     */
+    private Job next() {
+        Job chosen = null;
+        boolean memoryAdmits = runningLarge == 0 || queue.size() == queuedSmall || governor.admitsLargeJobs();
+        for (Job job : queue) {
+            if (job.small || (memoryAdmits && runningLarge < sharedWorkers
+                    && (runningLarge == 0 || largeCostRunning + job.cost <= costBudget))) {
+                chosen = job;
+                break;
+            }
+        }
+        if (chosen == null) {
+            return null;
+        }
+        queue.remove(chosen);
+        chosen.started = true;
+        virtualTime = Math.max(virtualTime, chosen.tag);
+        long waited = System.nanoTime() - chosen.queuedAt;
+        running++;
+        if (chosen.small) {
+            queuedSmall--;
+            smallWaits.add(waited);
+        } else {
+            runningLarge++;
+            largeCostRunning += chosen.cost;
+            largeWaits.add(waited);
+        }
+        if (lastTags.size() > 4096) {
+            // clients whose last tag is behind the virtual time start from the virtual time anyway
+            lastTags.values().removeIf(last -> last <= virtualTime);
+        }
+        return chosen;
+    }
+
+    /**
+     * Stop accepting jobs; those already queued still run
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * Stop accepting jobs, drop the queued ones and interrupt the running ones
+     */
+    public void shutdownNow() {
+        synchronized (this) {
+            shutdown = true;
+            cancelled += queue.size();
+            queue.clear();
+            queuedSmall = 0;
+            notifyAll();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread worker : workers) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedJoin(worker, remaining);
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queue depth, jobs in flight, counters and wait times as JSON
+     */
+    public synchronized String metricsJson() {
+        long oldestWait = 0;
+        long now = System.nanoTime();
+        for (Job job : queue) {
+            oldestWait = Math.max(oldestWait, now - job.queuedAt);
+        }
+        StringBuilder json = new StringBuilder();
+        json.append("{\"name\":\"").append(name).append("\",");
+        json.append("\"sharedWorkers\":").append(sharedWorkers).append(",");
+        json.append("\"smallJobWorkers\":").append(smallJobWorkers).append(",");
+        json.append("\"costBudget\":").append(costBudget).append(",");
+        json.append("\"smallJobCost\":").append(smallJobCost).append(",");
+        json.append("\"queued\":").append(queue.size()).append(",");
+        json.append("\"queuedSmall\":").append(queuedSmall).append(",");
+        json.append("\"queuedLarge\":").append(queue.size() - queuedSmall).append(",");
+        json.append("\"oldestWaitMillis\":").append(TimeUnit.NANOSECONDS.toMillis(oldestWait)).append(",");
+        json.append("\"running\":").append(running).append(",");
+        json.append("\"runningLarge\":").append(runningLarge).append(",");
+        json.append("\"largeCostRunning\":").append(largeCostRunning).append(",");
+        json.append("\"submitted\":").append(submitted).append(",");
+        json.append("\"completed\":").append(completed).append(",");
+        json.append("\"rejected\":").append(rejected).append(",");
+        json.append("\"cancelled\":").append(cancelled).append(",");
+        json.append("\"waitMillis\":{\"small\":").append(smallWaits.toJson());
+        json.append(",\"large\":").append(largeWaits.toJson()).append("},");
+        json.append("\"memory\":").append(governor.metricsJson()).append("}");
+        return json.toString();
+    }
+
+    /**
+     * A queued job, which can be cancelled until it starts
+     */
+    public final class Job {
+        private final Runnable task;
+        final String client;
+        final long cost;
+        final boolean small;
+        private final double tag;
+        private final long sequence;
+        private final long queuedAt = System.nanoTime();
+        private boolean started;
+
+        private Job(Runnable task, String client, long cost, boolean small, double tag, long sequence) {
+            this.task = task;
+            this.client = client;
+            this.cost = cost;
+            this.small = small;
+            this.tag = tag;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Remove the job from the queue. Returns false when it has already started or was cancelled.
+         */
+        public boolean cancel() {
+            synchronized (JobScheduler.this) {
+                if (started || !queue.remove(this)) {
+                    return false;
+                }
+                if (small) {
+                    queuedSmall--;
+                }
+                cancelled++;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Wait times of the last jobs started, for percentiles, and totals over all of them
+     */
+    private static class WaitTimes {
+        private final long[] recent = new long[1024];
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        void add(long nanos) {
+            recent[(int) (count % recent.length)] = nanos;
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        String toJson() {
+            long[] sorted = Arrays.copyOf(recent, (int) Math.min(count, recent.length));
+            Arrays.sort(sorted);
+            return "{\"count\":" + count
+                    + ",\"mean\":" + (count == 0 ? 0 : String.format(Locale.ROOT, "%.1f", totalNanos / 1e6 / count))
+                    + ",\"p50\":" + millis(percentile(sorted, 0.50))
+                    + ",\"p99\":" + millis(percentile(sorted, 0.99))
+                    + ",\"max\":" + millis(maxNanos) + "}";
+        }
+
+        private static long percentile(long[] sorted, double fraction) {
+            return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package utility;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Governor of the memory taken by the runs of this JVM, so that a burst of requests slows down instead
+ * of running out of heap.
+ *
+ * Runs reserve bytes before they load a source or build an edit buffer and give them back once done,
+ * see {@link #reserve}; a reservation waits while the bytes in flight of all runs would exceed the
+ * budget, <code>-Ddeprecation.memory.budgetMegabytes</code> (half the maximum heap by default). One
+ * reservation is always granted when nothing else is in flight, however large, so a big file slows
+ * the others down but never blocks for good, and a thread that already holds a reservation is never
+ * made to wait, so runs cannot deadlock holding memory while waiting for more.
+ *
+ * The pressure is the larger of the fraction of the budget in flight and the fraction of the maximum
+ * heap in use right after the last garbage collection of any kind, taken from the notifications of
+ * the collectors, so garbage that has not been collected yet does not count. A young collection
+ * counts too: the heap after it holds the survivors and the old generation as it is, which with G1
+ * is only collected itself by the rare mixed or full collections. Above <code>.throttleFraction</code> (0.6) the parallelism of a run shrinks linearly,
+ * down to one worker at <code>.pauseFraction</code> (0.85), from where the {@link JobScheduler} also
+ * pauses admitting large jobs next to a running one. Both are read again for every file and every
+ * job, so a run speeds up again as soon as the pressure falls. {@link #metricsJson} reports the usage.
+ */
+public final class MemoryGovernor {
+
+    private static final MemoryGovernor SHARED = new MemoryGovernor(
+            Long.getLong("deprecation.memory.budgetMegabytes", Runtime.getRuntime().maxMemory() >> 21) << 20,
+            Double.parseDouble(System.getProperty("deprecation.memory.throttleFraction", "0.6")),
+            Double.parseDouble(System.getProperty("deprecation.memory.pauseFraction", "0.85")));
+
+    /** Times the size of a source that a run holds while it works on it: bytes, decoded text, lines and edits */
+    static final int SOURCE_FACTOR = 4;
+    private static final long RECHECK_MILLIS = 50;
+    /** Heap in use after the last collection, -1 until one has been notified */
+    private static final AtomicLong HEAP_AFTER_LAST_GC = new AtomicLong(-1);
+
+    static {
+        Set<String> heapPools = new HashSet<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool.getName());
+            }
+        }
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(collector instanceof NotificationEmitter)) {
+                continue;
+            }
+            ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                long used = 0;
+                for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageAfterGc().entrySet()) {
+                    if (heapPools.contains(pool.getKey())) {
+                        used += pool.getValue().getUsed();
+                    }
+                }
+                HEAP_AFTER_LAST_GC.set(used);
+            }, null, null);
+        }
+    }
+
+    private final ThreadLocal<long[]> heldByThread = ThreadLocal.withInitial(() -> new long[1]);
+    private final long budgetBytes;
+    private final double throttleFraction;
+    private final double pauseFraction;
+    private long reservedBytes;
+    private long peakReservedBytes;
+    private long reservations;
+    private long waits;
+    private long waitNanos;
+    private long throttled;
+    private long paused;
+
+    MemoryGovernor(long budgetBytes, double throttleFraction, double pauseFraction) {
+        if (budgetBytes <= 0 || !(throttleFraction > 0) || !(pauseFraction > throttleFraction) || pauseFraction > 1) {
+            throw new IllegalArgumentException("Memory budget must be positive and 0 < throttleFraction < pauseFraction <= 1");
+        }
+        this.budgetBytes = budgetBytes;
+        this.throttleFraction = throttleFraction;
+        this.pauseFraction = pauseFraction;
+    }
+
+    /**
+     * The governor shared by the runs of this JVM
+     */
+    public static MemoryGovernor shared() {
+        return SHARED;
+    }
+
+    /**
+     * Bytes reserved until closed
+     */
+    public final class Reservation implements AutoCloseable {
+        private long bytes;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Give the bytes back; on the thread that reserved them
+         */
+        @Override
+        public void close() {
+            heldByThread.get()[0] -= bytes;
+            release(bytes);
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Reserve bytes, waiting for as long as they do not fit the budget, unless this thread already
+     * holds a reservation
+     */
+    public Reservation reserve(long bytes) throws IOException {
+        long[] held = heldByThread.get();
+        try {
+            acquire(bytes, held[0] > 0 ? 0 : Long.MAX_VALUE, held[0] > 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory");
+        }
+        Reservation reservation = new Reservation(Math.max(0, bytes));
+        held[0] += reservation.bytes;
+        return reservation;
+    }
+
+    /**
+     * Reserve bytes within a timeout; returns false, reserving nothing, when they did not fit in time.
+     * For owners that grow their share step by step and fail when it stays exhausted.
+     */
+    public boolean acquire(long bytes, long timeoutMillis) throws InterruptedException {
+        return acquire(bytes, timeoutMillis, false);
+    }
+
+    private synchronized boolean acquire(long bytes, long timeoutMillis, boolean force) throws InterruptedException {
+        if (bytes <= 0) {
+            return true;
+        }
+        if (!force && reservedBytes > 0 && reservedBytes + bytes > budgetBytes) {
+            waits++;
+            long start = System.nanoTime();
+            long deadline = timeoutMillis == Long.MAX_VALUE ? Long.MAX_VALUE : start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            try {
+                while (reservedBytes > 0 && reservedBytes + bytes > budgetBytes) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.min(remaining, TimeUnit.SECONDS.toNanos(1)));
+                }
+            } finally {
+                waitNanos += System.nanoTime() - start;
+            }
+        }
+        reservedBytes += bytes;
+        peakReservedBytes = Math.max(peakReservedBytes, reservedBytes);
+        reservations++;
+        return true;
+    }
+
+    /**
+     * Give back bytes reserved with {@link #acquire}
+     */
+    public synchronized void release(long bytes) {
+        if (bytes > 0) {
+            reservedBytes = Math.max(0, reservedBytes - bytes);
+            notifyAll();
+        }
+    }
+
+    /**
+     * The larger of the fraction of the budget reserved and the fraction of the maximum heap live after GC
+     */
+    public double pressure() {
+        double heap = (double) heapAfterGc() / Runtime.getRuntime().maxMemory();
+        synchronized (this) {
+            return Math.max(heap, (double) reservedBytes / budgetBytes);
+        }
+    }
+
+    /**
+     * Bytes of the heap in use right after the last collection. Before the first notification, the
+     * heap pools in use after their own last collection; a pool not collected yet counts nothing.
+     */
+    static long heapAfterGc() {
+        long notified = HEAP_AFTER_LAST_GC.get();
+        if (notified >= 0) {
+            return notified;
+        }
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage afterGc = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if (afterGc != null) {
+                used += afterGc.getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * How many of the requested workers a run should keep busy at the current pressure, at least one
+     */
+    public int parallelism(int requested) {
+        double pressure = pressure();
+        if (requested <= 1 || pressure <= throttleFraction) {
+            return Math.max(1, requested);
+        }
+        double headroom = Math.max(0, (pauseFraction - pressure) / (pauseFraction - throttleFraction));
+        int allowed = Math.max(1, (int) Math.round(requested * headroom));
+        if (allowed < requested) {
+            synchronized (this) {
+                throttled++;
+            }
+        }
+        return allowed;
+    }
+
+    /**
+     * Whether another large job may start next to those running
+     */
+    public boolean admitsLargeJobs() {
+        if (pressure() < pauseFraction) {
+            return true;
+        }
+        synchronized (this) {
+            paused++;
+        }
+        return false;
+    }
+
+    /**
+     * Gate for the workers of one run: at most {@link #parallelism} of them work at a time, the others
+     * wait in {@link Gate#enter}
+     */
+    public Gate gate(int requested) {
+        return new Gate(requested);
+    }
+
+    public final class Gate {
+        private final int requested;
+        private int active;
+
+        private Gate(int requested) {
+            this.requested = requested;
+        }
+
+        public synchronized void enter() throws InterruptedException {
+            while (active > 0 && active >= parallelism(requested)) {
+                // the pressure is not signalled, so a throttled worker looks again shortly
+                wait(RECHECK_MILLIS);
+            }
+            active++;
+        }
+
+        public synchronized void exit() {
+            active--;
+            notifyAll();
+        }
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * Budget, bytes in flight, heap use now and after GC, the current state and counters as JSON
+     */
+    public String metricsJson() {
+        Runtime runtime = Runtime.getRuntime();
+        double pressure = pressure();
+        String state = pressure >= pauseFraction ? "paused" : pressure > throttleFraction ? "throttled" : "normal";
+        synchronized (this) {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"budgetBytes\":").append(budgetBytes).append(",");
+            json.append("\"reservedBytes\":").append(reservedBytes).append(",");
+            json.append("\"peakReservedBytes\":").append(peakReservedBytes).append(",");
+            json.append("\"heapUsedBytes\":").append(runtime.totalMemory() - runtime.freeMemory()).append(",");
+            json.append("\"heapAfterGcBytes\":").append(heapAfterGc()).append(",");
+            json.append("\"heapMaxBytes\":").append(runtime.maxMemory()).append(",");
+            json.append("\"pressure\":").append(String.format(Locale.ROOT, "%.3f", pressure)).append(",");
+            json.append("\"state\":\"").append(state).append("\",");
+            json.append("\"reservations\":").append(reservations).append(",");
+            json.append("\"waits\":").append(waits).append(",");
+            json.append("\"waitMillis\":").append(TimeUnit.NANOSECONDS.toMillis(waitNanos)).append(",");
+            json.append("\"throttled\":").append(throttled).append(",");
+            json.append("\"pausedAdmissions\":").append(paused).append("}");
+            return json.toString();
+        }
+    }
+}
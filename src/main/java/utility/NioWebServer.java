@@ -0,0 +1,728 @@
+package utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking HTTP/1.1 front end for the routes of {@link WebServer}.
+ *
+ * One event loop thread owns a selector and every connection: it accepts, reads and parses requests
+ * and writes responses. Static files are served straight from the loop out of direct buffers that are
+ * filled on first use, while API calls, archives and CLI commands run on the same cost-based
+ * {@link JobScheduler} as in {@link WebServer} and hand their response back to the loop. Connections
+ * are kept alive (by default for HTTP/1.1, on request for HTTP/1.0) and pipelined requests are
+ * answered in order, one at a time per connection; while a request is in flight the loop stops
+ * reading from its connection once the input buffer is full. Request bodies, archives included, are
+ * read whole and limited to {@value #MAX_BODY_BYTES} bytes. CLI output and result archives are
+ * streamed chunked, and a worker that produces them faster than the client reads waits while more
+ * than {@value #HIGH_WATER_MARK} bytes are queued for the connection.
+ */
+public class NioWebServer {
+    static final int HIGH_WATER_MARK = 256 * 1024;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+    private static final long IDLE_TIMEOUT_MILLIS = 60_000;
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final JobScheduler scheduler = JobScheduler.fromSystemProperties("nio");
+    private final Queue<Runnable> loopTasks = new ConcurrentLinkedQueue<>();
+    private final Map<String, ByteBuffer> staticFiles = new HashMap<>();
+    private final List<String> apiPaths = Arrays.asList(WebServer.API_PATHS);
+    private final Thread loop;
+    private final String cliToken;
+    private volatile boolean running;
+
+    public NioWebServer(int port) throws IOException {
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        this.loop = new Thread(this::runLoop, "nio-event-loop");
+        this.cliToken = WebServer.writeCliToken(getPort());
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void start() {
+        running = true;
+        loop.start();
+        System.out.println("Web server (NIO) started on port " + getPort());
+        System.out.println("Open your browser and navigate to: http://localhost:" + getPort());
+    }
+
+    public void stop() {
+        int port = getPort();
+        running = false;
+        selector.wakeup();
+        try {
+            loop.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler.shutdownNow();
+        WebServer.deleteCliToken(port, cliToken);
+        System.out.println("Web server stopped");
+    }
+
+    private void runLoop() {
+        long lastSweep = System.currentTimeMillis();
+        try {
+            while (running) {
+                selector.select(1000);
+                Runnable task;
+                while ((task = loopTasks.poll()) != null) {
+                    task.run();
+                }
+
+                for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext(); ) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.attachment() == null) {
+                        if (key.isValid() && key.isAcceptable()) {
+                            accept();
+                        }
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.close();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= 1000) {
+                    lastSweep = now;
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.attachment() instanceof Connection && ((Connection) key.attachment()).isIdle(now)) {
+                            ((Connection) key.attachment()).close();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Web server event loop failed: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                // shutting down anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+        }
+    }
+
+    /**
+     * Run a task on the event loop thread
+     */
+    private void onLoop(Runnable task) {
+        loopTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Parsed request line, headers and body
+     */
+    private static class Request {
+        final String method;
+        final String path;
+        final boolean http11;
+        final boolean keepAlive;
+        final byte[] body;
+        final String query;
+        private final Map<String, String> headers;
+
+        Request(String method, String path, String query, boolean http11, boolean keepAlive, byte[] body, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.query = query;
+            this.http11 = http11;
+            this.keepAlive = keepAlive;
+            this.body = body;
+            this.headers = headers;
+        }
+
+        /**
+         * Value of a request header, whatever the case of its name, or null
+         */
+        String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * State of one client connection. Parsing and the flags without a lock belong to the loop thread;
+     * the output queue is shared with the worker that answers the current request.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private boolean busy;
+        private boolean inputClosed;
+        private boolean closeWhenSent;
+        private long lastActive = System.currentTimeMillis();
+
+        // guarded by this
+        private final Deque<ByteBuffer> out = new ArrayDeque<>();
+        private long queuedBytes;
+        private boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() throws IOException {
+            if (!in.hasRemaining()) {
+                updateInterest();
+                return;
+            }
+            if (channel.read(in) < 0) {
+                inputClosed = true;
+            }
+            lastActive = System.currentTimeMillis();
+            process();
+        }
+
+        /**
+         * Answer the buffered requests in order until one has to wait for a worker
+         */
+        private void process() throws IOException {
+            while (!busy && !closeWhenSent) {
+                Request request = parse();
+                if (request == null) {
+                    break;
+                }
+                dispatch(request);
+            }
+            if (inputClosed && !busy) {
+                closeWhenSent = true;
+            }
+            flush();
+        }
+
+        private Request parse() {
+            byte[] data = in.array();
+            int length = in.position();
+            int headerEnd = indexOfHeaderEnd(data, length);
+            if (headerEnd < 0) {
+                if (length >= MAX_HEADER_BYTES) {
+                    reject(431, "Request header too large");
+                } else if (!in.hasRemaining()) {
+                    resize(Math.min(in.capacity() * 2, MAX_HEADER_BYTES));
+                }
+                return null;
+            }
+
+            String[] lines = new String(data, 0, headerEnd, StandardCharsets.ISO_8859_1).split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                reject(400, "Malformed request line");
+                return null;
+            }
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+                }
+            }
+            if (headers.containsKey("transfer-encoding")) {
+                reject(411, "Chunked request bodies are not supported, send a Content-Length");
+                return null;
+            }
+            long contentLength;
+            try {
+                contentLength = Long.parseLong(headers.getOrDefault("content-length", "0"));
+            } catch (NumberFormatException e) {
+                reject(400, "Malformed Content-Length");
+                return null;
+            }
+            if (contentLength < 0 || contentLength > MAX_BODY_BYTES) {
+                reject(413, "Request body too large");
+                return null;
+            }
+
+            int total = headerEnd + 4 + (int) contentLength;
+            if (length < total) {
+                if (in.capacity() < total) {
+                    resize(total);
+                }
+                return null;
+            }
+            byte[] body = Arrays.copyOfRange(data, headerEnd + 4, total);
+            System.arraycopy(data, total, data, 0, length - total);
+            in.position(length - total);
+            if (in.capacity() > BUFFER_SIZE && in.position() <= BUFFER_SIZE) {
+                resize(BUFFER_SIZE);
+            }
+
+            String uri = requestLine[1];
+            int query = uri.indexOf('?');
+            boolean http11 = "HTTP/1.1".equals(requestLine[2]);
+            String connection = headers.getOrDefault("connection", "");
+            boolean keepAlive = http11 ? !"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+            return new Request(requestLine[0], query < 0 ? uri : uri.substring(0, query), query < 0 ? null : uri.substring(query + 1),
+                    http11, keepAlive, body, headers);
+        }
+
+        private void resize(int capacity) {
+            ByteBuffer resized = ByteBuffer.allocate(capacity);
+            in.flip();
+            resized.put(in);
+            in = resized;
+        }
+
+        private void dispatch(Request request) throws IOException {
+            if (!request.keepAlive) {
+                closeWhenSent = true;
+            }
+
+            if ("/api/cli".equals(request.path)) {
+                InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+                int status = WebServer.cliStatus(remote.getAddress().isLoopbackAddress(), request.method, request.header("Origin"),
+                        request.header(WebServer.TOKEN_HEADER), cliToken);
+                if (status != 200) {
+                    enqueue(request, status, "text/plain", new byte[0]);
+                    return;
+                }
+                String requestBody = new String(request.body, StandardCharsets.UTF_8);
+                try {
+                    scheduler.submit(WebServer.clientOf(request.header(WebServer.CLIENT_HEADER), remote.getAddress().getHostAddress()),
+                            WebServer.estimateCliCost(requestBody), () -> streamCli(request, requestBody));
+                    if (!request.http11) {
+                        // without chunked encoding the end of the stream marks the end of the output
+                        closeWhenSent = true;
+                    }
+                    busy = true;
+                } catch (RejectedExecutionException e) {
+                    rejectJob(request, e);
+                }
+                return;
+            }
+
+            if (WebServer.ARCHIVE_PATH.equals(request.path)) {
+                if (!"POST".equals(request.method)) {
+                    enqueue(request, 405, "text/plain", new byte[0]);
+                    return;
+                }
+                String client = WebServer.clientOf(request.header(WebServer.CLIENT_HEADER),
+                        ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress());
+                try {
+                    scheduler.submit(client, JobScheduler.estimateArchive(String.valueOf(request.body.length),
+                            ArchiveDeprecation.DEFAULT_MAX_ARCHIVE_BYTES), () -> streamArchive(request));
+                    if (!request.http11) {
+                        closeWhenSent = true;
+                    }
+                    busy = true;
+                } catch (RejectedExecutionException e) {
+                    rejectJob(request, e);
+                }
+                return;
+            }
+
+            if (WebServer.SCHEDULER_PATH.equals(request.path)) {
+                if (!"GET".equals(request.method)) {
+                    enqueue(request, 405, "text/plain", new byte[0]);
+                } else {
+                    enqueue(request, 200, "application/json", scheduler.metricsJson().getBytes(StandardCharsets.UTF_8));
+                }
+                return;
+            }
+
+            if (apiPaths.contains(request.path)) {
+                if (!"POST".equals(request.method)) {
+                    enqueue(request, 405, "text/plain", new byte[0]);
+                    return;
+                }
+                String requestBody = new String(request.body, StandardCharsets.UTF_8);
+                String client = WebServer.clientOf(request.header(WebServer.CLIENT_HEADER),
+                        ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress());
+                try {
+                    scheduler.submit(client, WebServer.estimateCost(request.path, requestBody), () -> {
+                        try {
+                            WebServer.ApiResponse response = WebServer.handleApi(request.path, requestBody);
+                            byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+                            send(false, head(response.status, response.contentType, body.length, request), ByteBuffer.wrap(body));
+                        } catch (IOException e) {
+                            // the client is gone
+                        } finally {
+                            onLoop(this::finish);
+                        }
+                    });
+                    busy = true;
+                } catch (RejectedExecutionException e) {
+                    rejectJob(request, e);
+                }
+                return;
+            }
+
+            if (!"GET".equals(request.method) && !"HEAD".equals(request.method)) {
+                enqueue(request, 405, "text/plain", new byte[0]);
+                return;
+            }
+            ByteBuffer content = staticFiles.get(request.path);
+            if (content == null) {
+                byte[] bytes;
+                try {
+                    bytes = WebServer.readStaticFile(request.path);
+                } catch (IOException e) {
+                    enqueue(request, 500, "text/plain", ("Error reading file: " + e.getMessage()).getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                if (bytes == null) {
+                    enqueue(request, 404, "text/plain", ("File not found: " + request.path).getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                content = ByteBuffer.allocateDirect(bytes.length);
+                content.put(bytes).flip();
+                staticFiles.put(request.path, content);
+            }
+            ByteBuffer head = head(200, WebServer.getContentType(request.path), content.remaining(), request);
+            if ("HEAD".equals(request.method)) {
+                send(false, head);
+            } else {
+                send(false, head, content.duplicate());
+            }
+        }
+
+        private void rejectJob(Request request, RejectedExecutionException e) throws IOException {
+            boolean shutdown = scheduler.isShutdown();
+            enqueue(request, shutdown ? 503 : 429, "application/json", ("{\"error\":\""
+                    + (shutdown ? "Server is shutting down" : e.getMessage() + ", retry later") + "\"}").getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void streamCli(Request request, String requestBody) {
+            try {
+                send(true, head(200, "text/plain; charset=utf-8", -1, request));
+                try (ChunkedOutput output = new ChunkedOutput(this, request.http11)) {
+                    WebServer.runCli(requestBody, output);
+                }
+            } catch (IOException e) {
+                // the client is gone, the command has still run to the end
+            } finally {
+                onLoop(this::finish);
+            }
+        }
+
+        /**
+         * Run an archive request, see {@link ArchiveDeprecation}: the options are query parameters, the
+         * body is the archive, and the zip of the result is streamed chunked once the run is done
+         */
+        private void streamArchive(Request request) {
+            Map<String, String> parameters = WebServer.queryParameters(request.query);
+            try (ArchiveDeprecation archive = new ArchiveDeprecation(ArchiveDeprecation.DEFAULT_MAX_ARCHIVE_BYTES)) {
+                WebServer.DeprecationResult result;
+                try {
+                    archive.setMarkers(parameters.get("markers"), parameters.get("since"), parameters.get("replacement"),
+                            parameters.get("team"), parameters.get("markerTemplate"));
+                    archive.read(new ByteArrayInputStream(request.body));
+                    result = archive.deprecateWithResult(parameters.get("methodName"), parameters.get("methodSignature"));
+                } catch (ArchiveDeprecation.LimitException e) {
+                    enqueue(request, e.isBusy() ? 503 : 413, "application/json",
+                            ("{\"error\":\"" + WebServer.jsonEscape(e.getMessage()) + "\"}").getBytes(StandardCharsets.UTF_8));
+                    return;
+                } catch (Exception e) {
+                    enqueue(request, 400, "application/json",
+                            ("{\"error\":\"Error during deprecation: " + e.getMessage() + "\"}").getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+
+                send(true, head(200, "application/zip", -1, request, WebServer.archiveHeaders(result)));
+                try (ChunkedOutput output = new ChunkedOutput(this, request.http11)) {
+                    archive.writeTo(output, result);
+                }
+            } catch (IOException e) {
+                // the client is gone
+            } finally {
+                onLoop(this::finish);
+            }
+        }
+
+        /**
+         * Back on the loop after a worker answered: go on with pipelined requests
+         */
+        private void finish() {
+            busy = false;
+            lastActive = System.currentTimeMillis();
+            try {
+                process();
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        private void reject(int status, String message) {
+            closeWhenSent = true;
+            byte[] body = message.getBytes(StandardCharsets.UTF_8);
+            try {
+                send(false, head(status, "text/plain", body.length, null), ByteBuffer.wrap(body));
+            } catch (IOException e) {
+                // closed below
+            }
+        }
+
+        private void enqueue(Request request, int status, String contentType, byte[] body) throws IOException {
+            send(false, head(status, contentType, body.length, request), ByteBuffer.wrap(body));
+        }
+
+        private ByteBuffer head(int status, String contentType, long contentLength, Request request) {
+            return head(status, contentType, contentLength, request, Collections.emptyMap());
+        }
+
+        private ByteBuffer head(int status, String contentType, long contentLength, Request request, Map<String, String> headers) {
+            boolean keepAlive = request != null && request.keepAlive && (contentLength >= 0 || request.http11);
+            StringBuilder head = new StringBuilder(128);
+            head.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            if (contentLength >= 0) {
+                head.append("Content-Length: ").append(contentLength).append("\r\n");
+            } else if (request.http11) {
+                head.append("Transfer-Encoding: chunked\r\n");
+            }
+            if (status == 429 || status == 503) {
+                head.append("Retry-After: 5\r\n");
+            }
+            head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+            return ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        /**
+         * Queue buffers for writing. A worker waits while the queue is above the high water mark.
+         */
+        void send(boolean wait, ByteBuffer... buffers) throws IOException {
+            synchronized (this) {
+                while (wait && queuedBytes >= HIGH_WATER_MARK && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the client");
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                for (ByteBuffer buffer : buffers) {
+                    out.add(buffer);
+                    queuedBytes += buffer.remaining();
+                }
+            }
+            if (Thread.currentThread() != loop && flushScheduled.compareAndSet(false, true)) {
+                onLoop(() -> {
+                    flushScheduled.set(false);
+                    try {
+                        flush();
+                    } catch (IOException | CancelledKeyException e) {
+                        close();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Write as much of the queue as the socket takes, with a single gathering write
+         */
+        void flush() throws IOException {
+            boolean empty;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (!out.isEmpty()) {
+                    long written = channel.write(out.toArray(new ByteBuffer[0]));
+                    queuedBytes -= written;
+                    while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                        out.poll();
+                    }
+                    if (written > 0) {
+                        lastActive = System.currentTimeMillis();
+                    }
+                    if (queuedBytes < HIGH_WATER_MARK / 2) {
+                        notifyAll();
+                    }
+                }
+                empty = out.isEmpty();
+            }
+            if (empty && closeWhenSent && !busy) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        private void updateInterest() {
+            int ops = 0;
+            synchronized (this) {
+                if (!out.isEmpty()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+            }
+            if (!inputClosed && !closeWhenSent && in.hasRemaining()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (key.isValid()) {
+                key.interestOps(ops);
+            }
+        }
+
+        boolean isIdle(long now) {
+            synchronized (this) {
+                return !busy && out.isEmpty() && now - lastActive > IDLE_TIMEOUT_MILLIS;
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+                out.clear();
+                queuedBytes = 0;
+                notifyAll();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    /**
+     * Output of a streamed response, written to the connection in chunks of up to {@value #BUFFER_SIZE} bytes
+     */
+    private static final class ChunkedOutput extends OutputStream {
+        private final Connection connection;
+        private final boolean chunked;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+
+        ChunkedOutput(Connection connection, boolean chunked) {
+            this.connection = connection;
+            this.chunked = chunked;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer.write(b);
+            if (buffer.size() >= BUFFER_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            buffer.write(b, off, len);
+            if (buffer.size() >= BUFFER_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffer.size() == 0) {
+                return;
+            }
+            ByteBuffer data = ByteBuffer.wrap(buffer.toByteArray());
+            buffer.reset();
+            if (chunked) {
+                byte[] size = (Integer.toHexString(data.remaining()) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                connection.send(true, ByteBuffer.wrap(size), data, ByteBuffer.wrap(CRLF));
+            } else {
+                connection.send(true, data);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            if (chunked) {
+                connection.send(true, ByteBuffer.wrap("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+            }
+        }
+    }
+
+    private static int indexOfHeaderEnd(byte[] data, int length) {
+        for (int i = 0; i + 3 < length; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 400: return "Bad Request";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 411: return "Length Required";
+            case 413: return "Payload Too Large";
+            case 429: return "Too Many Requests";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Status " + status;
+        }
+    }
+}
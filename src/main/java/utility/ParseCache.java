@@ -0,0 +1,105 @@
+package utility;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Parse results of sources keyed by their content id ({@link SourceProvider#contentId}), such as a
+ * git blob id. Content with an id never changes, so an entry needs no validation and is shared by
+ * every revision and every run that reads the same content: a file unchanged between two tags is
+ * parsed once. Sources without an id are parsed every time. The cache is bounded by the estimated
+ * size of its entries, <code>-Ddeprecation.parseCache.bytes</code> (64 MB by default), and evicts the
+ * least recently used.
+ */
+final class ParseCache {
+
+    private static final ParseCache SHARED = new ParseCache(Long.getLong("deprecation.parseCache.bytes", 64L << 20));
+
+    private final long capacityBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long sizeBytes;
+    private long hits;
+    private long misses;
+
+    ParseCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * The cache shared by the runs of this JVM
+     */
+    static ParseCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Parses the content of a source; reading it is part of the work a hit saves
+     */
+    interface Parser<T> {
+        T parse() throws IOException;
+    }
+
+    /**
+     * The cached result of one kind of parse of some content, or else the parsed one. Two threads
+     * missing the same content at once both parse it.
+     */
+    <T> T get(String kind, String contentId, Parser<T> parser, ToLongFunction<T> weigher) throws IOException {
+        if (contentId == null) {
+            return parser.parse();
+        }
+        String key = kind + ':' + contentId;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                @SuppressWarnings("unchecked")
+                T value = (T) entry.value;
+                return value;
+            }
+            misses++;
+        }
+
+        T value = parser.parse();
+        long weight = weigher.applyAsLong(value) + key.length() * 2L + 64;
+        if (weight <= capacityBytes) {
+            put(key, new Entry(value, weight));
+        }
+        return value;
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            sizeBytes -= previous.weight;
+        }
+        sizeBytes += entry.weight;
+        for (Iterator<Entry> eldest = entries.values().iterator(); sizeBytes > capacityBytes && eldest.hasNext(); ) {
+            sizeBytes -= eldest.next().weight;
+            eldest.remove();
+        }
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    private static class Entry {
+        final Object value;
+        final long weight;
+
+        Entry(Object value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
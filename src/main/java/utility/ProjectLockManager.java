@@ -0,0 +1,81 @@
+package utility;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Serializes concurrent jobs that touch the same project, shared by every server thread of the JVM.
+ *
+ * Each project has a read/write lock and a fixed set of striped file locks. Deprecation runs hold the
+ * project read lock, so runs on the same project proceed in parallel, and take the stripe of a file
+ * for each read-modify-write of that file, so edits to the same file queue instead of overwriting
+ * each other. Undo rewrites files from a journal and holds the project write lock for its duration, as
+ * does the coordinator of a sharded run, whose workers lock only within their own processes.
+ *
+ * A job holds at most one file lock at a time and always takes the project lock first, which rules
+ * out lock-order deadlocks.
+ */
+public final class ProjectLockManager {
+
+    private static final int STRIPES = 64;
+    private static final ProjectLockManager INSTANCE = new ProjectLockManager(STRIPES);
+
+    private final int stripes;
+    private final ConcurrentHashMap<Path, ProjectLocks> projects = new ConcurrentHashMap<>();
+
+    ProjectLockManager(int stripes) {
+        if (Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException("The number of stripes must be a power of two: " + stripes);
+        }
+        this.stripes = stripes;
+    }
+
+    public static ProjectLockManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Shared lock of a project, held by jobs that edit individual files
+     */
+    public Lock projectReadLock(Path projectRoot) {
+        return locksOf(projectRoot).projectLock.readLock();
+    }
+
+    /**
+     * Exclusive lock of a project, held by jobs that rewrite files wholesale
+     */
+    public Lock projectWriteLock(Path projectRoot) {
+        return locksOf(projectRoot).projectLock.writeLock();
+    }
+
+    /**
+     * Lock guarding the read-modify-write of a single file of a project
+     */
+    public Lock fileLock(Path projectRoot, Path file) {
+        ProjectLocks locks = locksOf(projectRoot);
+        int hash = file.toAbsolutePath().normalize().hashCode();
+        return locks.fileLocks[(hash ^ (hash >>> 16)) & (stripes - 1)];
+    }
+
+    private ProjectLocks locksOf(Path projectRoot) {
+        return projects.computeIfAbsent(projectRoot.toAbsolutePath().normalize(), k -> new ProjectLocks(stripes));
+    }
+
+    /**
+     * Locks of one project
+     */
+    private static class ProjectLocks {
+        final ReentrantReadWriteLock projectLock = new ReentrantReadWriteLock(true);
+        final ReentrantLock[] fileLocks;
+
+        ProjectLocks(int stripes) {
+            fileLocks = new ReentrantLock[stripes];
+            for (int i = 0; i < stripes; i++) {
+                fileLocks[i] = new ReentrantLock();
+            }
+        }
+    }
+}
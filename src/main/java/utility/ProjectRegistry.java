@@ -0,0 +1,94 @@
+package utility;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * State this JVM keeps per project, such as the index or the version tracker of every project a server
+ * has seen. At most <code>-Ddeprecation.projects.max</code> projects (32 by default) are kept; the
+ * least recently used one is dropped and handed to a callback that releases what it holds, so a
+ * long-running server does not keep every project it ever served.
+ */
+final class ProjectRegistry<V> {
+
+    static final int MAX_PROJECTS = Integer.getInteger("deprecation.projects.max", 32);
+
+    private final int capacity;
+    private final Function<Path, V> loader;
+    private final Consumer<V> onEvict;
+    private final LinkedHashMap<Path, V> values = new LinkedHashMap<>(16, 0.75f, true);
+
+    ProjectRegistry(int capacity, Function<Path, V> loader, Consumer<V> onEvict) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("A registry keeps at least one project");
+        }
+        this.capacity = capacity;
+        this.loader = loader;
+        this.onEvict = onEvict;
+    }
+
+    /**
+     * The value of a project, loaded on first use. Loading happens outside the lock, so projects load
+     * in parallel; of two threads loading the same project, the first to finish wins and the value of
+     * the other is released.
+     */
+    V get(Path projectRoot) {
+        Path key = projectRoot.toAbsolutePath().normalize();
+        synchronized (this) {
+            V value = values.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+
+        V loaded = loader.apply(key);
+        V value;
+        List<V> evicted = new ArrayList<>();
+        synchronized (this) {
+            value = values.putIfAbsent(key, loaded);
+            if (value == null) {
+                value = loaded;
+                for (Iterator<V> eldest = values.values().iterator(); values.size() > capacity && eldest.hasNext(); ) {
+                    evicted.add(eldest.next());
+                    eldest.remove();
+                }
+            } else {
+                evicted.add(loaded);
+            }
+        }
+        for (V dropped : evicted) {
+            onEvict.accept(dropped);
+        }
+        return value;
+    }
+
+    /**
+     * The value of a project if it is kept, otherwise null
+     */
+    synchronized V getIfPresent(Path projectRoot) {
+        return values.get(projectRoot.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Drop every project and release what each holds, as when the web application stops
+     */
+    void clear() {
+        List<V> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(values.values());
+            values.clear();
+        }
+        for (V value : dropped) {
+            onEvict.accept(value);
+        }
+    }
+
+    synchronized int size() {
+        return values.size();
+    }
+}
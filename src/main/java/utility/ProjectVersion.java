@@ -0,0 +1,230 @@
+package utility;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Current content version of a project, see {@link SourceIndex#contentVersion()}.
+ *
+ * Before the version is answered the index has to match the files on disk. The first call checks every
+ * source (a stat per file, a read only for files whose size or modification time changed) and starts
+ * watching the directories of the project. After that only the files the file system reported as
+ * changed are checked again, so the version of an untouched project is answered from memory. When
+ * events were lost, a directory came or went, or the directories cannot be watched, the whole project
+ * is checked again.
+ *
+ * Events are only trusted where the file system pushes them: on Linux and Windows they arrive within
+ * milliseconds of the write. Where the JDK polls for them instead, as on macOS, where they can trail
+ * the write by seconds, nothing is watched and every call checks the size and modification time of
+ * every source. As events of a network file system or a dropped inotify queue may never arrive, the
+ * whole project is also checked again once {@value #RECHECK_MILLIS} ms have passed since the last full
+ * check. Trackers are kept for the projects least recently used only, see {@link ProjectRegistry};
+ * a dropped tracker closes its watch service.
+ */
+final class ProjectVersion {
+
+    static final long RECHECK_MILLIS = 10_000;
+
+    private static final ProjectRegistry<ProjectVersion> SHARED = new ProjectRegistry<>(ProjectRegistry.MAX_PROJECTS,
+            ProjectVersion::new, ProjectVersion::close);
+
+    private final Path projectRoot;
+    private final ProjectLockManager locks = ProjectLockManager.getInstance();
+    private final Set<Path> watchedDirectories = new HashSet<>();
+    private final Set<Path> changedFiles = new HashSet<>();
+    private SourceIndex index;
+    private WatchService watcher;
+    private boolean checkAll = true;
+    private long lastCheckAll;
+
+    private ProjectVersion(Path projectRoot) {
+        this.projectRoot = projectRoot;
+        try {
+            this.watcher = projectRoot.getFileSystem().newWatchService();
+            if (watcher.getClass().getName().endsWith("PollingWatchService")) {
+                // polled every few seconds: a stat of every file on each call is cheaper than being late
+                watcher.close();
+                watcher = null;
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            this.watcher = null;
+        }
+    }
+
+    /**
+     * The version tracker of a project, shared by every request of this JVM
+     */
+    static ProjectVersion of(Path projectRoot) {
+        return SHARED.get(projectRoot);
+    }
+
+    /**
+     * Drop the trackers of every project and close their watch services, whose threads would otherwise
+     * outlive a stopped web application
+     */
+    static void closeAll() {
+        SHARED.clear();
+    }
+
+    /**
+     * Whether the file system of this tracker reports changes as they happen
+     */
+    synchronized boolean isWatching() {
+        return watcher != null;
+    }
+
+    /**
+     * Stop watching, once the tracker is dropped; a caller still holding it checks every file from now on
+     */
+    synchronized void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+            watcher = null;
+        }
+        watchedDirectories.clear();
+        checkAll = true;
+    }
+
+    /**
+     * The content version of the project as it is on disk now
+     */
+    synchronized long current() throws IOException {
+        SourceIndex shared = SourceIndex.shared(projectRoot);
+        if (shared != index) {
+            // first call, or the index was dropped and loaded again: it has to be checked against the disk
+            index = shared;
+            checkAll = true;
+        }
+        collectEvents();
+        if (System.currentTimeMillis() - lastCheckAll >= RECHECK_MILLIS) {
+            checkAll = true;
+        }
+        if (checkAll || !changedFiles.isEmpty()) {
+            Lock projectLock = locks.projectReadLock(projectRoot);
+            projectLock.lock();
+            try {
+                if (checkAll) {
+                    checkAll();
+                } else {
+                    checkChanged();
+                }
+            } finally {
+                projectLock.unlock();
+            }
+        }
+        return index.contentVersion();
+    }
+
+    private void collectEvents() {
+        if (watcher == null) {
+            checkAll = true;
+            return;
+        }
+        WatchKey key;
+        while ((key = nextKey()) != null) {
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    checkAll = true;
+                    continue;
+                }
+                Path path = directory.resolve((Path) event.context());
+                if (DeprecationUtility.isProjectSource(path)) {
+                    changedFiles.add(path);
+                } else if (watchedDirectories.contains(path) || Files.isDirectory(path)) {
+                    checkAll = true;
+                }
+            }
+            if (!key.reset()) {
+                watchedDirectories.remove(directory);
+                checkAll = true;
+            }
+        }
+    }
+
+    private WatchKey nextKey() {
+        try {
+            return watcher.poll();
+        } catch (ClosedWatchServiceException e) {
+            watcher = null;
+            checkAll = true;
+            return null;
+        }
+    }
+
+    private void checkAll() throws IOException {
+        List<Path> files = DeprecationUtility.projectFiles(projectRoot, index);
+        // watch first, so that a change made while the files are checked is reported on the next call
+        watch(index.snapshotDirectories());
+        for (Path file : files) {
+            probe(file);
+        }
+        index.retain(files);
+        changedFiles.clear();
+        checkAll = watcher == null;
+        lastCheckAll = System.currentTimeMillis();
+    }
+
+    private void checkChanged() throws IOException {
+        List<Path> files = new ArrayList<>(changedFiles);
+        changedFiles.clear();
+        for (Path file : files) {
+            if (Files.isRegularFile(file)) {
+                probe(file);
+            } else {
+                index.remove(file);
+            }
+        }
+    }
+
+    private void probe(Path file) throws IOException {
+        Lock fileLock = locks.fileLock(projectRoot, file);
+        fileLock.lock();
+        try {
+            index.probe(file);
+        } catch (NoSuchFileException e) {
+            index.remove(file);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private void watch(List<Path> directories) {
+        if (watcher == null) {
+            return;
+        }
+        try {
+            for (Path directory : directories) {
+                if (watchedDirectories.add(directory)) {
+                    directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                }
+            }
+        } catch (IOException | ClosedWatchServiceException e) {
+            // typically the limit on watched directories; check the whole project on every call instead
+            try {
+                watcher.close();
+            } catch (IOException ignored) {
+                // nothing left to release
+            }
+            watcher = null;
+            watchedDirectories.clear();
+        }
+    }
+}
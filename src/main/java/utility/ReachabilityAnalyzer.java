@@ -0,0 +1,570 @@
+package utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ * Finds the methods that cannot be reached from the entry points of a project, as candidates for bulk
+ * deprecation.
+ *
+ * Entry points are the methods with a configured name (<code>main</code> and the callbacks the JVM
+ * calls by itself, such as <code>toString</code>), every method of the servlets, filters and listeners
+ * declared in a <code>web.xml</code>, and the public methods of the public API packages. Calls are
+ * resolved by name, as everywhere in this utility: a call to <code>foo(</code> reaches every method
+ * named <code>foo</code>. Reachability therefore propagates over names on the {@link CallGraph} of the
+ * source index: a bitset of reached names and an int worklist, each name expanded once, so the cost is
+ * linear in the number of declarations and call edges.
+ *
+ * The result of the last computation is kept per project. When files changed since, the graph is
+ * rebuilt from the index, which parses only those files. If none of the changed files lost an entry
+ * point or a call made from a reached method, the previous fixpoint is still valid and propagation just
+ * resumes from the methods of the changed files; otherwise it starts over.
+ *
+ * Methods only called through reflection or frameworks other than the servlet API look unreachable;
+ * add their names to the entry methods.
+ */
+public class ReachabilityAnalyzer {
+
+    static final Set<String> DEFAULT_ENTRY_METHODS = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(
+            "main", "toString", "equals", "hashCode", "compareTo", "clone", "finalize", "run", "call", "close")));
+
+    private static final ProjectRegistry<ReachabilityAnalyzer> SHARED = new ProjectRegistry<>(ProjectRegistry.MAX_PROJECTS,
+            ReachabilityAnalyzer::new, analyzer -> { });
+
+    private final Path projectRoot;
+    private SourceIndex index;
+    private final ProjectLockManager locks = ProjectLockManager.getInstance();
+    private final Map<String, FileRoots> rootCache = new HashMap<>();
+
+    // the last computation
+    private EntryPoints lastEntryPoints;
+    private CallGraph lastGraph;
+    private long[] lastRoots;
+    private long[] lastReachedNames;
+
+    private ReachabilityAnalyzer(Path projectRoot) {
+        this.projectRoot = projectRoot;
+    }
+
+    /**
+     * The analyzer of a project, shared by every request of this JVM so that recomputations are
+     * incremental; kept for the projects least recently used only, see {@link ProjectRegistry}
+     */
+    public static ReachabilityAnalyzer of(Path projectRoot) {
+        return SHARED.get(projectRoot);
+    }
+
+    /**
+     * Drop the analyzers of every project, as when the web application stops
+     */
+    static void releaseAll() {
+        SHARED.clear();
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.in, System.out, System.err));
+    }
+
+    static int run(String[] args, InputStream in, PrintStream out, PrintStream err) {
+        if (args.length < 1) {
+            out.println("Usage: java utility.ReachabilityAnalyzer <project_path> [--entry-methods m1,m2] [--api-packages com.foo.api.*,...] "
+                    + "[--web-xml file] [--format json|text] [--deprecate]");
+            return 1;
+        }
+
+        try {
+            Map<String, String> options = DeprecationAnalyzer.parseOptions(args, 1);
+            Path projectRoot = Paths.get(args[0]);
+            EntryPoints entryPoints = EntryPoints.of(projectRoot, options.get("entry-methods"),
+                    options.get("api-packages"), options.get("web-xml"));
+            Result result = of(projectRoot).analyze(entryPoints);
+
+            if (options.containsKey("deprecate")) {
+                DeprecationUtility utility = new DeprecationUtility(projectRoot.toString());
+                utility.setOutput(out);
+                out.print(utility.deprecateDeclarationsWithResult(result.unreachableByFile(projectRoot), "unreachable methods").getDetails());
+            } else {
+                out.println("text".equalsIgnoreCase(options.get("format")) ? result.toText() : result.toJson());
+            }
+            return 0;
+        } catch (Exception e) {
+            err.println("Error during reachability analysis: " + e.getMessage());
+            e.printStackTrace(err);
+            return 1;
+        }
+    }
+
+    /**
+     * What counts as an entry point
+     */
+    public static class EntryPoints {
+        final Set<String> methodNames;
+        final List<String> apiPackages;
+        final Set<String> servletClasses;
+        private final List<Pattern> apiPackagePatterns = new ArrayList<>();
+
+        EntryPoints(Set<String> methodNames, List<String> apiPackages, Set<String> servletClasses) {
+            this.methodNames = methodNames;
+            this.apiPackages = apiPackages;
+            this.servletClasses = servletClasses;
+            for (String glob : apiPackages) {
+                apiPackagePatterns.add(DeprecationRule.packageGlob(glob));
+            }
+        }
+
+        /**
+         * Entry points from the options: the default entry methods plus the given ones, the given API
+         * package globs, and the classes of the given web.xml or else of <code>src/main/webapp/WEB-INF/web.xml</code>
+         */
+        public static EntryPoints of(Path projectRoot, String entryMethods, String apiPackages, String webXml) throws Exception {
+            Set<String> methodNames = new TreeSet<>(DEFAULT_ENTRY_METHODS);
+            methodNames.addAll(DeprecationAnalyzer.parseMethodList(entryMethods));
+            List<String> packages = new ArrayList<>(DeprecationAnalyzer.parseMethodList(apiPackages));
+
+            Path descriptor = webXml != null ? Paths.get(webXml) : projectRoot.resolve("src/main/webapp/WEB-INF/web.xml");
+            Set<String> servletClasses = new TreeSet<>();
+            if (Files.isRegularFile(descriptor)) {
+                Document document = descriptorParser().newDocumentBuilder().parse(descriptor.toFile());
+                for (String tag : Arrays.asList("servlet-class", "filter-class", "listener-class")) {
+                    NodeList nodes = document.getElementsByTagName(tag);
+                    for (int i = 0; i < nodes.getLength(); i++) {
+                        servletClasses.add(DeprecationRule.simpleName(nodes.item(i).getTextContent().trim()));
+                    }
+                }
+            } else if (webXml != null) {
+                throw new NoSuchFileException(webXml);
+            }
+            return new EntryPoints(methodNames, packages, servletClasses);
+        }
+
+        /**
+         * A parser for a web.xml named by a request: no DOCTYPE, entities or includes, so parsing it
+         * never reads another file or fetches a URL
+         */
+        private static DocumentBuilderFactory descriptorParser() throws ParserConfigurationException {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            factory.setXIncludeAware(false);
+            factory.setExpandEntityReferences(false);
+            return factory;
+        }
+
+        boolean isApiPackage(String packageName) {
+            for (Pattern pattern : apiPackagePatterns) {
+                if (pattern.matcher(packageName).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof EntryPoints && methodNames.equals(((EntryPoints) other).methodNames)
+                    && apiPackages.equals(((EntryPoints) other).apiPackages)
+                    && servletClasses.equals(((EntryPoints) other).servletClasses);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(methodNames, apiPackages, servletClasses);
+        }
+    }
+
+    /**
+     * Entry points declared in one version of a file, as offsets into its declarations. Cached by file,
+     * so that only changed files are read again to check their package against the API packages.
+     */
+    private static class FileRoots {
+        final long version;
+        final int[] offsets;
+
+        FileRoots(long version, int[] offsets) {
+            this.version = version;
+            this.offsets = offsets;
+        }
+    }
+
+    /**
+     * Bring the project's index up to date and compute the unreachable methods
+     */
+    public synchronized Result analyze(EntryPoints entryPoints) throws IOException {
+        long start = System.nanoTime();
+        SourceIndex shared = SourceIndex.shared(projectRoot);
+        if (shared != index) {
+            // the index was dropped and loaded again: start over from it
+            index = shared;
+            rootCache.clear();
+            lastGraph = null;
+        }
+        CallGraph graph;
+        Lock projectLock = locks.projectReadLock(projectRoot);
+        projectLock.lock();
+        try {
+            List<Path> files = DeprecationUtility.projectFiles(projectRoot, index);
+            // parsed under the file locks first, so the graph never sees a file a run is rewriting
+            for (Path file : files) {
+                Lock fileLock = locks.fileLock(projectRoot, file);
+                fileLock.lock();
+                try {
+                    index.refresh(file);
+                } finally {
+                    fileLock.unlock();
+                }
+            }
+            graph = index.callGraph(files);
+            index.save();
+        } finally {
+            projectLock.unlock();
+        }
+        long graphMillis = (System.nanoTime() - start) / 1_000_000;
+
+        if (!entryPoints.equals(lastEntryPoints)) {
+            rootCache.clear();
+            lastGraph = null;
+        }
+        long[] roots = new long[words(graph.getDeclarationCount())];
+        int rootCount = 0;
+        for (int f = 0; f < graph.getFileCount(); f++) {
+            for (int offset : fileRoots(graph, f, entryPoints).offsets) {
+                set(roots, graph.firstDeclaration(f) + offset);
+                rootCount++;
+            }
+        }
+
+        long propagationStart = System.nanoTime();
+        int[] changedFiles = changedFiles(graph);
+        boolean incremental = lastGraph != null && monotone(graph, roots, changedFiles);
+        long[] reachedNames = new long[words(graph.getSymbols().size())];
+        Worklist worklist = new Worklist(reachedNames);
+        if (incremental) {
+            System.arraycopy(lastReachedNames, 0, reachedNames, 0, lastReachedNames.length);
+            for (int f : changedFiles) {
+                int end = graph.firstDeclaration(f + 1);
+                for (int d = graph.firstDeclaration(f); d < end; d++) {
+                    if (get(roots, d) || get(reachedNames, graph.nameId(d))) {
+                        worklist.reachCallees(graph, d);
+                    }
+                }
+            }
+        } else {
+            for (int d = 0; d < graph.getDeclarationCount(); d++) {
+                if (get(roots, d)) {
+                    worklist.reachCallees(graph, d);
+                }
+            }
+        }
+        worklist.propagate(graph);
+        long propagationMicros = (System.nanoTime() - propagationStart) / 1000;
+
+        // retained for the next call; unchanged files keep their cached entry points
+        lastEntryPoints = entryPoints;
+        lastGraph = graph;
+        lastRoots = roots;
+        lastReachedNames = reachedNames;
+        Set<String> present = new HashSet<>();
+        for (int f = 0; f < graph.getFileCount(); f++) {
+            present.add(graph.fileName(f));
+        }
+        rootCache.keySet().retainAll(present);
+
+        List<Method> unreachable = new ArrayList<>();
+        int methods = 0;
+        for (int d = 0; d < graph.getDeclarationCount(); d++) {
+            if (graph.isClass(d)) {
+                continue;
+            }
+            methods++;
+            if (!get(roots, d) && !get(reachedNames, graph.nameId(d)) && !graph.isDeprecated(d)) {
+                unreachable.add(new Method(graph.file(d), graph.name(d), graph.line(d)));
+            }
+        }
+        return new Result(graph.getFileCount(), methods, graph.getEdgeCount(), rootCount, unreachable,
+                incremental, changedFiles.length, graphMillis, propagationMicros);
+    }
+
+    private FileRoots fileRoots(CallGraph graph, int fileId, EntryPoints entryPoints) throws IOException {
+        String key = graph.fileName(fileId);
+        FileRoots cached = rootCache.get(key);
+        if (cached != null && cached.version == graph.fileVersion(fileId)) {
+            return cached;
+        }
+        int first = graph.firstDeclaration(fileId);
+        int end = graph.firstDeclaration(fileId + 1);
+
+        boolean servlet = false;
+        for (int d = first; d < end && !servlet; d++) {
+            servlet = graph.isClass(d) && entryPoints.servletClasses.contains(graph.name(d));
+        }
+        String[] lines = null;
+        if (!entryPoints.apiPackages.isEmpty()) {
+            String[] content = Files.readString(projectRoot.resolve(key)).split("\n");
+            if (entryPoints.isApiPackage(DeprecationUtility.packageOf(content))) {
+                lines = content;
+            }
+        }
+
+        IntArray offsets = new IntArray();
+        for (int d = first; d < end; d++) {
+            if (graph.isClass(d)) {
+                continue;
+            }
+            if (servlet || entryPoints.methodNames.contains(graph.name(d))
+                    || (lines != null && graph.line(d) < lines.length
+                        && DeprecationUtility.declaredModifiers(lines[graph.line(d)]).contains("public"))) {
+                offsets.add(d - first);
+            }
+        }
+        FileRoots roots = new FileRoots(graph.fileVersion(fileId), offsets.toArray());
+        rootCache.put(key, roots);
+        return roots;
+    }
+
+    /**
+     * Files of the new graph that are new or whose content changed since the last computation
+     */
+    private int[] changedFiles(CallGraph graph) {
+        if (lastGraph == null) {
+            return new int[0];
+        }
+        Map<String, Long> lastVersions = new HashMap<>(lastGraph.getFileCount() * 2);
+        for (int f = 0; f < lastGraph.getFileCount(); f++) {
+            lastVersions.put(lastGraph.fileName(f), lastGraph.fileVersion(f));
+        }
+        IntArray changed = new IntArray();
+        for (int f = 0; f < graph.getFileCount(); f++) {
+            Long version = lastVersions.get(graph.fileName(f));
+            if (version == null || version != graph.fileVersion(f)) {
+                changed.add(f);
+            }
+        }
+        return changed.toArray();
+    }
+
+    /**
+     * Whether the last fixpoint still holds in the new graph. It does when every call made from a reached
+     * method of a changed or removed file is still made in its new version, from a method of the same
+     * name (and from an entry point if it was made from one). Every chain of calls from an entry point
+     * then still exists, so nothing reached before has become unreachable.
+     */
+    private boolean monotone(CallGraph graph, long[] roots, int[] changedFiles) {
+        Map<String, Integer> current = new HashMap<>(changedFiles.length * 2);
+        for (int f : changedFiles) {
+            current.put(graph.fileName(f), f);
+        }
+        Set<String> present = new HashSet<>(graph.getFileCount() * 2);
+        for (int f = 0; f < graph.getFileCount(); f++) {
+            present.add(graph.fileName(f));
+        }
+
+        for (int old = 0; old < lastGraph.getFileCount(); old++) {
+            String key = lastGraph.fileName(old);
+            Integer now = current.get(key);
+            if (now == null && present.contains(key)) {
+                continue;
+            }
+            Set<Long> before = new HashSet<>();
+            int end = lastGraph.firstDeclaration(old + 1);
+            for (int d = lastGraph.firstDeclaration(old); d < end; d++) {
+                boolean root = get(lastRoots, d);
+                if (root || get(lastReachedNames, lastGraph.nameId(d))) {
+                    addCalls(before, lastGraph, d, root);
+                }
+            }
+            if (before.isEmpty()) {
+                continue;
+            }
+            if (now == null) {
+                return false;
+            }
+            Set<Long> after = new HashSet<>();
+            end = graph.firstDeclaration(now + 1);
+            for (int d = graph.firstDeclaration(now); d < end; d++) {
+                addCalls(after, graph, d, false);
+                if (get(roots, d)) {
+                    addCalls(after, graph, d, true);
+                }
+            }
+            if (!after.containsAll(before)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addCalls(Set<Long> calls, CallGraph graph, int declaration, boolean fromRoot) {
+        for (int i = 0; i < graph.calleeCount(declaration); i++) {
+            calls.add((fromRoot ? 1L << 62 : 0L) | ((long) graph.nameId(declaration) << 31) | graph.callee(declaration, i));
+        }
+    }
+
+    /**
+     * Names still to expand. A name is pushed once, when its bit is first set.
+     */
+    private static class Worklist {
+        private final long[] reached;
+        private int[] stack = new int[1024];
+        private int size;
+
+        Worklist(long[] reached) {
+            this.reached = reached;
+        }
+
+        void reachCallees(CallGraph graph, int declaration) {
+            for (int i = 0; i < graph.calleeCount(declaration); i++) {
+                int name = graph.callee(declaration, i);
+                if (!get(reached, name)) {
+                    set(reached, name);
+                    if (size == stack.length) {
+                        stack = Arrays.copyOf(stack, size * 2);
+                    }
+                    stack[size++] = name;
+                }
+            }
+        }
+
+        void propagate(CallGraph graph) {
+            while (size > 0) {
+                int name = stack[--size];
+                for (int i = 0; i < graph.declarationCountOf(name); i++) {
+                    reachCallees(graph, graph.declarationOf(name, i));
+                }
+            }
+        }
+    }
+
+    private static int words(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    private static boolean get(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private static void set(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private static class IntArray {
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    /**
+     * An unreachable method: file relative to the project root, name and zero-based line
+     */
+    public static class Method {
+        final String file;
+        final String name;
+        final int line;
+
+        Method(String file, String name, int line) {
+            this.file = file;
+            this.name = name;
+            this.line = line;
+        }
+    }
+
+    public static class Result {
+        private final int files;
+        private final int methods;
+        private final int edges;
+        private final int entryPoints;
+        private final List<Method> unreachable;
+        private final boolean incremental;
+        private final int changedFiles;
+        private final long graphMillis;
+        private final long propagationMicros;
+
+        Result(int files, int methods, int edges, int entryPoints, List<Method> unreachable, boolean incremental,
+               int changedFiles, long graphMillis, long propagationMicros) {
+            this.files = files;
+            this.methods = methods;
+            this.edges = edges;
+            this.entryPoints = entryPoints;
+            this.unreachable = unreachable;
+            this.incremental = incremental;
+            this.changedFiles = changedFiles;
+            this.graphMillis = graphMillis;
+            this.propagationMicros = propagationMicros;
+        }
+
+        /**
+         * The unreachable methods grouped by file, as declaration lines by name
+         */
+        Map<Path, Map<Integer, String>> unreachableByFile(Path projectRoot) {
+            Map<Path, Map<Integer, String>> byFile = new LinkedHashMap<>();
+            for (Method method : unreachable) {
+                byFile.computeIfAbsent(projectRoot.resolve(method.file), k -> new TreeMap<>()).put(method.line, method.name);
+            }
+            return byFile;
+        }
+
+        public String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{");
+            json.append("\"success\":true,");
+            json.append("\"files\":").append(files).append(",");
+            json.append("\"methods\":").append(methods).append(",");
+            json.append("\"callEdges\":").append(edges).append(",");
+            json.append("\"entryPoints\":").append(entryPoints).append(",");
+            json.append("\"incremental\":").append(incremental).append(",");
+            json.append("\"changedFiles\":").append(changedFiles).append(",");
+            json.append("\"graphMillis\":").append(graphMillis).append(",");
+            json.append("\"propagationMicros\":").append(propagationMicros).append(",");
+            json.append("\"unreachableCount\":").append(unreachable.size()).append(",");
+            json.append("\"unreachable\":[");
+            for (int i = 0; i < unreachable.size(); i++) {
+                Method method = unreachable.get(i);
+                if (i > 0) {
+                    json.append(",");
+                }
+                json.append("{\"file\":\"").append(WebServer.jsonEscape(method.file)).append("\",");
+                json.append("\"line\":").append(method.line + 1).append(",");
+                json.append("\"methodName\":\"").append(method.name).append("\"}");
+            }
+            json.append("]}");
+            return json.toString();
+        }
+
+        /**
+         * One compiler-style line per unreachable method
+         */
+        public String toText() {
+            StringBuilder text = new StringBuilder();
+            for (Method method : unreachable) {
+                text.append(method.file).append(":").append(method.line + 1).append(": unreachable method ")
+                    .append(method.name).append("()\n");
+            }
+            text.append(unreachable.size()).append(" of ").append(methods).append(" method(s) unreachable from ")
+                .append(entryPoints).append(" entry point(s)");
+            return text.toString();
+        }
+
+        public int getUnreachableCount() { return unreachable.size(); }
+        public boolean isIncremental() { return incremental; }
+    }
+}
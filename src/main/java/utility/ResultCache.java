@@ -0,0 +1,141 @@
+package utility;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.ToLongFunction;
+
+/**
+ * Results of read-only queries, kept for as long as the project they were computed on is unchanged.
+ *
+ * An entry is keyed by the project and the query and remembers the content version of the project
+ * ({@link ProjectVersion}) it was computed against; it is only returned while the project still has
+ * that version, so a hit costs a map lookup once the project is known to be unchanged. A result is
+ * only kept when the version was the same before and after it was computed, so a query that raced
+ * with an edit is never cached. Queries on content that cannot change, such as a git commit, are
+ * keyed by its id instead and need no version. The cache is bounded by the estimated size of its results,
+ * <code>-Ddeprecation.resultCache.bytes</code> (32 MB by default), and evicts the least recently used.
+ */
+final class ResultCache {
+
+    private static final ResultCache SHARED = new ResultCache(Long.getLong("deprecation.resultCache.bytes", 32L << 20));
+
+    private final long capacityBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long sizeBytes;
+    private long hits;
+    private long misses;
+
+    ResultCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * The cache shared by the servers of this JVM
+     */
+    static ResultCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * The cached result of a query on a project, or else the computed one. The weigher estimates the
+     * size of a result in bytes, or returns a negative size for a result that must not be kept, such as
+     * that of a run that changed files.
+     */
+    <T> T get(Path projectRoot, String query, Callable<T> compute, ToLongFunction<T> weigher) throws Exception {
+        ProjectVersion project = ProjectVersion.of(projectRoot);
+        String key = projectRoot.toAbsolutePath().normalize() + "\n" + query;
+        long version = project.current();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.version == version) {
+                hits++;
+                @SuppressWarnings("unchecked")
+                T value = (T) entry.value;
+                return value;
+            }
+            misses++;
+        }
+
+        T value = compute.call();
+        long weight = weigher.applyAsLong(value);
+        if (weight >= 0 && weight <= capacityBytes && project.current() == version) {
+            put(key, new Entry(version, value, weight + key.length() * 2L));
+        }
+        return value;
+    }
+
+    /**
+     * The cached result of a query on content that never changes, identified by an id such as that of
+     * a commit, or else the computed one. Nothing on disk is looked at.
+     */
+    <T> T getFixed(String contentId, String query, Callable<T> compute, ToLongFunction<T> weigher) throws Exception {
+        String key = contentId + "\n" + query;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                @SuppressWarnings("unchecked")
+                T value = (T) entry.value;
+                return value;
+            }
+            misses++;
+        }
+
+        T value = compute.call();
+        long weight = weigher.applyAsLong(value);
+        if (weight >= 0 && weight <= capacityBytes) {
+            put(key, new Entry(0, value, weight + key.length() * 2L));
+        }
+        return value;
+    }
+
+    /**
+     * Cache key of a query made of the given parts, nulls included
+     */
+    static String query(String... parts) {
+        StringBuilder key = new StringBuilder();
+        for (String part : parts) {
+            key.append(part == null ? "\u0001" : part).append('\u0000');
+        }
+        return key.toString();
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            sizeBytes -= previous.weight;
+        }
+        sizeBytes += entry.weight;
+        for (Iterator<Entry> eldest = entries.values().iterator(); sizeBytes > capacityBytes && eldest.hasNext(); ) {
+            sizeBytes -= eldest.next().weight;
+            eldest.remove();
+        }
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    private static class Entry {
+        final long version;
+        final Object value;
+        final long weight;
+
+        Entry(long version, Object value, long weight) {
+            this.version = version;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package utility;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Deprecates a method in a very large project with several worker JVMs, so that no single heap has to
+ * hold the index of the whole project.
+ *
+ * The coordinator partitions the sources by directory. Top-level directories, the modules of a
+ * multi-module build, stay together; a directory with more than a shard's share of the files is split
+ * along its subdirectories. The groups are packed into shards of about the same size, and every shard
+ * is handed to a worker JVM started from the same class path. A worker keeps the index of its files in
+ * a file of its own in the state directory, so the next run with the same number of shards starts warm.
+ *
+ * A run takes two passes. In the first, every worker marks the method in its files and reports the
+ * names the marked declarations call. These call-site facts cross shards: a method marked in one module
+ * may call methods declared in another. The coordinator sends the union of the names to every worker,
+ * and in the second pass each worker deprecates the called methods in its files and runs the class pass
+ * over the files it updated, exactly as {@link DeprecationUtility#deprecateMethodWithResult} does in one
+ * JVM. The counts are added up into one result, and the journals of the workers are combined into one
+ * run, which is undone as a whole.
+ *
+ * Coordinator and workers only talk over the standard input and output of the worker processes, one
+ * tab-separated message per line, escaped like the journal.
+ *
+ * The locks of a worker only exist in its own process, so the coordinator holds the write lock of the
+ * project for the whole run, from listing the sources to merging the journals. Runs of the JVM that
+ * coordinates, such as the API runs of a server forwarding a sharded command, wait meanwhile.
+ *
+ * Usage: java utility.ShardedDeprecation <project_path> <method_name> [method_signature] [--shards N]
+ *        [--worker-heap 512m] [marker options]
+ */
+public class ShardedDeprecation {
+
+    static final String SHARD_DIR = ".deprecation/shards";
+    static final String TREE_INDEX = SHARD_DIR + "/tree.index";
+    private static final String WORKER = "--worker";
+    private static final String[] MARKER_OPTIONS = {"markers", "since", "replacement", "team", "marker-template"};
+
+    public static void main(String[] args) {
+        if (args.length == 1 && WORKER.equals(args[0])) {
+            System.exit(Worker.serve(System.in, System.out));
+        }
+        System.exit(run(args, System.out, System.err));
+    }
+
+    static int run(String[] args, PrintStream out, PrintStream err) {
+        if (args.length < 2) {
+            out.println("Usage: java utility.ShardedDeprecation <project_path> <method_name> [method_signature] [--shards N] "
+                    + "[--worker-heap 512m] [marker options]");
+            return 1;
+        }
+
+        String projectPath = args[0];
+        String methodName = args[1];
+        int optionsStart = 2;
+        while (optionsStart < args.length && !args[optionsStart].startsWith("--")) {
+            optionsStart++;
+        }
+        String methodSignature = optionsStart > 2 ? args[2] : null;
+
+        try {
+            Map<String, String> options = DeprecationAnalyzer.parseOptions(args, optionsStart);
+            int shards = Integer.parseInt(options.getOrDefault("shards",
+                    String.valueOf(Math.max(2, Runtime.getRuntime().availableProcessors()))));
+            Map<String, String> markerOptions = new LinkedHashMap<>();
+            for (String option : MARKER_OPTIONS) {
+                if (options.get(option) != null) {
+                    markerOptions.put(option, options.get(option));
+                }
+            }
+            WebServer.DeprecationResult result = deprecate(Paths.get(projectPath), methodName, methodSignature,
+                    shards, options.get("worker-heap"), markerOptions);
+            out.print(result.getDetails());
+            if (result.getRunId() != null) {
+                out.println("Revert with --undo " + projectPath + " " + result.getRunId());
+            }
+            return 0;
+        } catch (Exception e) {
+            err.println("Error during sharded deprecation: " + e.getMessage());
+            e.printStackTrace(err);
+            return 1;
+        }
+    }
+
+    /**
+     * Deprecate a method, the methods it calls and the classes left fully deprecated, with one worker JVM
+     * per shard. A null method name runs only the class pass. Worker heaps are limited to workerHeap
+     * (a -Xmx value) when it is given.
+     */
+    public static WebServer.DeprecationResult deprecate(Path projectRoot, String methodName, String methodSignature, int shardCount,
+                                                        String workerHeap, Map<String, String> markerOptions) throws IOException {
+        Path root = projectRoot.toAbsolutePath().normalize();
+        Lock projectLock = ProjectLockManager.getInstance().projectWriteLock(root);
+        projectLock.lock();
+        try {
+            return deprecateLocked(root, methodName, methodSignature, shardCount, workerHeap, markerOptions);
+        } finally {
+            projectLock.unlock();
+        }
+    }
+
+    private static WebServer.DeprecationResult deprecateLocked(Path root, String methodName, String methodSignature, int shardCount,
+                                                               String workerHeap, Map<String, String> markerOptions) throws IOException {
+        boolean methodRun = methodName != null && !methodName.trim().isEmpty();
+
+        // the coordinator only needs the list of sources; an index without entries remembers the tree
+        SourceIndex tree = SourceIndex.load(root, TREE_INDEX);
+        List<Path> javaFiles = DeprecationUtility.projectFiles(root, tree);
+        tree.save();
+        List<List<Path>> partition = partition(root, javaFiles, shardCount);
+
+        DeprecationEvents.Run run = DeprecationEvents.beginRun();
+        List<Shard> shards = new ArrayList<>();
+        IOException failure = null;
+        try {
+            for (int s = 0; s < partition.size(); s++) {
+                shards.add(Shard.start(root, s, partition.size(), partition.get(s), workerHeap, markerOptions,
+                        methodRun ? methodName : null, methodSignature));
+            }
+            Set<String> calledMethods = new TreeSet<>();
+            for (Shard shard : shards) {
+                shard.awaitMethodPass(calledMethods);
+            }
+            for (Shard shard : shards) {
+                shard.startCompletion(calledMethods);
+            }
+            for (Shard shard : shards) {
+                shard.awaitCompletion();
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            for (Shard shard : shards) {
+                shard.close();
+            }
+        }
+
+        List<String> runIds = new ArrayList<>();
+        for (Shard shard : shards) {
+            runIds.add(shard.runId);
+        }
+        String runId = DeprecationJournal.merge(root, runIds);
+        if (failure != null) {
+            throw new IOException(failure.getMessage()
+                    + (runId != null ? " (the edits made so far are journaled as run " + runId + ")" : ""), failure);
+        }
+
+        int filesUpdated = 0;
+        int methodsDeprecated = 0;
+        int classesDeprecated = 0;
+        StringBuilder details = new StringBuilder();
+        if (methodRun) {
+            details.append("Starting deprecation process for method: ").append(methodName).append("\n");
+        }
+        if (methodSignature != null && !methodSignature.trim().isEmpty()) {
+            details.append("Method signature: ").append(methodSignature).append("\n");
+        }
+        details.append("Project path: ").append(root).append("\n");
+        details.append("Sharded over ").append(shards.size()).append(" worker process(es)\n\n");
+        for (Shard shard : shards) {
+            details.append(shard.methodDetails);
+            filesUpdated += shard.filesUpdated;
+            methodsDeprecated += shard.methodsDeprecated;
+            classesDeprecated += shard.classesDeprecated;
+        }
+        details.append("\n");
+        details.append("Checking for classes that can be deprecated...\n");
+        for (Shard shard : shards) {
+            details.append(shard.classDetails);
+        }
+        DeprecationEvents.commit(run, root, methodRun ? "method" : "classes", methodRun ? methodName : null,
+                javaFiles.size(), filesUpdated, methodsDeprecated, classesDeprecated);
+
+        details.append("\nDeprecation process completed successfully!\n");
+        details.append("Total files updated: ").append(filesUpdated).append("\n");
+        details.append("Total methods deprecated: ").append(methodsDeprecated).append("\n");
+        details.append("Total classes deprecated: ").append(classesDeprecated).append("\n");
+        if (runId != null) {
+            details.append("Run id: ").append(runId).append("\n");
+        }
+        return new WebServer.DeprecationResult(true, filesUpdated, methodsDeprecated, classesDeprecated, details.toString(), null, runId);
+    }
+
+    /**
+     * Split the sources into at most shardCount shards of about the same size. Directories stay together
+     * unless they hold more than a shard's share; the files of every shard keep the order of the list.
+     */
+    static List<List<Path>> partition(Path root, List<Path> javaFiles, int shardCount) {
+        int shards = Math.max(1, Math.min(shardCount, javaFiles.size()));
+        int share = (javaFiles.size() + shards - 1) / shards;
+        List<List<Path>> groups = new ArrayList<>();
+        split(root, javaFiles, 0, share, groups);
+
+        // largest group first into the smallest shard
+        groups.sort((a, b) -> Integer.compare(b.size(), a.size()));
+        List<Set<Path>> members = new ArrayList<>();
+        int[] sizes = new int[shards];
+        for (int s = 0; s < shards; s++) {
+            members.add(new HashSet<>());
+        }
+        for (List<Path> group : groups) {
+            int smallest = 0;
+            for (int s = 1; s < shards; s++) {
+                if (sizes[s] < sizes[smallest]) {
+                    smallest = s;
+                }
+            }
+            members.get(smallest).addAll(group);
+            sizes[smallest] += group.size();
+        }
+
+        List<List<Path>> partition = new ArrayList<>();
+        for (Set<Path> shard : members) {
+            if (shard.isEmpty()) {
+                continue;
+            }
+            List<Path> files = new ArrayList<>(shard.size());
+            for (Path javaFile : javaFiles) {
+                if (shard.contains(javaFile)) {
+                    files.add(javaFile);
+                }
+            }
+            partition.add(files);
+        }
+        return partition;
+    }
+
+    /**
+     * Group files by their directory at the given depth below the root, splitting groups larger than the
+     * share along deeper directories. Files directly in a directory that is still too large are cut into
+     * chunks of the share.
+     */
+    private static void split(Path root, List<Path> files, int depth, int share, List<List<Path>> groups) {
+        if (files.size() <= share) {
+            groups.add(files);
+            return;
+        }
+        Map<String, List<Path>> byDirectory = new TreeMap<>();
+        List<Path> direct = new ArrayList<>();
+        for (Path file : files) {
+            Path relative = root.relativize(file);
+            if (relative.getNameCount() > depth + 1) {
+                byDirectory.computeIfAbsent(relative.getName(depth).toString(), k -> new ArrayList<>()).add(file);
+            } else {
+                direct.add(file);
+            }
+        }
+        for (List<Path> directory : byDirectory.values()) {
+            split(root, directory, depth + 1, share, groups);
+        }
+        for (int i = 0; i < direct.size(); i += share) {
+            groups.add(direct.subList(i, Math.min(direct.size(), i + share)));
+        }
+    }
+
+    private static void send(Writer out, String... fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                out.write('\t');
+            }
+            out.write(DeprecationJournal.escape(fields[i]));
+        }
+        out.write('\n');
+    }
+
+    private static String[] receive(BufferedReader in) throws IOException {
+        String line = in.readLine();
+        if (line == null) {
+            return null;
+        }
+        String[] fields = line.split("\t", -1);
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = DeprecationJournal.unescape(fields[i]);
+        }
+        return fields;
+    }
+
+    /**
+     * The coordinator's end of one worker process
+     */
+    private static class Shard implements Closeable {
+        private final int number;
+        private final Process process;
+        private final BufferedReader in;
+        private final Writer out;
+        final StringBuilder methodDetails = new StringBuilder();
+        final StringBuilder classDetails = new StringBuilder();
+        int filesUpdated;
+        int methodsDeprecated;
+        int classesDeprecated;
+        String runId;
+
+        private Shard(int number, Process process) {
+            this.number = number;
+            this.process = process;
+            this.in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Start the worker of a shard and send it the files and the method, which starts its first pass
+         */
+        static Shard start(Path root, int number, int count, List<Path> files, String workerHeap,
+                           Map<String, String> markerOptions, String methodName, String methodSignature) throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            if (workerHeap != null) {
+                command.add("-Xmx" + workerHeap);
+            }
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(ShardedDeprecation.class.getName());
+            command.add(WORKER);
+            Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+            Shard shard = new Shard(number, process);
+            try {
+                shard.sendRun(root, count, files, markerOptions, methodName, methodSignature);
+            } catch (IOException e) {
+                process.destroyForcibly();
+                throw new IOException("Worker of shard " + number + " did not start", e);
+            }
+            return shard;
+        }
+
+        private void sendRun(Path root, int count, List<Path> files, Map<String, String> markerOptions,
+                             String methodName, String methodSignature) throws IOException {
+            send(out, "root", root.toString());
+            send(out, "index", SHARD_DIR + "/" + count + "-" + number + ".index");
+            for (Map.Entry<String, String> option : markerOptions.entrySet()) {
+                send(out, "option", option.getKey(), option.getValue());
+            }
+            for (Path file : files) {
+                send(out, "file", root.relativize(file).toString());
+            }
+            if (methodName != null) {
+                send(out, "method", methodName, methodSignature != null ? methodSignature : "");
+            }
+            send(out, "pass1");
+            out.flush();
+        }
+
+        void awaitMethodPass(Set<String> calledMethods) throws IOException {
+            for (String[] message = next(); !message[0].equals("ok"); message = next()) {
+                switch (message[0]) {
+                    case "called": calledMethods.add(message[1]); break;
+                    case "methods": methodsDeprecated = Integer.parseInt(message[1]); break;
+                    case "details": methodDetails.append(message[1]); break;
+                    default: throw unexpected(message);
+                }
+            }
+        }
+
+        void startCompletion(Set<String> calledMethods) throws IOException {
+            for (String calledMethod : calledMethods) {
+                send(out, "called", calledMethod);
+            }
+            send(out, "pass2");
+            out.flush();
+        }
+
+        void awaitCompletion() throws IOException {
+            for (String[] message = next(); !message[0].equals("ok"); message = next()) {
+                switch (message[0]) {
+                    case "classes": classesDeprecated = Integer.parseInt(message[1]); break;
+                    case "files": filesUpdated = Integer.parseInt(message[1]); break;
+                    case "details": classDetails.append(message[1]); break;
+                    default: throw unexpected(message);
+                }
+            }
+        }
+
+        /**
+         * Next message of the worker. Its run id may come at any time and is kept; an error ends the run.
+         */
+        private String[] next() throws IOException {
+            String[] message;
+            while ((message = receive(in)) != null && message[0].equals("run")) {
+                runId = message[1];
+            }
+            if (message == null) {
+                throw new IOException("Worker of shard " + number + " exited unexpectedly");
+            }
+            if (message[0].equals("error")) {
+                throw new IOException("Worker of shard " + number + " failed: " + message[1]);
+            }
+            return message;
+        }
+
+        private IOException unexpected(String[] message) {
+            return new IOException("Unexpected message from the worker of shard " + number + ": " + message[0]);
+        }
+
+        @Override
+        public void close() {
+            try {
+                // a worker told to stop early still reports the run id of what it wrote
+                out.close();
+                String[] message;
+                while ((message = receive(in)) != null) {
+                    if (message[0].equals("run")) {
+                        runId = message[1];
+                    }
+                }
+                if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (IOException e) {
+                process.destroyForcibly();
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The worker side: one shard, one run, then the process exits
+     */
+    static class Worker {
+
+        static int serve(InputStream input, PrintStream protocol) {
+            // progress messages must not end up between the messages to the coordinator
+            System.setOut(System.err);
+            Writer out = new BufferedWriter(new OutputStreamWriter(protocol, StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+            DeprecationUtility utility = null;
+            try {
+                Path root = null;
+                String indexFile = null;
+                Map<String, String> markerOptions = new HashMap<>();
+                List<Path> files = new ArrayList<>();
+                String methodName = null;
+                String methodSignature = null;
+                for (String[] message = expect(in); !message[0].equals("pass1"); message = expect(in)) {
+                    switch (message[0]) {
+                        case "root": root = Paths.get(message[1]); break;
+                        case "index": indexFile = message[1]; break;
+                        case "option": markerOptions.put(message[1], message[2]); break;
+                        case "file": files.add(root.resolve(message[1])); break;
+                        case "method":
+                            methodName = message[1];
+                            methodSignature = message[2].isEmpty() ? null : message[2];
+                            break;
+                        default: throw new IOException("Unexpected message from the coordinator: " + message[0]);
+                    }
+                }
+
+                utility = new DeprecationUtility(root, SourceIndex.load(root, indexFile), files);
+                utility.setMarkers(markerOptions.get("markers"), markerOptions.get("since"), markerOptions.get("replacement"),
+                        markerOptions.get("team"), markerOptions.get("marker-template"));
+                Set<String> calledMethods = new TreeSet<>();
+                List<SourceIndex.FileEntry> probed = new ArrayList<>(files.size());
+                Set<Path> updatedFiles = new HashSet<>();
+                StringBuilder details = new StringBuilder();
+                int methodsDeprecated = 0;
+                if (methodName != null) {
+                    methodsDeprecated = utility.deprecateMethodsInShard(methodName, methodSignature, calledMethods, probed, details, updatedFiles);
+                }
+                for (String calledMethod : calledMethods) {
+                    send(out, "called", calledMethod);
+                }
+                send(out, "methods", String.valueOf(methodsDeprecated));
+                send(out, "details", details.toString());
+                send(out, "ok");
+                out.flush();
+
+                Set<String> allCalledMethods = new TreeSet<>();
+                for (String[] message = expect(in); !message[0].equals("pass2"); message = expect(in)) {
+                    if (!message[0].equals("called")) {
+                        throw new IOException("Unexpected message from the coordinator: " + message[0]);
+                    }
+                    allCalledMethods.add(message[1]);
+                }
+                details.setLength(0);
+                int classesDeprecated = utility.completeShard(methodName != null, allCalledMethods, probed, details, updatedFiles);
+                if (utility.getRunId() != null) {
+                    send(out, "run", utility.getRunId());
+                }
+                send(out, "classes", String.valueOf(classesDeprecated));
+                send(out, "files", String.valueOf(updatedFiles.size()));
+                send(out, "details", details.toString());
+                send(out, "ok");
+                out.flush();
+                return 0;
+            } catch (Exception e) {
+                e.printStackTrace(System.err);
+                try {
+                    if (utility != null && utility.getRunId() != null) {
+                        send(out, "run", utility.getRunId());
+                    }
+                    send(out, "error", e.getMessage() != null ? e.getMessage() : e.toString());
+                    out.flush();
+                } catch (IOException ignored) {
+                    // the coordinator is gone
+                }
+                return 1;
+            }
+        }
+
+        private static String[] expect(BufferedReader in) throws IOException {
+            String[] message = receive(in);
+            if (message == null) {
+                throw new IOException("The coordinator closed the connection");
+            }
+            return message;
+        }
+    }
+}
@@ -0,0 +1,987 @@
+package utility;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Matcher;
+
+/**
+ * Per-file declaration metadata of a project, computed in a single parse pass and cached on disk.
+ *
+ * For every method and class declaration the index keeps its name, line, whether it is already
+ * <code>@Deprecated</code>, and a fingerprint (one hash per line) of the annotation and comment block
+ * above it. The insertion engine compares its rendered markers against that fingerprint, so a rule
+ * that has already been applied is recognized without reading the file again. For methods it also
+ * keeps the distinct names called from the body. Entries are keyed by path and revalidated with the
+ * file size and modification time.
+ *
+ * Names are interned in one {@link SymbolTable} per index and a file entry is four primitive arrays,
+ * so the heap cost grows with the number of files and declarations, not with the number of objects.
+ *
+ * Parsing is lazy. Every entry carries an {@link IdentifierFilter} of the file, and {@link #probe}
+ * only builds that filter, which takes a byte scan instead of the line-by-line parse. Callers probe
+ * all files and parse, with {@link #refresh}, only those whose filter may contain the name they look
+ * for; entries of files that were never parsed keep just the filter. A probe also records whether the
+ * file has a class without methods, which the class pass deprecates in every file, with a scan that
+ * runs the declaration patterns only on the lines that can match them.
+ *
+ * The index doubles as a snapshot of the source tree: it records the list of sources and the
+ * modification time of every directory they were found in. As long as no directory changed, no file
+ * was added, removed or renamed, and a run can start from that list instead of walking the tree. The
+ * file is read with one channel read and decoded with bulk reads, so a warm start costs a few
+ * milliseconds. It is not mapped: every record is copied onto the heap anyway, and a mapped file
+ * could not be replaced by {@link #save} on Windows.
+ *
+ * Every entry also keeps a hash of the file content, and the hashes form a Merkle tree whose root,
+ * {@link #contentVersion()}, identifies the content of the indexed sources as a whole.
+ */
+public class SourceIndex {
+
+    static final String INDEX_FILE = ".deprecation/index";
+    private static final int MAGIC = 0x44455049;
+    private static final int VERSION = 6;
+
+    static final byte METHOD = 1;
+    static final byte CLASS = 2;
+
+    private static final ProjectRegistry<SourceIndex> SHARED = new ProjectRegistry<>(ProjectRegistry.MAX_PROJECTS,
+            SourceIndex::load, index -> { });
+
+    private final Path projectRoot;
+    private final Path indexFile;
+    private final Map<String, FileEntry> entries;
+    private final SymbolTable symbols;
+    private ContentTree contentTree;
+    private List<String> sources;
+    private Map<String, Long> directories;
+    private boolean dirty;
+    private int filesParsed;
+
+    private SourceIndex(Path projectRoot, String indexFile) {
+        this.projectRoot = projectRoot.toAbsolutePath().normalize();
+        this.indexFile = this.projectRoot.resolve(indexFile);
+        this.entries = new HashMap<>();
+        this.symbols = new SymbolTable();
+        this.contentTree = new ContentTree();
+        this.sources = new ArrayList<>();
+        this.directories = new HashMap<>();
+    }
+
+    /**
+     * The index of a project shared by every run in this JVM, loaded on first use. A server or daemon
+     * thereby keeps the parsed state of each project warm between requests; the indexes of the projects
+     * least recently used are dropped, see {@link ProjectRegistry}. Runs that still hold a dropped index
+     * finish with it and save it as usual.
+     */
+    public static SourceIndex shared(Path projectRoot) {
+        return SHARED.get(projectRoot);
+    }
+
+    /**
+     * The shared index of a project if this JVM has already loaded it, otherwise null
+     */
+    static SourceIndex loaded(Path projectRoot) {
+        return SHARED.getIfPresent(projectRoot);
+    }
+
+    /**
+     * Drop the indexes of every project, as when the web application stops
+     */
+    static void releaseAll() {
+        SHARED.clear();
+    }
+
+    /**
+     * Load the cached index of a project, or start an empty one when there is none or it is unreadable
+     */
+    public static SourceIndex load(Path projectRoot) {
+        return load(projectRoot, INDEX_FILE);
+    }
+
+    /**
+     * Load an index kept in another file of the project, as the shards of a sharded run each keep the
+     * index of their own files
+     */
+    static SourceIndex load(Path projectRoot, String indexFile) {
+        SourceIndex index = new SourceIndex(projectRoot, indexFile);
+        if (Files.isRegularFile(index.indexFile)) {
+            try (FileChannel channel = FileChannel.open(index.indexFile, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(channel.size()));
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // read until full; a file cut short fails in read below
+                }
+                buffer.flip();
+                index.read(buffer);
+            } catch (IOException | RuntimeException e) {
+                index.entries.clear();
+                index.contentTree = new ContentTree();
+                index.sources.clear();
+                index.directories.clear();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * The sources recorded with {@link #recordTree}, or null when the tree may have changed since,
+     * in which case the caller walks the tree again
+     */
+    public synchronized List<Path> snapshotFiles() {
+        if (directories.isEmpty()) {
+            return null;
+        }
+        for (Map.Entry<String, Long> directory : directories.entrySet()) {
+            try {
+                if (Files.getLastModifiedTime(projectRoot.resolve(directory.getKey())).toMillis() != directory.getValue()) {
+                    return null;
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        List<Path> files = new ArrayList<>(sources.size());
+        for (String source : sources) {
+            files.add(projectRoot.resolve(source));
+        }
+        return files;
+    }
+
+    /**
+     * Keep the snapshot of a directory valid after one of its files was replaced by a rewrite, which
+     * changes the modification time of the directory. The time is carried over only when the directory
+     * had the recorded time when the rewrite started.
+     */
+    public synchronized void recordRewrite(Path directory, long timeBefore) throws IOException {
+        String key = keyOf(directory);
+        Long recorded = directories.get(key);
+        if (recorded != null && recorded == timeBefore) {
+            directories.put(key, Files.getLastModifiedTime(directory).toMillis());
+            dirty = true;
+        }
+    }
+
+    /**
+     * Remember the sources found by a tree walk and the modification times of the directories walked
+     */
+    public synchronized void recordTree(List<Path> files, Map<Path, Long> directoryTimes) {
+        List<String> keys = new ArrayList<>(files.size());
+        for (Path file : files) {
+            keys.add(keyOf(file));
+        }
+        Map<String, Long> times = new HashMap<>();
+        for (Map.Entry<Path, Long> directory : directoryTimes.entrySet()) {
+            times.put(keyOf(directory.getKey()), directory.getValue());
+        }
+        if (!keys.equals(sources) || !times.equals(directories)) {
+            sources = keys;
+            directories = times;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Entry of a file that is at least filtered: its identifier filter is current, its declarations
+     * may not have been parsed yet. Scans the file only when its size or modification time changed.
+     */
+    public FileEntry probe(Path file) throws IOException {
+        String key = keyOf(file);
+        long size = Files.size(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+
+        synchronized (this) {
+            FileEntry entry = entries.get(key);
+            if (entry != null && entry.size == size && entry.modified == modified) {
+                return entry;
+            }
+        }
+        FileEntry entry;
+        MemoryGovernor.Reservation reservation = MemoryGovernor.shared().reserve(size);
+        try {
+            DeprecationEvents.FileRead read = DeprecationEvents.beginFileRead();
+            byte[] bytes = Files.readAllBytes(file);
+            DeprecationEvents.commit(read, file, bytes.length, "filter");
+            entry = new FileEntry(size, modified, IdentifierFilter.hash(bytes, 0, bytes.length), IdentifierFilter.build(bytes),
+                    hasClassWithoutMethods(new String(bytes, StandardCharsets.UTF_8).split("\n")));
+        } finally {
+            reservation.close();
+        }
+        synchronized (this) {
+            putEntry(key, entry);
+            dirty = true;
+        }
+        return entry;
+    }
+
+    /**
+     * Parsed metadata of a file, parsed again only when its size or modification time changed
+     */
+    public FileEntry refresh(Path file) throws IOException {
+        String key = keyOf(file);
+        long size = Files.size(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+
+        synchronized (this) {
+            FileEntry entry = entries.get(key);
+            if (entry != null && entry.parsed && entry.size == size && entry.modified == modified) {
+                return entry;
+            }
+        }
+        MemoryGovernor.Reservation reservation = MemoryGovernor.shared().reserve(size * MemoryGovernor.SOURCE_FACTOR);
+        try {
+            DeprecationEvents.FileRead read = DeprecationEvents.beginFileRead();
+            byte[] bytes = Files.readAllBytes(file);
+            DeprecationEvents.commit(read, file, bytes.length, "parse");
+            return store(key, new String(bytes, StandardCharsets.UTF_8), bytes, size, modified);
+        } finally {
+            reservation.close();
+        }
+    }
+
+    /**
+     * Parsed metadata of a file whose bytes were just read, parsed again unless the entry was parsed
+     * from the same bytes
+     */
+    public FileEntry refresh(Path file, byte[] bytes) throws IOException {
+        String key = keyOf(file);
+        long hash = IdentifierFilter.hash(bytes, 0, bytes.length);
+        synchronized (this) {
+            FileEntry entry = entries.get(key);
+            if (entry != null && entry.parsed && entry.size == bytes.length && entry.contentHash == hash) {
+                return entry;
+            }
+        }
+        MemoryGovernor.Reservation reservation = MemoryGovernor.shared().reserve((long) bytes.length * MemoryGovernor.SOURCE_FACTOR);
+        try {
+            return store(key, new String(bytes, StandardCharsets.UTF_8), bytes, bytes.length,
+                    Files.getLastModifiedTime(file).toMillis());
+        } finally {
+            reservation.close();
+        }
+    }
+
+    /**
+     * Parse outside of the index lock, against a symbol table of the file's own, so that files are
+     * parsed in parallel; only merging the names into the index is serialized
+     */
+    private FileEntry store(String key, String content, byte[] bytes, long size, long modified) {
+        FileEntry parsed = parse(content, new SymbolTable(), size, modified,
+                IdentifierFilter.hash(bytes, 0, bytes.length), IdentifierFilter.build(bytes));
+        synchronized (this) {
+            FileEntry entry = parsed.withSymbols(symbols);
+            putEntry(key, entry);
+            dirty = true;
+            filesParsed++;
+            return entry;
+        }
+    }
+
+    /**
+     * Drop the entries of files that are no longer part of the project
+     */
+    public synchronized void retain(Collection<Path> files) {
+        Set<String> keys = new HashSet<>();
+        for (Path file : files) {
+            keys.add(keyOf(file));
+        }
+        for (Iterator<String> iterator = entries.keySet().iterator(); iterator.hasNext(); ) {
+            String key = iterator.next();
+            if (!keys.contains(key)) {
+                iterator.remove();
+                contentTree.remove(key);
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Drop the entry of a file that was deleted
+     */
+    public synchronized void remove(Path file) {
+        String key = keyOf(file);
+        if (entries.remove(key) != null) {
+            contentTree.remove(key);
+            dirty = true;
+        }
+    }
+
+    private void putEntry(String key, FileEntry entry) {
+        entries.put(key, entry);
+        contentTree.put(key, entry.contentHash);
+    }
+
+    /**
+     * Version of the indexed content: the root hash of a Merkle tree over the content hashes of the
+     * files, equal for two states of the project exactly when every indexed file has the same bytes
+     */
+    public synchronized long contentVersion() {
+        return contentTree.root();
+    }
+
+    /**
+     * The directories recorded with {@link #recordTree}
+     */
+    public synchronized List<Path> snapshotDirectories() {
+        List<Path> paths = new ArrayList<>(directories.size());
+        for (String directory : directories.keySet()) {
+            paths.add(projectRoot.resolve(directory));
+        }
+        return paths;
+    }
+
+    /**
+     * Call graph over the indexed entries of the given files. File ids of the graph are positions in the
+     * list, file versions the content hashes.
+     */
+    public synchronized CallGraph callGraph(List<Path> files) throws IOException {
+        CallGraph.Builder builder = new CallGraph.Builder(symbols);
+        for (Path file : files) {
+            FileEntry entry = refresh(file);
+            int fileId = builder.addFile(keyOf(file), entry.contentHash);
+            for (int i = 0; i < entry.declarationCount(); i++) {
+                int record = i * FileEntry.FIELDS;
+                int flags = (entry.records[record] & FileEntry.DEPRECATED_FLAG) != 0 ? CallGraph.DEPRECATED : 0;
+                if ((entry.records[record] & 0xff) == CLASS) {
+                    flags |= CallGraph.CLASS;
+                }
+                builder.addDeclaration(fileId, entry.records[record + 1], entry.records[record + 2], flags,
+                        entry.callees, entry.records[record + 6], entry.records[record + 7]);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Size of the indexed sources, for estimating the cost of a job: the number of files, their bytes,
+     * and the bytes of the files whose filter may contain a name (all of them when the name is null).
+     * Only looks at the entries in memory, no file is touched.
+     */
+    synchronized Footprint footprint(String name) {
+        long bytes = 0;
+        long candidateBytes = 0;
+        for (FileEntry entry : entries.values()) {
+            bytes += entry.size;
+            if (name == null || entry.mayContain(name)) {
+                candidateBytes += entry.size;
+            }
+        }
+        return new Footprint(entries.size(), bytes, candidateBytes);
+    }
+
+    static class Footprint {
+        final int files;
+        final long bytes;
+        final long candidateBytes;
+
+        Footprint(int files, long bytes, long candidateBytes) {
+            this.files = files;
+            this.bytes = bytes;
+            this.candidateBytes = candidateBytes;
+        }
+    }
+
+    public synchronized int getFilesParsed() {
+        return filesParsed;
+    }
+
+    /**
+     * Persist the index if anything changed since it was loaded
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        Files.createDirectories(indexFile.getParent());
+        // concurrent runs on the same project each save their own copy, the last move wins
+        Path temp = Files.createTempFile(indexFile.getParent(), "index", ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            write(out);
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    private String keyOf(Path file) {
+        return projectRoot.relativize(file.toAbsolutePath().normalize()).toString();
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(symbols.size());
+        for (int i = 0; i < symbols.size(); i++) {
+            writeString(out, symbols.name(i));
+        }
+        out.writeInt(entries.size());
+        for (Map.Entry<String, FileEntry> entry : entries.entrySet()) {
+            FileEntry file = entry.getValue();
+            writeString(out, entry.getKey());
+            out.writeLong(file.size);
+            out.writeLong(file.modified);
+            out.writeLong(file.contentHash);
+            out.writeBoolean(file.parsed);
+            out.writeBoolean(file.classWithoutMethods);
+            writeLongs(out, file.identifiers);
+            if (file.parsed) {
+                writeInts(out, file.records);
+                writeLongs(out, file.blockHashes);
+                writeInts(out, file.callees);
+            }
+        }
+        out.writeInt(sources.size());
+        for (String source : sources) {
+            writeString(out, source);
+        }
+        out.writeInt(directories.size());
+        for (Map.Entry<String, Long> directory : directories.entrySet()) {
+            writeString(out, directory.getKey());
+            out.writeLong(directory.getValue());
+        }
+    }
+
+    private void read(ByteBuffer in) {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            return;
+        }
+        int symbolCount = in.getInt();
+        for (int i = 0; i < symbolCount; i++) {
+            symbols.intern(readString(in));
+        }
+        int files = in.getInt();
+        for (int i = 0; i < files; i++) {
+            String key = readString(in);
+            long size = in.getLong();
+            long modified = in.getLong();
+            long contentHash = in.getLong();
+            boolean parsed = in.get() != 0;
+            boolean classWithoutMethods = in.get() != 0;
+            long[] identifiers = readLongs(in);
+            if (parsed) {
+                int[] records = readInts(in);
+                long[] hashes = readLongs(in);
+                int[] callees = readInts(in);
+                putEntry(key, new FileEntry(size, modified, contentHash, identifiers, symbols, records, hashes, callees));
+            } else {
+                putEntry(key, new FileEntry(size, modified, contentHash, identifiers, classWithoutMethods));
+            }
+        }
+        int sourceCount = in.getInt();
+        for (int i = 0; i < sourceCount; i++) {
+            sources.add(readString(in));
+        }
+        int directoryCount = in.getInt();
+        for (int i = 0; i < directoryCount; i++) {
+            directories.put(readString(in), in.getLong());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer in) {
+        int[] values = new int[in.getInt()];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + values.length * Integer.BYTES);
+        return values;
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    private static long[] readLongs(ByteBuffer in) {
+        long[] values = new long[in.getInt()];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + values.length * Long.BYTES);
+        return values;
+    }
+
+    /**
+     * Declarations of a source file parsed on their own, outside of any index
+     */
+    static List<Declaration> parse(String content) {
+        return parse(content, new SymbolTable(), 0, 0, 0, new long[0]).declarations();
+    }
+
+    /**
+     * The parse pass: find every method and class declaration of a source file, the block above it
+     * and, for methods, the names called from the body
+     */
+    static FileEntry parse(String content, SymbolTable symbols, long size, long modified, long contentHash, long[] identifiers) {
+        String[] lines = content.split("\n");
+        IntList records = new IntList();
+        IntList callees = new IntList();
+        List<Long> hashes = new ArrayList<>();
+
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            byte kind;
+            String name;
+            int end;
+
+            Matcher classMatcher = DeprecationUtility.CLASS_PATTERN.matcher(line);
+            if (classMatcher.find()) {
+                kind = CLASS;
+                name = classMatcher.group(4);
+                end = DeprecationUtility.findClassEnd(lines, i);
+            } else {
+                name = DeprecationUtility.declaredMethodName(line);
+                if (name == null) {
+                    continue;
+                }
+                kind = METHOD;
+                end = i;
+            }
+
+            int blockStart = DeprecationUtility.findMethodStart(lines, i);
+            int hashStart = hashes.size();
+            boolean deprecated = false;
+            for (int j = blockStart; j < i; j++) {
+                String trimmed = lines[j].trim();
+                if (!trimmed.isEmpty()) {
+                    hashes.add(lineHash(trimmed));
+                    deprecated |= trimmed.startsWith(DeprecationUtility.DEPRECATION_ANNOTATION);
+                }
+            }
+
+            int calleeStart = callees.size();
+            if (kind == METHOD && !line.trim().endsWith(";")) {
+                addCallees(lines, i, symbols, callees);
+            }
+
+            records.add(kind | (deprecated ? FileEntry.DEPRECATED_FLAG : 0));
+            records.add(symbols.intern(name));
+            records.add(i);
+            records.add(end);
+            records.add(hashStart);
+            records.add(hashes.size() - hashStart);
+            records.add(calleeStart);
+            records.add(callees.size() - calleeStart);
+        }
+
+        long[] blockHashes = new long[hashes.size()];
+        for (int j = 0; j < blockHashes.length; j++) {
+            blockHashes[j] = hashes.get(j);
+        }
+        return new FileEntry(size, modified, contentHash, identifiers, symbols, records.toArray(), blockHashes, callees.toArray());
+    }
+
+    /**
+     * Whether a class of a source has no methods and no <code>@Deprecated</code>, with the verdict of
+     * the parse pass: only lines with the word class are matched against the class pattern, and only
+     * lines with a parenthesis against the declaration pattern, as neither matches without
+     */
+    static boolean hasClassWithoutMethods(String[] lines) {
+        int[] methodLines = new int[16];
+        int methods = 0;
+        List<int[]> classes = new ArrayList<>();
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.contains("class") && DeprecationUtility.CLASS_PATTERN.matcher(line).find()) {
+                classes.add(new int[] {i, DeprecationUtility.findClassEnd(lines, i)});
+            } else if (line.indexOf('(') >= 0 && DeprecationUtility.declaredMethodName(line) != null) {
+                if (methods == methodLines.length) {
+                    methodLines = Arrays.copyOf(methodLines, methods * 2);
+                }
+                methodLines[methods++] = i;
+            }
+        }
+        for (int[] classLines : classes) {
+            int next = Arrays.binarySearch(methodLines, 0, methods, classLines[0] + 1);
+            if (next < 0) {
+                next = -next - 1;
+            }
+            if ((next == methods || methodLines[next] >= classLines[1]) && !isAnnotatedDeprecated(lines, classLines[0])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAnnotatedDeprecated(String[] lines, int declarationLine) {
+        for (int j = DeprecationUtility.findMethodStart(lines, declarationLine); j < declarationLine; j++) {
+            if (lines[j].trim().startsWith(DeprecationUtility.DEPRECATION_ANNOTATION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Append the distinct names called from the body of the method declared on a line
+     */
+    private static void addCallees(String[] lines, int declarationLine, SymbolTable symbols, IntList callees) {
+        int start = callees.size();
+        int end = DeprecationUtility.findMethodEnd(lines, declarationLine);
+        String declaration = lines[declarationLine];
+        int brace = declaration.indexOf('{');
+
+        for (int j = declarationLine; j <= end && j < lines.length; j++) {
+            String text = j == declarationLine ? (brace < 0 ? "" : declaration.substring(brace)) : lines[j];
+            Matcher matcher = DeprecationUtility.METHOD_CALL_PATTERN.matcher(text);
+            while (matcher.find()) {
+                if (!DeprecationUtility.isExcludedMethod(matcher.group(1))) {
+                    callees.add(symbols.intern(matcher.group(1)));
+                }
+            }
+        }
+        callees.sortAndDistinctFrom(start);
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a trimmed source line
+     */
+    static long lineHash(String trimmed) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < trimmed.length(); i++) {
+            hash ^= trimmed.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Cached metadata of one source file. Each declaration is a record of {@link #FIELDS} ints:
+     * kind and flags, name id, line, end line, first block hash, block hash count, first callee and
+     * callee count. Block hashes and callee name ids of all declarations share one array each. An entry
+     * that was only probed has the identifier filter and no declarations.
+     */
+    public static class FileEntry {
+        static final int FIELDS = 8;
+        static final int DEPRECATED_FLAG = 0x100;
+        private static final int[] NO_INTS = new int[0];
+        private static final long[] NO_LONGS = new long[0];
+
+        final long size;
+        final long modified;
+        final long contentHash;
+        final boolean parsed;
+        /** Whether a class of the file has no methods and no <code>@Deprecated</code> */
+        final boolean classWithoutMethods;
+        private final long[] identifiers;
+        private final SymbolTable symbols;
+        private final int[] records;
+        private final long[] blockHashes;
+        private final int[] callees;
+
+        FileEntry(long size, long modified, long contentHash, long[] identifiers, SymbolTable symbols, int[] records, long[] blockHashes, int[] callees) {
+            this.size = size;
+            this.modified = modified;
+            this.contentHash = contentHash;
+            this.parsed = true;
+            this.identifiers = identifiers;
+            this.symbols = symbols;
+            this.records = records;
+            this.blockHashes = blockHashes;
+            this.callees = callees;
+            this.classWithoutMethods = hasClassWithoutMethods();
+        }
+
+        FileEntry(long size, long modified, long contentHash, long[] identifiers, boolean classWithoutMethods) {
+            this.size = size;
+            this.modified = modified;
+            this.contentHash = contentHash;
+            this.parsed = false;
+            this.classWithoutMethods = classWithoutMethods;
+            this.identifiers = identifiers;
+            this.symbols = null;
+            this.records = NO_INTS;
+            this.blockHashes = NO_LONGS;
+            this.callees = NO_INTS;
+        }
+
+        /**
+         * The same entry with its names interned in another symbol table
+         */
+        FileEntry withSymbols(SymbolTable target) {
+            int[] ids = new int[symbols.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = target.intern(symbols.name(i));
+            }
+            int[] remapped = records.clone();
+            int[] calleeIds = new int[callees.length];
+            for (int record = 0; record < remapped.length; record += FIELDS) {
+                remapped[record + 1] = ids[records[record + 1]];
+                int start = records[record + 6];
+                int end = start + records[record + 7];
+                for (int i = start; i < end; i++) {
+                    calleeIds[i] = ids[callees[i]];
+                }
+                Arrays.sort(calleeIds, start, end);
+            }
+            return new FileEntry(size, modified, contentHash, identifiers, target, remapped, blockHashes, calleeIds);
+        }
+
+        /**
+         * Estimated size in bytes of a parsed entry with a symbol table of its own, for the parse cache
+         */
+        long weight() {
+            long weight = 96 + identifiers.length * 8L + records.length * 4L + blockHashes.length * 8L + callees.length * 4L;
+            for (int i = 0; symbols != null && i < symbols.size(); i++) {
+                weight += 56 + symbols.name(i).length() * 2L;
+            }
+            return weight;
+        }
+
+        long[] identifiers() {
+            return identifiers;
+        }
+
+        /**
+         * Whether a name may occur in the file. When it may not, the file neither declares nor calls it.
+         */
+        boolean mayContain(String name) {
+            return IdentifierFilter.mayContain(identifiers, name);
+        }
+
+        /**
+         * Whether every identifier of a piece of text may occur in the file
+         */
+        boolean mayContainAll(String text) {
+            return IdentifierFilter.mayContainAll(identifiers, text);
+        }
+
+        int declarationCount() {
+            return records.length / FIELDS;
+        }
+
+        Declaration declaration(int index) {
+            return new Declaration(this, index);
+        }
+
+        List<Declaration> declarations() {
+            List<Declaration> declarations = new ArrayList<>(declarationCount());
+            for (int i = 0; i < declarationCount(); i++) {
+                declarations.add(declaration(i));
+            }
+            return declarations;
+        }
+
+        List<Declaration> methodsNamed(String name) {
+            List<Declaration> methods = new ArrayList<>();
+            int nameId = symbols.find(name);
+            if (nameId < 0) {
+                return methods;
+            }
+            for (int i = 0; i < declarationCount(); i++) {
+                int record = i * FIELDS;
+                if ((records[record] & 0xff) == METHOD && records[record + 1] == nameId) {
+                    methods.add(declaration(i));
+                }
+            }
+            return methods;
+        }
+
+        List<Declaration> classes() {
+            List<Declaration> classes = new ArrayList<>();
+            for (int i = 0; i < declarationCount(); i++) {
+                if ((records[i * FIELDS] & 0xff) == CLASS) {
+                    classes.add(declaration(i));
+                }
+            }
+            return classes;
+        }
+
+        private boolean hasClassWithoutMethods() {
+            for (Declaration classDeclaration : classes()) {
+                if (!classDeclaration.deprecated && methodsOf(classDeclaration).isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Method declarations inside the body of a class
+         */
+        List<Declaration> methodsOf(Declaration classDeclaration) {
+            List<Declaration> methods = new ArrayList<>();
+            for (int i = 0; i < declarationCount(); i++) {
+                int record = i * FIELDS;
+                int line = records[record + 2];
+                if ((records[record] & 0xff) == METHOD && line > classDeclaration.line && line < classDeclaration.end) {
+                    methods.add(declaration(i));
+                }
+            }
+            return methods;
+        }
+    }
+
+    /**
+     * View of one declaration record of a file entry
+     */
+    public static class Declaration {
+        final byte kind;
+        final String name;
+        final int line;
+        final int end;
+        final boolean deprecated;
+        private final FileEntry entry;
+        private final int record;
+
+        Declaration(FileEntry entry, int index) {
+            this.entry = entry;
+            this.record = index * FileEntry.FIELDS;
+            int[] records = entry.records;
+            this.kind = (byte) (records[record] & 0xff);
+            this.name = entry.symbols.name(records[record + 1]);
+            this.line = records[record + 2];
+            this.end = records[record + 3];
+            this.deprecated = (records[record] & FileEntry.DEPRECATED_FLAG) != 0;
+        }
+
+        boolean hasBlockLine(long hash) {
+            int start = entry.records[record + 4];
+            int count = entry.records[record + 5];
+            for (int i = start; i < start + count; i++) {
+                if (entry.blockHashes[i] == hash) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Distinct names called from the body of a method
+         */
+        List<String> callees() {
+            int start = entry.records[record + 6];
+            int count = entry.records[record + 7];
+            List<String> names = new ArrayList<>(count);
+            for (int i = start; i < start + count; i++) {
+                names.add(entry.symbols.name(entry.callees[i]));
+            }
+            return names;
+        }
+    }
+
+    /**
+     * Merkle tree over the content hashes of the indexed files: one hash per directory over the files
+     * in it and a root over the directories. A changed file rehashes its own directory and the root only.
+     */
+    private static class ContentTree {
+        private final TreeMap<String, TreeMap<String, Long>> files = new TreeMap<>();
+        private final Map<String, Long> directoryHashes = new HashMap<>();
+        private final Set<String> staleDirectories = new HashSet<>();
+        private long root;
+        private boolean stale = true;
+
+        void put(String key, long contentHash) {
+            int slash = key.lastIndexOf(File.separatorChar);
+            String directory = slash < 0 ? "" : key.substring(0, slash);
+            Long previous = files.computeIfAbsent(directory, d -> new TreeMap<>()).put(key.substring(slash + 1), contentHash);
+            if (previous == null || previous != contentHash) {
+                staleDirectories.add(directory);
+                stale = true;
+            }
+        }
+
+        void remove(String key) {
+            int slash = key.lastIndexOf(File.separatorChar);
+            String directory = slash < 0 ? "" : key.substring(0, slash);
+            TreeMap<String, Long> children = files.get(directory);
+            if (children != null && children.remove(key.substring(slash + 1)) != null) {
+                if (children.isEmpty()) {
+                    files.remove(directory);
+                }
+                staleDirectories.add(directory);
+                stale = true;
+            }
+        }
+
+        long root() {
+            if (!stale) {
+                return root;
+            }
+            for (String directory : staleDirectories) {
+                TreeMap<String, Long> children = files.get(directory);
+                if (children == null) {
+                    directoryHashes.remove(directory);
+                    continue;
+                }
+                long hash = 0;
+                for (Map.Entry<String, Long> child : children.entrySet()) {
+                    hash = combine(combine(hash, nameHash(child.getKey())), child.getValue());
+                }
+                directoryHashes.put(directory, hash);
+            }
+            staleDirectories.clear();
+
+            long hash = 0;
+            for (String directory : files.keySet()) {
+                hash = combine(combine(hash, nameHash(directory)), directoryHashes.get(directory));
+            }
+            root = hash;
+            stale = false;
+            return root;
+        }
+
+        private static long nameHash(String name) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            return IdentifierFilter.hash(bytes, 0, bytes.length);
+        }
+
+        private static long combine(long hash, long value) {
+            hash = (hash ^ value) * 0x9E3779B97F4A7C15L;
+            return hash ^ (hash >>> 32);
+        }
+    }
+
+    /**
+     * Growable int array
+     */
+    private static class IntList {
+        private int[] values = new int[64];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Sort the values from an index on and drop the duplicates among them
+         */
+        void sortAndDistinctFrom(int start) {
+            Arrays.sort(values, start, size);
+            int distinct = start;
+            for (int i = start; i < size; i++) {
+                if (i == start || values[i] != values[distinct - 1]) {
+                    values[distinct++] = values[i];
+                }
+            }
+            size = distinct;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package utility;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where the Java sources of a project are read from: the working tree, or a git revision of it
+ * ({@link GitSourceProvider}). Report-only analyses and dry runs read through a provider, runs that
+ * write always work on the working tree.
+ *
+ * Sources are named by their path relative to the project root, with <code>/</code> separators. A
+ * provider that can tell when two sources have the same content gives them the same content id, so
+ * their parse results are shared through {@link ParseCache}.
+ */
+public interface SourceProvider extends Closeable {
+
+    /**
+     * Paths of the Java sources, build output directories and the state directory left out
+     */
+    List<String> sources() throws IOException;
+
+    /**
+     * Content of one of the sources
+     */
+    byte[] read(String path) throws IOException;
+
+    /**
+     * Id that is the same for two sources only when their content is the same, or null when the
+     * provider cannot tell without reading them
+     */
+    String contentId(String path);
+
+    /**
+     * The project and, for a revision, the commit it resolved to, for reports
+     */
+    String describe();
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * The sources of a project at a git revision, or in its working tree when the revision is null
+     */
+    static SourceProvider of(Path projectRoot, String revision) throws IOException {
+        if (revision == null || revision.trim().isEmpty()) {
+            return new Directory(projectRoot);
+        }
+        return new GitSourceProvider(projectRoot, revision.trim());
+    }
+
+    /**
+     * The working tree, walked with {@link DeprecationUtility#findJavaFiles}
+     */
+    class Directory implements SourceProvider {
+        private final Path projectRoot;
+
+        public Directory(Path projectRoot) {
+            this.projectRoot = projectRoot;
+        }
+
+        @Override
+        public List<String> sources() throws IOException {
+            List<String> paths = new ArrayList<>();
+            for (Path file : DeprecationUtility.findJavaFiles(projectRoot)) {
+                paths.add(projectRoot.relativize(file).toString().replace('\\', '/'));
+            }
+            return paths;
+        }
+
+        @Override
+        public byte[] read(String path) throws IOException {
+            return Files.readAllBytes(projectRoot.resolve(path));
+        }
+
+        /**
+         * None: files of the working tree change in place, the index tracks them by size and time instead
+         */
+        @Override
+        public String contentId(String path) {
+            return null;
+        }
+
+        @Override
+        public String describe() {
+            return projectRoot.toString();
+        }
+    }
+}
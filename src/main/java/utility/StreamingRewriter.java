@@ -0,0 +1,124 @@
+package utility;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Applies all insertions of a run to one file in a single streaming pass.
+ *
+ * The new content is written to a temporary file next to the original: the bytes between two
+ * insertion points are moved from the original with <code>FileChannel.transferTo</code>, so the
+ * kernel copies them without going through the heap, and the inserted text is written in between.
+ * The temporary file then takes the permissions of the original and is moved over it atomically, so
+ * a failure at any point leaves the original as it was. The cost is linear in the size of the file
+ * however many declarations are marked in it.
+ */
+final class StreamingRewriter {
+
+    private StreamingRewriter() {
+    }
+
+    /**
+     * Rewrite a file with the given insertions. Offsets are character offsets into the content, which
+     * must be the current content of the file; they are converted to byte offsets of its UTF-8 encoding.
+     */
+    static void rewrite(Path file, String content, List<DeprecationJournal.Insertion> insertions) throws IOException {
+        List<DeprecationJournal.Insertion> sorted = new ArrayList<>(insertions);
+        sorted.sort(Comparator.comparingInt(insertion -> insertion.offset));
+        long[] byteOffsets = byteOffsets(content, sorted);
+
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), "." + file.getFileName(), ".tmp");
+        boolean moved = false;
+        try {
+            try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                long position = 0;
+                for (int i = 0; i < sorted.size(); i++) {
+                    transfer(source, position, byteOffsets[i] - position, target);
+                    position = byteOffsets[i];
+                    ByteBuffer text = StandardCharsets.UTF_8.encode(sorted.get(i).text);
+                    while (text.hasRemaining()) {
+                        target.write(text);
+                    }
+                }
+                transfer(source, position, source.size() - position, target);
+            }
+            moveOver(temp, file);
+            moved = true;
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Replace the content of a file the same way: written to a temporary file next to it, which then
+     * takes its permissions and is moved over it atomically
+     */
+    static void replace(Path file, CharSequence content) throws IOException {
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), "." + file.getFileName(), ".tmp");
+        boolean moved = false;
+        try {
+            Files.writeString(temp, content, StandardCharsets.UTF_8);
+            moveOver(temp, file);
+            moved = true;
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    private static void moveOver(Path temp, Path file) throws IOException {
+        if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(file));
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * UTF-8 byte offsets of the sorted insertion offsets, in one pass over the content
+     */
+    static long[] byteOffsets(String content, List<DeprecationJournal.Insertion> sorted) {
+        long[] offsets = new long[sorted.size()];
+        long bytes = 0;
+        int position = 0;
+        for (int i = 0; i < sorted.size(); i++) {
+            int offset = sorted.get(i).offset;
+            for (; position < offset; position++) {
+                char c = content.charAt(position);
+                if (c < 0x80) {
+                    bytes += 1;
+                } else if (c < 0x800 || Character.isSurrogate(c)) {
+                    // each half of a surrogate pair stands for two of the four bytes of its code point
+                    bytes += 2;
+                } else {
+                    bytes += 3;
+                }
+            }
+            offsets[i] = bytes;
+        }
+        return offsets;
+    }
+
+    private static void transfer(FileChannel source, long position, long count, FileChannel target) throws IOException {
+        while (count > 0) {
+            long transferred = source.transferTo(position, count, target);
+            if (transferred <= 0) {
+                throw new IOException("File changed while it was being rewritten");
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package utility;
+
+import java.util.Arrays;
+
+/**
+ * Dictionary that interns identifiers into dense int ids.
+ *
+ * Every distinct name is stored once, no matter how many files declare or call it; indexes refer to
+ * names by id in primitive arrays. Lookups use an open-addressing table of ids, so interning does not
+ * allocate per entry. Not thread safe, owners synchronize.
+ */
+public class SymbolTable {
+
+    private String[] names;
+    private int[] hashes;
+    private int[] slots;
+    private int size;
+
+    public SymbolTable() {
+        this(256);
+    }
+
+    public SymbolTable(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize) * 2 - 1) << 1;
+        this.names = new String[Math.max(16, expectedSize)];
+        this.hashes = new int[names.length];
+        this.slots = new int[capacity];
+    }
+
+    /**
+     * Id of a name, adding it when it is not in the table yet
+     */
+    public int intern(String name) {
+        int hash = mix(name.hashCode());
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if (entry == 0) {
+                return add(name, hash, slot);
+            }
+            int id = entry - 1;
+            if (hashes[id] == hash && names[id].equals(name)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Id of a name, or -1 when it was never interned
+     */
+    public int find(String name) {
+        int hash = mix(name.hashCode());
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            int id = entry - 1;
+            if (hashes[id] == hash && names[id].equals(name)) {
+                return id;
+            }
+        }
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int add(String name, int hash, int slot) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        int id = size++;
+        names[id] = name;
+        hashes[id] = hash;
+        slots[slot] = id + 1;
+        // keep the load factor at or below one half
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return id;
+    }
+
+    private void rehash(int capacity) {
+        int[] table = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+        slots = table;
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
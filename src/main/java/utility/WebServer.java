@@ -3,44 +3,92 @@ package utility;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintStream;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 /**
  * Simple web server to provide UI for the Deprecation Utility
+ *
+ * The routes are implemented by static methods that do not depend on the HTTP server, so the same
+ * API is served by this server, built on <code>com.sun.net.httpserver</code>, and by the non-blocking
+ * {@link NioWebServer}. <code>main</code> takes <code>--nio</code> to start the latter. Both run API
+ * requests and archives on a {@link JobScheduler}, which orders them by estimated cost per client.
  */
 public class WebServer {
+    static final String[] API_PATHS = {"/api/deprecate", "/api/undo", "/api/analyze", "/api/select", "/api/unreachable"};
+    static final String ARCHIVE_PATH = "/api/archive";
+    static final String SCHEDULER_PATH = "/api/scheduler";
+    static final String CLIENT_HEADER = "X-Client-Id";
+    static final String TOKEN_HEADER = "X-Deprecation-Token";
+
     private final HttpServer server;
-    private final int port;
+    private final ExecutorService executor = Executors.newFixedThreadPool(10);
+    private final JobScheduler scheduler = JobScheduler.fromSystemProperties("webserver");
+    private final String cliToken;
     
     public WebServer(int port) throws IOException {
-        this.port = port;
         this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.cliToken = writeCliToken(getPort());
         setupRoutes();
     }
     
     private void setupRoutes() {
         server.createContext("/", new StaticFileHandler());
         
-        server.createContext("/api/deprecate", new DeprecationHandler());
+        for (String path : API_PATHS) {
+            server.createContext(path, new ApiHandler(scheduler));
+        }
+
+        server.createContext("/api/cli", new CliHandler(scheduler, cliToken));
+        server.createContext(ARCHIVE_PATH, new ArchiveHandler(scheduler));
+        server.createContext(SCHEDULER_PATH, exchange -> {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            sendResponse(exchange, 200, "application/json", scheduler.metricsJson());
+        });
         
-        server.setExecutor(Executors.newFixedThreadPool(10));
+        server.setExecutor(executor);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
     }
     
     public void start() {
         server.start();
-        System.out.println("Web server started on port " + port);
-        System.out.println("Open your browser and navigate to: http://localhost:" + port);
+        System.out.println("Web server started on port " + getPort());
+        System.out.println("Open your browser and navigate to: http://localhost:" + getPort());
         System.out.println("The UI will allow you to input method names and project paths for deprecation");
     }
     
     public void stop() {
         server.stop(0);
+        executor.shutdown();
+        scheduler.shutdownNow();
+        deleteCliToken(getPort(), cliToken);
         System.out.println("Web server stopped");
     }
     
@@ -49,124 +97,700 @@ public class WebServer {
         public void handle(HttpExchange exchange) throws IOException {
             String path = exchange.getRequestURI().getPath();
             
-            if (path.equals("/")) {
-                path = "/index.html";
-            }
-            
             try {
-                String resourcePath = path.substring(1);
-                if (resourcePath.isEmpty()) {
-                    resourcePath = "index.html";
-                }
-                
-                InputStream resourceStream = getClass().getClassLoader().getResourceAsStream(resourcePath);
-
-                if (resourceStream != null) {
-                    String content = new String(resourceStream.readAllBytes());
-                    resourceStream.close();
-                    
-                    String contentType = getContentType(path);
-                    exchange.getResponseHeaders().add("Content-Type", contentType);
-                    exchange.sendResponseHeaders(200, content.length());
+                byte[] content = readStaticFile(path);
+                if (content != null) {
+                    exchange.getResponseHeaders().add("Content-Type", getContentType(path));
+                    exchange.sendResponseHeaders(200, content.length);
                     
                     try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(content.getBytes());
+                        os.write(content);
                     }
                 } else {
-                    Path filePath = Paths.get("src/main/resources").resolve(resourcePath);
-                    
-                    if (Files.exists(filePath) && Files.isRegularFile(filePath)) {
-                        String content = Files.readString(filePath);
-                        String contentType = getContentType(path);
-                        
-                        exchange.getResponseHeaders().add("Content-Type", contentType);
-                        exchange.sendResponseHeaders(200, content.length());
-                        
-                        try (OutputStream os = exchange.getResponseBody()) {
-                            os.write(content.getBytes());
-                        }
-                    } else {
-                        String response = "File not found: " + path;
-                        exchange.sendResponseHeaders(404, response.length());
-                        try (OutputStream os = exchange.getResponseBody()) {
-                            os.write(response.getBytes());
-                        }
-                    }
+                    sendResponse(exchange, 404, "text/plain", "File not found: " + path);
                 }
             } catch (Exception e) {
-                String response = "Error reading file: " + e.getMessage();
-                exchange.sendResponseHeaders(500, response.length());
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
+                sendResponse(exchange, 500, "text/plain", "Error reading file: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Content of a static file of the UI, from the classpath or else from src/main/resources, or null
+     */
+    static byte[] readStaticFile(String path) throws IOException {
+        String resourcePath = path.startsWith("/") ? path.substring(1) : path;
+        if (resourcePath.isEmpty()) {
+            resourcePath = "index.html";
+        }
+        if (resourcePath.contains("..")) {
+            return null;
+        }
+
+        try (InputStream resourceStream = WebServer.class.getClassLoader().getResourceAsStream(resourcePath)) {
+            if (resourceStream != null) {
+                return resourceStream.readAllBytes();
+            }
+        }
+        Path filePath = Paths.get("src/main/resources").resolve(resourcePath);
+
+        if (Files.exists(filePath) && Files.isRegularFile(filePath)) {
+            return Files.readAllBytes(filePath);
+        }
+        return null;
+    }
+
+    static String getContentType(String path) {
+        if (path.equals("/") || path.endsWith(".html")) return "text/html";
+        if (path.endsWith(".css")) return "text/css";
+        if (path.endsWith(".js")) return "application/javascript";
+        if (path.endsWith(".json")) return "application/json";
+        return "text/plain";
+    }
+    
+    /**
+     * Handler for the JSON API routes
+     */
+    private static class ApiHandler implements HttpHandler {
+        private final JobScheduler scheduler;
+
+        ApiHandler(JobScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            String path = exchange.getHttpContext().getPath();
+            String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            submit(scheduler, exchange, estimateCost(path, requestBody), () -> {
+                ApiResponse response = handleApi(path, requestBody);
+                sendResponse(exchange, response.status, response.contentType, response.body);
+            });
+        }
+    }
+
+    /**
+     * Task of a job that answers an exchange
+     */
+    private interface ExchangeTask {
+        void run() throws IOException;
+    }
+
+    /**
+     * Run a task on the scheduler for the client of an exchange, or answer 429 when its queue is full
+     */
+    private static void submit(JobScheduler scheduler, HttpExchange exchange, long cost, ExchangeTask task) throws IOException {
+        try {
+            String client = clientOf(exchange.getRequestHeaders().getFirst(CLIENT_HEADER),
+                    exchange.getRemoteAddress().getAddress().getHostAddress());
+            scheduler.submit(client, cost, () -> {
+                try {
+                    task.run();
+                } catch (IOException e) {
+                    // the client is gone
+                } finally {
+                    exchange.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            boolean shutdown = scheduler.isShutdown();
+            exchange.getResponseHeaders().add("Retry-After", "5");
+            sendResponse(exchange, shutdown ? 503 : 429, "application/json",
+                    "{\"error\":\"" + jsonEscape(shutdown ? "Server is shutting down" : e.getMessage() + ", retry later") + "\"}");
+        }
+    }
+
+    /**
+     * Client of a request for fair queuing: the <code>X-Client-Id</code> header, or else the remote host
+     */
+    static String clientOf(String clientHeader, String remoteHost) {
+        return clientHeader != null && !clientHeader.trim().isEmpty() ? clientHeader.trim() : remoteHost;
+    }
+
+    /**
+     * Estimated cost of an API request for the {@link JobScheduler}. A deprecation costs the files that
+     * may declare the method, an undo its journal, and the other routes every file of the project.
+     */
+    static long estimateCost(String path, String requestBody) {
+        String projectPath = extractValue(requestBody, "projectPath");
+        switch (path) {
+            case "/api/deprecate":
+                return JobScheduler.estimate(projectPath, extractValue(requestBody, "methodName"));
+            case "/api/undo":
+                return JobScheduler.estimateUndo(projectPath, extractValue(requestBody, "runId"));
+            default:
+                return JobScheduler.estimate(projectPath, null);
+        }
+    }
+
+    /**
+     * Status, content type and body of an API response, independent of the server that sends it
+     */
+    static class ApiResponse {
+        final int status;
+        final String contentType;
+        final String body;
+
+        ApiResponse(int status, String contentType, String body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        static ApiResponse json(String body) {
+            return new ApiResponse(200, "application/json", body);
+        }
+
+        static ApiResponse error(String error) {
+            return new ApiResponse(400, "application/json", "{\"error\":\"" + jsonEscape(error) + "\"}");
+        }
+    }
+
+    /**
+     * Fields of an API request, looked up by name: strings, numbers and booleans as text, null when
+     * absent. Each front end parses the body its own way and all of them share the routes below.
+     */
+    interface RequestFields {
+        String get(String name);
+    }
+
+    /**
+     * Run the API route at a path with a request body, or answer 404 for an unknown route
+     */
+    static ApiResponse handleApi(String path, String requestBody) {
+        return handleApi(path, name -> extractScalar(requestBody, name));
+    }
+
+    /**
+     * Run the API route at a path with the fields of a request, or answer 404 for an unknown route
+     */
+    static ApiResponse handleApi(String path, RequestFields fields) {
+        switch (path) {
+            case "/api/deprecate":
+                return deprecate(fields);
+            case "/api/undo":
+                return undo(fields);
+            case "/api/analyze":
+                return analyze(fields);
+            case "/api/select":
+                return select(fields);
+            case "/api/unreachable":
+                return unreachable(fields);
+            default:
+                return new ApiResponse(404, "application/json", "{\"error\":\"Unknown API route: " + path + "\"}");
+        }
+    }
+
+    /**
+     * Deprecation of one method
+     */
+    static ApiResponse deprecate(RequestFields fields) {
+        try {
+            String methodName = fields.get("methodName");
+            String methodSignature = fields.get("methodSignature");
+            String projectPath = fields.get("projectPath");
+
+            if (methodName == null || projectPath == null) {
+                return ApiResponse.error("Missing required parameters: methodName and projectPath");
+            }
+            String markers = fields.get("markers");
+            String since = fields.get("since");
+            String replacement = fields.get("replacement");
+            String team = fields.get("team");
+            String markerTemplate = fields.get("markerTemplate");
+            String revision = fields.get("revision");
+            if (revision != null || "true".equals(fields.get("dryRun"))) {
+                try (SourceProvider sources = SourceProvider.of(Paths.get(projectPath), revision);
+                     ArchiveDeprecation run = new ArchiveDeprecation(ArchiveDeprecation.DEFAULT_MAX_ARCHIVE_BYTES)) {
+                    run.setMarkers(markers, since, replacement, team, markerTemplate);
+                    run.read(sources);
+                    return ApiResponse.json(run.deprecateWithResult(methodName, methodSignature).toJson());
                 }
             }
+            // a repeated request that finds nothing left to do is answered from the cache
+            DeprecationResult result = ResultCache.shared().get(Paths.get(projectPath),
+                    ResultCache.query("deprecate", methodName, methodSignature, markers, since, replacement, team, markerTemplate),
+                    () -> {
+                        DeprecationUtility utility = new DeprecationUtility(projectPath);
+                        utility.setMarkers(markers, since, replacement, team, markerTemplate);
+                        return utility.deprecateMethodWithResult(methodName, methodSignature);
+                    }, DeprecationResult::cacheWeight);
+
+            return ApiResponse.json(result.toJson());
+
+        } catch (Exception e) {
+            return ApiResponse.error("Error during deprecation: " + e.getMessage());
         }
-        
-        private String getContentType(String path) {
-            if (path.endsWith(".html")) return "text/html";
-            if (path.endsWith(".css")) return "text/css";
-            if (path.endsWith(".js")) return "application/javascript";
-            if (path.endsWith(".json")) return "application/json";
-            return "text/plain";
+    }
+
+    static String extractValue(String json, String key) {
+        String pattern = "\"" + key + "\"\\s*:\\s*\"([^\"]*)\"";
+        java.util.regex.Pattern p = java.util.regex.Pattern.compile(pattern);
+        java.util.regex.Matcher m = p.matcher(json);
+
+        return m.find() ? m.group(1) : null;
+    }
+
+    /**
+     * Extract a string, bare numeric or boolean value from a flat JSON object
+     */
+    static String extractScalar(String json, String key) {
+        String value = extractValue(json, key);
+        if (value != null) {
+            return value;
+        }
+        java.util.regex.Matcher m = java.util.regex.Pattern.compile("\"" + key + "\"\\s*:\\s*([-+0-9.eE]+|true|false)").matcher(json);
+        return m.find() ? m.group(1) : null;
+    }
+
+    static void sendResponse(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
         }
     }
     
     /**
-     * Handler for deprecation API requests
+     * Rule-based bulk deprecation
+     */
+    static ApiResponse select(RequestFields fields) {
+        try {
+            String projectPath = fields.get("projectPath");
+            String rules = fields.get("rules");
+
+            if (projectPath == null || rules == null) {
+                return ApiResponse.error("Missing required parameters: rules and projectPath");
+            }
+            List<DeprecationRule> parsedRules = DeprecationRule.parseAll(rules);
+            String markers = fields.get("markers");
+            String since = fields.get("since");
+            String replacement = fields.get("replacement");
+            String team = fields.get("team");
+            String markerTemplate = fields.get("markerTemplate");
+            DeprecationResult result = ResultCache.shared().get(Paths.get(projectPath),
+                    ResultCache.query("select", rules, markers, since, replacement, team, markerTemplate),
+                    () -> {
+                        DeprecationUtility utility = new DeprecationUtility(projectPath);
+                        utility.setMarkers(markers, since, replacement, team, markerTemplate);
+                        return utility.deprecateMatchingWithResult(parsedRules);
+                    }, DeprecationResult::cacheWeight);
+
+            return ApiResponse.json(result.toJson());
+
+        } catch (Exception e) {
+            return ApiResponse.error("Error during deprecation: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Methods unreachable from the entry points, reported or, with <code>"deprecate": true</code>, deprecated.
+     * Not cached: the analyzer keeps the last result of each project and recomputes incrementally.
+     */
+    static ApiResponse unreachable(RequestFields fields) {
+        try {
+            String projectPath = fields.get("projectPath");
+
+            if (projectPath == null) {
+                return ApiResponse.error("Missing required parameter: projectPath");
+            }
+            Path projectRoot = Paths.get(projectPath);
+            ReachabilityAnalyzer.EntryPoints entryPoints = ReachabilityAnalyzer.EntryPoints.of(projectRoot,
+                    fields.get("entryMethods"), fields.get("apiPackages"),
+                    fields.get("webXml"));
+            ReachabilityAnalyzer.Result result = ReachabilityAnalyzer.of(projectRoot).analyze(entryPoints);
+            if (!"true".equals(fields.get("deprecate"))) {
+                return ApiResponse.json(result.toJson());
+            }
+
+            DeprecationUtility utility = new DeprecationUtility(projectPath);
+            utility.setMarkers(fields.get("markers"), fields.get("since"),
+                    fields.get("replacement"), fields.get("team"),
+                    fields.get("markerTemplate"));
+            return ApiResponse.json(utility.deprecateDeclarationsWithResult(result.unreachableByFile(projectRoot),
+                    "unreachable methods").toJson());
+
+        } catch (Exception e) {
+            return ApiResponse.error("Error during reachability analysis: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Undoing a previous deprecation run from its journal
+     */
+    static ApiResponse undo(RequestFields fields) {
+        try {
+            String projectPath = fields.get("projectPath");
+            String runId = fields.get("runId");
+
+            if (projectPath == null) {
+                return ApiResponse.error("Missing required parameter: projectPath");
+            }
+            DeprecationJournal.UndoResult result = DeprecationJournal.undo(Paths.get(projectPath), runId);
+
+            return ApiResponse.json(result.toJson());
+
+        } catch (Exception e) {
+            return ApiResponse.error("Error during undo: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Report-only analysis
      */
-    private static class DeprecationHandler implements HttpHandler {
+    static ApiResponse analyze(RequestFields fields) {
+        try {
+            String projectPath = fields.get("projectPath");
+            String methods = fields.get("methods");
+            String top = fields.get("top");
+            String threshold = fields.get("threshold");
+            String format = fields.get("format");
+            String revision = fields.get("revision");
+
+            if (projectPath == null) {
+                return ApiResponse.error("Missing required parameter: projectPath");
+            }
+            boolean csv = "csv".equalsIgnoreCase(format);
+            int topCount = top != null ? Integer.parseInt(top) : 20;
+            double thresholdRatio = threshold != null ? Double.parseDouble(threshold) : 0.8;
+            String report;
+            try (SourceProvider sources = SourceProvider.of(Paths.get(projectPath), revision)) {
+                String query = ResultCache.query("analyze", methods, String.valueOf(topCount), String.valueOf(thresholdRatio),
+                        csv ? "csv" : "json");
+                Callable<String> compute = () -> {
+                    DeprecationAnalyzer.AnalysisReport analysis = new DeprecationAnalyzer(sources,
+                            DeprecationAnalyzer.parseMethodList(methods), topCount, thresholdRatio,
+                            Runtime.getRuntime().availableProcessors()).analyze();
+                    return csv ? analysis.toCsv() : analysis.toJson();
+                };
+                if (sources instanceof GitSourceProvider) {
+                    // a commit never changes: keyed by its id, without looking at the working tree; a moved branch
+                    // resolves to another commit and is analyzed again
+                    report = ResultCache.shared().getFixed(Paths.get(projectPath).toAbsolutePath().normalize() + "@"
+                            + ((GitSourceProvider) sources).getCommitId(), query, compute, body -> body.length() * 2L);
+                } else {
+                    report = ResultCache.shared().get(Paths.get(projectPath), query, compute, body -> body.length() * 2L);
+                }
+            }
+
+            return new ApiResponse(200, csv ? "text/csv" : "application/json", report);
+
+        } catch (Exception e) {
+            return ApiResponse.error("Error during analysis: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handler for source archives: the request body is a zip or jar, the options are query parameters
+     * (<code>methodName</code>, <code>methodSignature</code> and the marker options), and the answer is a
+     * zip of the result and the modified files, see {@link ArchiveDeprecation}. Errors are answered
+     * with JSON before anything is streamed.
+     */
+    private static class ArchiveHandler implements HttpHandler {
+        private final JobScheduler scheduler;
+
+        ArchiveHandler(JobScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             if (!"POST".equals(exchange.getRequestMethod())) {
-                exchange.sendResponseHeaders(405, 0);
+                exchange.sendResponseHeaders(405, -1);
                 return;
             }
-            
-            try {
-                String requestBody = new String(exchange.getRequestBody().readAllBytes());
-                
-                String methodName = extractValue(requestBody, "methodName");
-                String methodSignature = extractValue(requestBody, "methodSignature");
-                String projectPath = extractValue(requestBody, "projectPath");
-
-                if (methodName == null || projectPath == null) {
-                    sendErrorResponse(exchange, "Missing required parameters: methodName and projectPath");
+            submit(scheduler, exchange, JobScheduler.estimateArchive(exchange.getRequestHeaders().getFirst("Content-Length"),
+                    ArchiveDeprecation.DEFAULT_MAX_ARCHIVE_BYTES), () -> deprecateArchive(exchange));
+        }
+
+        private static void deprecateArchive(HttpExchange exchange) throws IOException {
+            Map<String, String> parameters = queryParameters(exchange.getRequestURI().getRawQuery());
+            try (ArchiveDeprecation archive = new ArchiveDeprecation(ArchiveDeprecation.DEFAULT_MAX_ARCHIVE_BYTES)) {
+                DeprecationResult result;
+                try (InputStream in = exchange.getRequestBody()) {
+                    archive.setMarkers(parameters.get("markers"), parameters.get("since"), parameters.get("replacement"),
+                            parameters.get("team"), parameters.get("markerTemplate"));
+                    archive.read(in);
+                    result = archive.deprecateWithResult(parameters.get("methodName"), parameters.get("methodSignature"));
+                } catch (ArchiveDeprecation.LimitException e) {
+                    if (e.isBusy()) {
+                        exchange.getResponseHeaders().add("Retry-After", "5");
+                    }
+                    sendResponse(exchange, e.isBusy() ? 503 : 413, "application/json", "{\"error\":\"" + jsonEscape(e.getMessage()) + "\"}");
+                    return;
+                } catch (Exception e) {
+                    sendResponse(exchange, 400, "application/json", "{\"error\":\"Error during deprecation: " + e.getMessage() + "\"}");
                     return;
                 }
-                DeprecationUtility utility = new DeprecationUtility(projectPath);
-                DeprecationResult result = utility.deprecateMethodWithResult(methodName, methodSignature);
-                
-                String response = result.toJson();
-                exchange.getResponseHeaders().add("Content-Type", "application/json");
-                exchange.sendResponseHeaders(200, response.length());
-                
+
+                addArchiveHeaders(exchange, result);
+                exchange.sendResponseHeaders(200, 0);
                 try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
+                    archive.writeTo(os, result);
                 }
-                
-            } catch (Exception e) {
-                sendErrorResponse(exchange, "Error during deprecation: " + e.getMessage());
             }
         }
-        
-        private String extractValue(String json, String key) {
-            String pattern = "\"" + key + "\"\\s*:\\s*\"([^\"]*)\"";
-            java.util.regex.Pattern p = java.util.regex.Pattern.compile(pattern);
-            java.util.regex.Matcher m = p.matcher(json);
+    }
 
-            return m.find() ? m.group(1) : null;
+    private static void addArchiveHeaders(HttpExchange exchange, DeprecationResult result) {
+        exchange.getResponseHeaders().add("Content-Type", "application/zip");
+        for (Map.Entry<String, String> header : archiveHeaders(result).entrySet()) {
+            exchange.getResponseHeaders().add(header.getKey(), header.getValue());
         }
-        
-        private void sendErrorResponse(HttpExchange exchange, String error) throws IOException {
-            String response = "{\"error\":\"" + error + "\"}";
-            exchange.getResponseHeaders().add("Content-Type", "application/json");
-            exchange.sendResponseHeaders(400, response.length());
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(response.getBytes());
+    }
+
+    /**
+     * Headers of an archive answer besides its content type: the file name and the counts of the run
+     */
+    static Map<String, String> archiveHeaders(DeprecationResult result) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Disposition", "attachment; filename=\"deprecated-sources.zip\"");
+        headers.put("X-Files-Updated", String.valueOf(result.getFilesUpdated()));
+        headers.put("X-Methods-Deprecated", String.valueOf(result.getMethodsDeprecated()));
+        headers.put("X-Classes-Deprecated", String.valueOf(result.getClassesDeprecated()));
+        return headers;
+    }
+
+    /**
+     * Decoded parameters of a raw query string; a parameter given twice keeps its first value
+     */
+    static Map<String, String> queryParameters(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+            String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            parameters.putIfAbsent(name, value.isEmpty() ? null : value);
+        }
+        return parameters;
+    }
+
+    /**
+     * Handler that runs command lines for {@link DeprecationClient}, so repeated CLI calls share this
+     * JVM, its compiled code and the warm index of each project. Only loopback callers that send the
+     * token of this daemon are served, and commands wait on the scheduler like API requests.
+     */
+    private static class CliHandler implements HttpHandler {
+        private final JobScheduler scheduler;
+        private final String token;
+
+        CliHandler(JobScheduler scheduler, String token) {
+            this.scheduler = scheduler;
+            this.token = token;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int status = cliStatus(exchange.getRemoteAddress().getAddress().isLoopbackAddress(), exchange.getRequestMethod(),
+                    exchange.getRequestHeaders().getFirst("Origin"), exchange.getRequestHeaders().getFirst(TOKEN_HEADER), token);
+            if (status != 200) {
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+                return;
             }
+
+            String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            submit(scheduler, exchange, estimateCliCost(requestBody), () -> {
+                exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    runCli(requestBody, os);
+                }
+            });
         }
     }
-    
+
+    /**
+     * File that holds the token of the daemon on a port, readable by its owner only
+     */
+    static Path cliTokenFile(int port) {
+        return Paths.get(System.getProperty("user.home"), ".deprecation", "daemon-" + port + ".token");
+    }
+
+    /**
+     * Create a random token for the CLI route of the daemon on a port and write it where
+     * {@link DeprecationClient} finds it. A token left by a daemon that died on the same port is replaced.
+     */
+    static String writeCliToken(int port) throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        StringBuilder token = new StringBuilder();
+        for (byte b : random) {
+            token.append(String.format("%02x", b & 0xff));
+        }
+
+        Path file = cliTokenFile(port);
+        boolean posix = file.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if (posix) {
+            Files.createDirectories(file.getParent(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } else {
+            Files.createDirectories(file.getParent());
+        }
+        Files.deleteIfExists(file);
+        if (posix) {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(file);
+        }
+        Files.write(file, token.toString().getBytes(StandardCharsets.UTF_8));
+        return token.toString();
+    }
+
+    /**
+     * Remove the token file of a stopped daemon, unless another daemon has replaced it since
+     */
+    static void deleteCliToken(int port, String token) {
+        Path file = cliTokenFile(port);
+        try {
+            if (token.equals(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim())) {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    /**
+     * Status for a request to the CLI route: 200 to run it, 403 for remote callers, requests from a
+     * browser page (which carry an <code>Origin</code> header) and a missing or wrong token, 405 for
+     * methods other than POST
+     */
+    static int cliStatus(boolean loopback, String method, String origin, String token, String expectedToken) {
+        if (!loopback || origin != null || token == null
+                || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), expectedToken.getBytes(StandardCharsets.UTF_8))) {
+            return 403;
+        }
+        return "POST".equals(method) ? 200 : 405;
+    }
+
+    /**
+     * Command line of a request to the CLI route: its arguments and the text for standard input
+     */
+    static class CliCommand {
+        final List<String> args = new ArrayList<>();
+        String stdin = "";
+
+        static CliCommand parse(String requestBody) {
+            CliCommand command = new CliCommand();
+            for (String line : requestBody.split("\n")) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) {
+                    continue;
+                }
+                String value = DeprecationJournal.unescape(line.substring(tab + 1));
+                if (line.startsWith("arg\t")) {
+                    command.args.add(value);
+                } else if (line.startsWith("stdin\t")) {
+                    command.stdin = value;
+                }
+            }
+            return command;
+        }
+    }
+
+    /**
+     * Estimated cost of a command line for the {@link JobScheduler}, as for the API route it matches
+     */
+    static long estimateCliCost(String requestBody) {
+        List<String> args = CliCommand.parse(requestBody).args;
+        if (args.size() < 2) {
+            return 0;
+        }
+        switch (args.get(0)) {
+            case "--undo":
+                return JobScheduler.estimateUndo(args.get(1), args.size() > 2 ? args.get(2) : null);
+            case "--sharded":
+            case "--dry-run":
+                return JobScheduler.estimate(args.get(1), args.size() > 2 ? args.get(2) : null);
+            case "--analyze":
+            case "--scan":
+            case "--select":
+                return JobScheduler.estimate(args.get(1), null);
+            default:
+                return JobScheduler.estimate(args.get(0), args.get(1));
+        }
+    }
+
+    /**
+     * Run a command line sent by {@link DeprecationClient} and stream its output.
+     *
+     * The request has one <code>arg TAB value</code> line per argument and an optional
+     * <code>stdin TAB value</code> line, values escaped as in the journal. The response is streamed as
+     * <code>out TAB line</code> and <code>err TAB line</code> lines while the command runs, followed by
+     * <code>exit TAB code</code>. Conflicting jobs are serialized by the {@link ProjectLockManager}.
+     */
+    static void runCli(String requestBody, OutputStream os) throws IOException {
+        CliCommand command = CliCommand.parse(requestBody);
+
+        FramedOutput out = new FramedOutput(os, "out");
+        FramedOutput err = new FramedOutput(os, "err");
+        int exitCode;
+        try (PrintStream outStream = new PrintStream(out, true, "UTF-8");
+             PrintStream errStream = new PrintStream(err, true, "UTF-8")) {
+            exitCode = DeprecationUtility.run(command.args.toArray(new String[0]),
+                    new ByteArrayInputStream(command.stdin.getBytes(StandardCharsets.UTF_8)), outStream, errStream);
+        }
+        synchronized (os) {
+            os.write(("exit\t" + exitCode + "\n").getBytes(StandardCharsets.UTF_8));
+            os.flush();
+        }
+    }
+
+    /**
+     * Stream that forwards every complete line written to it as one tagged line of a shared response
+     */
+    private static class FramedOutput extends OutputStream {
+        private final OutputStream target;
+        private final String tag;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        FramedOutput(OutputStream target, String tag) {
+            this.target = target;
+            this.tag = tag;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (b == '\n') {
+                emit();
+            } else {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (target) {
+                target.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (line.size() > 0) {
+                emit();
+            }
+            flush();
+        }
+
+        private void emit() throws IOException {
+            String text = tag + "\t" + DeprecationJournal.escape(line.toString(StandardCharsets.UTF_8.name())) + "\n";
+            line.reset();
+            synchronized (target) {
+                target.write(text.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
     public static class DeprecationResult {
         private final boolean success;
         private final int filesUpdated;
@@ -174,17 +798,43 @@ public class WebServer {
         private final int classesDeprecated;
         private final String details;
         private final String error;
+        private final String runId;
+        private final Map<String, Integer> ruleCounts;
         
         public DeprecationResult(boolean success, int filesUpdated, int methodsDeprecated, 
                                int classesDeprecated, String details, String error) {
+            this(success, filesUpdated, methodsDeprecated, classesDeprecated, details, error, null);
+        }
+
+        public DeprecationResult(boolean success, int filesUpdated, int methodsDeprecated,
+                               int classesDeprecated, String details, String error, String runId) {
+            this(success, filesUpdated, methodsDeprecated, classesDeprecated, details, error, runId, null);
+        }
+
+        public DeprecationResult(boolean success, int filesUpdated, int methodsDeprecated,
+                               int classesDeprecated, String details, String error, String runId,
+                               Map<String, Integer> ruleCounts) {
             this.success = success;
             this.filesUpdated = filesUpdated;
             this.methodsDeprecated = methodsDeprecated;
             this.classesDeprecated = classesDeprecated;
             this.details = details;
             this.error = error;
+            this.runId = runId;
+            this.ruleCounts = ruleCounts;
         }
         
+        /**
+         * Estimated size of this result for the {@link ResultCache}; negative for a run that changed
+         * files, whose result cannot be given again
+         */
+        long cacheWeight() {
+            if (!success || filesUpdated > 0 || methodsDeprecated > 0 || classesDeprecated > 0) {
+                return -1;
+            }
+            return 128 + 2L * (details != null ? details.length() : 0);
+        }
+
         public String toJson() {
             StringBuilder json = new StringBuilder();
             json.append("{");
@@ -193,9 +843,18 @@ public class WebServer {
             json.append("\"methodsDeprecated\":").append(methodsDeprecated).append(",");
             json.append("\"classesDeprecated\":").append(classesDeprecated).append(",");
 
-            json.append("\"details\":\"").append(details != null ? details.replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t") : "").append("\",");
-
-            json.append("\"error\":\"").append(error != null ? error.replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t") : "").append("\"");
+            json.append("\"details\":\"").append(jsonEscape(details)).append("\",");
+            json.append("\"error\":\"").append(jsonEscape(error)).append("\",");
+            json.append("\"runId\":\"").append(jsonEscape(runId)).append("\"");
+            if (ruleCounts != null) {
+                json.append(",\"ruleCounts\":{");
+                int i = 0;
+                for (Map.Entry<String, Integer> rule : ruleCounts.entrySet()) {
+                    json.append(i++ > 0 ? "," : "").append("\"").append(jsonEscape(rule.getKey()))
+                        .append("\":").append(rule.getValue());
+                }
+                json.append("}");
+            }
             json.append("}");
             return json.toString();
         }
@@ -207,13 +866,59 @@ public class WebServer {
         public int getClassesDeprecated() { return classesDeprecated; }
         public String getDetails() { return details; }
         public String getError() { return error; }
+        public String getRunId() { return runId; }
+        public Map<String, Integer> getRuleCounts() { return ruleCounts; }
     }
     
+    /**
+     * A string as the content of a JSON string literal: backslashes first, then quotes and control
+     * characters. Null is the empty string.
+     */
+    static String jsonEscape(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder escaped = new StringBuilder(value.length() + 16);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': escaped.append("\\\\"); break;
+                case '"': escaped.append("\\\""); break;
+                case '\n': escaped.append("\\n"); break;
+                case '\r': escaped.append("\\r"); break;
+                case '\t': escaped.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        escaped.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        escaped.append(c);
+                    }
+            }
+        }
+        return escaped.toString();
+    }
+
     public static void main(String[] args) {
         try {
-            int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
-            WebServer webServer = new WebServer(port);
-            webServer.start();
+            int port = 8080;
+            boolean nio = false;
+            for (String arg : args) {
+                if ("--nio".equals(arg)) {
+                    nio = true;
+                } else {
+                    port = Integer.parseInt(arg);
+                }
+            }
+            Runnable stop;
+            if (nio) {
+                NioWebServer nioServer = new NioWebServer(port);
+                nioServer.start();
+                stop = nioServer::stop;
+            } else {
+                WebServer webServer = new WebServer(port);
+                webServer.start();
+                stop = webServer::stop;
+            }
             
             System.out.println("Web server is now running in the background");
             System.out.println("Access the UI at: http://localhost:" + port);
@@ -221,7 +926,7 @@ public class WebServer {
             
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 System.out.println("\nShutting down web server...");
-                webServer.stop();
+                stop.run();
             }));
             
             while (true) {
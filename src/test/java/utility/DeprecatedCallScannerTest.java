@@ -0,0 +1,115 @@
+package utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.BitSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeprecatedCallScannerTest {
+
+    private static final String OLD = "public class Old {\n    public int legacy() {\n        return 1;\n    }\n}\n";
+    private static final String USER = "public class User {\n    int use(Old o) {\n        return o.legacy();\n    }\n\n    int other() {\n        return 2;\n    }\n}\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File project;
+
+    private boolean git(String... args) throws InterruptedException {
+        String[] command = new String[args.length + 5];
+        command[0] = "git";
+        command[1] = "-c";
+        command[2] = "user.name=test";
+        command[3] = "-c";
+        command[4] = "user.email=test@example.com";
+        System.arraycopy(args, 0, command, 5, args.length);
+        try {
+            return new ProcessBuilder(command).directory(project).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD).start().waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A committed project in which User calls the deprecated Old.legacy()
+     */
+    @Before
+    public void commitProject() throws Exception {
+        project = folder.getRoot();
+        Files.writeString(project.toPath().resolve("Old.java"), OLD);
+        new DeprecationUtility(project.toString()).deprecateMethodWithResult("legacy", null);
+        Files.writeString(project.toPath().resolve("User.java"), USER);
+        assumeTrue("git is available", git("init", "-q"));
+        assumeTrue(git("add", "Old.java", "User.java"));
+        assumeTrue(git("commit", "-q", "-m", "base"));
+    }
+
+    private int scan(ByteArrayOutputStream out) {
+        InputStream in = new ByteArrayInputStream(new byte[0]);
+        PrintStream err = new PrintStream(new ByteArrayOutputStream(), true, StandardCharsets.UTF_8);
+        return DeprecatedCallScanner.run(new String[] {project.toString(), "--base", "HEAD", "--format", "text"},
+                in, new PrintStream(out, true, StandardCharsets.UTF_8), err);
+    }
+
+    @Test
+    public void callsThatWereThereBeforePass() throws Exception {
+        Files.writeString(project.toPath().resolve("User.java"), USER.replace("return 2;", "return 3;"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(out.toString(StandardCharsets.UTF_8), 0, scan(out));
+    }
+
+    @Test
+    public void addedCallsFail() throws Exception {
+        Files.writeString(project.toPath().resolve("User.java"), USER.replace("return 2;", "return o.legacy() + 2;"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1, scan(out));
+        String report = out.toString(StandardCharsets.UTF_8);
+        assertTrue(report, report.contains("User.java:7:"));
+        assertTrue(report, report.contains("1 violation(s)"));
+    }
+
+    @Test
+    public void filesWithOtherThanAsciiNamesAreChecked() throws Exception {
+        Path caller;
+        try {
+            caller = project.toPath().resolve("naïve/Caller.java");
+        } catch (InvalidPathException e) {
+            assumeTrue("file names of this JVM can hold other than ASCII characters", false);
+            return;
+        }
+        Files.createDirectories(caller.getParent());
+        Files.writeString(caller, "public class Caller {\n    int call(Old o) {\n        return o.legacy();\n    }\n}\n");
+        assumeTrue(git("add", "naïve/Caller.java"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1, scan(out));
+        String report = out.toString(StandardCharsets.UTF_8);
+        assertTrue(report, report.contains("Caller.java:3:"));
+    }
+
+    @Test
+    public void hunkHeadersGiveTheAddedLines() {
+        BitSet added = DeprecatedCallScanner.addedLines("@@ -3 +3 @@\n-a\n+b\n@@ -10,0 +11,2 @@\n+c\n+d\n@@ -20,2 +21,0 @@\n-e\n-f\n");
+
+        assertEquals("{3, 11, 12}", added.toString());
+    }
+}
@@ -0,0 +1,36 @@
+package utility;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+public class DeprecationClientTest {
+
+    private static String absolute(String path) {
+        return Paths.get(path).toAbsolutePath().normalize().toString();
+    }
+
+    @Test
+    public void projectOfASubcommandIsMadeAbsolute() {
+        assertArrayEquals(new String[] {"--sharded", absolute("project"), "add", "--shards", "4"},
+                DeprecationClient.absolutePaths(new String[] {"--sharded", "project", "add", "--shards", "4"}));
+        assertArrayEquals(new String[] {"--scan", absolute("project"), "--files", absolute("changed.txt")},
+                DeprecationClient.absolutePaths(new String[] {"--scan", "project", "--files", "changed.txt"}));
+    }
+
+    @Test
+    public void revisionOfADryRunIsNotAPath() {
+        assertArrayEquals(new String[] {"--dry-run", absolute("project"), "add", "--revision", "HEAD~1", "--output", absolute("changes.zip")},
+                DeprecationClient.absolutePaths(new String[] {"--dry-run", "project", "add", "--revision", "HEAD~1", "--output", "changes.zip"}));
+        assertArrayEquals(new String[] {"--analyze", absolute("project"), "--revision", "main"},
+                DeprecationClient.absolutePaths(new String[] {"--analyze", "project", "--revision", "main"}));
+    }
+
+    @Test
+    public void projectOfAPlainRunIsMadeAbsolute() {
+        assertArrayEquals(new String[] {absolute("project"), "add"},
+                DeprecationClient.absolutePaths(new String[] {"project", "add"}));
+    }
+}
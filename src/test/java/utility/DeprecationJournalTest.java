@@ -0,0 +1,70 @@
+package utility;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeprecationJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void undoRestoresTheBytesOfEveryFile() throws IOException {
+        Path project = folder.getRoot().toPath();
+        Map<Path, byte[]> originals = new LinkedHashMap<>();
+        originals.put(project.resolve("Calc.java"),
+                "public class Calc {\n    public int add(int a, int b) {\n        return a + b;\n    }\n}\n".getBytes(StandardCharsets.UTF_8));
+        originals.put(project.resolve("Sizes.java"),
+                "// Größe 𝄞\r\npublic class Sizes {\r\n    int add(int a) {\r\n        return a;\r\n    }\r\n}".getBytes(StandardCharsets.UTF_8));
+        originals.put(project.resolve("sub/Adder.java"),
+                "package sub;\n\nclass Adder {\n    void add() {\n    }\n\n    void keep() {\n    }\n}\n".getBytes(StandardCharsets.UTF_8));
+        Files.createDirectories(project.resolve("sub"));
+        for (Map.Entry<Path, byte[]> original : originals.entrySet()) {
+            Files.write(original.getKey(), original.getValue());
+        }
+        boolean posix = project.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if (posix) {
+            Files.setPosixFilePermissions(project.resolve("Calc.java"), PosixFilePermissions.fromString("rwxr-x---"));
+        }
+
+        DeprecationUtility utility = new DeprecationUtility(project.toString());
+        WebServer.DeprecationResult run = utility.deprecateMethodWithResult("add", null);
+        assertEquals(run.getDetails(), 3, run.getFilesUpdated());
+        for (Map.Entry<Path, byte[]> original : originals.entrySet()) {
+            assertNotEquals(new String(original.getValue(), StandardCharsets.UTF_8), Files.readString(original.getKey()));
+        }
+
+        DeprecationJournal.UndoResult undo = DeprecationJournal.undo(project, utility.getRunId());
+
+        assertTrue(undo.getDetails(), undo.isSuccess());
+        assertEquals(3, undo.getFilesRestored());
+        for (Map.Entry<Path, byte[]> original : originals.entrySet()) {
+            assertArrayEquals(original.getKey().toString(), original.getValue(), Files.readAllBytes(original.getKey()));
+        }
+        if (posix) {
+            assertEquals("rwxr-x---", PosixFilePermissions.toString(Files.getPosixFilePermissions(project.resolve("Calc.java"))));
+        }
+        try (Stream<Path> files = Files.list(project.resolve("sub"))) {
+            List<String> names = files.map(file -> file.getFileName().toString()).collect(Collectors.toList());
+            assertEquals(Arrays.asList("Adder.java"), names);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.catalina.LifecycleException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeprecationServletTest {
+
+    private static final String CALC = "public class Calc {\n    public int add(int a, int b) {\n        return a + b;\n    }\n}\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private EmbeddedWebapp webapp;
+
+    @Before
+    public void deploy() throws IOException, LifecycleException {
+        webapp = new EmbeddedWebapp(Paths.get("src/main/webapp"), 4);
+        webapp.start();
+    }
+
+    @After
+    public void undeploy() throws IOException, LifecycleException {
+        webapp.stop();
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        return (HttpURLConnection) new URL("http://127.0.0.1:" + webapp.getPort() + path).openConnection();
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            in.transferTo(body);
+            return body.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void welcomeFileIsServed() throws IOException {
+        HttpURLConnection connection = open("/");
+
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(Files.readString(Paths.get("src/main/webapp/index.html")), read(connection));
+    }
+
+    private HttpURLConnection dryRun(Path project) throws IOException {
+        HttpURLConnection connection = open("/api/deprecate");
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(("{\"projectPath\":\"" + project + "\",\"methodName\":\"add\",\"dryRun\":true}")
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        return connection;
+    }
+
+    @Test
+    public void dryRunThroughTheDeployedServlet() throws IOException {
+        Path calc = folder.getRoot().toPath().resolve("Calc.java");
+        Files.writeString(calc, CALC);
+        HttpURLConnection connection = dryRun(folder.getRoot().toPath());
+
+        assertEquals(200, connection.getResponseCode());
+        String body = read(connection);
+        assertTrue(body, body.contains("\"methodsDeprecated\":1"));
+        assertEquals(CALC, Files.readString(calc));
+    }
+
+    @Test
+    public void undeployClosesTheWatchServices() throws Exception {
+        Path project = folder.getRoot().toPath();
+        Files.writeString(project.resolve("Calc.java"), CALC);
+        assertEquals(200, dryRun(project).getResponseCode());
+        ProjectVersion tracker = ProjectVersion.of(project);
+        assumeTrue("the file system pushes change events", tracker.isWatching());
+
+        webapp.stop();
+
+        assertFalse(tracker.isWatching());
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("FileSystemWatcher")) {
+                thread.join(5000);
+                assertFalse(thread + " is still running", thread.isAlive());
+            }
+        }
+    }
+}
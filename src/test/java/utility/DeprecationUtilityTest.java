@@ -0,0 +1,165 @@
+package utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeprecationUtilityTest {
+
+    private static final String MARKERS = DeprecationUtility.DEPRECATION_COMMENT + "\n@Deprecated\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path write(String name, String content) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        Files.writeString(file, content);
+        return file;
+    }
+
+    private WebServer.DeprecationResult deprecate(String methodName) throws IOException {
+        return new DeprecationUtility(folder.getRoot().toString()).deprecateMethodWithResult(methodName, null);
+    }
+
+    @Test
+    public void classWithoutMethodsIsDeprecatedByAMethodRun() throws IOException {
+        Path consts = write("Consts.java", "public class Consts {\n    static final int A = 1;\n}\n");
+        write("Calc.java", "public class Calc {\n    public int add(int a, int b) {\n        return a + b;\n    }\n}\n");
+
+        WebServer.DeprecationResult result = deprecate("add");
+
+        assertTrue(result.isSuccess());
+        assertEquals(2, result.getClassesDeprecated());
+        assertEquals(MARKERS + "public class Consts {\n    static final int A = 1;\n}\n", Files.readString(consts));
+    }
+
+    @Test
+    public void classPassDoesNotParseFilesTheMethodRunOnlyProbed() throws IOException {
+        write("Consts.java", "public class Consts {\n    static final int A = 1;\n}\n");
+        write("Calc.java", "public class Calc {\n    public int add(int a, int b) {\n        return a + b;\n    }\n}\n");
+        Path other = write("Other.java", "public class Other {\n    public int other() {\n        return 1;\n    }\n}\n");
+
+        WebServer.DeprecationResult result = deprecate("add");
+
+        assertEquals(2, result.getClassesDeprecated());
+        // the method run only probed it, and its entry tells it has no class for the class pass
+        assertFalse(SourceIndex.shared(folder.getRoot().toPath()).probe(other).parsed);
+    }
+
+    @Test
+    public void classWithAnUndeprecatedMethodIsKept() throws IOException {
+        Path calc = write("Calc.java", "public class Calc {\n    public int add(int a, int b) {\n        return a + b;\n    }\n\n"
+                + "    public int sub(int a, int b) {\n        return a - b;\n    }\n}\n");
+
+        WebServer.DeprecationResult result = deprecate("add");
+
+        assertEquals(1, result.getMethodsDeprecated());
+        assertEquals(0, result.getClassesDeprecated());
+        assertTrue(Files.readString(calc).startsWith("public class Calc {\n"));
+    }
+
+    @Test
+    public void secondRunChangesNothing() throws IOException {
+        write("Consts.java", "public class Consts {\n    static final int A = 1;\n}\n");
+        Path calc = write("Calc.java", "public class Calc {\n    public int add(int a, int b) {\n        return a + b;\n    }\n}\n");
+        deprecate("add");
+        String afterFirstRun = Files.readString(calc);
+
+        WebServer.DeprecationResult result = deprecate("add");
+
+        assertEquals(0, result.getFilesUpdated());
+        assertEquals(0, result.getMethodsDeprecated());
+        assertEquals(0, result.getClassesDeprecated());
+        assertEquals(afterFirstRun, Files.readString(calc));
+    }
+
+    @Test
+    public void rewritesKeepTheTreeSnapshot() throws IOException {
+        write("Calc.java", "public class Calc {\n    public int add(int a, int b) {\n        return a + b;\n    }\n}\n");
+
+        deprecate("add");
+
+        assertEquals(1, SourceIndex.load(folder.getRoot().toPath()).snapshotFiles().size());
+    }
+
+    @Test
+    public void callSitesAreNotMarked() throws IOException {
+        String caller = "public class Caller {\n    int total(Calc calc) {\n        if (calc.add(1, 2) > 0) {\n"
+                + "            return add(3, 4);\n        }\n        return 0;\n    }\n\n"
+                + "    int add(int a, int b) {\n        return a + b;\n    }\n}\n";
+        Path file = write("Caller.java", caller);
+
+        WebServer.DeprecationResult result = deprecate("add");
+
+        assertEquals(1, result.getMethodsDeprecated());
+        assertEquals(caller.replace("    int add(int a, int b) {", "    " + MARKERS.replace("\n@", "\n    @") + "    int add(int a, int b) {"),
+                Files.readString(file));
+    }
+
+    @Test
+    public void signatureSelectsTheOverload() throws IOException {
+        Path calc = write("Calc.java", "public class Calc {\n    public int add(int a, int b) {\n        return a + b;\n    }\n\n"
+                + "    public long add(long a, long b) {\n        return a + b;\n    }\n}\n");
+
+        WebServer.DeprecationResult result = new DeprecationUtility(folder.getRoot().toString())
+                .deprecateMethodWithResult("add", "long add(long a, long b)");
+
+        assertEquals(1, result.getMethodsDeprecated());
+        assertEquals("public class Calc {\n    public int add(int a, int b) {\n        return a + b;\n    }\n\n"
+                + "    " + DeprecationUtility.DEPRECATION_COMMENT + "\n    @Deprecated\n"
+                + "    public long add(long a, long b) {\n        return a + b;\n    }\n}\n", Files.readString(calc));
+    }
+
+    @Test
+    public void declarationsNeedAModifierOrAReturnType() {
+        assertEquals("add", DeprecationUtility.declaredMethodName("    public int add(int a, int b) {"));
+        assertEquals("add", DeprecationUtility.declaredMethodName("    <T> java.util.List<T> add(T value)"));
+        assertEquals("Calc", DeprecationUtility.declaredMethodName("    Calc(int seed) {"));
+        assertEquals(null, DeprecationUtility.declaredMethodName("        return add(a, b);"));
+        assertEquals(null, DeprecationUtility.declaredMethodName("        if (add(a, b) > 0) {"));
+        assertEquals(null, DeprecationUtility.declaredMethodName("        System.out.println(add(a, b));"));
+        assertEquals(null, DeprecationUtility.declaredMethodName("        int sum = add(a, b);"));
+    }
+
+    @Test
+    public void packageGlobSelectsItsBasePackageOnAColdIndex() throws IOException {
+        Files.createDirectories(folder.getRoot().toPath().resolve("com/foo/bar"));
+        write("com/foo/A.java", "package com.foo;\n\npublic class A {\n    public int a() {\n        return 1;\n    }\n\n"
+                + "    public int b() {\n        return 2;\n    }\n}\n");
+        write("com/foo/bar/B.java", "package com.foo.bar;\n\npublic class B {\n    public int c() {\n        return 3;\n    }\n}\n");
+        write("Other.java", "package com.foobar;\n\npublic class Other {\n    public int d() {\n        return 4;\n    }\n}\n");
+
+        WebServer.DeprecationResult result = new DeprecationUtility(folder.getRoot().toString())
+                .deprecateMatchingWithResult(DeprecationRule.parseAll("package=com.foo.* modifiers=public"));
+
+        assertTrue(result.isSuccess());
+        assertEquals(3, result.getMethodsDeprecated());
+    }
+
+    @Test
+    public void editKeepingSizeAndTimeIsParsedAgainBeforeMarking() throws IOException {
+        String add = "    public int add(int a, int b) {\n        return a + b;\n    }\n";
+        String sub = "    public int sub(int a, int b) {\n        return a - b;\n    }\n";
+        Path calc = write("Calc.java", "public class Calc {\n" + add + "\n" + sub + "}\n");
+        SourceIndex.shared(folder.getRoot().toPath()).refresh(calc);
+        FileTime modified = Files.getLastModifiedTime(calc);
+
+        // same size, and the time set back, as a coarse file system or a quick save leaves it
+        Files.writeString(calc, "public class Calc {\n" + sub + "\n" + add + "}\n");
+        Files.setLastModifiedTime(calc, modified);
+        WebServer.DeprecationResult result = deprecate("add");
+
+        assertEquals(1, result.getMethodsDeprecated());
+        assertEquals("public class Calc {\n" + sub + "\n    " + MARKERS.replace("\n@", "\n    @") + add + "}\n",
+                Files.readString(calc));
+    }
+}
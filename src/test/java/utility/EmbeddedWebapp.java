@@ -0,0 +1,84 @@
+package utility;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.util.scan.StandardJarScanner;
+
+/**
+ * The web application of <code>src/main/webapp</code> deployed from its <code>WEB-INF/web.xml</code>
+ * into an embedded Tomcat on localhost, for tests and the load harness. The servlet classes come from
+ * the class path of this JVM.
+ */
+class EmbeddedWebapp {
+
+    private final Path webapp;
+    private final int containerThreads;
+    private Tomcat tomcat;
+    private Path baseDir;
+    private int port;
+
+    EmbeddedWebapp(Path webapp, int containerThreads) {
+        this.webapp = webapp.toAbsolutePath();
+        this.containerThreads = containerThreads;
+    }
+
+    /**
+     * Deploy the web application on a free port and return the port
+     */
+    int start() throws IOException, LifecycleException {
+        baseDir = Files.createTempDirectory("tomcat");
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.toString());
+        tomcat.setPort(0);
+        Connector connector = tomcat.getConnector();
+        connector.setProperty("address", "127.0.0.1");
+        connector.setProperty("maxThreads", String.valueOf(containerThreads));
+
+        // the defaults of Tomcat include a JSP servlet, which needs Jasper; only the file servlet is wanted
+        tomcat.setAddDefaultWebXmlToWebapp(false);
+        Context context = tomcat.addWebapp("", webapp.toString());
+        Tomcat.addServlet(context, "default", "org.apache.catalina.servlets.DefaultServlet");
+        context.addServletMappingDecoded("/", "default");
+        Tomcat.addDefaultMimeTypeMappings(context);
+        // the web application has no jars of its own, the class path of a test run is large
+        ((StandardJarScanner) context.getJarScanner()).setScanClassPath(false);
+        // leak detection on undeploy needs opened JDK modules, and the JVM does not outlive the deployment
+        StandardContext standard = (StandardContext) context;
+        standard.setClearReferencesObjectStreamClassCaches(false);
+        standard.setClearReferencesThreadLocals(false);
+        standard.setClearReferencesRmiTargets(false);
+        tomcat.start();
+        port = connector.getLocalPort();
+        return port;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    void stop() throws IOException, LifecycleException {
+        if (tomcat == null) {
+            return;
+        }
+        try {
+            tomcat.stop();
+            tomcat.destroy();
+        } finally {
+            tomcat = null;
+            try (Stream<Path> paths = Files.walk(baseDir)) {
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+}
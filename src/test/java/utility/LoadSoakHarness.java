@@ -0,0 +1,586 @@
+package utility;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Load and soak test of the HTTP front ends on localhost.
+ *
+ * Generates synthetic projects in a temporary directory, starts each target in this JVM in turn and
+ * drives it with concurrent clients for a fixed time, after a warm-up that is not measured. Every client
+ * keeps sending a mix of three kinds of requests, picked at random by weight:
+ * <ul>
+ *   <li><b>static</b>: GET of the UI page</li>
+ *   <li><b>api</b>: a deprecation of a random method of a random project; a client undoes its last run
+ *       with its next api request, so the projects keep changing instead of filling up with markers</li>
+ *   <li><b>dryrun</b>: a report-only analysis of a random method, which changes nothing</li>
+ * </ul>
+ * The targets are {@link WebServer}, {@link NioWebServer} and the web application of
+ * <code>src/main/webapp</code> with its servlets, deployed into an embedded Tomcat by
+ * {@link EmbeddedWebapp}. Each target gets freshly generated projects.
+ *
+ * During the run one line per interval shows throughput, p99 latency, errors, heap and GC activity, so a
+ * soak run shows drift. At the end a table gives latency percentiles, throughput, errors and rejections
+ * (429 and 503) per kind of request, followed by heap and GC statistics: the heap after a full GC before
+ * and after the run, the peak heap and the collections during the run. Clients and servers share the
+ * JVM, so heap and GC figures include the clients.
+ *
+ * Usage: java utility.LoadSoakHarness [--targets webserver,nio,servlet] [--clients 16] [--duration 30]
+ *        [--warmup 5] [--interval 10] [--mix static=60,api=20,dryrun=20] [--projects 4] [--files 500]
+ *        [--container-threads 50] [--timeout 60] [--think 0]
+ */
+public class LoadSoakHarness {
+
+    private static final String[] KINDS = {"static", "api", "dryrun"};
+    private static final int STATIC = 0;
+    private static final int API = 1;
+    private static final int METHODS_PER_FILE = 10;
+    private static final Pattern RUN_ID = Pattern.compile("\"runId\"\\s*:\\s*\"([^\"]+)\"");
+
+    private final Map<String, String> options;
+    private final int clients;
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final int intervalSeconds;
+    private final int[] weights = new int[KINDS.length];
+    private final int projects;
+    private final int files;
+    private final int containerThreads;
+    private final int timeoutSeconds;
+    private final int thinkMillis;
+
+    LoadSoakHarness(Map<String, String> options) {
+        this.options = options;
+        this.clients = intOption("clients", 16);
+        this.durationSeconds = intOption("duration", 30);
+        this.warmupSeconds = intOption("warmup", 5);
+        this.intervalSeconds = intOption("interval", 10);
+        this.projects = intOption("projects", 4);
+        this.files = intOption("files", 500);
+        this.containerThreads = intOption("container-threads", 50);
+        this.timeoutSeconds = intOption("timeout", 60);
+        this.thinkMillis = intOption("think", 0);
+        for (String term : options.getOrDefault("mix", "static=60,api=20,dryrun=20").split(",")) {
+            String[] parts = term.split("=");
+            int kind = Arrays.asList(KINDS).indexOf(parts[0].trim());
+            if (parts.length != 2 || kind < 0) {
+                throw new IllegalArgumentException("Expected static=N, api=N or dryrun=N in --mix: " + term);
+            }
+            weights[kind] = Integer.parseInt(parts[1].trim());
+        }
+        if (Arrays.stream(weights).sum() <= 0) {
+            throw new IllegalArgumentException("--mix needs a positive weight");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                System.err.println("Usage: java utility.LoadSoakHarness [--option value]..., see the class comment");
+                System.exit(2);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        LoadSoakHarness harness = new LoadSoakHarness(options);
+
+        // the servers and the deprecation runs print progress, which would swamp the report
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (String target : options.getOrDefault("targets", "webserver,servlet").split(",")) {
+                harness.run(report, target.trim());
+            }
+        } finally {
+            System.setOut(report);
+        }
+    }
+
+    /**
+     * A front end started in this JVM
+     */
+    private interface Target {
+        int start() throws Exception;
+
+        void stop() throws Exception;
+    }
+
+    private Target target(String name) throws Exception {
+        switch (name) {
+            case "webserver": {
+                WebServer server = new WebServer(0);
+                return new Target() {
+                    public int start() {
+                        server.start();
+                        return server.getPort();
+                    }
+
+                    public void stop() {
+                        server.stop();
+                    }
+                };
+            }
+            case "nio": {
+                NioWebServer server = new NioWebServer(0);
+                return new Target() {
+                    public int start() throws IOException {
+                        server.start();
+                        return server.getPort();
+                    }
+
+                    public void stop() {
+                        server.stop();
+                    }
+                };
+            }
+            case "servlet": {
+                EmbeddedWebapp webapp = new EmbeddedWebapp(Paths.get("src/main/webapp"), containerThreads);
+                return new Target() {
+                    public int start() throws Exception {
+                        return webapp.start();
+                    }
+
+                    public void stop() throws Exception {
+                        webapp.stop();
+                    }
+                };
+            }
+            default:
+                throw new IllegalArgumentException("Unknown target " + name + ", expected webserver, nio or servlet");
+        }
+    }
+
+    private void run(PrintStream report, String name) throws Exception {
+        Target target = target(name);
+        List<Path> roots = new ArrayList<>();
+        Path base = Files.createTempDirectory("load-soak");
+        for (int p = 0; p < projects; p++) {
+            roots.add(generateProject(base.resolve("project" + p), files));
+        }
+
+        int port = target.start();
+        try {
+            report.printf("== %s on port %d: %d clients, %d s after %d s warm-up, %d projects of %d files ==%n",
+                    name, port, clients, durationSeconds, warmupSeconds, projects, files);
+            HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofSeconds(10)).build();
+            String baseUri = "http://127.0.0.1:" + port;
+
+            Stats[] warmup = newStats();
+            drive(http, baseUri, roots, warmup, System.nanoTime() + warmupSeconds * 1_000_000_000L, null, null);
+
+            HeapWatch heap = new HeapWatch();
+            Stats[] stats = newStats();
+            drive(http, baseUri, roots, stats, System.nanoTime() + durationSeconds * 1_000_000_000L, report, heap);
+            heap.finish();
+
+            printSummary(report, stats, heap);
+        } finally {
+            target.stop();
+            deleteTree(base);
+        }
+        report.println();
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Run the clients until the deadline; with a report, print a line per interval
+     */
+    private void drive(HttpClient http, String baseUri, List<Path> roots, Stats[] stats, long deadline,
+                       PrintStream report, HeapWatch heap) throws InterruptedException {
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            Thread thread = new Thread(() -> runClient(http, baseUri, roots, stats, deadline), "load-client-" + c);
+            threads.add(thread);
+            thread.start();
+        }
+        if (report != null) {
+            report.printf("%8s %10s %10s %8s %8s %10s %8s %10s%n",
+                    "elapsed", "req/s", "p99 ms", "errors", "rejected", "heap MB", "gcs", "gc ms");
+            long next = start + intervalSeconds * 1_000_000_000L;
+            while (next < deadline) {
+                Thread.sleep(Math.max(0, (next - System.nanoTime()) / 1_000_000));
+                printInterval(report, stats, (next - start) / 1_000_000_000L, heap);
+                next += intervalSeconds * 1_000_000_000L;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (report != null) {
+            printInterval(report, stats, (System.nanoTime() - start) / 1_000_000_000L, heap);
+        }
+    }
+
+    private void runClient(HttpClient http, String baseUri, List<Path> roots, Stats[] stats, long deadline) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int totalWeight = Arrays.stream(weights).sum();
+        String pendingUndo = null;
+        Path pendingProject = null;
+
+        while (System.nanoTime() < deadline) {
+            int pick = random.nextInt(totalWeight);
+            int kind = 0;
+            while (pick >= weights[kind]) {
+                pick -= weights[kind++];
+            }
+            Path project = roots.get(random.nextInt(roots.size()));
+            String method = "work" + random.nextInt(files) + "x" + random.nextInt(METHODS_PER_FILE);
+
+            HttpRequest request;
+            if (kind == STATIC) {
+                request = get(baseUri + "/index.html");
+            } else if (kind == API && pendingUndo != null) {
+                request = post(baseUri + "/api/undo", "{\"projectPath\":\"" + json(pendingProject)
+                        + "\",\"runId\":\"" + pendingUndo + "\"}");
+                pendingUndo = null;
+            } else if (kind == API) {
+                request = post(baseUri + "/api/deprecate", "{\"projectPath\":\"" + json(project)
+                        + "\",\"methodName\":\"" + method + "\"}");
+                pendingProject = project;
+            } else {
+                request = post(baseUri + "/api/analyze", "{\"projectPath\":\"" + json(project)
+                        + "\",\"methods\":\"" + method + "\",\"top\":5}");
+            }
+
+            long begin = System.nanoTime();
+            try {
+                HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+                long elapsed = System.nanoTime() - begin;
+                int status = response.statusCode();
+                if (status == 429 || status == 503) {
+                    stats[kind].rejected.incrementAndGet();
+                } else if (status != 200) {
+                    stats[kind].errors.incrementAndGet();
+                } else {
+                    stats[kind].record(elapsed);
+                    if (request.uri().getPath().equals("/api/deprecate")) {
+                        Matcher runId = RUN_ID.matcher(response.body());
+                        pendingUndo = runId.find() ? runId.group(1) : null;
+                    }
+                }
+            } catch (IOException e) {
+                stats[kind].errors.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (thinkMillis > 0) {
+                try {
+                    Thread.sleep(thinkMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private HttpRequest get(String uri) {
+        return HttpRequest.newBuilder(URI.create(uri)).timeout(Duration.ofSeconds(timeoutSeconds)).GET().build();
+    }
+
+    private HttpRequest post(String uri, String body) {
+        return HttpRequest.newBuilder(URI.create(uri)).timeout(Duration.ofSeconds(timeoutSeconds))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body)).build();
+    }
+
+    private static String json(Path path) {
+        return path.toAbsolutePath().toString().replace("\\", "\\\\");
+    }
+
+    private void printInterval(PrintStream report, Stats[] stats, long elapsedSeconds, HeapWatch heap) {
+        long errors = 0;
+        long rejected = 0;
+        Histogram interval = new Histogram();
+        for (Stats kind : stats) {
+            kind.interval.drainInto(interval);
+            errors += kind.errors.get();
+            rejected += kind.rejected.get();
+        }
+        double seconds = Math.max(1e-9, (System.nanoTime() - heap.lastSample) / 1e9);
+        heap.sample();
+        report.printf("%7ds %10.0f %10.2f %8d %8d %10.1f %8d %10d%n", elapsedSeconds, interval.count() / seconds,
+                interval.percentile(0.99) / 1e6, errors, rejected, heap.usedBytes / 1048576.0,
+                heap.intervalCollections, heap.intervalCollectionMillis);
+    }
+
+    private void printSummary(PrintStream report, Stats[] stats, HeapWatch heap) {
+        double seconds = heap.elapsedNanos / 1e9;
+        report.printf("%-8s %9s %9s %9s %9s %9s %9s %9s %8s %8s%n",
+                "kind", "requests", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "errors", "rejected");
+        Histogram all = new Histogram();
+        long errors = 0;
+        long rejected = 0;
+        for (int k = 0; k < KINDS.length; k++) {
+            printRow(report, KINDS[k], stats[k].total, stats[k].errors.get(), stats[k].rejected.get(), seconds);
+            stats[k].total.addInto(all);
+            errors += stats[k].errors.get();
+            rejected += stats[k].rejected.get();
+        }
+        printRow(report, "all", all, errors, rejected, seconds);
+        long attempts = all.count() + errors + rejected;
+        report.printf("error rate %.3f%%, rejection rate %.3f%%%n",
+                attempts == 0 ? 0.0 : 100.0 * errors / attempts, attempts == 0 ? 0.0 : 100.0 * rejected / attempts);
+        report.printf("heap after full GC %.1f MB before, %.1f MB after; peak %.1f MB; %d collections, %d ms (%.1f%% of the run)%n",
+                heap.baselineBytes / 1048576.0, heap.retainedBytes / 1048576.0, heap.peakBytes / 1048576.0,
+                heap.collections, heap.collectionMillis, 100.0 * heap.collectionMillis / Math.max(1.0, seconds * 1000));
+    }
+
+    private static void printRow(PrintStream report, String kind, Histogram histogram, long errors, long rejected, double seconds) {
+        report.printf("%-8s %9d %9.0f %9.2f %9.2f %9.2f %9.2f %9.2f %8d %8d%n", kind, histogram.count(),
+                histogram.count() / seconds, histogram.percentile(0.50) / 1e6, histogram.percentile(0.90) / 1e6,
+                histogram.percentile(0.99) / 1e6, histogram.percentile(0.999) / 1e6, histogram.max() / 1e6,
+                errors, rejected);
+    }
+
+    private static Stats[] newStats() {
+        Stats[] stats = new Stats[KINDS.length];
+        for (int k = 0; k < stats.length; k++) {
+            stats[k] = new Stats();
+        }
+        return stats;
+    }
+
+    /**
+     * Latencies of successful requests of one kind, over the run and since the last interval line,
+     * and the failed requests
+     */
+    private static final class Stats {
+        final Histogram total = new Histogram();
+        final Histogram interval = new Histogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+
+        void record(long nanos) {
+            total.record(nanos);
+            interval.record(nanos);
+        }
+    }
+
+    /**
+     * Lock-free latency histogram with buckets of about 3% of their value, from a microsecond up
+     */
+    static final class Histogram {
+        private static final int LINEAR = 64;
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (64 - 6) * SUB_BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            counts.incrementAndGet(index(Math.max(0, nanos / 1000)));
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        private static int index(long micros) {
+            if (micros < LINEAR) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return LINEAR + (exponent - 6) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * Middle of a bucket, in nanoseconds
+         */
+        private static long value(int index) {
+            if (index < LINEAR) {
+                return index * 1000L + 500;
+            }
+            int exponent = (index - LINEAR) / SUB_BUCKETS + 6;
+            long sub = (index - LINEAR) % SUB_BUCKETS;
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+            return ((SUB_BUCKETS + sub) * width + width / 2) * 1000;
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long percentile(double fraction) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(value(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void addInto(Histogram target) {
+            for (int i = 0; i < counts.length(); i++) {
+                target.counts.addAndGet(i, counts.get(i));
+            }
+            target.max.accumulateAndGet(max.get(), Math::max);
+        }
+
+        /**
+         * Move the counts into another histogram, leaving this one empty
+         */
+        void drainInto(Histogram target) {
+            for (int i = 0; i < counts.length(); i++) {
+                target.counts.addAndGet(i, counts.getAndSet(i, 0));
+            }
+            target.max.accumulateAndGet(max.getAndSet(0), Math::max);
+        }
+    }
+
+    /**
+     * Heap and GC figures of the measured run
+     */
+    private static final class HeapWatch {
+        private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        private final long start;
+        private final long startCollections;
+        private final long startCollectionMillis;
+        final long baselineBytes;
+        long lastSample;
+        long lastCollections;
+        long lastCollectionMillis;
+        long usedBytes;
+        long intervalCollections;
+        long intervalCollectionMillis;
+        long retainedBytes;
+        long peakBytes;
+        long collections;
+        long collectionMillis;
+        long elapsedNanos;
+
+        HeapWatch() {
+            System.gc();
+            this.baselineBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                }
+            }
+            this.startCollections = collections();
+            this.startCollectionMillis = collectionMillis();
+            this.lastCollections = startCollections;
+            this.lastCollectionMillis = startCollectionMillis;
+            this.start = System.nanoTime();
+            this.lastSample = start;
+        }
+
+        void sample() {
+            long collections = collections();
+            long millis = collectionMillis();
+            usedBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            intervalCollections = collections - lastCollections;
+            intervalCollectionMillis = millis - lastCollectionMillis;
+            lastCollections = collections;
+            lastCollectionMillis = millis;
+            lastSample = System.nanoTime();
+        }
+
+        void finish() {
+            elapsedNanos = System.nanoTime() - start;
+            collections = collections() - startCollections;
+            collectionMillis = collectionMillis() - startCollectionMillis;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                    peakBytes += pool.getPeakUsage().getUsed();
+                }
+            }
+            System.gc();
+            retainedBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+
+        private long collections() {
+            long total = 0;
+            for (GarbageCollectorMXBean collector : collectors) {
+                total += Math.max(0, collector.getCollectionCount());
+            }
+            return total;
+        }
+
+        private long collectionMillis() {
+            long total = 0;
+            for (GarbageCollectorMXBean collector : collectors) {
+                total += Math.max(0, collector.getCollectionTime());
+            }
+            return total;
+        }
+    }
+
+    /**
+     * A project of <code>files</code> classes in packages of 100, each with ten methods
+     * <code>work{file}x{0..9}</code> that call the next one, so that deprecations cascade
+     */
+    static Path generateProject(Path root, int files) throws IOException {
+        for (int f = 0; f < files; f++) {
+            String packageName = "load.p" + (f / 100);
+            Path directory = root.resolve("src/main/java").resolve(packageName.replace('.', '/'));
+            Files.createDirectories(directory);
+            StringBuilder source = new StringBuilder("package ").append(packageName).append(";\n\n")
+                    .append("public class K").append(f).append(" {\n");
+            for (int k = 0; k < METHODS_PER_FILE; k++) {
+                source.append("\n    public int work").append(f).append('x').append(k).append("(int a) {\n");
+                if (k + 1 < METHODS_PER_FILE) {
+                    source.append("        return work").append(f).append('x').append(k + 1).append("(a + ").append(k).append(");\n");
+                } else {
+                    source.append("        return a * 31;\n");
+                }
+                source.append("    }\n");
+            }
+            source.append("}\n");
+            Files.writeString(directory.resolve("K" + f + ".java"), source);
+        }
+        return root;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,74 @@
+package utility;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MemoryGovernorTest {
+
+    private static final long MAX_HEAP = Runtime.getRuntime().maxMemory();
+
+    @Test
+    public void uncollectedGarbageDoesNotCount() {
+        System.gc();
+        MemoryGovernor governor = new MemoryGovernor(1L << 40, 0.6, 0.85);
+        for (int i = 0; i < 8; i++) {
+            byte[] garbage = new byte[(int) Math.min(MAX_HEAP / 16, Integer.MAX_VALUE - 8)];
+            garbage[0] = 1;
+        }
+
+        assertTrue("pressure " + governor.pressure(), governor.pressure() < 0.3);
+    }
+
+    @Test
+    public void liveDataCountsAfterACollection() throws InterruptedException {
+        byte[] live = new byte[(int) Math.min(MAX_HEAP * 4 / 10, Integer.MAX_VALUE - 8)];
+        System.gc();
+        MemoryGovernor governor = new MemoryGovernor(1L << 40, 0.6, 0.85);
+
+        double expected = (double) live.length / MAX_HEAP * 0.9;
+        awaitPressure(governor, expected);
+        assertTrue("pressure " + governor.pressure(), governor.pressure() > expected);
+        Reference.reachabilityFence(live);
+    }
+
+    /**
+     * Wait a little for the pressure to reach a level, since collections are notified asynchronously
+     */
+    private static void awaitPressure(MemoryGovernor governor, double expected) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (governor.pressure() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void liveDataCountsWithoutAFullCollection() throws InterruptedException {
+        MemoryGovernor governor = new MemoryGovernor(1L << 40, 0.6, 0.85);
+        List<byte[]> live = new ArrayList<>();
+        long liveBytes = 0;
+        // small arrays, a large one would go straight to the old generation as G1 humongous object
+        while (liveBytes < MAX_HEAP * 4 / 10) {
+            live.add(new byte[1 << 16]);
+            liveBytes += 1 << 16;
+        }
+
+        // only garbage from here on, so the young collections it causes keep the live data
+        double expected = (double) liveBytes / MAX_HEAP * 0.9;
+        long deadline = System.nanoTime() + 20_000_000_000L;
+        while (governor.pressure() < expected && System.nanoTime() < deadline) {
+            for (int i = 0; i < 64; i++) {
+                byte[] garbage = new byte[1 << 16];
+                garbage[0] = 1;
+            }
+            Thread.sleep(1);
+        }
+
+        assertTrue("pressure " + governor.pressure(), governor.pressure() > expected);
+        Reference.reachabilityFence(live);
+    }
+}
@@ -0,0 +1,75 @@
+package utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NioWebServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String userHome;
+    private NioWebServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        userHome = System.getProperty("user.home");
+        System.setProperty("user.home", folder.newFolder("home").toString());
+        server = new NioWebServer(0);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+        System.setProperty("user.home", userHome);
+    }
+
+    @Test
+    public void archiveIsDeprecatedAndStreamedBack() throws IOException {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(archive)) {
+            zip.putNextEntry(new ZipEntry("src/Calc.java"));
+            zip.write("public class Calc {\n    public int add(int a, int b) {\n        return a + b;\n    }\n}\n"
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort()
+                + WebServer.ARCHIVE_PATH + "?methodName=add").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(archive.toByteArray());
+        }
+
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("application/zip", connection.getContentType());
+        assertEquals("1", connection.getHeaderField("X-Methods-Deprecated"));
+        String calc = null;
+        try (InputStream in = connection.getInputStream(); ZipInputStream zip = new ZipInputStream(in)) {
+            for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+                if ("src/Calc.java".equals(entry.getName())) {
+                    calc = new String(zip.readAllBytes(), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        assertTrue(calc, calc != null && calc.contains("@Deprecated\n    public int add"));
+    }
+}
@@ -0,0 +1,498 @@
+package utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * End-to-end performance regression suite, run by the <code>perf</code> Maven profile.
+ *
+ * Every scenario runs against deterministic generated projects of several sizes:
+ * <ul>
+ *   <li><b>cascade</b>: deprecation of <code>process</code> and, through the cascade, of the methods it
+ *       calls, followed by the class pass over the files it wrote</li>
+ *   <li><b>classes</b>: the class pass alone over a project in which some classes already have only
+ *       deprecated methods</li>
+ *   <li><b>batch</b>: five method deprecations one after another on the same project, each by a new
+ *       {@link DeprecationUtility}, as a server runs them</li>
+ * </ul>
+ * The edited project is compared with a golden file holding the counts of the result and a digest of
+ * every file that changed. A run with recording gives the files read (by purpose) and written, from the
+ * Flight Recorder events of {@link DeprecationEvents}; it also serves as warm-up. The timed repetitions
+ * that follow give the median wall time and the bytes allocated by the running thread.
+ *
+ * Before any of this, every scenario runs once at the smallest size, so the first one measured does
+ * not pay for class loading and compilation, and a calibration workload that does not touch the
+ * utility is timed, to tell how fast this machine is.
+ *
+ * The measurements are compared with a baseline file. A scenario fails when it allocates more than the
+ * baseline plus the margin, when it reads or writes more files than the baseline says, or when its
+ * output differs from the golden file. Wall times differ from machine to machine, so they are compared
+ * relative to the baseline, both divided by the time of the calibration run on their machine. As the
+ * time of a single scenario also differs from run to run by more than a regression worth failing for,
+ * each is only reported; the run fails when the sum of all of them exceeds the sum of the baseline by
+ * more than a looser margin of its own. <code>--update</code> records the goldens and the baseline anew.
+ *
+ * Usage: java utility.PerfRegressionSuite [--golden perf/golden] [--baseline perf/baseline.properties]
+ *        [--margin 0.25] [--time-margin 0.5] [--work target/perf] [--sizes 100,1000,4000] [--repetitions 5]
+ *        [--update]
+ */
+public class PerfRegressionSuite {
+
+    private static final String[] SCENARIOS = {"cascade", "classes", "batch"};
+    private static final String[] BATCH_METHODS = {"helper1", "helper2", "helper3", "step4", "step5"};
+    private static final String[] METRICS = {"millis", "allocatedBytes", "filesRead", "filesWritten"};
+    private static final String CALIBRATION = "calibration.millis";
+
+    private final Path goldenDir;
+    private final Path baselineFile;
+    private final Path workDir;
+    private final double margin;
+    private final double timeMargin;
+    private final int[] sizes;
+    private final int repetitions;
+    private final boolean update;
+    private Path projectsDir;
+    private int runs;
+
+    PerfRegressionSuite(Map<String, String> options) {
+        this.goldenDir = Paths.get(options.getOrDefault("golden", "perf/golden"));
+        this.baselineFile = Paths.get(options.getOrDefault("baseline", "perf/baseline.properties"));
+        this.workDir = Paths.get(options.getOrDefault("work", "target/perf"));
+        this.margin = Double.parseDouble(options.getOrDefault("margin", "0.25"));
+        this.timeMargin = Double.parseDouble(options.getOrDefault("time-margin", "0.5"));
+        this.sizes = Arrays.stream(options.getOrDefault("sizes", "100,1000,4000").split(","))
+                .mapToInt(size -> Integer.parseInt(size.trim())).toArray();
+        this.repetitions = Integer.parseInt(options.getOrDefault("repetitions", "5"));
+        this.update = options.containsKey("update");
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Maven passes an empty argument for an unset property
+        String[] given = Arrays.stream(args).filter(arg -> !arg.isEmpty()).toArray(String[]::new);
+        PerfRegressionSuite suite = new PerfRegressionSuite(DeprecationAnalyzer.parseOptions(given, 0));
+
+        // the deprecation runs print progress, which would swamp the report
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        int failures;
+        try {
+            failures = suite.run(report);
+        } finally {
+            System.setOut(report);
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Run every scenario at every size and return the number of failed checks.
+     *
+     * The generated projects go to a temporary directory rather than the work directory: the utility
+     * leaves out sources below a <code>target</code> directory, where Maven puts the work directory.
+     */
+    int run(PrintStream report) throws Exception {
+        projectsDir = Files.createTempDirectory("deprecation-perf");
+        try {
+            return runScenarios(report);
+        } finally {
+            deleteTree(projectsDir);
+        }
+    }
+
+    private int runScenarios(PrintStream report) throws Exception {
+        Properties baseline = new Properties();
+        if (Files.isRegularFile(baselineFile)) {
+            try (InputStream in = Files.newInputStream(baselineFile)) {
+                baseline.load(in);
+            }
+        } else if (!update) {
+            report.println("No baseline at " + baselineFile + ", only the golden files are checked (record one with --update)");
+        }
+        Files.createDirectories(workDir);
+        Properties measured = new Properties();
+        int failures = 0;
+        long totalMillis = 0;
+        long baselineMillis = 0;
+
+        int smallest = Arrays.stream(sizes).min().orElse(0);
+        for (String scenario : SCENARIOS) {
+            Path project = generate(smallest);
+            runScenario(scenario, project);
+            deleteTree(project);
+        }
+        long calibration = calibrate();
+        measured.setProperty(CALIBRATION, String.valueOf(calibration));
+        long baselineCalibration = Long.parseLong(baseline.getProperty(CALIBRATION, "0"));
+        report.println("Calibration run: " + calibration + " ms"
+                + (baselineCalibration > 0 ? ", " + baselineCalibration + " ms on the baseline machine" : ""));
+
+        report.printf("%-10s %6s %10s %10s %14s %12s %12s  %s%n",
+                "scenario", "files", "millis", "relative", "allocatedMB", "filesRead", "filesWritten", "result");
+        for (int size : sizes) {
+            for (String scenario : SCENARIOS) {
+                String key = scenario + "." + size;
+                Measurement measurement = measure(scenario, size);
+                measurement.store(measured, key);
+
+                List<String> problems = new ArrayList<>();
+                checkGolden(key, measurement.golden, problems);
+                if (!update) {
+                    checkBaseline(baseline, key, measurement, problems);
+                }
+                totalMillis += measurement.millis;
+                baselineMillis += Long.parseLong(baseline.getProperty(key + ".millis", "0"));
+                failures += problems.size();
+                report.printf("%-10s %6d %10d %10s %14.1f %12d %12d  %s%n", scenario, size, measurement.millis,
+                        relative(measurement.millis, calibration, baseline.getProperty(key + ".millis"), baselineCalibration),
+                        measurement.allocatedBytes / 1048576.0,
+                        measurement.filesRead, measurement.filesWritten, problems.isEmpty() ? "ok" : "FAILED");
+                for (String problem : problems) {
+                    report.println("    " + problem);
+                }
+            }
+        }
+        if (!update) {
+            failures += checkTotalTime(totalMillis, calibration, baselineMillis, baselineCalibration, report);
+        }
+
+        Path reportFile = workDir.resolve("perf-report.properties");
+        storeProperties(measured, reportFile, "Measurements of the last run");
+        if (update) {
+            storeProperties(measured, baselineFile, "Baseline of the performance regression suite, recorded with --update");
+            report.println("Baseline and golden files recorded in " + baselineFile + " and " + goldenDir);
+        } else {
+            report.println("Measurements written to " + reportFile);
+        }
+        report.println(failures == 0 ? "Performance suite passed" : "Performance suite FAILED: " + failures + " problem(s)");
+        return failures;
+    }
+
+    /**
+     * What one scenario at one size costs, and what it produced
+     */
+    private static class Measurement {
+        long millis;
+        long allocatedBytes;
+        long filesRead;
+        long filesWritten;
+        String golden;
+        final Map<String, Long> readsByPurpose = new TreeMap<>();
+
+        long metric(String name) {
+            switch (name) {
+                case "millis": return millis;
+                case "allocatedBytes": return allocatedBytes;
+                case "filesRead": return filesRead;
+                default: return filesWritten;
+            }
+        }
+
+        void store(Properties properties, String key) {
+            for (String metric : METRICS) {
+                properties.setProperty(key + "." + metric, String.valueOf(metric(metric)));
+            }
+            for (Map.Entry<String, Long> reads : readsByPurpose.entrySet()) {
+                properties.setProperty(key + ".reads." + reads.getKey(), String.valueOf(reads.getValue()));
+            }
+        }
+    }
+
+    private Measurement measure(String scenario, int size) throws Exception {
+        Measurement measurement = new Measurement();
+
+        // the recorded run: golden output, files read and written, and warm-up for the timed runs
+        Path recorded = generate(size);
+        try (Recording recording = new Recording()) {
+            recording.enable("utility.FileRead").withoutThreshold();
+            recording.enable("utility.FileWrite").withoutThreshold();
+            recording.start();
+            String result = runScenario(scenario, recorded);
+            recording.stop();
+            measurement.golden = result + digest(recorded, size);
+
+            Path events = workDir.resolve("events.jfr");
+            recording.dump(events);
+            for (RecordedEvent event : RecordingFile.readAllEvents(events)) {
+                if (event.getEventType().getName().equals("utility.FileRead")) {
+                    measurement.filesRead++;
+                    measurement.readsByPurpose.merge(event.getString("purpose"), 1L, Long::sum);
+                } else {
+                    measurement.filesWritten++;
+                }
+            }
+            Files.delete(events);
+        }
+        deleteTree(recorded);
+
+        long[] millis = new long[repetitions];
+        long[] allocated = new long[repetitions];
+        for (int r = 0; r < repetitions; r++) {
+            Path project = generate(size);
+            System.gc();
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            runScenario(scenario, project);
+            millis[r] = (System.nanoTime() - start) / 1_000_000;
+            allocated[r] = allocatedBytes() - allocatedBefore;
+            deleteTree(project);
+        }
+        measurement.millis = median(millis);
+        measurement.allocatedBytes = median(allocated);
+        return measurement;
+    }
+
+    /**
+     * Run a scenario and return the counts of its results, one line per run
+     */
+    private static String runScenario(String scenario, Path project) throws IOException {
+        StringBuilder result = new StringBuilder();
+        switch (scenario) {
+            case "cascade":
+                append(result, "process", new DeprecationUtility(project.toString()).deprecateMethodWithResult("process", null));
+                break;
+            case "classes":
+                append(result, "classes", new DeprecationUtility(project.toString()).deprecateMethodWithResult(null, null));
+                break;
+            default:
+                for (String method : BATCH_METHODS) {
+                    append(result, method, new DeprecationUtility(project.toString()).deprecateMethodWithResult(method, null));
+                }
+        }
+        return result.toString();
+    }
+
+    private static void append(StringBuilder result, String run, WebServer.DeprecationResult deprecation) {
+        result.append("run ").append(run).append(": filesUpdated=").append(deprecation.getFilesUpdated())
+              .append(" methodsDeprecated=").append(deprecation.getMethodsDeprecated())
+              .append(" classesDeprecated=").append(deprecation.getClassesDeprecated()).append("\n");
+    }
+
+    private void checkGolden(String key, String actual, List<String> problems) throws IOException {
+        Path golden = goldenDir.resolve(key + ".txt");
+        if (update) {
+            Files.createDirectories(goldenDir);
+            Files.writeString(golden, actual);
+            return;
+        }
+        if (!Files.isRegularFile(golden)) {
+            problems.add("no golden file " + golden);
+            return;
+        }
+        String expected = Files.readString(golden);
+        if (!expected.equals(actual)) {
+            Path actualFile = workDir.resolve(key + ".actual.txt");
+            Files.writeString(actualFile, actual);
+            String[] expectedLines = expected.split("\n");
+            String[] actualLines = actual.split("\n");
+            int line = 0;
+            while (line < expectedLines.length && line < actualLines.length && expectedLines[line].equals(actualLines[line])) {
+                line++;
+            }
+            problems.add("output differs from " + golden + " at line " + (line + 1) + ": expected \""
+                    + (line < expectedLines.length ? expectedLines[line] : "") + "\", got \""
+                    + (line < actualLines.length ? actualLines[line] : "") + "\" (full output in " + actualFile + ")");
+        }
+    }
+
+    private void checkBaseline(Properties baseline, String key, Measurement measurement, List<String> problems) {
+        for (String metric : METRICS) {
+            String stored = baseline.getProperty(key + "." + metric);
+            // the time of a single scenario is only reported, see checkTotalTime
+            if (stored == null || metric.equals("millis")) {
+                continue;
+            }
+            long expected = Long.parseLong(stored);
+            long actual = measurement.metric(metric);
+            // file counts are deterministic, any increase is a regression
+            boolean exact = metric.startsWith("files");
+            long limit = exact ? expected : (long) Math.ceil(expected * (1 + margin));
+            if (actual > limit) {
+                problems.add(String.format("%s regressed: %d against a baseline of %d%s", metric, actual, expected,
+                        exact ? "" : String.format(" (limit %d with a margin of %.0f%%)", limit, margin * 100)));
+            }
+        }
+    }
+
+    /**
+     * Compare the time of all scenarios with that of the baseline, relative to the calibration runs, and
+     * return 1 when it exceeds the time margin
+     */
+    private int checkTotalTime(long totalMillis, long calibration, long baselineMillis, long baselineCalibration,
+                               PrintStream report) {
+        double ratio = ratio(totalMillis, calibration, String.valueOf(baselineMillis), baselineCalibration);
+        if (ratio <= 0) {
+            return 0;
+        }
+        report.printf("Total time: %d ms, %.2fx the baseline relative to the calibration run (limit %.2fx)%n",
+                totalMillis, ratio, 1 + timeMargin);
+        if (ratio > 1 + timeMargin) {
+            report.printf("    millis regressed: the scenarios took %.2fx as long as the baseline with a time margin of %.0f%%%n",
+                    ratio, timeMargin * 100);
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Median time of a fixed workload that runs none of the utility's code: generating and hashing the
+     * sources of a project of 4000 files. Scenario times divided by it compare across machines, roughly.
+     */
+    private long calibrate() throws NoSuchAlgorithmException {
+        long[] millis = new long[repetitions];
+        for (int r = 0; r < repetitions; r++) {
+            long start = System.nanoTime();
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (int round = 0; round < 5; round++) {
+                for (int f = 0; f < 4000; f++) {
+                    digest.update(generateSource(f).getBytes(StandardCharsets.UTF_8));
+                }
+                digest.digest();
+            }
+            millis[r] = (System.nanoTime() - start) / 1_000_000;
+        }
+        return Math.max(1, median(millis));
+    }
+
+    /**
+     * The time of a scenario relative to its baseline, each divided by the calibration time of its
+     * machine, or 0 without a baseline
+     */
+    private static double ratio(long millis, long calibration, String baselineMillis, long baselineCalibration) {
+        if (baselineMillis == null || baselineCalibration <= 0 || Long.parseLong(baselineMillis) <= 0) {
+            return 0;
+        }
+        return ((double) millis / calibration) / ((double) Long.parseLong(baselineMillis) / baselineCalibration);
+    }
+
+    private static String relative(long millis, long calibration, String baselineMillis, long baselineCalibration) {
+        double ratio = ratio(millis, calibration, baselineMillis, baselineCalibration);
+        return ratio > 0 ? String.format("%.2fx", ratio) : "-";
+    }
+
+    /**
+     * Generate a project of the given number of files in a new directory of the projects directory.
+     *
+     * File <code>f</code> declares class <code>C{f}</code> in module <code>mod{f/100}</code>. Every tenth
+     * class (f % 10 == 9) has only deprecated methods, for the class pass. The others declare
+     * <code>compute{f}</code>, <code>step{f%50}</code> and <code>helper{f%40}</code>, names shared by many
+     * files; every fifth also declares <code>process</code>, which calls <code>compute{f}</code> and a helper,
+     * and every twentieth declares nothing else, so the cascade leaves it with only deprecated methods.
+     */
+    private Path generate(int files) throws IOException {
+        Path project = projectsDir.resolve("project-" + files + "-" + (runs++));
+        deleteTree(project);
+        for (int f = 0; f < files; f++) {
+            Path source = sourcePath(project, f);
+            Files.createDirectories(source.getParent());
+            Files.writeString(source, generateSource(f));
+        }
+        return project;
+    }
+
+    private static Path sourcePath(Path project, int f) {
+        int module = f / 100;
+        return project.resolve("mod" + module + "/src/main/java/p" + module + "/C" + f + ".java");
+    }
+
+    static String generateSource(int f) {
+        StringBuilder source = new StringBuilder();
+        source.append("package p").append(f / 100).append(";\n\n");
+        source.append("public class C").append(f).append(" {\n");
+        if (f % 10 == 9) {
+            source.append("    @Deprecated\n");
+            source.append("    public int old").append(f).append("a(int a) {\n        return a - 1;\n    }\n\n");
+            source.append("    @Deprecated\n");
+            source.append("    public int old").append(f).append("b(int a) {\n        return old").append(f).append("a(a) * 2;\n    }\n");
+        } else {
+            if (f % 5 == 0) {
+                source.append("    public int process(int a) {\n");
+                source.append("        return compute").append(f).append("(a) + helper").append((f * 3) % 40).append("(a);\n    }\n\n");
+            }
+            source.append("    public int compute").append(f).append("(int a) {\n");
+            if (f % 20 == 0) {
+                source.append("        return a + ").append(f).append(";\n    }\n");
+            } else {
+                source.append("        return step").append(f % 50).append("(a) + helper").append((f * 7) % 40).append("(a);\n    }\n\n");
+                source.append("    int step").append(f % 50).append("(int a) {\n        return a + ").append(f).append(";\n    }\n\n");
+                source.append("    int helper").append(f % 40).append("(int a) {\n        return a * 2;\n    }\n");
+            }
+        }
+        source.append("}\n");
+        return source.toString();
+    }
+
+    /**
+     * One line per file that differs from the generated one: a digest of its content and its path
+     */
+    private static String digest(Path project, int files) throws IOException, NoSuchAlgorithmException {
+        StringBuilder digest = new StringBuilder();
+        for (int f = 0; f < files; f++) {
+            Path source = sourcePath(project, f);
+            byte[] content = Files.readAllBytes(source);
+            if (!Arrays.equals(content, generateSource(f).getBytes(StandardCharsets.UTF_8))) {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+                StringBuilder hex = new StringBuilder();
+                for (int i = 0; i < 8; i++) {
+                    hex.append(String.format("%02x", hash[i]));
+                }
+                digest.append(hex).append(" ").append(project.relativize(source).toString().replace('\\', '/')).append("\n");
+            }
+        }
+        return digest.toString();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static void storeProperties(Properties properties, Path file, String comment) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        // sorted, so that a recorded baseline diffs cleanly
+        StringBuilder text = new StringBuilder("# ").append(comment).append("\n");
+        for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+            text.append(key).append("=").append(properties.getProperty(key)).append("\n");
+        }
+        Files.writeString(file, text.toString());
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProjectLockManagerTest {
+
+    private static final int REQUESTS = 50;
+    private static final int THREADS = 10;
+    private static final int METHODS_PER_MODULE = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writeLockExcludesRunsOnTheSameProjectOnly() throws Exception {
+        ProjectLockManager locks = new ProjectLockManager(4);
+        Path project = folder.newFolder("a").toPath();
+        Path other = folder.newFolder("b").toPath();
+
+        Lock write = locks.projectWriteLock(project);
+        write.lock();
+        try {
+            assertFalse(tryLockElsewhere(locks.projectReadLock(project)));
+            assertTrue(tryLockElsewhere(locks.projectReadLock(other)));
+        } finally {
+            write.unlock();
+        }
+        assertTrue(tryLockElsewhere(locks.projectReadLock(project)));
+    }
+
+    @Test
+    public void runsShareTheReadLock() throws Exception {
+        ProjectLockManager locks = new ProjectLockManager(4);
+        Path project = folder.getRoot().toPath();
+
+        Lock read = locks.projectReadLock(project);
+        read.lock();
+        try {
+            assertTrue(tryLockElsewhere(locks.projectReadLock(project)));
+            assertFalse(tryLockElsewhere(locks.projectWriteLock(project)));
+        } finally {
+            read.unlock();
+        }
+    }
+
+    @Test
+    public void fileLockDependsOnTheNormalizedPath() {
+        ProjectLockManager locks = new ProjectLockManager(64);
+        Path project = folder.getRoot().toPath();
+        Path file = project.resolve("A.java");
+
+        assertSame(locks.fileLock(project, file), locks.fileLock(project.resolve("x/.."), project.resolve("x/../A.java")));
+        assertNotSame(locks.fileLock(project, file), locks.fileLock(project.resolve("other"), file));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stripesMustBeAPowerOfTwo() {
+        new ProjectLockManager(12);
+    }
+
+    /**
+     * Concurrent runs on one project, each with its own {@link DeprecationUtility} as the web server
+     * does, all calling helpers declared in one shared file: every method and helper must end up
+     * marked exactly once and every journaled edit must still be in the files.
+     */
+    @Test
+    public void concurrentRunsLoseNoEdits() throws Exception {
+        Path root = folder.getRoot().toPath();
+        List<String> methods = generateProject(root);
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<WebServer.DeprecationResult>> results = new ArrayList<>();
+        for (String method : methods) {
+            results.add(pool.submit(() -> {
+                start.await();
+                return new DeprecationUtility(root.toString()).deprecateMethodWithResult(method, null);
+            }));
+        }
+        start.countDown();
+        int methodsDeprecated = 0;
+        try {
+            for (Future<WebServer.DeprecationResult> result : results) {
+                WebServer.DeprecationResult deprecation = result.get(60, TimeUnit.SECONDS);
+                assertTrue(deprecation.getError(), deprecation.isSuccess());
+                methodsDeprecated += deprecation.getMethodsDeprecated();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(methods.size(), methodsDeprecated);
+
+        Set<String> expected = new HashSet<>(methods);
+        for (String method : methods) {
+            expected.add(helperOf(method));
+        }
+        InsertionEngine engine = InsertionEngine.defaultEngine();
+        int markers = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root, "*.java")) {
+            for (Path file : files) {
+                String content = Files.readString(file);
+                markers += count(content, DeprecationUtility.DEPRECATION_COMMENT);
+                for (SourceIndex.Declaration declaration : SourceIndex.parse(content)) {
+                    boolean shouldBeMarked = declaration.kind == SourceIndex.METHOD
+                            ? expected.contains(declaration.name) : declaration.name.equals("Helpers");
+                    assertEquals(declaration.name + " in " + file.getFileName(), shouldBeMarked, engine.isMarked(declaration));
+                }
+            }
+        }
+        // every method and helper, and the Helpers class
+        assertEquals(expected.size() + 1, markers);
+
+        int journaled = 0;
+        try (DirectoryStream<Path> journals = Files.newDirectoryStream(root.resolve(DeprecationJournal.JOURNAL_DIR),
+                "*" + DeprecationJournal.JOURNAL_SUFFIX)) {
+            for (Path journal : journals) {
+                journaled += Files.readAllLines(journal).size() - 1;
+            }
+        }
+        assertEquals(markers, journaled);
+    }
+
+    private static boolean tryLockElsewhere(Lock lock) throws Exception {
+        ExecutorService thread = Executors.newSingleThreadExecutor();
+        try {
+            return thread.submit(() -> {
+                if (!lock.tryLock(100, TimeUnit.MILLISECONDS)) {
+                    return false;
+                }
+                lock.unlock();
+                return true;
+            }).get();
+        } finally {
+            thread.shutdownNow();
+        }
+    }
+
+    /**
+     * Modules with the requested methods plus a Helpers class called from all of them. Every module
+     * also keeps one method that is never deprecated, so only the Helpers class becomes deprecated.
+     */
+    private static List<String> generateProject(Path root) throws IOException {
+        List<String> methods = new ArrayList<>();
+        StringBuilder helpers = new StringBuilder("package stress;\n\npublic class Helpers {\n");
+
+        for (int m = 0; methods.size() < REQUESTS; m++) {
+            StringBuilder module = new StringBuilder("package stress;\n\npublic class Module" + m + " {\n");
+            for (int k = 0; k < METHODS_PER_MODULE && methods.size() < REQUESTS; k++) {
+                String name = "method" + m + "x" + k;
+                methods.add(name);
+                module.append("\n    public int ").append(name).append("(int value) {\n")
+                      .append("        return new Helpers().").append(helperOf(name)).append("(value) + 1;\n")
+                      .append("    }\n");
+                helpers.append("\n    public int ").append(helperOf(name)).append("(int value) {\n")
+                       .append("        return value * 2;\n")
+                       .append("    }\n");
+            }
+            module.append("\n    public void keep() {\n    }\n}\n");
+            Files.writeString(root.resolve("Module" + m + ".java"), module);
+        }
+        helpers.append("}\n");
+        Files.writeString(root.resolve("Helpers.java"), helpers);
+        return methods;
+    }
+
+    private static String helperOf(String method) {
+        return "helper" + method.substring("method".length());
+    }
+
+    private static int count(String content, String text) {
+        int count = 0;
+        for (int i = content.indexOf(text); i >= 0; i = content.indexOf(text, i + text.length())) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,69 @@
+package utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProjectRegistryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void leastRecentlyUsedProjectIsEvicted() {
+        List<String> evicted = new ArrayList<>();
+        ProjectRegistry<String> registry = new ProjectRegistry<>(2, Path::toString, evicted::add);
+        String a = registry.get(Paths.get("/projects/a"));
+        registry.get(Paths.get("/projects/b"));
+        assertSame(a, registry.get(Paths.get("/projects/a")));
+
+        registry.get(Paths.get("/projects/c"));
+
+        assertEquals(List.of(Paths.get("/projects/b").toAbsolutePath().toString()), evicted);
+        assertNull(registry.getIfPresent(Paths.get("/projects/b")));
+        assertSame(a, registry.getIfPresent(Paths.get("/projects/a")));
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void clearReleasesEveryProject() {
+        List<String> evicted = new ArrayList<>();
+        ProjectRegistry<String> registry = new ProjectRegistry<>(2, Path::toString, evicted::add);
+        registry.get(Paths.get("/projects/a"));
+        registry.get(Paths.get("/projects/b"));
+
+        registry.clear();
+
+        assertEquals(2, evicted.size());
+        assertEquals(0, registry.size());
+        assertNull(registry.getIfPresent(Paths.get("/projects/a")));
+    }
+
+    @Test
+    public void closedVersionTrackerStillSeesChanges() throws IOException {
+        Path project = folder.getRoot().toPath();
+        Path calc = project.resolve("Calc.java");
+        Files.writeString(calc, "public class Calc {\n}\n");
+        ProjectVersion version = ProjectVersion.of(project);
+        long before = version.current();
+
+        version.close();
+        Files.writeString(calc, "public class Calc {\n    int a;\n}\n");
+
+        assertFalse(version.isWatching());
+        assertNotEquals(before, version.current());
+    }
+}
@@ -0,0 +1,87 @@
+package utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xml.sax.SAXParseException;
+
+public class ReachabilityAnalyzerTest {
+
+    private static final String MAIN = "public class Main {\n    public static void main(String[] args) {\n        new Util().helper();\n    }\n}\n";
+    private static final String UTIL = "public class Util {\n    void helper() {\n    }\n}\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path project;
+    private ReachabilityAnalyzer.EntryPoints entryPoints;
+
+    @Before
+    public void writeProject() throws Exception {
+        project = folder.getRoot().toPath();
+        Files.writeString(project.resolve("Main.java"), MAIN);
+        Files.writeString(project.resolve("Util.java"), UTIL);
+        entryPoints = ReachabilityAnalyzer.EntryPoints.of(project, null, null, null);
+    }
+
+    @Test
+    public void addedCodeReusesTheLastFixpoint() throws Exception {
+        ReachabilityAnalyzer analyzer = ReachabilityAnalyzer.of(project);
+        assertEquals(0, analyzer.analyze(entryPoints).getUnreachableCount());
+
+        Files.writeString(project.resolve("Util.java"), UTIL.replace("}\n}", "}\n\n    void extra() {\n    }\n}"));
+        ReachabilityAnalyzer.Result result = analyzer.analyze(entryPoints);
+
+        assertTrue(result.isIncremental());
+        assertEquals(result.toText(), 1, result.getUnreachableCount());
+    }
+
+    @Test
+    public void removedCallIsComputedAgain() throws Exception {
+        ReachabilityAnalyzer analyzer = ReachabilityAnalyzer.of(project);
+        assertEquals(0, analyzer.analyze(entryPoints).getUnreachableCount());
+
+        Files.writeString(project.resolve("Main.java"), MAIN.replace("        new Util().helper();\n", ""));
+        ReachabilityAnalyzer.Result result = analyzer.analyze(entryPoints);
+
+        assertFalse(result.isIncremental());
+        assertEquals(result.toText(), 1, result.getUnreachableCount());
+        assertTrue(result.toText(), result.toText().contains("Util.java:2: unreachable method helper()"));
+    }
+
+    @Test
+    public void servletsOfTheDescriptorAreEntryPoints() throws Exception {
+        Path webXml = project.resolve("web.xml");
+        Files.writeString(webXml, "<web-app><servlet><servlet-class>app.Util</servlet-class></servlet></web-app>");
+
+        ReachabilityAnalyzer.EntryPoints servlets = ReachabilityAnalyzer.EntryPoints.of(project, null, null, webXml.toString());
+        Files.writeString(project.resolve("Main.java"), MAIN.replace("        new Util().helper();\n", ""));
+
+        assertEquals(0, ReachabilityAnalyzer.of(project).analyze(servlets).getUnreachableCount());
+    }
+
+    @Test
+    public void descriptorWithExternalEntityIsRejected() throws Exception {
+        Path secret = folder.newFile("secret.txt").toPath();
+        Files.writeString(secret, "app.Util");
+        Path webXml = project.resolve("web.xml");
+        Files.writeString(webXml, "<?xml version=\"1.0\"?>\n<!DOCTYPE web-app [<!ENTITY secret SYSTEM \""
+                + secret.toUri() + "\">]>\n<web-app><servlet><servlet-class>&secret;</servlet-class></servlet></web-app>");
+
+        try {
+            ReachabilityAnalyzer.EntryPoints.of(project, null, null, webXml.toString());
+            fail("a descriptor with a DOCTYPE is parsed");
+        } catch (SAXParseException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("DOCTYPE"));
+        }
+    }
+}
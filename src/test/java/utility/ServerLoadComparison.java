@@ -0,0 +1,224 @@
+package utility;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Local load test of the two HTTP front ends, {@link WebServer} and {@link NioWebServer}.
+ *
+ * Both servers are started in this JVM on free ports and get the same workload in turn: every client
+ * keeps one connection open and sends its requests over it, optionally pipelined, four in five of them
+ * for the UI page and one in five a no-op deprecation of a copy of sample-project. Each server gets a
+ * warm-up round before it is measured. Prints throughput and latency percentiles per server.
+ *
+ * Usage: java utility.ServerLoadComparison [clients] [requestsPerClient] [pipelineDepth]
+ */
+public class ServerLoadComparison {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int requestsPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int pipelineDepth = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        Path project = Files.createTempDirectory("load-project");
+        copyTree(Paths.get("sample-project"), project);
+        String apiBody = "{\"projectPath\":\"" + project.toAbsolutePath().toString().replace("\\", "\\\\")
+                + "\",\"methodName\":\"noSuchMethodForLoadTest\"}";
+
+        // the servers and the deprecation runs print progress, which would swamp the report
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        report.printf("%d clients x %d requests, pipeline depth %d%n", clients, requestsPerClient, pipelineDepth);
+        report.printf("%-12s %10s %10s %10s %10s %8s%n", "server", "seconds", "req/s", "p50 ms", "p99 ms", "errors");
+
+        WebServer webServer = new WebServer(0);
+        webServer.start();
+        try {
+            run(report, "httpserver", webServer.getPort(), clients, requestsPerClient, pipelineDepth, apiBody);
+        } finally {
+            webServer.stop();
+        }
+
+        NioWebServer nioServer = new NioWebServer(0);
+        nioServer.start();
+        try {
+            run(report, "nio", nioServer.getPort(), clients, requestsPerClient, pipelineDepth, apiBody);
+        } finally {
+            nioServer.stop();
+        }
+        System.setOut(report);
+    }
+
+    private static void run(PrintStream report, String name, int port, int clients, int requestsPerClient,
+                            int pipelineDepth, String apiBody) throws InterruptedException {
+        measure(port, clients, Math.max(1, requestsPerClient / 4), pipelineDepth, apiBody);
+        Result result = measure(port, clients, requestsPerClient, pipelineDepth, apiBody);
+
+        long[] latencies = result.latencies;
+        Arrays.sort(latencies);
+        double seconds = result.elapsedNanos / 1e9;
+        report.printf("%-12s %10.2f %10.0f %10.2f %10.2f %8d%n", name, seconds, latencies.length / seconds,
+                percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6, result.errors);
+    }
+
+    private static class Result {
+        long elapsedNanos;
+        long[] latencies;
+        int errors;
+    }
+
+    private static Result measure(int port, int clients, int requestsPerClient, int pipelineDepth, String apiBody)
+            throws InterruptedException {
+        byte[] page = ("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] body = apiBody.getBytes(StandardCharsets.UTF_8);
+        byte[] api = concat(("POST /api/deprecate HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\n"
+                + "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1), body);
+
+        long[][] latencies = new long[clients][requestsPerClient];
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            Thread thread = new Thread(() -> {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress("127.0.0.1", port));
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = socket.getOutputStream();
+                    InputStream in = new BufferedInputStream(socket.getInputStream());
+                    ready.countDown();
+                    go.await();
+                    for (int sent = 0; sent < requestsPerClient; ) {
+                        int batch = Math.min(pipelineDepth, requestsPerClient - sent);
+                        long start = System.nanoTime();
+                        for (int i = 0; i < batch; i++) {
+                            out.write((client + sent + i) % 5 == 0 ? api : page);
+                        }
+                        out.flush();
+                        for (int i = 0; i < batch; i++) {
+                            if (readResponse(in) != 200) {
+                                errors.incrementAndGet();
+                            }
+                            latencies[client][sent + i] = System.nanoTime() - start;
+                        }
+                        sent += batch;
+                    }
+                } catch (IOException | InterruptedException e) {
+                    errors.incrementAndGet();
+                    ready.countDown();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Result result = new Result();
+        result.elapsedNanos = System.nanoTime() - start;
+        result.latencies = Arrays.stream(latencies).flatMapToLong(Arrays::stream).toArray();
+        result.errors = errors.get();
+        return result;
+    }
+
+    /**
+     * Read one response with a Content-Length or chunked body and return its status
+     */
+    private static int readResponse(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        if (statusLine == null) {
+            throw new IOException("Connection closed by server");
+        }
+        int status = Integer.parseInt(statusLine.split(" ")[1]);
+        long contentLength = -1;
+        boolean chunked = false;
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            String lower = line.toLowerCase();
+            if (lower.startsWith("content-length:")) {
+                contentLength = Long.parseLong(line.substring(15).trim());
+            } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+                chunked = true;
+            }
+        }
+        if (chunked) {
+            long size;
+            while ((size = Long.parseLong(readLine(in).trim(), 16)) > 0) {
+                skip(in, size);
+                readLine(in);
+            }
+            readLine(in);
+        } else if (contentLength > 0) {
+            skip(in, contentLength);
+        }
+        return status;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return b < 0 && line.size() == 0 ? null : line.toString(StandardCharsets.ISO_8859_1.name());
+    }
+
+    private static void skip(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("Connection closed by server");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] joined = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, joined, a.length, b.length);
+        return joined;
+    }
+
+    private static void copyTree(Path source, Path target) throws IOException {
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Path copy = target.resolve(source.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(copy);
+                } else {
+                    Files.copy(path, copy);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ShardedDeprecationTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shardedRunWaitsForTheRunsOfThisJvm() throws Exception {
+        Path project = folder.getRoot().toPath();
+        Files.createDirectories(project.resolve("a"));
+        Files.createDirectories(project.resolve("b"));
+        Files.writeString(project.resolve("a/Calc.java"), "public class Calc {\n    public int add(int a, int b) {\n        return a + b;\n    }\n}\n");
+        Files.writeString(project.resolve("b/Other.java"), "public class Other {\n    public int add(int a) {\n        return a;\n    }\n}\n");
+
+        // an API run of this JVM holds the shared project lock
+        Lock apiRun = ProjectLockManager.getInstance().projectReadLock(project);
+        apiRun.lock();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<WebServer.DeprecationResult> sharded = executor.submit(
+                    () -> ShardedDeprecation.deprecate(project, "add", null, 2, null, new HashMap<>()));
+            Thread.sleep(500);
+            assertFalse(sharded.isDone());
+            assertFalse(Files.readString(project.resolve("a/Calc.java")).contains("@Deprecated"));
+
+            apiRun.unlock();
+            WebServer.DeprecationResult result = sharded.get(120, TimeUnit.SECONDS);
+
+            assertTrue(result.isSuccess());
+            assertEquals(2, result.getMethodsDeprecated());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SourceIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void savedIndexIsLoadedAndReplacedInTheSameJvm() throws IOException {
+        Path root = folder.getRoot().toPath();
+        Path file = root.resolve("Calc.java");
+        Files.writeString(file, "public class Calc {\n    public int add(int a, int b) {\n        return a + b;\n    }\n}\n");
+
+        SourceIndex first = SourceIndex.load(root);
+        first.refresh(file);
+        first.save();
+
+        SourceIndex loaded = SourceIndex.load(root);
+        assertEquals(first.contentVersion(), loaded.contentVersion());
+        List<SourceIndex.Declaration> methods = loaded.refresh(file).methodsNamed("add");
+        assertEquals(1, methods.size());
+        assertEquals(1, methods.get(0).line);
+        assertEquals(0, loaded.getFilesParsed());
+
+        // the loaded index must not keep the file from being replaced
+        Files.writeString(file, "public class Calc {\n}\n");
+        loaded.refresh(file);
+        loaded.save();
+        assertTrue(SourceIndex.load(root).refresh(file).methodsNamed("add").isEmpty());
+    }
+
+    @Test
+    public void unreadableIndexStartsEmpty() throws IOException {
+        Path root = folder.getRoot().toPath();
+        Path indexFile = root.resolve(SourceIndex.INDEX_FILE);
+        Files.createDirectories(indexFile.getParent());
+        Files.write(indexFile, new byte[] {1, 2, 3});
+
+        assertEquals(SourceIndex.load(root).contentVersion(), SourceIndex.load(folder.newFolder().toPath()).contentVersion());
+    }
+
+    @Test
+    public void probeTellsClassesWithoutMethodsAsTheParseDoes() throws IOException {
+        Path root = folder.getRoot().toPath();
+        String[] sources = {
+            "public class Consts {\n    static final int A = compute(1);\n}\n",
+            "@Deprecated\npublic class Old {\n    int a;\n}\n",
+            "public class Calc {\n    public int add(int a, int b) {\n        return a + b;\n    }\n}\n",
+            "public class Outer {\n    void run() {\n    }\n\n    static class Inner {\n        int b;\n    }\n}\n",
+            "interface Shape {\n    double area();\n}\n",
+        };
+        boolean[] expected = {true, false, false, true, false};
+
+        SourceIndex probed = SourceIndex.load(root);
+        SourceIndex parsed = SourceIndex.load(folder.newFolder().toPath());
+        for (int i = 0; i < sources.length; i++) {
+            Path file = root.resolve("S" + i + ".java");
+            Files.writeString(file, sources[i]);
+            assertEquals(sources[i], expected[i], probed.probe(file).classWithoutMethods);
+            assertEquals(sources[i], expected[i], parsed.refresh(file).classWithoutMethods);
+        }
+        probed.save();
+        SourceIndex loaded = SourceIndex.load(root);
+        for (int i = 0; i < sources.length; i++) {
+            assertEquals(sources[i], expected[i], loaded.probe(root.resolve("S" + i + ".java")).classWithoutMethods);
+        }
+        assertEquals(0, probed.getFilesParsed() + loaded.getFilesParsed());
+    }
+}
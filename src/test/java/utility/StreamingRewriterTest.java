@@ -0,0 +1,77 @@
+package utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StreamingRewriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<String> directoryListing() throws IOException {
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            return files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void insertionsLandAtTheirCharacterOffsets() throws IOException {
+        String content = "// grüße 𝄞\nclass A {\n    void m() {}\n}\n";
+        Path file = folder.getRoot().toPath().resolve("A.java");
+        Files.writeString(file, content);
+
+        StreamingRewriter.rewrite(file, content, Arrays.asList(
+                new DeprecationJournal.Insertion(content.indexOf("    void"), "    @Deprecated\n"),
+                new DeprecationJournal.Insertion(content.indexOf("class"), "@Deprecated\n")));
+
+        assertEquals("// grüße 𝄞\n@Deprecated\nclass A {\n    @Deprecated\n    void m() {}\n}\n", Files.readString(file));
+        assertEquals(Arrays.asList("A.java"), directoryListing());
+    }
+
+    @Test
+    public void failedRewriteLeavesTheOriginal() throws IOException {
+        String content = "class A {\n}\n";
+        Path file = folder.getRoot().toPath().resolve("A.java");
+        Files.writeString(file, content);
+
+        // planned against longer content than the file has, as if the file was cut short meanwhile
+        String planned = content + "// more\n";
+        try {
+            StreamingRewriter.rewrite(file, planned, Arrays.asList(new DeprecationJournal.Insertion(planned.length(), "// end\n")));
+            fail("The rewrite should fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertEquals(content, Files.readString(file));
+        assertEquals(Arrays.asList("A.java"), directoryListing());
+    }
+
+    @Test
+    public void rewriteKeepsThePermissions() throws IOException {
+        String content = "class A {\n}\n";
+        Path file = folder.getRoot().toPath().resolve("A.java");
+        Files.writeString(file, content);
+        if (!file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return;
+        }
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwxr-x---"));
+
+        StreamingRewriter.rewrite(file, content, Arrays.asList(new DeprecationJournal.Insertion(0, "@Deprecated\n")));
+
+        assertEquals("rwxr-x---", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+    }
+}
@@ -0,0 +1,156 @@
+package utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+/**
+ * The compact index layout against the object layout the utility used to build: a <code>HashMap</code>
+ * from method name to per-declaration objects holding the file, the line and the boxed callee names.
+ * Both are fed the same synthetic project, with names repeating across files the way method names do
+ * in real code.
+ */
+public class SymbolMemoryTest {
+
+    private static final int FILES = 5_000;
+    private static final int METHODS_PER_FILE = 10;
+    private static final int CALLS_PER_METHOD = 4;
+    private static final int DISTINCT_NAMES = FILES * METHODS_PER_FILE / 8;
+
+    @Test
+    public void internedNamesShareOneId() {
+        SymbolTable symbols = new SymbolTable(2);
+        int id = symbols.intern(methodName(7));
+        for (int i = 0; i < 100; i++) {
+            symbols.intern(methodName(i));
+        }
+        assertEquals(id, symbols.intern(methodName(7)));
+        assertEquals(id, symbols.find(methodName(7)));
+        assertEquals(methodName(7), symbols.name(id));
+        assertEquals(100, symbols.size());
+        assertEquals(-1, symbols.find("missing"));
+    }
+
+    @Test
+    public void compactLayoutKeepsEveryDeclarationAndCall() {
+        CallGraph graph = buildCompactLayout();
+        Map<String, List<ObjectDeclaration>> objects = buildObjectLayout();
+
+        assertEquals(FILES * METHODS_PER_FILE, graph.getDeclarationCount());
+        assertEquals(FILES * METHODS_PER_FILE * CALLS_PER_METHOD, graph.getEdgeCount());
+        for (String name : new String[] {methodName(0), methodName(DISTINCT_NAMES - 1)}) {
+            List<ObjectDeclaration> declarations = objects.get(name);
+            int nameId = graph.getSymbols().find(name);
+            assertEquals(declarations.size(), graph.declarationCountOf(nameId));
+            int declaration = graph.declarationOf(nameId, 0);
+            assertEquals(declarations.get(0).file, graph.file(declaration));
+            assertEquals(declarations.get(0).lineNumber, graph.line(declaration));
+            for (int c = 0; c < CALLS_PER_METHOD; c++) {
+                assertEquals(declarations.get(0).callees.get(c), graph.getSymbols().name(graph.callee(declaration, c)));
+            }
+        }
+    }
+
+    @Test
+    public void compactLayoutRetainsLessThanHalfTheHeap() {
+        long objectBytes = retained(SymbolMemoryTest::buildObjectLayout);
+        long compactBytes = retained(SymbolMemoryTest::buildCompactLayout);
+
+        assertTrue("object layout retained " + objectBytes + " bytes", objectBytes > 0);
+        assertTrue("compact layout retained " + compactBytes + " bytes against " + objectBytes,
+                compactBytes > 0 && compactBytes * 2 < objectBytes);
+    }
+
+    private static Map<String, List<ObjectDeclaration>> buildObjectLayout() {
+        Map<String, List<ObjectDeclaration>> occurrences = new HashMap<>();
+        for (int f = 0; f < FILES; f++) {
+            String file = fileName(f);
+            for (int m = 0; m < METHODS_PER_FILE; m++) {
+                int declaration = f * METHODS_PER_FILE + m;
+                List<String> callees = new ArrayList<>();
+                for (int c = 0; c < CALLS_PER_METHOD; c++) {
+                    callees.add(methodName(calleeOf(declaration, c)));
+                }
+                String name = methodName(declaration % DISTINCT_NAMES);
+                occurrences.computeIfAbsent(name, k -> new ArrayList<>())
+                        .add(new ObjectDeclaration(file, 4 + m * 6, callees));
+            }
+        }
+        return occurrences;
+    }
+
+    private static CallGraph buildCompactLayout() {
+        SymbolTable symbols = new SymbolTable();
+        CallGraph.Builder builder = new CallGraph.Builder(symbols);
+        int[] callees = new int[CALLS_PER_METHOD];
+        for (int f = 0; f < FILES; f++) {
+            int fileId = builder.addFile(fileName(f));
+            for (int m = 0; m < METHODS_PER_FILE; m++) {
+                int declaration = f * METHODS_PER_FILE + m;
+                for (int c = 0; c < CALLS_PER_METHOD; c++) {
+                    callees[c] = symbols.intern(methodName(calleeOf(declaration, c)));
+                }
+                int nameId = symbols.intern(methodName(declaration % DISTINCT_NAMES));
+                builder.addDeclaration(fileId, nameId, 4 + m * 6, 0, callees, 0, CALLS_PER_METHOD);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Heap retained by what the supplier builds, measured after a full GC while it is still reachable
+     */
+    private static long retained(Supplier<Object> build) {
+        long before = usedHeap();
+        Object built = build.get();
+        long after = usedHeap();
+        Reference.reachabilityFence(built);
+        return after - before;
+    }
+
+    /**
+     * Names are generated fresh on every use, as they would be when cut out of freshly read files
+     */
+    private static String methodName(int id) {
+        return new StringBuilder("computeValue").append(id).toString();
+    }
+
+    private static String fileName(int file) {
+        return "module" + (file % 100) + "/src/main/java/com/example/generated/Source" + file + ".java";
+    }
+
+    private static int calleeOf(int declaration, int call) {
+        return (int) ((declaration * 31L + call * 7919L) % DISTINCT_NAMES);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * A declaration in the object layout
+     */
+    private static class ObjectDeclaration {
+        final String file;
+        final int lineNumber;
+        final List<String> callees;
+
+        ObjectDeclaration(String file, int lineNumber, List<String> callees) {
+            this.file = file;
+            this.lineNumber = lineNumber;
+            this.callees = callees;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WebServerApiTest {
+
+    private static final String CALC = "public class Calc {\n    public int add(int a, int b) {\n        return a + b;\n    }\n}\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void dryRunLeavesTheProjectUntouched() throws IOException {
+        Path calc = folder.getRoot().toPath().resolve("Calc.java");
+        Files.writeString(calc, CALC);
+        Map<String, String> fields = new HashMap<>();
+        fields.put("projectPath", folder.getRoot().toString());
+        fields.put("methodName", "add");
+        fields.put("dryRun", "true");
+
+        WebServer.ApiResponse response = WebServer.handleApi("/api/deprecate", fields::get);
+
+        assertEquals(200, response.status);
+        assertTrue(response.body, response.body.contains("\"methodsDeprecated\":1"));
+        assertEquals(CALC, Files.readString(calc));
+        assertTrue(Files.notExists(folder.getRoot().toPath().resolve(DeprecationJournal.JOURNAL_DIR)));
+    }
+
+    @Test
+    public void rawBodiesAndParsedFieldsTakeTheSameRoute() throws IOException {
+        Path calc = folder.getRoot().toPath().resolve("Calc.java");
+        Files.writeString(calc, CALC);
+
+        WebServer.ApiResponse response = WebServer.handleApi("/api/deprecate",
+                "{\"projectPath\":\"" + folder.getRoot() + "\",\"methodName\":\"add\",\"dryRun\":true}");
+
+        assertEquals(200, response.status);
+        assertEquals(CALC, Files.readString(calc));
+    }
+
+    private boolean git(File dir, String... args) throws InterruptedException {
+        String[] command = new String[args.length + 1];
+        command[0] = "git";
+        System.arraycopy(args, 0, command, 1, args.length);
+        try {
+            return new ProcessBuilder(command).directory(dir).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD).start().waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void revisionAnalysisIsKeyedByCommitWithoutTouchingTheCheckout() throws Exception {
+        File project = folder.getRoot();
+        Files.writeString(project.toPath().resolve("Calc.java"), CALC);
+        assumeTrue("git is available", git(project, "init", "-q"));
+        assumeTrue(git(project, "add", "Calc.java"));
+        assumeTrue(git(project, "-c", "user.name=test", "-c", "user.email=test@example.com", "commit", "-q", "-m", "calc"));
+        String body = "{\"projectPath\":\"" + project + "\",\"revision\":\"HEAD\"}";
+
+        WebServer.ApiResponse first = WebServer.handleApi("/api/analyze", body);
+        long hits = ResultCache.shared().getHits();
+        WebServer.ApiResponse second = WebServer.handleApi("/api/analyze", body);
+
+        assertEquals(first.body, 200, first.status);
+        assertEquals(first.body, second.body);
+        assertEquals(hits + 1, ResultCache.shared().getHits());
+        assertTrue(Files.notExists(project.toPath().resolve(DeprecationUtility.STATE_DIR)));
+    }
+
+    @Test
+    public void resultJsonKeepsBackslashesAndControlCharacters() throws IOException {
+        String details = "Updated: C:\\src\\Calc.java\n\t\"quoted\"\u0001";
+        Map<String, Integer> ruleCounts = new HashMap<>();
+        ruleCounts.put("class=A\\B", 1);
+        WebServer.DeprecationResult result = new WebServer.DeprecationResult(true, 1, 1, 0, details,
+                "at D:\\work", "20240101-000000-000", ruleCounts);
+
+        JsonNode json = new ObjectMapper().readTree(result.toJson());
+
+        assertEquals(details, json.get("details").asText());
+        assertEquals("at D:\\work", json.get("error").asText());
+        assertEquals(1, json.get("ruleCounts").get("class=A\\B").asInt());
+    }
+}
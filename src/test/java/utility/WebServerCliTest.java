@@ -0,0 +1,113 @@
+package utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WebServerCliTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String userHome;
+    private WebServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        userHome = System.getProperty("user.home");
+        System.setProperty("user.home", folder.newFolder("home").toString());
+        server = new WebServer(0);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+        System.setProperty("user.home", userHome);
+    }
+
+    /**
+     * Status of a raw request, since HttpURLConnection does not send an Origin header
+     */
+    private int post(String token, String origin) throws IOException {
+        String body = "arg\t--undo\narg\t" + folder.getRoot() + "\n";
+        StringBuilder request = new StringBuilder("POST /api/cli HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n")
+                .append("Content-Type: text/plain\r\nContent-Length: ").append(body.length()).append("\r\n");
+        if (token != null) {
+            request.append(WebServer.TOKEN_HEADER).append(": ").append(token).append("\r\n");
+        }
+        if (origin != null) {
+            request.append("Origin: ").append(origin).append("\r\n");
+        }
+        request.append("\r\n").append(body);
+        try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+            socket.getOutputStream().write(request.toString().getBytes(StandardCharsets.UTF_8));
+            String statusLine = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+            return Integer.parseInt(statusLine.split(" ")[1]);
+        }
+    }
+
+    private String token() throws IOException {
+        return new String(Files.readAllBytes(WebServer.cliTokenFile(server.getPort())), StandardCharsets.UTF_8).trim();
+    }
+
+    @Test
+    public void tokenFileIsReadableByItsOwnerOnly() throws IOException {
+        Path file = WebServer.cliTokenFile(server.getPort());
+
+        assertEquals(64, token().length());
+        if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+        }
+    }
+
+    @Test
+    public void commandsWithoutTheTokenAreRefused() throws IOException {
+        assertEquals(403, post(null, null));
+        String token = token();
+        assertEquals(403, post((token.charAt(0) == '0' ? "1" : "0") + token.substring(1), null));
+    }
+
+    @Test
+    public void commandsFromABrowserPageAreRefused() throws IOException {
+        assertEquals(403, post(token(), "http://example.com"));
+        assertEquals(200, post(token(), null));
+    }
+
+    @Test
+    public void clientRunsACommandWithTheToken() throws IOException {
+        Path project = folder.newFolder("project").toPath();
+        Path calc = project.resolve("Calc.java");
+        Files.writeString(calc, "public class Calc {\n    public int add(int a, int b) {\n        return a + b;\n    }\n}\n");
+
+        int exitCode = DeprecationClient.forward(server.getPort(), new String[] {project.toString(), "add"}, null);
+
+        assertEquals(0, exitCode);
+        assertTrue(Files.readString(calc).contains("@Deprecated"));
+    }
+
+    @Test
+    public void stoppingTheServerRemovesItsToken() {
+        Path file = WebServer.cliTokenFile(server.getPort());
+        assertTrue(Files.exists(file));
+
+        server.stop();
+
+        assertFalse(Files.exists(file));
+    }
+}